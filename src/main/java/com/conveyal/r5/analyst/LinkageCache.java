@@ -1,18 +1,26 @@
 package com.conveyal.r5.analyst;
 
+import com.conveyal.r5.analyst.cluster.CacheStatus;
 import com.conveyal.r5.profile.StreetMode;
 import com.conveyal.r5.streets.LinkedPointSet;
 import com.conveyal.r5.streets.StreetLayer;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
 import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 
 /**
@@ -36,6 +44,15 @@ public class LinkageCache {
      */
     public static int LINKAGE_CACHE_SIZE = 9;
 
+    /**
+     * If greater than zero, this replaces LINKAGE_CACHE_SIZE: evictable linkages are retained until their total
+     * estimated size (including their egress cost tables) exceeds this number of bytes. Like LINKAGE_CACHE_SIZE this
+     * is one limit per TransportNetwork. See setMaximumBytes.
+     */
+    private transient long maximumBytes = 0;
+
+    private static final long KB = 1024;
+
     /**
      * When this PointSet is connected to the street network, the resulting data are cached in this Map to speed up
      * later reuse. Different linkages are produced for different street networks and for different on-street modes
@@ -56,6 +73,19 @@ public class LinkageCache {
      */
     protected Map<Key, LinkedPointSet> linkageMap = new HashMap<>();
 
+    /**
+     * Linkages in the evictable cache whose egress cost table was already built the last time they were weighed.
+     * Egress cost tables are built lazily after a linkage enters the cache, and they are usually much bigger than the
+     * linkage itself, so linkages are weighed again once their tables are built (see getLinkage).
+     */
+    private final transient Set<Key> weighedWithEgressCostTable = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The estimated size of each linkage in the evictable cache when it was last weighed, so that the size of the
+     * cache can be reported without estimating it again.
+     */
+    private final transient Map<Key, Long> estimatedBytes = new ConcurrentHashMap<>();
+
     /**
      * The logic for lazy-loading linkages into the cache.
      *
@@ -133,28 +163,84 @@ public class LinkageCache {
      * particular linkage to be serialized with the network (the Guava cache does not serialize its contents) and
      * never evicted. The newly constructed linkage will also have an EgressCostTable built (since that's actually
      * the slowest part of linkage, and one we want to serialize for later reuse).
+     * Linkages for different modes may be built concurrently while a network is being built.
      */
     public void buildUnevictableLinkage (PointSet pointSet, StreetLayer streetLayer, StreetMode mode) {
         Key key = new Key(pointSet, streetLayer, mode);
-        if (linkageMap.containsKey(key) || linkageCache.getIfPresent(key) != null) {
-            throw new RuntimeException("Un-evictable linkage is being built more than once.");
+        synchronized (linkageMap) {
+            if (linkageMap.containsKey(key) || linkageCache.getIfPresent(key) != null) {
+                throw new RuntimeException("Un-evictable linkage is being built more than once.");
+            }
         }
         LinkedPointSet newLinkage = new LinkedPointSet(pointSet, streetLayer, mode, null);
         // Pre-build the cost tables so it isn't done lazily later.
         newLinkage.getEgressCostTable();
-        linkageMap.put(key, newLinkage);
+        synchronized (linkageMap) {
+            linkageMap.put(key, newLinkage);
+        }
     }
 
+    /**
+     * @return the linkages that will never be evicted from this cache, i.e. those that are serialized with the network.
+     */
+    public Collection<LinkedPointSet> getUnevictableLinkages () {
+        return linkageMap.values();
+    }
+
+    /**
+     * This remains a Guava cache rather than a Caffeine one because the loader recursively fetches other linkages
+     * from the same cache (e.g. for the base street layer), which Caffeine does not allow within a load.
+     */
     public LinkageCache () {
-        this.linkageCache = CacheBuilder.newBuilder()
-                .maximumSize(LINKAGE_CACHE_SIZE)
-                .removalListener(notification -> LOG.warn(
-                        "LINKAGE CACHE EVICTION. key: {}, cause: {}",
-                        notification.getKey(),
-                        notification.getCause()))
+        this.linkageCache = createCache();
+    }
+
+    /**
+     * Retain evictable linkages up to the given total estimated size in bytes rather than LINKAGE_CACHE_SIZE of them.
+     * This should be called before any linkage is requested from this cache, as any evictable linkages already
+     * retained are dropped, and will be built again if they are needed.
+     */
+    public synchronized void setMaximumBytes (long maximumBytes) {
+        if (maximumBytes == this.maximumBytes) return;
+        this.maximumBytes = maximumBytes;
+        LoadingCache<Key, LinkedPointSet> previousCache = linkageCache;
+        linkageCache = createCache();
+        previousCache.invalidateAll();
+    }
+
+    private LoadingCache<Key, LinkedPointSet> createCache () {
+        CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder();
+        if (maximumBytes > 0) {
+            // Guava weights are ints, so weigh linkages in kilobytes.
+            Weigher<Key, LinkedPointSet> weigher = (key, linkage) ->
+                    (int) Math.min(Integer.MAX_VALUE, weigh(key, linkage) / KB);
+            builder.maximumWeight(maximumBytes / KB).weigher(weigher);
+        } else {
+            builder.maximumSize(LINKAGE_CACHE_SIZE);
+        }
+        return builder
+                .recordStats()
+                .removalListener((RemovalNotification<Key, LinkedPointSet> notification) -> {
+                    if (notification.getCause() == RemovalCause.REPLACED) return;
+                    weighedWithEgressCostTable.remove(notification.getKey());
+                    estimatedBytes.remove(notification.getKey());
+                    LOG.warn("LINKAGE CACHE EVICTION. key: {}, cause: {}",
+                            notification.getKey(),
+                            notification.getCause());
+                })
                 .build(new LinkageCacheLoader());
     }
 
+    /**
+     * Estimate the memory retained by a linkage in the evictable cache and record it for reporting in getStatus.
+     * @return the estimated number of bytes retained by the linkage.
+     */
+    private long weigh (Key key, LinkedPointSet linkage) {
+        long bytes = linkage.estimateRetainedBytes();
+        estimatedBytes.put(key, bytes);
+        return bytes;
+    }
+
     /**
      * Find or build a linkage associating each feature in this PointSet with a nearby edge in the StreetLayer.
      * This is a rather slow operation involving a lot of geometry calculations, so we cache the resulting
@@ -168,6 +254,20 @@ public class LinkageCache {
             // Try the unevictable map before falling back on the evictable cache.
             if (value == null) {
                 value = linkageCache.get(key);
+                if (maximumBytes == 0 && !estimatedBytes.containsKey(key)) {
+                    // Without a memory budget the cache does not weigh linkages, so record their size here.
+                    weigh(key, value);
+                }
+                // If the egress cost table was built since the linkage was last weighed, weigh it again. When the
+                // cache has a memory budget, put the linkage in the cache again so its weight is updated. This only
+                // happens once per linkage.
+                if (value.hasEgressCostTable() && weighedWithEgressCostTable.add(key)) {
+                    if (maximumBytes > 0) {
+                        linkageCache.put(key, value);
+                    } else {
+                        weigh(key, value);
+                    }
+                }
             }
             return value;
         } catch (ExecutionException e) {
@@ -175,6 +275,23 @@ public class LinkageCache {
         }
     }
 
+    /**
+     * @return the cumulative statistics and current contents of the evictable part of this cache. Linkages that are
+     * never evicted are serialized with the network and are counted in its estimated size instead.
+     */
+    public CacheStatus getStatus () {
+        CacheStats stats = linkageCache.stats();
+        CacheStatus status = new CacheStatus();
+        status.hits = stats.hitCount();
+        status.misses = stats.missCount();
+        status.evictions = stats.evictionCount();
+        status.loadSeconds = stats.totalLoadTime() / 1e9;
+        status.entries = linkageCache.size();
+        status.estimatedMegabytes = estimatedBytes.values().stream().mapToLong(Long::longValue).sum() / (KB * KB);
+        status.budgetMegabytes = maximumBytes / (KB * KB);
+        return status;
+    }
+
     /**
      * Combines the attributes that uniquely identify a linkage.
      */
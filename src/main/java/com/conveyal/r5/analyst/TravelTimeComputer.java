@@ -7,6 +7,7 @@ import com.conveyal.r5.analyst.cluster.RegionalTask;
 import com.conveyal.r5.analyst.fare.InRoutingFareCalculator;
 import com.conveyal.r5.api.util.LegMode;
 import com.conveyal.r5.point_to_point.builder.PointToPointQuery;
+import com.conveyal.r5.profile.BatchedRaptorWorker;
 import com.conveyal.r5.profile.DominatingList;
 import com.conveyal.r5.profile.FareDominatingList;
 import com.conveyal.r5.profile.FastRaptorWorker;
@@ -17,12 +18,17 @@ import com.conveyal.r5.streets.LinkedPointSet;
 import com.conveyal.r5.streets.PointSetTimes;
 import com.conveyal.r5.streets.StreetRouter;
 import com.conveyal.r5.transit.TransportNetwork;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.TIntIntMap;
 import gnu.trove.map.hash.TIntIntHashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.EnumSet;
+import java.util.List;
 import java.util.function.IntFunction;
 
 import static com.conveyal.r5.profile.PerTargetPropagater.MM_PER_METER;
@@ -43,6 +49,18 @@ public class TravelTimeComputer {
     private final AnalysisTask request;
     private final TransportNetwork network;
 
+    /**
+     * If true, the Monte Carlo draws of the transit search will be performed in parallel. This is intended for
+     * interactive single-point requests, and should be left false when many searches are already running in parallel.
+     */
+    public boolean parallelMonteCarloDraws = false;
+
+    // The results of the street searches from the origin, used by the transit search and propagation that follow.
+    private PointSet destinations;
+    private TravelTimeReducer travelTimeReducer;
+    private TIntIntMap accessTimes;
+    private PointSetTimes nonTransitTravelTimesToDestinations;
+
     /** Constructor. */
     public TravelTimeComputer (AnalysisTask request, TransportNetwork network) {
         this.request = request;
@@ -52,15 +70,132 @@ public class TravelTimeComputer {
 
     /**
      * The TravelTimeComputer can make travel time grids, accessibility indicators, or (eventually) both depending
-     * on what's in the task it's given. TODO factor out each major step of this process into private methods.
+     * on what's in the task it's given.
      */
     public OneOriginResult computeTravelTimes() {
+        OneOriginResult nonTransitResult = findAccess();
+        if (nonTransitResult != null) {
+            return nonTransitResult;
+        }
+
+        // II. Transit Routing ========================================================================================
+        // Transit stops were reached. Perform transit routing from those stops to all other reachable stops. The result
+        // is a travel time in seconds for each iteration (departure time x monte carlo draw), for each transit stop.
+        // The standard RAPTOR worker writes these directly into a flat array in the stop-major order used for
+        // propagation, while the McRaptor router returns one array per iteration.
+        int[] transitTravelTimesToStops;
+        int nIterations;
+        FastRaptorWorker worker = null;
+        if (request.inRoutingFareCalculator == null) {
+            worker = new FastRaptorWorker(network.transitLayer, request, accessTimes);
+            if (request.computePaths || request.computeTravelTimeBreakdown) {
+                // By default, this is false and intermediate results (e.g. paths) are discarded.
+                // TODO do we really need to save all states just to get the travel time breakdown?
+                worker.retainPaths = true;
+            }
+            worker.parallelMonteCarloDraws = parallelMonteCarloDraws;
+            // Run the main RAPTOR algorithm to find paths and travel times to all stops in the network.
+            // Returns the total travel times as a flat array, with all iterations for one stop stored contiguously.
+            // Additional detailed path information is retained in the FastRaptorWorker after routing.
+            transitTravelTimesToStops = worker.routeStopMajor();
+            nIterations = worker.getIterationCount();
+        } else {
+            // TODO maxClockTime could provide a tighter bound, as it could be based on the actual departure time, not the last possible
+            IntFunction<DominatingList> listSupplier =
+                    (departureTime) -> new FareDominatingList(
+                            request.inRoutingFareCalculator,
+                            request.maxFare,
+                            departureTime + request.maxTripDurationMinutes * FastRaptorWorker.SECONDS_PER_MINUTE);
+            McRaptorSuboptimalPathProfileRouter mcRaptorWorker = new McRaptorSuboptimalPathProfileRouter(network,
+                    request, null, null, listSupplier, InRoutingFareCalculator.getCollator(request));
+            mcRaptorWorker.route();
+            int[][] bestTimes = mcRaptorWorker.getBestTimes();
+            transitTravelTimesToStops = PerTargetPropagater.invertTravelTimes(bestTimes);
+            nIterations = bestTimes.length;
+        }
+
+        return propagate(transitTravelTimesToStops, nIterations, worker);
+    }
+
+    /**
+     * Compute travel times from several origins of the same regional analysis, whose tasks differ only in their origin
+     * point. On networks the BatchedRaptorWorker can route, the transit searches from all the origins that reach
+     * transit are performed together. Otherwise, or when fares or paths are requested, each origin is handled on its
+     * own with computeTravelTimes().
+     * @return the result for each task, in the same order as the tasks.
+     */
+    public static List<OneOriginResult> computeTravelTimes (List<RegionalTask> tasks, TransportNetwork network) {
+        RegionalTask firstTask = tasks.get(0);
+        if (tasks.size() == 1 || !BatchedRaptorWorker.canRoute(network.transitLayer)
+                || firstTask.inRoutingFareCalculator != null || firstTask.computePaths
+                || firstTask.computeTravelTimeBreakdown) {
+            List<OneOriginResult> results = new ArrayList<>();
+            for (RegionalTask task : tasks) {
+                results.add(new TravelTimeComputer(task, network).computeTravelTimes());
+            }
+            return results;
+        }
+
+        // Perform the street searches from each origin, setting aside the results of those that reach no transit.
+        OneOriginResult[] results = new OneOriginResult[tasks.size()];
+        TIntList transitOrigins = new TIntArrayList();
+        List<TravelTimeComputer> transitComputers = new ArrayList<>();
+        List<TIntIntMap> accessStopsPerOrigin = new ArrayList<>();
+        for (int i = 0; i < tasks.size(); i++) {
+            TravelTimeComputer computer = new TravelTimeComputer(tasks.get(i), network);
+            results[i] = computer.findAccess();
+            if (results[i] == null) {
+                transitOrigins.add(i);
+                transitComputers.add(computer);
+                accessStopsPerOrigin.add(computer.accessTimes);
+            }
+        }
+
+        // Route the remaining origins together, then propagate from the stops one origin at a time.
+        if (!transitComputers.isEmpty()) {
+            LOG.info("Performing one transit search for {} of {} origins.", transitComputers.size(), tasks.size());
+            BatchedRaptorWorker worker = new BatchedRaptorWorker(network.transitLayer, firstTask, accessStopsPerOrigin);
+            int[][] transitTravelTimesToStops = worker.routeStopMajor();
+            for (int j = 0; j < transitComputers.size(); j++) {
+                results[transitOrigins.get(j)] = transitComputers.get(j)
+                        .propagate(transitTravelTimesToStops[j], worker.getIterationCount(), null);
+                // Allow the times for this origin to be garbage collected while propagating from the others.
+                transitTravelTimesToStops[j] = null;
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Perform the range checking and setup, and the street searches from the origin to the transit stops and the
+     * destinations.
+     * @return the final result when no transit search is needed, because the origin is not linked to the street
+     *         network or no transit stops are reached; otherwise null.
+     */
+    private OneOriginResult findAccess () {
 
         // 0. Preliminary range checking and setup =====================================================================
         if (!request.directModes.equals(request.accessModes)) {
             throw new IllegalArgumentException("Direct mode may not be different than access mode in Analysis.");
         }
 
+        // In an arrive-by (reverse) search the request's from point is the destination and the time window is a window
+        // of arrival times there. The street searches below then run backward, the FastRaptorWorker routes on a
+        // transit layer reversed in time, and the propagated travel times are those from each point to the
+        // destination. Egress propagation still uses the stop-to-point linkage tables, which are symmetric for walking.
+        if (request.reverseSearch) {
+            if (request.inRoutingFareCalculator != null || request.accessModes.contains(LegMode.CAR_PARK)) {
+                throw new IllegalArgumentException("Fares and park and ride are not supported in arrive-by searches.");
+            }
+            if (request.computePaths || request.computeTravelTimeBreakdown) {
+                throw new IllegalArgumentException("Paths cannot be computed in arrive-by searches.");
+            }
+            if (request.egressModes != null && !EnumSet.of(LegMode.WALK).containsAll(request.egressModes)) {
+                // Only the walking linkage tables are symmetric, so they can't be reused for other egress modes.
+                throw new IllegalArgumentException("Only walking egress is supported in arrive-by searches.");
+            }
+        }
+
         // If this request includes a fare calculator, inject the transport network's transit layer into it.
         // This is threadsafe because deserializing each incoming request creates a new fare calculator instance.
         if (request.inRoutingFareCalculator != null) {
@@ -72,7 +207,7 @@ public class TravelTimeComputer {
 
         // Create an object that accumulates travel times at each destination, simplifying them into percentiles.
         // TODO Create and encapsulate this object within the propagator.
-        TravelTimeReducer travelTimeReducer = new TravelTimeReducer(request);
+        travelTimeReducer = new TravelTimeReducer(request);
 
         // Determine car pick-up delay time for the access leg, which is generally specified in a scenario modification.
         // Only find this time when cars are in use, as it requires potentially slow geometry operations.
@@ -86,8 +221,6 @@ public class TravelTimeComputer {
         // This reuses the logic for finding the appropriate grid size and linking, which is now in the NetworkPreloader.
         // We could change the preloader to retain these values in a compound return type, to avoid repetition here.
         // TODO merge multiple destination pointsets from a regional request into a single supergrid?
-        PointSet destinations;
-
         // For now, use logic in the NetworkPreloader to return null extents if the request is not for a single-point
         // (travel time surface), which implies the destination pointset is a grid. This should be cleaned up.
         WebMercatorExtents destinationGridExtents = NetworkPreloader.Key.forTask(request).destinationGridExtents;
@@ -104,11 +237,11 @@ public class TravelTimeComputer {
         // times to the destination points using those access modes.
 
         // A map from transit stop vertex indices to the travel time it takes to reach those vertices in seconds.
-        TIntIntMap accessTimes = new TIntIntHashMap();
+        accessTimes = new TIntIntHashMap();
 
         // Travel times in seconds to each destination point (or MAX_INT for unreachable points?)
         // Starts out as null but will be updated when any access leg search succeeds.
-        PointSetTimes nonTransitTravelTimesToDestinations = null;
+        nonTransitTravelTimesToDestinations = null;
 
         // We will try to find a starting point in the street network and perform an access search with each street mode.
         // This tracks whether any of those searches (for any mode) were successfully connected to the street network.
@@ -230,34 +363,16 @@ public class TravelTimeComputer {
             return travelTimeReducer.finish();
         }
 
-        // II. Transit Routing ========================================================================================
-        // Transit stops were reached. Perform transit routing from those stops to all other reachable stops. The result
-        // is a travel time in seconds for each iteration (departure time x monte carlo draw), for each transit stop.
-        int[][] transitTravelTimesToStops;
-        FastRaptorWorker worker = null;
-        if (request.inRoutingFareCalculator == null) {
-            worker = new FastRaptorWorker(network.transitLayer, request, accessTimes);
-            if (request.computePaths || request.computeTravelTimeBreakdown) {
-                // By default, this is false and intermediate results (e.g. paths) are discarded.
-                // TODO do we really need to save all states just to get the travel time breakdown?
-                worker.retainPaths = true;
-            }
-            // Run the main RAPTOR algorithm to find paths and travel times to all stops in the network.
-            // Returns the total travel times as a 2D array of [searchIteration][destinationStopIndex].
-            // Additional detailed path information is retained in the FastRaptorWorker after routing.
-            transitTravelTimesToStops = worker.route();
-        } else {
-            // TODO maxClockTime could provide a tighter bound, as it could be based on the actual departure time, not the last possible
-            IntFunction<DominatingList> listSupplier =
-                    (departureTime) -> new FareDominatingList(
-                            request.inRoutingFareCalculator,
-                            request.maxFare,
-                            departureTime + request.maxTripDurationMinutes * FastRaptorWorker.SECONDS_PER_MINUTE);
-            McRaptorSuboptimalPathProfileRouter mcRaptorWorker = new McRaptorSuboptimalPathProfileRouter(network,
-                    request, null, null, listSupplier, InRoutingFareCalculator.getCollator(request));
-            mcRaptorWorker.route();
-            transitTravelTimesToStops = mcRaptorWorker.getBestTimes();
-        }
+        return null;
+    }
+
+    /**
+     * Propagate the travel times to transit stops out to the destinations via the street network, and combine them
+     * with the travel times without transit found by findAccess().
+     * @param transitTravelTimesToStops the travel times to each stop at each iteration, in stop-major order.
+     * @param worker the transit search, which retains the paths when they are requested, or null if none was used.
+     */
+    private OneOriginResult propagate (int[] transitTravelTimesToStops, int nIterations, FastRaptorWorker worker) {
 
         // III. Egress Propagation ======================================================================================
         // Propagate these travel times for every iteration at every stop out to the destination points, via streets.
@@ -272,6 +387,7 @@ public class TravelTimeComputer {
                 egressStreetModes,
                 request,
                 transitTravelTimesToStops,
+                nIterations,
                 nonTransitTravelTimesToDestinations.travelTimes);
 
         // We cannot yet merge the functionality of the TravelTimeReducer into the PerTargetPropagator
@@ -285,7 +401,6 @@ public class TravelTimeComputer {
         }
 
         return perTargetPropagater.propagate();
-
     }
 
 
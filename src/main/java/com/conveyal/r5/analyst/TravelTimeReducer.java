@@ -47,6 +47,15 @@ public class TravelTimeReducer {
 
     private final int nPercentiles;
 
+    /** The percentile numbers (indexes into percentileIndexes) sorted by increasing percentile index. */
+    private final int[] percentilesInOrder;
+
+    /**
+     * Reused for each destination to count how many travel times fall within each whole minute below the
+     * maxTripDurationMinutes. The last element counts all times at or above that maximum, including UNREACHED.
+     */
+    private final int[] minuteHistogram;
+
     /**
      * The number of travel times we will record at each destination.
      * This is affected by the number of Monte Carlo draws requested and the departure time window.
@@ -98,6 +107,16 @@ public class TravelTimeReducer {
         for (int p = 0; p < nPercentiles; p++) {
             percentileIndexes[p] = findPercentileIndex(timesPerDestination, task.percentiles[p]);
         }
+        this.percentilesInOrder = new int[nPercentiles];
+        for (int p = 0; p < nPercentiles; p++) {
+            int position = p;
+            while (position > 0 && percentileIndexes[percentilesInOrder[position - 1]] > percentileIndexes[p]) {
+                percentilesInOrder[position] = percentilesInOrder[position - 1];
+                position--;
+            }
+            percentilesInOrder[position] = p;
+        }
+        this.minuteHistogram = new int[maxTripDurationMinutes + 1];
 
         // Decide whether we want to retain travel times to all destinations for this origin.
         // This is currently only used with regional tasks when origins are freeform pointsets.
@@ -147,6 +166,28 @@ public class TravelTimeReducer {
         return (int)(Math.ceil(percentile / 100 * nElements) - 1);
     }
 
+    /**
+     * @return true if this reducer only accumulates accessibility indicators, so the travel time to each target only
+     * matters insofar as each percentile is above or below the maxTripDurationMinutes.
+     */
+    public boolean isRecordingAccessibilityOnly () {
+        return calculateAccessibility && !calculateTravelTimes;
+    }
+
+    /** @return the travel time in seconds at and above which targets are not counted as accessible. */
+    public int getMaxTripDurationSeconds () {
+        return maxTripDurationMinutes * FastRaptorWorker.SECONDS_PER_MINUTE;
+    }
+
+    /**
+     * @return the number of iterations that must reach a target below the maxTripDurationMinutes for all requested
+     * percentiles of travel time to that target to be below the maxTripDurationMinutes.
+     */
+    public int getIterationsToReachAllPercentiles () {
+        if (nPercentiles == 0) return 0;
+        return percentileIndexes[percentilesInOrder[nPercentiles - 1]] + 1;
+    }
+
     /**
      * Given a single unvarying travel time to a destination, replicate it to match the expected number of
      * percentiles, then record those n identical percentiles at the target.
@@ -162,28 +203,50 @@ public class TravelTimeReducer {
 
     /**
      * Given a list of travel times of the expected length, extract the requested percentiles, then record value for
-     * target.
-     * WARNING: this method destructively sorts the supplied times in place.
-     * Their positions in the array will no longer correspond to the raptor iterations that produced them.
-     * @param timesSeconds which will be destructively sorted in place to extract percentiles.
+     * target. The supplied times are not modified.
      * @return the extracted travel times, in minutes. This is a hack to enable scoring paths in the caller.
      */
     public int[] extractTravelTimesAndRecord (int target, int[] timesSeconds) {
-        // Sort the times at each target and extract percentiles at the pre-calculated indexes.
+        if (timesSeconds.length != timesPerDestination) {
+            throw new ParameterException(timesSeconds.length + " iterations supplied; expected " + timesPerDestination);
+        }
+        // Rather than sorting the times, perform a counting sort by minute: we only report whole minutes below the
+        // maxTripDurationMinutes, so the small histogram array should remain in processor cache across destinations.
+        // Converting to minutes before or after finding percentiles gives the same result, as the conversion never
+        // changes the order of two times.
+        Arrays.fill(minuteHistogram, 0);
+        for (int timeSeconds : timesSeconds) {
+            minuteHistogram[minuteBin(timeSeconds)] += 1;
+        }
+        return recordTravelTimesForTarget(target, readPercentilesFromHistogram());
+    }
+
+    /**
+     * @return the histogram bin for the given travel time. All times that would be reported as UNREACHED by
+     * convertToMinutes fall into the last bin.
+     */
+    private int minuteBin (int timeSeconds) {
+        if (timeSeconds == FastRaptorWorker.UNREACHED) return maxTripDurationMinutes;
+        return Math.min(timeSeconds / FastRaptorWorker.SECONDS_PER_MINUTE, maxTripDurationMinutes);
+    }
+
+    /**
+     * Find all requested percentiles in a single pass over the cumulative minuteHistogram. The value at index i in
+     * the sorted list of times is the first bin whose cumulative count exceeds i.
+     */
+    private int[] readPercentilesFromHistogram () {
         int[] percentileTravelTimesMinutes = new int[nPercentiles];
-        if (timesSeconds.length == timesPerDestination) {
-            // Instead of general purpose sort this could be done by performing a counting sort on the times,
-            // converting them to minutes in the process and reusing the small histogram array (120 elements) which
-            // should remain largely in processor cache. That's a lot of division though. Would need to be profiled.
-            Arrays.sort(timesSeconds);
-            for (int p = 0; p < nPercentiles; p++) {
-                int timeSeconds = timesSeconds[percentileIndexes[p]];
-                percentileTravelTimesMinutes[p] = convertToMinutes(timeSeconds);
+        int bin = 0;
+        int cumulativeCount = minuteHistogram[0];
+        for (int p : percentilesInOrder) {
+            int index = percentileIndexes[p];
+            while (cumulativeCount <= index) {
+                bin += 1;
+                cumulativeCount += minuteHistogram[bin];
             }
-        } else {
-            throw new ParameterException(timesSeconds.length + " iterations supplied; expected " + timesPerDestination);
+            percentileTravelTimesMinutes[p] = (bin == maxTripDurationMinutes) ? FastRaptorWorker.UNREACHED : bin;
         }
-        return recordTravelTimesForTarget(target, percentileTravelTimesMinutes);
+        return percentileTravelTimesMinutes;
     }
 
     /**
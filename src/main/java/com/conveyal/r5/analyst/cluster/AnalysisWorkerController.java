@@ -47,7 +47,9 @@ public class AnalysisWorkerController {
 
         try {
             try {
-                byte[] binaryResult = analystWorker.handleOneSinglePointTask(task);
+                // Computations are run on a separate bounded executor, to limit how many happen at once.
+                byte[] binaryResult = analystWorker.singlePointTaskExecutor.run(
+                        () -> analystWorker.handleOneSinglePointTask(task));
                 response.status(HttpStatus.OK_200);
                 if (task.getFormat().equals(TravelTimeSurfaceTask.Format.GEOTIFF)) {
                     response.header("Content-Type", "application/x-geotiff");
@@ -68,6 +70,10 @@ public class AnalysisWorkerController {
                 } else {
                     return jsonResponse(response, HttpStatus.ACCEPTED_202, workerNotReadyException.asyncLoaderState.message);
                 }
+            } catch (WorkerBusyException workerBusyException) {
+                // Turn the request away quickly rather than letting requests pile up and exhaust memory.
+                response.header("Retry-After", "1");
+                return jsonResponse(response, HttpStatus.SERVICE_UNAVAILABLE_503, workerBusyException.getMessage());
             }
         } catch (Exception exception) {
             // Handle any uncaught exceptions in any of the above code.
@@ -14,6 +14,8 @@ import com.conveyal.r5.analyst.error.ScenarioApplicationException;
 import com.conveyal.r5.analyst.error.TaskError;
 import com.conveyal.r5.common.JsonUtilities;
 import com.conveyal.r5.common.R5Version;
+import com.conveyal.r5.profile.BatchedRaptorWorker;
+import com.conveyal.r5.streets.EdgeStore;
 import com.conveyal.r5.transit.TransportNetwork;
 import com.conveyal.r5.transit.TransportNetworkCache;
 import com.conveyal.r5.transitive.TransitiveNetwork;
@@ -26,6 +28,8 @@ import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.config.SocketConfig;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.util.EntityUtils;
@@ -41,17 +45,14 @@ import java.io.OutputStream;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Random;
 import java.util.UUID;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * This is a main class run by worker machines in our Analysis computation cluster.
@@ -169,6 +170,27 @@ public class AnalystWorker implements Runnable {
      */
     protected boolean listenForSinglePointRequests;
 
+    /**
+     * If this is true, the Monte Carlo draws within each single-point search will be spread across all processors.
+     * This reduces the latency of interactive requests on frequency-heavy networks at the cost of some extra memory.
+     * Regional tasks are always computed one per thread, as they are already run in parallel.
+     */
+    private final boolean parallelSinglePointDraws;
+
+    /**
+     * The maximum number of single-point tasks computed at once, and the number that may wait for a free thread
+     * before further requests are turned away. Zero means use defaults based on the number of processors.
+     */
+    private final int singlePointThreads;
+    private final int singlePointQueueLength;
+
+    /**
+     * If this is true, regional results are posted to the broker in a compact binary format (see
+     * RegionalWorkResultCodec) before each poll, rather than being included in the JSON body of the poll itself.
+     * This requires a broker that supports the binary results endpoint.
+     */
+    private final boolean binaryResults;
+
     /**
      * This has been pulled out into a method so the broker can also make a similar http client.
      */
@@ -200,13 +222,20 @@ public class AnalystWorker implements Runnable {
     /** If true Analyst is running locally, do not use internet connection and remote services such as S3. */
     private boolean workOffline;
 
+    /** A queue to hold a backlog of regional analysis tasks, consumed by a fixed set of regional worker threads. */
+    private RegionalTaskQueue regionalTaskQueue;
+
+    /** The number of threads taking tasks from the regional task queue. */
+    private int nRegionalThreads;
+
     /**
-     * A queue to hold a backlog of regional analysis tasks.
-     * This avoids "slow joiner" syndrome where we wait to poll for more work until all N fetched tasks have finished,
-     * but one of the tasks takes much longer than all the rest.
-     * This should be long enough to hold all that have come in - we don't need to block on polling the manager.
+     * Even if the queue is not low, the polling thread will contact the broker after waiting this long if there are
+     * completed results to return, so results from slow tasks are not held back until the whole backlog is finished.
      */
-    private ThreadPoolExecutor regionalTaskExecutor;
+    private static final int RESULT_FLUSH_SECONDS = 10;
+
+    /** Runs single-point tasks with bounded concurrency, giving them priority over regional tasks. */
+    SinglePointTaskExecutor singlePointTaskExecutor;
 
     /** The HTTP server that receives single-point requests. */
     private spark.Service sparkHttpService;
@@ -218,7 +247,13 @@ public class AnalystWorker implements Runnable {
         String awsRegion = workOffline ? null : config.getProperty("aws-region");
         String graphsBucket = workOffline ? null : config.getProperty("graphs-bucket");
         String graphDirectory = config.getProperty("cache-dir", "cache/graphs");
-        TransportNetworkCache cache = new TransportNetworkCache(awsRegion, graphsBucket, new File(graphDirectory));
+        // Memory budgets for networks and for the linkages of each network. Zero means limit by count as before.
+        long networkCacheMegabytes = Long.parseLong(config.getProperty("network-cache-megabytes", "0"));
+        long linkageCacheMegabytes = Long.parseLong(config.getProperty("linkage-cache-megabytes", "0"));
+        TransportNetworkCache cache = new TransportNetworkCache(awsRegion, graphsBucket, new File(graphDirectory),
+                networkCacheMegabytes * 1024 * 1024, linkageCacheMegabytes * 1024 * 1024);
+        cache.mapDistanceTables = Boolean.parseBoolean(config.getProperty("map-distance-tables", "false"));
+        EdgeStore.PACK_GEOMETRIES = Boolean.parseBoolean(config.getProperty("pack-street-geometries", "false"));
         return new AnalystWorker(config, cache);
     }
 
@@ -259,6 +294,10 @@ public class AnalystWorker implements Runnable {
         this.networkPreloader = new NetworkPreloader(transportNetworkCache);
         this.autoShutdown = Boolean.parseBoolean(config.getProperty("auto-shutdown", "false"));
         this.listenForSinglePointRequests = Boolean.parseBoolean(config.getProperty("listen-for-single-point", "true"));
+        this.parallelSinglePointDraws = Boolean.parseBoolean(config.getProperty("parallel-single-point-draws", "false"));
+        this.singlePointThreads = Integer.parseInt(config.getProperty("single-point-threads", "0"));
+        this.singlePointQueueLength = Integer.parseInt(config.getProperty("single-point-queue-length", "0"));
+        this.binaryResults = Boolean.parseBoolean(config.getProperty("binary-results", "false"));
 
         // Keep the worker alive for an initial window to prepare for analysis
         inPreloading = true;
@@ -291,6 +330,7 @@ public class AnalystWorker implements Runnable {
             // Stop accepting any new single-point requests while shutdown is happening.
             // TODO maybe actively tell the broker this worker is shutting down.
             sparkHttpService.stop();
+            singlePointTaskExecutor.shutdown();
             try {
                 Process process = new ProcessBuilder("sudo", "/sbin/shutdown", "-h", "now").start();
                 process.waitFor();
@@ -309,16 +349,21 @@ public class AnalystWorker implements Runnable {
     @Override
     public void run() {
 
-        // Create executors with up to one thread per processor.
-        // The default task rejection policy is "Abort".
-        // The executor's queue is rather long because some tasks complete very fast and we poll max once per second.
+        // Create one regional processing thread per processor, all taking tasks from the same bounded queue.
+        // The queue is rather long because some tasks complete very fast and polling the broker takes some time.
         int availableProcessors = Runtime.getRuntime().availableProcessors();
         LOG.info("Java reports the number of available processors is: {}", availableProcessors);
-        int maxThreads = availableProcessors;
+        int nThreads = availableProcessors;
+        nRegionalThreads = nThreads;
         int taskQueueLength = availableProcessors * 6;
-        LOG.info("Maximum number of regional processing threads is {}, length of task queue is {}.", maxThreads, taskQueueLength);
-        BlockingQueue<Runnable> taskQueue = new LinkedBlockingQueue<>(taskQueueLength);
-        regionalTaskExecutor = new ThreadPoolExecutor(1, maxThreads, 60, TimeUnit.SECONDS, taskQueue);
+        int taskQueueLowWaterMark = availableProcessors * 2;
+        LOG.info("Number of regional processing threads is {}, length of task queue is {}, polling when {} remain.",
+                nThreads, taskQueueLength, taskQueueLowWaterMark);
+        regionalTaskQueue = new RegionalTaskQueue(taskQueueLength, taskQueueLowWaterMark);
+        for (int t = 0; t < nThreads; t++) {
+            Thread thread = new Thread(this::consumeRegionalTasks, "regional-" + t);
+            thread.start();
+        }
 
         // Before we go into an endless loop polling for regional tasks that can be computed asynchronously, start a
         // single-endpoint web server on this worker to receive single-point requests that must be handled immediately.
@@ -330,24 +375,21 @@ public class AnalystWorker implements Runnable {
         // call sparkHttpService.threadPool(NTHREADS) because we get an error message saying we need over 10 threads:
         // "needed(acceptors=1 + selectors=8 + request=1)". Even worse, in container-based testing environments this
         // required number of threads is even higher and any value we specify can cause the server (and tests) to fail.
-        // TODO find a more effective way to limit simultaneous computations, e.g. feed them through the regional thread pool.
+        // So instead, the HTTP threads hand the computations off to a separate bounded executor and wait for them.
         if (listenForSinglePointRequests) {
+            singlePointTaskExecutor = new SinglePointTaskExecutor(
+                    singlePointThreads > 0 ? singlePointThreads : availableProcessors,
+                    singlePointQueueLength > 0 ? singlePointQueueLength : availableProcessors * 2);
             // Use the newer non-static Spark framework syntax.
             sparkHttpService = spark.Service.ignite().port(WORKER_LISTEN_PORT);
             sparkHttpService.post("/single", new AnalysisWorkerController(this)::handleSinglePoint);
         }
 
-        // Main polling loop to fill the regional work queue.
-        // You'd think the ThreadPoolExecutor could just block when the blocking queue is full, but apparently
-        // people all over the world have been jumping through hoops to try to achieve this simple behavior
-        // with no real success, at least without writing bug and deadlock-prone custom executor services.
-        // Two alternative approaches are trying to keep the queue full and waiting for the queue to be almost empty.
-        // To keep the queue full, we repeatedly try to add each task to the queue, pausing and retrying when
-        // it's full. To wait until it's almost empty, we could use wait() in a loop and notify() as tasks are handled.
-        // see https://stackoverflow.com/a/15185004/778449
-        // A simpler approach might be to spin-wait checking whether the queue is low and sleeping briefly,
-        // then fetch more work only when the queue is getting empty.
+        // Main polling loop to fill the regional work queue. Polling overlaps with computation: we poll again as
+        // soon as the backlog runs low rather than when it's empty, and putting tasks on the queue blocks until the
+        // worker threads make room for them.
         while (true) {
+            awaitLowRegionalQueue();
             List<RegionalTask> tasks = getSomeWork();
             if (tasks == null || tasks.isEmpty()) {
                 // Either there was no work, or some kind of error occurred.
@@ -359,23 +401,68 @@ public class AnalystWorker implements Runnable {
                 continue;
             }
             for (RegionalTask task : tasks) {
-                while (true) {
-                    try {
-                        // TODO define non-anonymous runnable class to instantiate here, specifically for async regional tasks.
-                        regionalTaskExecutor.execute(() -> this.handleOneRegionalTask(task));
-                        break;
-                    } catch (RejectedExecutionException e) {
-                        // Queue is full, wait a bit and try to feed it more tasks.
-                        // FIXME if we burn through the internal queue in less than 1 second this is a speed bottleneck.
-                        // This happens with regions unconnected to transit and with very small travel time cutoffs.
-                        // FIXME this is really using the list of fetched tasks as a secondary queue, it's awkward.
-                        sleepSeconds(1);
-                    }
+                try {
+                    regionalTaskQueue.put(task);
+                } catch (InterruptedException e) {
+                    LOG.warn("Interrupted while queueing regional tasks, stopping polling.");
+                    Thread.currentThread().interrupt();
+                    return;
                 }
             }
         }
     }
 
+    /**
+     * Block the polling thread until the regional task queue has drained to the low-water mark. If there are
+     * completed results waiting to be returned to the broker, stop waiting after RESULT_FLUSH_SECONDS and poll anyway,
+     * as results are sent to the broker along with each poll.
+     */
+    private void awaitLowRegionalQueue () {
+        try {
+            regionalTaskQueue.awaitLow(RESULT_FLUSH_SECONDS * 1000, () -> {
+                synchronized (workResults) {
+                    return !workResults.isEmpty();
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The main loop of each regional processing thread: take batches of neighboring tasks off the queue and handle
+     * them, waking up the polling thread when the queue is running low. Each thread takes no more than its share of
+     * the backlog, so the batches only grow when there is enough work queued to keep all the threads busy.
+     */
+    private void consumeRegionalTasks () {
+        while (true) {
+            // Let any interactive single-point tasks finish before taking more regional work.
+            if (singlePointTaskExecutor != null) singlePointTaskExecutor.awaitNoSinglePointWork();
+            List<RegionalTask> tasks;
+            try {
+                int maxTasks = Math.min(BatchedRaptorWorker.MAX_BATCH_SIZE,
+                        Math.max(1, regionalTaskQueue.size() / nRegionalThreads));
+                tasks = regionalTaskQueue.takeBatch(maxTasks, this::hasSinglePointWork);
+            } catch (InterruptedException e) {
+                return;
+            }
+            // Single-point work arrived while this thread was waiting for a regional task, which was left queued.
+            if (tasks.isEmpty()) continue;
+            try {
+                handleRegionalTasks(tasks);
+            } catch (Exception e) {
+                // Keep this thread alive to handle subsequent tasks.
+                LOG.error("Unexpected error handling regional tasks starting at {}: {}", tasks.get(0).taskId,
+                        ExceptionUtils.asString(e));
+            }
+        }
+    }
+
+    /** @return true if this worker has any single-point tasks queued or running, which take priority. */
+    private boolean hasSinglePointWork () {
+        return singlePointTaskExecutor != null && singlePointTaskExecutor.hasSinglePointWork();
+    }
+
     /**
      * Bypass idiotic java checked exceptions.
      */
@@ -420,6 +507,7 @@ public class AnalystWorker implements Runnable {
 
         // Perform the core travel time computations.
         TravelTimeComputer computer = new TravelTimeComputer(task, transportNetwork);
+        computer.parallelMonteCarloDraws = parallelSinglePointDraws;
         OneOriginResult oneOriginResult = computer.computeTravelTimes();
 
         // Prepare the travel time grid which will be written back to the client. We gzip the data before sending
@@ -448,19 +536,25 @@ public class AnalystWorker implements Runnable {
     }
 
     /**
-     * Handle one task representing one of many origins within a regional analysis.
+     * Handle tasks representing neighboring origins within one regional analysis, which are all for the same network,
+     * scenario and destinations. Their transit searches are performed together where possible, see
+     * TravelTimeComputer.computeTravelTimes(List, TransportNetwork).
      * This method is generally being executed asynchronously, handling a large number of tasks on a pool of worker
      * threads. It stockpiles results as they are produced, so they can be returned to the backend in batches when the
      * worker polls the backend.
      */
-    protected void handleOneRegionalTask(RegionalTask task) {
+    protected void handleRegionalTasks (List<RegionalTask> tasks) {
 
-        LOG.info("Handling regional task {}", task.toString());
+        for (RegionalTask task : tasks) {
+            LOG.info("Handling regional task {}", task.toString());
+        }
 
         // If this worker is being used in a test of the task redelivery mechanism. Report most work as completed
         // without actually doing anything, but fail to report results a certain percentage of the time.
         if (testTaskRedelivery) {
-            pretendToDoWork(task);
+            for (RegionalTask task : tasks) {
+                pretendToDoWork(task);
+            }
             return;
         }
 
@@ -471,47 +565,55 @@ public class AnalystWorker implements Runnable {
             // Fetching data grids should be relatively fast so we can do it synchronously.
             // Perhaps this can be done higher up in the call stack where we know whether or not it's a regional task.
             // TODO move this after the asynchronous loading of the rest of the necessary data?
-            if (!task.makeTauiSite) {
-                task.destinationPointSet = pointSetCache.get(task.grid);
+            for (RegionalTask task : tasks) {
+                if (!task.makeTauiSite) {
+                    task.destinationPointSet = pointSetCache.get(task.grid);
+                }
             }
 
-            // Get the graph object for the ID given in the task, fetching inputs and building as needed.
+            // Get the graph object for the ID given in the tasks, fetching inputs and building as needed.
             // All requests handled together are for the same graph, and this call is synchronized so the graph will
             // only be built once.
             // Record the currently loaded network ID so we "stick" to this same graph on subsequent polls.
-            networkId = task.graphId;
+            RegionalTask firstTask = tasks.get(0);
+            networkId = firstTask.graphId;
             // Note we're completely bypassing the async loader here and relying on the older nested LoadingCaches.
             // If those are ever removed, the async loader will need a synchronous mode with per-key blocking (kind of
             // reinventing the wheel of LoadingCache) or we'll need to make preparation for regional tasks async.
-            TransportNetwork transportNetwork = networkPreloader.transportNetworkCache.getNetworkForScenario(task
-                    .graphId, task.scenarioId);
+            TransportNetwork transportNetwork = networkPreloader.transportNetworkCache.getNetworkForScenario(firstTask
+                    .graphId, firstTask.scenarioId);
 
             // If we are generating a static site, there must be a single metadata file for an entire batch of results.
             // Arbitrarily we create this metadata as part of the first task in the job.
-            if (task.makeTauiSite && task.taskId == 0) {
-                LOG.info("This is the first task in a job that will produce a static site. Writing shared metadata.");
-                saveStaticSiteMetadata(task, transportNetwork);
+            for (RegionalTask task : tasks) {
+                if (task.makeTauiSite && task.taskId == 0) {
+                    LOG.info("This is the first task in a job that will produce a static site. Writing shared metadata.");
+                    saveStaticSiteMetadata(task, transportNetwork);
+                }
             }
 
             // Advance the shutdown clock to reflect that the worker is performing regional work.
             adjustShutdownClock(REGIONAL_KEEPALIVE_MINUTES);
 
             // Perform the core travel time and accessibility computations.
-            TravelTimeComputer computer = new TravelTimeComputer(task, transportNetwork);
-            OneOriginResult oneOriginResult = computer.computeTravelTimes();
-
-            if (task.makeTauiSite) {
-                // Unlike a normal regional task, this will write a time grid rather than an accessibility indicator
-                // value because we're generating a set of time grids for a static site. We only save a file if it has
-                // non-default contents, as a way to save storage and bandwidth.
-                // TODO eventually carry out actions based on what's present in the result, not on the request type.
-                if (oneOriginResult.travelTimes.anyCellReached()) {
-                    TimeGridWriter timeGridWriter = new TimeGridWriter(oneOriginResult.travelTimes, task);
-                    PersistenceBuffer persistenceBuffer = timeGridWriter.writeToPersistenceBuffer();
-                    String timesFileName = task.taskId + "_times.dat";
-                    filePersistence.saveStaticSiteData(task, timesFileName, persistenceBuffer);
-                } else {
-                    LOG.info("No destination cells reached. Not saving static site file to reduce storage space.");
+            List<OneOriginResult> oneOriginResults = TravelTimeComputer.computeTravelTimes(tasks, transportNetwork);
+
+            for (int i = 0; i < tasks.size(); i++) {
+                RegionalTask task = tasks.get(i);
+                OneOriginResult oneOriginResult = oneOriginResults.get(i);
+                if (task.makeTauiSite) {
+                    // Unlike a normal regional task, this will write a time grid rather than an accessibility indicator
+                    // value because we're generating a set of time grids for a static site. We only save a file if it
+                    // has non-default contents, as a way to save storage and bandwidth.
+                    // TODO eventually carry out actions based on what's present in the result, not on the request type.
+                    if (oneOriginResult.travelTimes.anyCellReached()) {
+                        TimeGridWriter timeGridWriter = new TimeGridWriter(oneOriginResult.travelTimes, task);
+                        PersistenceBuffer persistenceBuffer = timeGridWriter.writeToPersistenceBuffer();
+                        String timesFileName = task.taskId + "_times.dat";
+                        filePersistence.saveStaticSiteData(task, timesFileName, persistenceBuffer);
+                    } else {
+                        LOG.info("No destination cells reached. Not saving static site file to reduce storage space.");
+                    }
                 }
             }
 
@@ -519,13 +621,25 @@ public class AnalystWorker implements Runnable {
             // For most regional analyses, this is an accessibility indicator value for one of many origins,
             // but for static sites the indicator value is not known, it is computed in the UI. We still want to return
             // dummy (zero) accessibility results so the backend is aware of progress through the list of origins.
+            // All the results are added at once, so none of them are reported twice if the tasks are retried below.
             synchronized (workResults) {
-                workResults.add(new RegionalWorkResult(oneOriginResult, task));
+                for (int i = 0; i < tasks.size(); i++) {
+                    workResults.add(new RegionalWorkResult(oneOriginResults.get(i), tasks.get(i)));
+                }
+            }
+            for (RegionalTask task : tasks) {
+                throughputTracker.recordTaskCompletion(task.jobId);
             }
-            throughputTracker.recordTaskCompletion(task.jobId);
         } catch (Exception ex) {
             LOG.error("An error occurred while handling a regional task: {}", ExceptionUtils.asString(ex));
             // TODO communicate regional analysis errors to the backend (in workResults)
+            if (tasks.size() > 1) {
+                // Handle the tasks one by one, so an error at one origin does not prevent results at the others.
+                LOG.info("Retrying the {} tasks handled together one at a time.", tasks.size());
+                for (RegionalTask task : tasks) {
+                    handleRegionalTasks(Collections.singletonList(task));
+                }
+            }
         }
     }
 
@@ -585,6 +699,23 @@ public class AnalystWorker implements Runnable {
             workerStatus.results = new ArrayList<>(workResults);
             workResults.clear();
         }
+        // If enabled, send the results separately in binary form. They are only included in the poll if the broker
+        // responded that it did not accept them, otherwise they could be delivered twice.
+        if (binaryResults && !workerStatus.results.isEmpty()) {
+            try {
+                if (postBinaryResults(workerStatus.results)) {
+                    workerStatus.results = new ArrayList<>();
+                }
+            } catch (Exception e) {
+                // The broker may have received the results even though no response arrived. Retry them with the next
+                // poll rather than including them in this one.
+                LOG.error("Exception while posting binary results to backend: {}", ExceptionUtils.asString(e));
+                synchronized (workResults) {
+                    workResults.addAll(workerStatus.results);
+                }
+                workerStatus.results = new ArrayList<>();
+            }
+        }
 
         // Compute throughput in tasks per minute and include it in the worker status report.
         // We poll too frequently to compute throughput just since the last poll operation.
@@ -629,6 +760,37 @@ public class AnalystWorker implements Runnable {
         return null;
     }
 
+    /**
+     * Send a batch of regional results to the broker in the compact gzipped binary format of RegionalWorkResultCodec.
+     * @return true if the broker accepted the results, false if it responded that it did not accept them, so they still
+     * need to be delivered some other way.
+     * @throws IOException if no response was received, in which case the broker may or may not have the results.
+     */
+    private boolean postBinaryResults (List<RegionalWorkResult> results) throws IOException {
+        HttpPost httpPost = new HttpPost(brokerBaseUrl + "/results");
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(byteArrayOutputStream)) {
+            RegionalWorkResultCodec.write(results, gzipOutputStream);
+        }
+        ByteArrayEntity entity = new ByteArrayEntity(byteArrayOutputStream.toByteArray(),
+                ContentType.APPLICATION_OCTET_STREAM);
+        entity.setContentEncoding("gzip");
+        httpPost.setEntity(entity);
+        HttpEntity responseEntity = null;
+        try {
+            HttpResponse response = httpClient.execute(httpPost);
+            responseEntity = response.getEntity();
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode == 200 || statusCode == 204) {
+                return true;
+            }
+            LOG.error("Broker did not accept binary results. HTTP response code: " + statusCode);
+            return false;
+        } finally {
+            EntityUtils.consumeQuietly(responseEntity);
+        }
+    }
+
     /**
      * Generate and write out metadata describing what's in a directory of static site output.
      */
@@ -0,0 +1,39 @@
+package com.conveyal.r5.analyst.cluster;
+
+/**
+ * This is an API data model object summarizing the state and effectiveness of one of the worker's in-memory caches,
+ * sent to the broker as part of the WorkerStatus. Counts are cumulative since the worker started.
+ */
+public class CacheStatus {
+
+    public long hits;
+    public long misses;
+    public long evictions;
+
+    /** Total time spent loading or building values that were not found in the cache. */
+    public double loadSeconds;
+
+    /** The number of values currently held in the cache. */
+    public long entries;
+
+    /** The estimated heap memory retained by the values currently held in the cache. */
+    public long estimatedMegabytes;
+
+    /** The memory budget for this cache, or zero if it is limited by number of entries rather than by memory. */
+    public long budgetMegabytes;
+
+    /** No-arg constructor used when deserializing. */
+    public CacheStatus () { }
+
+    /** Add the counts from another cache of the same kind to this one, e.g. the linkage caches of several networks. */
+    public void accumulate (CacheStatus other) {
+        hits += other.hits;
+        misses += other.misses;
+        evictions += other.evictions;
+        loadSeconds += other.loadSeconds;
+        entries += other.entries;
+        estimatedMegabytes += other.estimatedMegabytes;
+        budgetMegabytes += other.budgetMegabytes;
+    }
+
+}
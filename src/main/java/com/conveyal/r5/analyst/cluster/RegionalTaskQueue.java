@@ -0,0 +1,119 @@
+package com.conveyal.r5.analyst.cluster;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A bounded queue holding a backlog of regional analysis tasks, between the thread polling the broker for work and the
+ * regional processing threads. This avoids "slow joiner" syndrome where we wait to poll for more work until all N
+ * fetched tasks have finished, but one of the tasks takes much longer than all the rest.
+ *
+ * The polling thread blocks when adding tasks to a full queue, and can wait until the queue drains to a low-water mark
+ * before polling again. It is woken up by the processing threads as soon as they take a task leaving the queue at or
+ * below that mark, so the broker is contacted while the processing threads are still busy.
+ */
+public class RegionalTaskQueue {
+
+    private final BlockingQueue<RegionalTask> queue;
+
+    /** When the number of tasks in the queue falls to this level, the polling thread fetches more work. */
+    private final int lowWaterMark;
+
+    /** Processing threads notify the polling thread on this object when they take tasks from the queue. */
+    private final Object monitor = new Object();
+
+    /** Held while taking tasks, so the tasks taken together are not interleaved with those taken by other threads. */
+    private final ReentrantLock takeLock = new ReentrantLock();
+
+    /** Signaled when a task is added, so that processing threads can wait for tasks without taking them. */
+    private final Condition notEmpty = takeLock.newCondition();
+
+    public RegionalTaskQueue (int capacity, int lowWaterMark) {
+        this.queue = new LinkedBlockingQueue<>(capacity);
+        this.lowWaterMark = lowWaterMark;
+    }
+
+    /** Add a task to the queue, blocking until there is room for it. */
+    public void put (RegionalTask task) throws InterruptedException {
+        queue.put(task);
+        takeLock.lock();
+        try {
+            notEmpty.signal();
+        } finally {
+            takeLock.unlock();
+        }
+    }
+
+    /** Take the next task from the queue, blocking until there is one, and wake the polling thread if it is low. */
+    public RegionalTask take () throws InterruptedException {
+        return takeBatch(1).get(0);
+    }
+
+    /** Take a batch of tasks of the same job, as in takeBatch(int, BooleanSupplier), never holding off. */
+    public List<RegionalTask> takeBatch (int maxTasks) throws InterruptedException {
+        return takeBatch(maxTasks, () -> false);
+    }
+
+    /**
+     * Take the next task from the queue, blocking until there is one, along with the tasks of the same job directly
+     * behind it, up to maxTasks in all. The broker hands out the tasks of a job in order, so these are usually
+     * neighboring origins. Wake the polling thread if the queue is left low.
+     *
+     * Once a task is available, holdOff is checked before taking anything. If it returns true, no task is taken and
+     * an empty list is returned, leaving the tasks in the queue for whichever thread is next ready to start them.
+     */
+    public List<RegionalTask> takeBatch (int maxTasks, BooleanSupplier holdOff) throws InterruptedException {
+        List<RegionalTask> tasks = new ArrayList<>();
+        takeLock.lockInterruptibly();
+        try {
+            // Tasks are only removed while holding the lock, so the queue cannot be emptied after this check.
+            while (queue.isEmpty()) notEmpty.await();
+            if (holdOff.getAsBoolean()) return tasks;
+            RegionalTask firstTask = queue.remove();
+            tasks.add(firstTask);
+            while (tasks.size() < maxTasks) {
+                RegionalTask nextTask = queue.peek();
+                if (nextTask == null || !Objects.equals(nextTask.jobId, firstTask.jobId)) break;
+                tasks.add(queue.poll());
+            }
+        } finally {
+            takeLock.unlock();
+        }
+        if (queue.size() <= lowWaterMark) {
+            synchronized (monitor) {
+                monitor.notify();
+            }
+        }
+        return tasks;
+    }
+
+    /**
+     * Block until the queue has drained to the low-water mark. Every flushMillis, resultsWaiting is checked, and if it
+     * returns true this stops waiting anyway, as results are sent to the broker along with each poll.
+     */
+    public void awaitLow (long flushMillis, BooleanSupplier resultsWaiting) throws InterruptedException {
+        long flushTime = System.currentTimeMillis() + flushMillis;
+        synchronized (monitor) {
+            while (queue.size() > lowWaterMark) {
+                long now = System.currentTimeMillis();
+                if (now >= flushTime) {
+                    if (resultsWaiting.getAsBoolean()) return;
+                    flushTime = now + flushMillis;
+                }
+                monitor.wait(flushTime - now);
+            }
+        }
+    }
+
+    /** @return the number of tasks waiting in the queue. */
+    public int size () {
+        return queue.size();
+    }
+
+}
@@ -16,6 +16,7 @@ public class RegionalWorkResult {
      * Values from a travelTimeResult, keyed on percentile of total travel time and target index.
      * FIXME Note that the broker's polling system was not designed to handle large amounts of data; travel time
      *       results are currently an experimental feature and large numbers of targets may overwhelm the system.
+     *       Workers with binary-results enabled send results separately using RegionalWorkResultCodec.
      */
     public int[][] travelTimeValues;
 
@@ -29,8 +30,11 @@ public class RegionalWorkResult {
      */
     public int[][][] accessibilityValues; // TODO Should this be floating point?
 
-    /** Trivial no-arg constructor for deserialization. Private to prevent usage outside deserialization. */
-    private RegionalWorkResult() { };
+    /**
+     * Trivial no-arg constructor for deserialization. Package-private to prevent usage outside deserialization,
+     * including by RegionalWorkResultCodec.
+     */
+    RegionalWorkResult() { };
 
     /**
      * Convert the supplied internal R5 OneOriginResult into this more compact form intended for serialization
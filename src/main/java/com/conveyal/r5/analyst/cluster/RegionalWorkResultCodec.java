@@ -0,0 +1,146 @@
+package com.conveyal.r5.analyst.cluster;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A compact binary encoding for batches of RegionalWorkResults, used in place of JSON when returning results to the
+ * broker. Travel time results for freeform origin/destination pointsets contain one value per destination for each
+ * origin, and representing those as JSON numbers (then parsing them on the other end) makes the polling requests
+ * very large and slow.
+ *
+ * The batch starts with a header and format version, then the number of results. For each result we write the job
+ * ID, the task ID, then the travel time values and the accessibility values. Each array is preceded by its length,
+ * and a null array is represented by a length of -1. Values along the last (innermost) dimension of each array are
+ * delta coded, since neighboring destinations (or successive cutoffs) tend to have similar values. All integers
+ * except the header are written as zigzag-encoded variable-length integers, so small values take a single byte.
+ *
+ * This class does not handle compression: callers should wrap the streams in gzip streams. Delta coding makes the
+ * output much more compressible.
+ */
+public abstract class RegionalWorkResultCodec {
+
+    public static final byte[] HEADER = "R5RESULT".getBytes();
+
+    public static final int VERSION = 1;
+
+    /** Write a batch of results to the given stream, which is not closed. */
+    public static void write (List<RegionalWorkResult> results, OutputStream outputStream) throws IOException {
+        DataOutputStream out = new DataOutputStream(outputStream);
+        out.write(HEADER);
+        writeVarInt(out, VERSION);
+        writeVarInt(out, results.size());
+        for (RegionalWorkResult result : results) {
+            out.writeUTF(result.jobId);
+            writeVarInt(out, result.taskId);
+            if (result.travelTimeValues == null) {
+                writeVarInt(out, -1);
+            } else {
+                writeVarInt(out, result.travelTimeValues.length);
+                for (int[] values : result.travelTimeValues) writeDeltaCoded(out, values);
+            }
+            if (result.accessibilityValues == null) {
+                writeVarInt(out, -1);
+            } else {
+                writeVarInt(out, result.accessibilityValues.length);
+                for (int[][] gridValues : result.accessibilityValues) {
+                    writeVarInt(out, gridValues.length);
+                    for (int[] values : gridValues) writeDeltaCoded(out, values);
+                }
+            }
+        }
+        out.flush();
+    }
+
+    /** Read a batch of results written by the write method from the given stream, which is not closed. */
+    public static List<RegionalWorkResult> read (InputStream inputStream) throws IOException {
+        DataInputStream in = new DataInputStream(inputStream);
+        byte[] header = new byte[HEADER.length];
+        in.readFully(header);
+        if (!Arrays.equals(HEADER, header)) {
+            throw new IOException("Unrecognized header, this is not a batch of binary regional results.");
+        }
+        int version = readVarInt(in);
+        if (version != VERSION) {
+            throw new IOException("Unsupported binary regional results version " + version);
+        }
+        int nResults = readVarInt(in);
+        List<RegionalWorkResult> results = new ArrayList<>(nResults);
+        for (int r = 0; r < nResults; r++) {
+            RegionalWorkResult result = new RegionalWorkResult();
+            result.jobId = in.readUTF();
+            result.taskId = readVarInt(in);
+            int nPercentiles = readVarInt(in);
+            if (nPercentiles >= 0) {
+                result.travelTimeValues = new int[nPercentiles][];
+                for (int p = 0; p < nPercentiles; p++) result.travelTimeValues[p] = readDeltaCoded(in);
+            }
+            int nGrids = readVarInt(in);
+            if (nGrids >= 0) {
+                result.accessibilityValues = new int[nGrids][][];
+                for (int g = 0; g < nGrids; g++) {
+                    int[][] gridValues = new int[readVarInt(in)][];
+                    for (int p = 0; p < gridValues.length; p++) gridValues[p] = readDeltaCoded(in);
+                    result.accessibilityValues[g] = gridValues;
+                }
+            }
+            results.add(result);
+        }
+        return results;
+    }
+
+    /**
+     * Write the length of the array, then the difference of each value from the previous one. Differences are
+     * computed with int overflow, which is reversed when decoding, so large values such as UNREACHED are handled.
+     */
+    private static void writeDeltaCoded (DataOutputStream out, int[] values) throws IOException {
+        writeVarInt(out, values.length);
+        int previous = 0;
+        for (int value : values) {
+            writeVarInt(out, value - previous);
+            previous = value;
+        }
+    }
+
+    private static int[] readDeltaCoded (DataInputStream in) throws IOException {
+        int[] values = new int[readVarInt(in)];
+        int previous = 0;
+        for (int i = 0; i < values.length; i++) {
+            previous += readVarInt(in);
+            values[i] = previous;
+        }
+        return values;
+    }
+
+    /**
+     * Write a zigzag-encoded variable-length integer: 7 bits per byte, least significant first, with the high bit
+     * of each byte set when more bytes follow. The zigzag encoding maps small negative numbers to small positive ones.
+     */
+    static void writeVarInt (DataOutputStream out, int value) throws IOException {
+        int zigzag = (value << 1) ^ (value >> 31);
+        while ((zigzag & ~0x7F) != 0) {
+            out.writeByte((zigzag & 0x7F) | 0x80);
+            zigzag >>>= 7;
+        }
+        out.writeByte(zigzag);
+    }
+
+    static int readVarInt (DataInputStream in) throws IOException {
+        int zigzag = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            zigzag |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+        }
+        throw new IOException("Malformed variable-length integer.");
+    }
+
+}
@@ -0,0 +1,142 @@
+package com.conveyal.r5.analyst.cluster;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs single-point tasks on a fixed number of threads with a short bounded queue, rather than on whatever HTTP
+ * thread received the request. Spark/Jetty will not let us cap its own request thread pool low enough to limit the
+ * number of simultaneous travel time computations, so without this a burst of requests from several users could
+ * start enough searches at once to exhaust the heap.
+ *
+ * When all threads are busy and the queue is full, submitting a task fails immediately with a WorkerBusyException
+ * so the client can be told to retry, instead of piling up more requests that would each hold onto memory.
+ *
+ * Single-point tasks are interactive and share the machine's processors with the regional processing threads, so
+ * they take priority over regional tasks: regional threads call awaitNoSinglePointWork() before taking each task
+ * from the queue and will hold off while any single-point task is queued or running, leaving the regional tasks in
+ * the queue. They check hasSinglePointWork() again just before taking a task, in case single-point work arrived while
+ * they were waiting for one. A regional task that is already running is not interrupted, so a single-point task may
+ * wait for at most one regional task per thread to finish.
+ */
+public class SinglePointTaskExecutor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SinglePointTaskExecutor.class);
+
+    /**
+     * Regional threads waiting for single-point work to finish recheck at least this often, in case a notification
+     * is somehow missed. This should never delay regional work by more than this amount.
+     */
+    private static final long REGIONAL_WAIT_MILLIS = 1000;
+
+    private final ThreadPoolExecutor executor;
+
+    /** Number of single-point tasks that have been accepted and have not yet finished. Guarded by this object. */
+    private int pendingTasks = 0;
+
+    /**
+     * @param nThreads the maximum number of single-point tasks that will be computed simultaneously.
+     * @param queueLength the maximum number of single-point tasks that will wait for a thread before new ones are
+     *                    rejected.
+     */
+    public SinglePointTaskExecutor (int nThreads, int queueLength) {
+        LOG.info("Single-point tasks will run on up to {} threads with a queue of {} tasks.", nThreads, queueLength);
+        executor = new ThreadPoolExecutor(nThreads, nThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueLength));
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Run the given single-point task on one of this executor's threads, blocking the calling thread until it's
+     * finished. Any checked exception thrown by the task is rethrown as is, so callers can handle specific
+     * exceptions (e.g. WorkerNotReadyException) exactly as if they had run the task themselves.
+     * @throws WorkerBusyException if the task was rejected because all threads are busy and the queue is full.
+     */
+    public <T> T run (Callable<T> task) throws Exception {
+        // Claimed either by the executor thread when the task starts, or by this thread if it gives up before that.
+        // Whichever claims it is responsible for counting the task as finished, so it's counted exactly once.
+        AtomicBoolean claimed = new AtomicBoolean(false);
+        Future<T> future;
+        synchronized (this) {
+            try {
+                future = executor.submit(() -> {
+                    if (!claimed.compareAndSet(false, true)) return null;
+                    try {
+                        return task.call();
+                    } finally {
+                        taskFinished();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                int queueDepth = executor.getQueue().size();
+                LOG.warn("Rejecting single-point task, {} tasks are already waiting.", queueDepth);
+                throw new WorkerBusyException(queueDepth);
+            }
+            pendingTasks += 1;
+        }
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) throw (Exception) cause;
+            throw e;
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            if (claimed.compareAndSet(false, true)) {
+                // The task never started and now never will, so free its place in the queue and stop counting it.
+                executor.remove((Runnable) future);
+                taskFinished();
+            }
+            throw e;
+        }
+    }
+
+    private synchronized void taskFinished () {
+        pendingTasks -= 1;
+        if (pendingTasks == 0) notifyAll();
+    }
+
+    /** @return the number of single-point tasks waiting for a thread to become available. */
+    public int getQueueDepth () {
+        return executor.getQueue().size();
+    }
+
+    /** @return the number of single-point tasks currently being computed. */
+    public int getActiveCount () {
+        return executor.getActiveCount();
+    }
+
+    /** @return true if any single-point task is queued or running. */
+    public synchronized boolean hasSinglePointWork () {
+        return pendingTasks > 0;
+    }
+
+    /**
+     * Block the calling thread as long as any single-point task is queued or running. This is called by regional
+     * threads before starting each task, so that interactive requests get the processors to themselves.
+     */
+    public synchronized void awaitNoSinglePointWork () {
+        while (pendingTasks > 0) {
+            try {
+                wait(REGIONAL_WAIT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    public void shutdown () {
+        executor.shutdown();
+    }
+
+}
@@ -0,0 +1,17 @@
+package com.conveyal.r5.analyst.cluster;
+
+/**
+ * This exception is thrown to indicate that a single-point task was not accepted because the worker is already
+ * computing as many single-point tasks as it can handle, and as many are waiting. The client should try again later.
+ */
+public class WorkerBusyException extends Exception {
+
+    /** The number of single-point tasks that were waiting when this one was rejected. */
+    public final int queueDepth;
+
+    public WorkerBusyException (int queueDepth) {
+        super("Worker is busy, " + queueDepth + " single-point tasks are already waiting.");
+        this.queueDepth = queueDepth;
+    }
+
+}
@@ -50,6 +50,10 @@ public class WorkerStatus {
     public String ipAddress;
     public List<RegionalWorkResult> results;
 
+    /** Hit rates, load times and memory use of the caches of transport networks and of linkages to those networks. */
+    public CacheStatus networkCache;
+    public CacheStatus linkageCache;
+
     /** No-arg constructor used when deserializing. */
     public WorkerStatus() { }
 
@@ -71,6 +75,8 @@ public class WorkerStatus {
         // For now we report a single network, even before it's loaded.
         networks = Sets.newHashSet(worker.networkId);
         scenarios = worker.networkPreloader.transportNetworkCache.getAppliedScenarios();
+        networkCache = worker.networkPreloader.transportNetworkCache.getNetworkCacheStatus();
+        linkageCache = worker.networkPreloader.transportNetworkCache.getLinkageCacheStatus();
         ec2 = worker.ec2info;
 
         OperatingSystemMXBean operatingSystemMXBean = ManagementFactory.getOperatingSystemMXBean();
@@ -246,7 +246,7 @@ public class RoadCongestion extends Modification {
                 return true;
             });
         }
-        edgeStore.speeds = adjustedSpeeds;
+        edgeStore.setSpeeds(adjustedSpeeds);
         return errors.size() > 0;
     }
 
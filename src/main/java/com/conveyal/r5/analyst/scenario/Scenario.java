@@ -3,14 +3,20 @@ package com.conveyal.r5.analyst.scenario;
 import com.beust.jcommander.internal.Lists;
 import com.conveyal.r5.analyst.error.ScenarioApplicationException;
 import com.conveyal.r5.analyst.error.TaskError;
+import com.conveyal.r5.common.JsonUtilities;
 import com.conveyal.r5.transit.TransferFinder;
 import com.conveyal.r5.transit.TransitLayer;
 import com.conveyal.r5.transit.TransportNetwork;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.hash.Hashing;
 import com.vividsolutions.jts.geom.Geometry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -27,6 +33,10 @@ public class Scenario implements Serializable {
 
     private static final Logger LOG = LoggerFactory.getLogger(Scenario.class);
 
+    /** Serializes modifications for hashing, with map entries sorted so equal contents always give equal hashes. */
+    private static final ObjectMapper HASHING_MAPPER = JsonUtilities.objectMapper.copy()
+            .configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true);
+
     /**
      * If this ID is non null, this scenario should be identical to all others with the same ID. This enables us to
      * cache things like linked point sets and modified networks keyed on the scenario that has been applied.
@@ -85,12 +95,15 @@ public class Scenario implements Serializable {
         }
 
         long baseNetworkChecksum = 0;
-        // Put the modifications in canonical order before applying them.
-        modifications.sort((a, b) -> a.getSortOrder() - b.getSortOrder());
+        sortModifications();
         if (VERIFY_BASE_NETWORK_UNCHANGED) {
             baseNetworkChecksum = originalNetwork.checksum();
         }
+        long startTime = System.currentTimeMillis();
         TransportNetwork copiedNetwork = originalNetwork.scenarioCopy(this);
+        // Record what the network looked like before modification, to determine which derived data must be rebuilt.
+        int nStopsBefore = copiedNetwork.transitLayer.getStopCount();
+        long phaseStartTime = logPhase("Copying network", startTime);
         LOG.info("Resolving modifications against TransportNetwork and sanity checking.");
         // Check all the parameters before applying any modifications.
         // Might some parameters may become valid/invalid because of previous modifications in the list?
@@ -107,6 +120,7 @@ public class Scenario implements Serializable {
         if (!modificationsWithErrors.isEmpty()) {
             throw new ScenarioApplicationException(modificationsWithErrors);
         }
+        phaseStartTime = logPhase("Resolving modifications", phaseStartTime);
         // Apply each modification in turn to the same extensible copy of the TransitNetwork.
         LOG.info("Applying modifications to TransportNetwork.");
         for (Modification modification : modifications) {
@@ -127,20 +141,46 @@ public class Scenario implements Serializable {
                 .map(m -> new TaskError(m, m.warnings))
                 .collect(Collectors.toList());
 
+        phaseStartTime = logPhase("Applying modifications", phaseStartTime);
+
+        // Only rebuild the derived data that depends on what the modifications actually changed. Many scenarios
+        // (e.g. those that only adjust frequencies, dwell times or speeds) add no stops and no streets, and can reuse
+        // the edge lists, distance tables and transfers of the base network as they are.
+        boolean transitChanged = affectsTransitLayer();
+        boolean edgesChanged = copiedNetwork.streetLayer.edgeStore.isExtendOnlyCopy() &&
+                (copiedNetwork.streetLayer.edgeStore.nEdges() > copiedNetwork.streetLayer.edgeStore.firstModifiableEdge
+                || !copiedNetwork.streetLayer.edgeStore.temporarilyDeletedEdges.isEmpty());
+        int nStopsAdded = copiedNetwork.transitLayer.getStopCount() - nStopsBefore;
+        LOG.info("Scenario changed transit layer: {}, changed street edges: {}, added stops: {}.",
+                transitChanged, edgesChanged, nStopsAdded);
+
         // Is it OK that we do this once after all modifications are applied, or do we need to do it after every mod?
-        copiedNetwork.transitLayer.rebuildTransientIndexes();
-
-        // Rebuild edge lists to account for changes from scenario application
-        copiedNetwork.streetLayer.buildEdgeLists();
-        // TODO Elaborate on this
-        // Rebuild distance tables affected by street network changes
-        Geometry treeRebuildZone =
-                copiedNetwork.streetLayer.scenarioEdgesBoundingGeometry(TransitLayer.WALK_DISTANCE_LIMIT_METERS);
-        copiedNetwork.transitLayer.buildDistanceTables(treeRebuildZone);
-        
+        if (transitChanged) {
+            copiedNetwork.transitLayer.rebuildTransientIndexes();
+            phaseStartTime = logPhase("Rebuilding transit indexes", phaseStartTime);
+        }
+
+        // Rebuild edge lists to account for changes from scenario application. If no edges were added or removed,
+        // the lists shared with the base network are still correct.
+        if (edgesChanged) {
+            copiedNetwork.streetLayer.buildEdgeLists();
+            phaseStartTime = logPhase("Rebuilding edge lists", phaseStartTime);
+        }
+
+        // Rebuild distance tables for stops near street network changes, and build them for any new stops.
+        if (edgesChanged || nStopsAdded > 0) {
+            Geometry treeRebuildZone =
+                    copiedNetwork.streetLayer.scenarioEdgesBoundingGeometry(TransitLayer.WALK_DISTANCE_LIMIT_METERS);
+            copiedNetwork.transitLayer.buildDistanceTables(treeRebuildZone);
+            phaseStartTime = logPhase("Rebuilding distance tables", phaseStartTime);
+        }
+
         // Find the transfers originating at or terminating at new stops.
         // TODO also rebuild transfers which are near street network changes but which do not connect to new stops.
-        new TransferFinder(copiedNetwork).findTransfers();
+        if (nStopsAdded > 0) {
+            new TransferFinder(copiedNetwork).findTransfers();
+            phaseStartTime = logPhase("Finding transfers", phaseStartTime);
+        }
 
         // Any linkages to the new scenario street network will be built as needed based on the incoming request.
         // FIXME New routes drawn outside the original bounds cannot have an effect,
@@ -153,9 +193,48 @@ public class Scenario implements Serializable {
                 LOG.info("Applying the scenario left the base transport network unchanged with high probability.");
             }
         }
+        LOG.info("Applied scenario {} in {} msec.", id, System.currentTimeMillis() - startTime);
         return copiedNetwork;
     }
 
+    /** Log the time spent in one phase of scenario application, returning the start time of the next phase. */
+    private static long logPhase (String phase, long phaseStartTime) {
+        long now = System.currentTimeMillis();
+        LOG.info("{} took {} msec.", phase, now - phaseStartTime);
+        return now;
+    }
+
+    /** Put the modifications in the canonical order in which they are applied. */
+    private void sortModifications () {
+        modifications.sort((a, b) -> a.getSortOrder() - b.getSortOrder());
+    }
+
+    /**
+     * Hash the contents of this scenario's modifications, so networks produced by applying them can be reused by
+     * other scenarios regardless of their IDs. This puts the modifications in their canonical order, then computes one
+     * hash per modification that covers the contents of that modification and all those before it. Two scenarios
+     * whose first N modifications are identical will therefore have the same first N hashes. Comments and warnings
+     * are not included, as they do not affect the result of applying the modification.
+     * This should be called before the modifications are resolved or applied.
+     * @return a list of hexadecimal hashes, one for each modification in the order they are applied.
+     */
+    public List<String> modificationPrefixHashes () {
+        sortModifications();
+        List<String> hashes = new ArrayList<>(modifications.size());
+        String previousHash = "";
+        for (Modification modification : modifications) {
+            ObjectNode json = HASHING_MAPPER.valueToTree(modification);
+            json.remove("comment");
+            json.remove("warnings");
+            previousHash = Hashing.sha256().newHasher()
+                    .putString(previousHash, StandardCharsets.UTF_8)
+                    .putString(json.toString(), StandardCharsets.UTF_8)
+                    .hash().toString();
+            hashes.add(previousHash);
+        }
+        return hashes;
+    }
+
     /**
      * @return true if applying this scenario will cause changes to the StreetLayer of a TransportNetwork.
      * This indicates whether a protective copy must be made of the StreetLayer, whether the resulting
@@ -6,7 +6,6 @@ import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
-import com.vividsolutions.jts.geom.LineSegment;
 import com.vividsolutions.jts.geom.LineString;
 import com.vividsolutions.jts.geom.LinearRing;
 import com.vividsolutions.jts.geom.Polygon;
@@ -68,8 +67,19 @@ public class GeometryUtils {
         fixedLon0 = (int) (fixedLon0 / cosLat);
         fixedLon1 = (int) (fixedLon1 / cosLat);
         fixedLon  = (int) (fixedLon / cosLat);
-        LineSegment seg = new LineSegment(fixedLon0, fixedLat0, fixedLon1, fixedLat1);
-        return seg.segmentFraction(new Coordinate(fixedLon, fixedLat));
+        // This is the same calculation as JTS LineSegment.segmentFraction, without creating a LineSegment and a
+        // Coordinate each time it's called (which is for every candidate segment when linking points to streets).
+        if (fixedLon == fixedLon0 && fixedLat == fixedLat0) return 0;
+        if (fixedLon == fixedLon1 && fixedLat == fixedLat1) return 1;
+        double dx = (double) fixedLon1 - fixedLon0;
+        double dy = (double) fixedLat1 - fixedLat0;
+        double len2 = dx * dx + dy * dy;
+        // Zero-length segments give a fraction of 1, as the NaN projection factor does in JTS.
+        if (len2 <= 0) return 1;
+        double fraction = (((double) fixedLon - fixedLon0) * dx + ((double) fixedLat - fixedLat0) * dy) / len2;
+        if (fraction < 0) return 0;
+        if (fraction > 1) return 1;
+        return fraction;
     }
 
     /**
@@ -3,11 +3,21 @@ package com.conveyal.r5.kryo;
 import com.conveyal.kryo.InstanceCountingClassResolver;
 import com.conveyal.kryo.TIntArrayListSerializer;
 import com.conveyal.kryo.TIntIntHashMapSerializer;
+import com.conveyal.r5.analyst.LinkageCache;
+import com.conveyal.r5.analyst.WebMercatorGridPointSet;
 import com.conveyal.r5.common.R5Version;
+import com.conveyal.r5.streets.EgressCostTable;
+import com.conveyal.r5.streets.LinkedPointSet;
+import com.conveyal.r5.streets.PackedGeometryList;
+import com.conveyal.r5.streets.StreetLayer;
+import com.conveyal.r5.transit.TransitLayer;
 import com.conveyal.r5.transit.TransportNetwork;
+import com.conveyal.r5.trove.TIntSharedArrayList;
 import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.serializers.DefaultArraySerializers;
 import com.esotericsoftware.kryo.serializers.ExternalizableSerializer;
 import com.esotericsoftware.kryo.serializers.JavaSerializer;
 import com.esotericsoftware.kryo.util.DefaultStreamFactory;
@@ -19,12 +29,19 @@ import org.objenesis.strategy.SerializingInstantiatorStrategy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.util.Arrays;
 import java.util.BitSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * This class groups the static methods for saving and loading TransportNetworks.
@@ -32,13 +49,34 @@ import java.util.BitSet;
  * Each serialization or deserialization operation creates a completely new Kryo instance, so there should be no
  * issues with thread safety, as long as the object being serialized is not being changed simultaneously.
  *
+ * Networks are saved in several independent sections: a small shell holding the TransportNetwork itself, the
+ * street layer, the transit layer, and the full-extent grid with its linkages. A table of contents at the start of
+ * the file gives the position of each section, so the sections can be decoded on separate threads at the same time.
+ * References from one section to the objects at the root of another (e.g. the parentNetwork fields of the layers, or
+ * the street layer of a linkage) are not written out, and are reconnected to the objects from the other sections
+ * when reading. Large primitive arrays are written as raw big-endian values so they can be copied in bulk.
+ *
  * Created by abyrd on 2018-11-08
  */
 public abstract class KryoNetworkSerializer {
 
     private static final Logger LOG = LoggerFactory.getLogger(KryoNetworkSerializer.class);
 
-    public static final byte[] HEADER = "R5NETWORK".getBytes();
+    public static final byte[] HEADER = "R5NETSEC".getBytes();
+
+    /** The header of files containing the whole network in one Kryo stream, as written by older versions of R5. */
+    public static final byte[] SINGLE_STREAM_HEADER = "R5NETWORK".getBytes();
+
+    private static final String NETWORK_SECTION = "network";
+    private static final String STREET_SECTION = "streets";
+    private static final String TRANSIT_SECTION = "transit";
+    private static final String LINKAGE_SECTION = "linkages";
+
+    /** The sections of a network file, in the order they are written. */
+    private static final String[] SECTIONS = { NETWORK_SECTION, STREET_SECTION, TRANSIT_SECTION, LINKAGE_SECTION };
+
+    /** The size of the buffer used to copy primitive arrays in bulk, in bytes. */
+    private static final int BULK_BUFFER_BYTES = 64 * 1024;
 
     /** Set this to true to count instances and print a report including which serializer is handling each class. */
     private static final boolean COUNT_CLASS_INSTANCES = false;
@@ -70,12 +108,22 @@ public abstract class KryoNetworkSerializer {
         // We've got a custom serializer for primitive int array lists, because there are a lot of them and the custom
         // implementation is much faster than deferring to their Externalizable implementation.
         kryo.register(TIntArrayList.class, new TIntArrayListSerializer());
+        // Frozen edge stores hold lists sharing the arrays read by the router, which are read back as plain lists.
+        kryo.register(TIntSharedArrayList.class, new TIntArrayListSerializer());
         // Likewise for TIntIntHashMaps - there are lots of them in the distance tables.
         kryo.register(TIntIntHashMap.class, new TIntIntHashMapSerializer());
         // Kryo's default instantiation and deserialization of BitSets leaves them empty.
         // The Kryo BitSet serializer in magro/kryo-serializers naively writes out a dense stream of booleans.
         // BitSet's built-in Java serializer saves the internal bitfields, which is efficient. We use that one.
         kryo.register(BitSet.class, new JavaSerializer());
+        // Memory-mapped tables are stored in their own files next to the network file. Only the file names are
+        // written into the network itself.
+        kryo.register(MappedIntTables.IntArrayTableList.class, new MappedIntTables.IntArrayTableListSerializer());
+        kryo.register(MappedIntTables.DistanceTableList.class, new MappedIntTables.DistanceTableListSerializer());
+        // Packed street geometries are written as their packed bytes rather than as a list of int arrays.
+        kryo.register(PackedGeometryList.class, new PackedGeometryList.PackedGeometryListSerializer());
+        // Write large primitive arrays (e.g. linkages) as raw values copied in bulk rather than one varint at a time.
+        kryo.register(int[].class, new BulkIntArraySerializer());
         // Instantiation strategy: how should Kryo make new instances of objects when they are deserialized?
         // The default strategy requires every class you serialize, even in your dependencies, to have a zero-arg
         // constructor (which can be private). The setInstantiatorStrategy method completely replaces that default
@@ -85,34 +133,249 @@ public abstract class KryoNetworkSerializer {
     }
 
     /**
-     * Serialize the supplied network using Kryo, storing the result in a file.
+     * Make a Kryo instance for reading or writing one section of a network file. Objects at the root of the other
+     * sections are not written out by this instance. When reading, they are taken from the Kryo context (where they
+     * may be null if that section has not been read yet, in which case the reference is reconnected afterward).
+     */
+    private static Kryo makeSectionKryo (String section) {
+        Kryo kryo = makeKryo();
+        if (!NETWORK_SECTION.equals(section)) {
+            kryo.register(TransportNetwork.class, new SectionReferenceSerializer<>(TransportNetwork.class));
+        }
+        if (!STREET_SECTION.equals(section)) {
+            kryo.register(StreetLayer.class, new SectionReferenceSerializer<>(StreetLayer.class));
+        }
+        if (!TRANSIT_SECTION.equals(section)) {
+            kryo.register(TransitLayer.class, new SectionReferenceSerializer<>(TransitLayer.class));
+        }
+        if (!LINKAGE_SECTION.equals(section)) {
+            kryo.register(LinkageCache.class, new SectionReferenceSerializer<>(LinkageCache.class));
+            kryo.register(WebMercatorGridPointSet.class,
+                    new SectionReferenceSerializer<>(WebMercatorGridPointSet.class));
+        }
+        return kryo;
+    }
+
+    /**
+     * Serialize the supplied network using Kryo, storing the result in a file. The table of contents is written with
+     * placeholder positions, then each section is appended and the table of contents is filled in at the end.
      */
     public static void write (TransportNetwork network, File file) throws IOException {
         LOG.info("Writing transport network...");
-        Output output = new Output(new FileOutputStream(file));
-        Kryo kryo = makeKryo();
-        output.write(HEADER);
-        kryo.writeObject(output, R5Version.version);
-        kryo.writeObject(output, R5Version.commit);
-        kryo.writeObject(output, network);
-        output.close();
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(0);
+            randomAccessFile.write(HEADER);
+            randomAccessFile.writeUTF(R5Version.version);
+            randomAccessFile.writeUTF(R5Version.commit);
+            randomAccessFile.writeInt(SECTIONS.length);
+            long tableOfContents = randomAccessFile.getFilePointer();
+            for (String section : SECTIONS) {
+                randomAccessFile.writeUTF(section);
+                randomAccessFile.writeLong(0);
+                randomAccessFile.writeLong(0);
+            }
+            long[] offsets = new long[SECTIONS.length];
+            long[] lengths = new long[SECTIONS.length];
+            for (int s = 0; s < SECTIONS.length; s++) {
+                offsets[s] = randomAccessFile.getFilePointer();
+                Kryo kryo = makeSectionKryo(SECTIONS[s]);
+                // The channel shares its position with the RandomAccessFile, so the section is appended in place.
+                Output output = new Output(Channels.newOutputStream(randomAccessFile.getChannel()), BULK_BUFFER_BYTES);
+                switch (SECTIONS[s]) {
+                    case NETWORK_SECTION:
+                        kryo.writeObject(output, network);
+                        break;
+                    case STREET_SECTION:
+                        kryo.writeObjectOrNull(output, network.streetLayer, StreetLayer.class);
+                        break;
+                    case TRANSIT_SECTION:
+                        kryo.writeObjectOrNull(output, network.transitLayer, TransitLayer.class);
+                        break;
+                    case LINKAGE_SECTION:
+                        kryo.writeObjectOrNull(output, network.fullExtentGridPointSet, WebMercatorGridPointSet.class);
+                        kryo.writeObjectOrNull(output, network.linkageCache, LinkageCache.class);
+                        break;
+                }
+                output.flush();
+                lengths[s] = randomAccessFile.getFilePointer() - offsets[s];
+                LOG.info("Wrote {} section of network, {} MB.", SECTIONS[s], lengths[s] / 1024 / 1024);
+                if (COUNT_CLASS_INSTANCES) {
+                    ((InstanceCountingClassResolver)kryo.getClassResolver()).summarize();
+                }
+            }
+            randomAccessFile.seek(tableOfContents);
+            for (int s = 0; s < SECTIONS.length; s++) {
+                randomAccessFile.writeUTF(SECTIONS[s]);
+                randomAccessFile.writeLong(offsets[s]);
+                randomAccessFile.writeLong(lengths[s]);
+            }
+        }
         LOG.info("Done writing.");
-        if (COUNT_CLASS_INSTANCES) {
-            ((InstanceCountingClassResolver)kryo.getClassResolver()).summarize();
+    }
+
+    /**
+     * Move the distance tables and the egress cost tables of any unevictable linkages out of the supplied network into
+     * flat files next to the given network file, replacing them in the network with memory-mapped views of those
+     * files. Then serialize the network to the given file. Reading that file back will only map the tables again
+     * instead of deserializing them, and the tables will not take up space on the heap. The network file can only
+     * be read as long as the table files remain in the same directory, so it should not be shared (e.g. on S3).
+     */
+    public static void writeWithMappedTables (TransportNetwork network, File file) throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        String baseName = file.getName().replaceFirst("\\.dat$", "");
+        TransitLayer transitLayer = network.transitLayer;
+        if (transitLayer.stopToVertexDistanceTables != null
+                && !(transitLayer.stopToVertexDistanceTables instanceof MappedIntTables.DistanceTableList)) {
+            File tablesFile = new File(directory, baseName + "_distances.tables");
+            MappedIntTables.writeDistanceTables(tablesFile, transitLayer.stopToVertexDistanceTables);
+            transitLayer.stopToVertexDistanceTables =
+                    new MappedIntTables.DistanceTableList(MappedIntTables.map(tablesFile));
+        }
+        for (LinkedPointSet linkage : network.linkageCache.getUnevictableLinkages()) {
+            EgressCostTable egressCostTable = linkage.getEgressCostTable();
+            // Tables that were already transposed for propagation no longer have their stop -> point form.
+            if (egressCostTable.stopToPointLinkageCostTables != null
+                    && !(egressCostTable.stopToPointLinkageCostTables instanceof MappedIntTables.IntArrayTableList)) {
+                String mode = linkage.streetMode.toString().toLowerCase();
+                File tablesFile = new File(directory, String.format("%s_egress_%s.tables", baseName, mode));
+                MappedIntTables.write(tablesFile, egressCostTable.stopToPointLinkageCostTables);
+                egressCostTable.stopToPointLinkageCostTables =
+                        new MappedIntTables.IntArrayTableList(MappedIntTables.map(tablesFile));
+            }
         }
+        write(network, file);
     }
 
     /**
      * Read the given file and decode with Kryo into a new R5 TransportNetwork object.
      * Transient fields that were not serialized will be rebuilt (indexes and cached PointSet linkage).
+     * The small network section is read first. The street and transit sections are then decoded at the same time on
+     * separate threads, and the linkages are decoded as soon as the street layer they refer to is available.
      */
     public static TransportNetwork read (File file) throws Exception {
         LOG.info("Reading transport network...");
-        Input input = new Input(new FileInputStream(file));
+        long startTime = System.currentTimeMillis();
+        long[] offsets = new long[SECTIONS.length];
+        try (DataInputStream dataInput = new DataInputStream(new FileInputStream(file))) {
+            byte[] header = new byte[HEADER.length];
+            dataInput.readFully(header);
+            if (!Arrays.equals(HEADER, header)) {
+                if (Arrays.equals(header, Arrays.copyOf(SINGLE_STREAM_HEADER, HEADER.length))) {
+                    return readSingleStream(file);
+                }
+                throw new RuntimeException("Unrecognized file header. Is this an R5 Kryo network?");
+            }
+            String version = dataInput.readUTF();
+            String commit = dataInput.readUTF();
+            LOG.info("Loading {} file saved by R5 version {} commit {}", new String(header), version, commit);
+            if (!R5Version.version.equals(version)) {
+                throw new RuntimeException(String.format("File version %s is not compatible with this R5 version %s",
+                        version, R5Version.version));
+            }
+            int nSections = dataInput.readInt();
+            for (int s = 0; s < nSections; s++) {
+                String section = dataInput.readUTF();
+                long offset = dataInput.readLong();
+                dataInput.readLong();
+                int index = Arrays.asList(SECTIONS).indexOf(section);
+                if (index < 0) {
+                    throw new RuntimeException("Unrecognized section in network file: " + section);
+                }
+                offsets[index] = offset;
+            }
+        }
+
+        TransportNetwork result = (TransportNetwork) readSection(file, offsets, NETWORK_SECTION)[0];
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            CompletableFuture<StreetLayer> streets = CompletableFuture.supplyAsync(() ->
+                    (StreetLayer) readSection(file, offsets, STREET_SECTION, result)[0], executor);
+            CompletableFuture<TransitLayer> transit = CompletableFuture.supplyAsync(() ->
+                    (TransitLayer) readSection(file, offsets, TRANSIT_SECTION, result)[0], executor);
+            CompletableFuture<Object[]> linkages = streets.thenApplyAsync(streetLayer ->
+                    readSection(file, offsets, LINKAGE_SECTION, result, streetLayer), executor);
+            result.streetLayer = streets.join();
+            result.transitLayer = transit.join();
+            Object[] gridAndLinkages = linkages.join();
+            result.fullExtentGridPointSet = (WebMercatorGridPointSet) gridAndLinkages[0];
+            result.linkageCache = (LinkageCache) gridAndLinkages[1];
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+            throw e;
+        } finally {
+            executor.shutdown();
+        }
+        LOG.info("Done reading in {} sec.", (System.currentTimeMillis() - startTime) / 1000.0);
+        if (result.fareCalculator != null) {
+            result.fareCalculator.transitLayer = result.transitLayer;
+        }
+        result.rebuildTransientIndexes();
+        return result;
+    }
+
+    /**
+     * Decode one section of a network file using its own Kryo instance and input stream, so several sections can be
+     * read at once. Objects from other sections that have already been read are supplied to be reconnected.
+     * @return the objects at the root of the section, in the order they were written.
+     */
+    private static Object[] readSection (File file, long[] offsets, String section, Object... otherRoots) {
+        long startTime = System.currentTimeMillis();
+        try (FileInputStream fileInputStream = new FileInputStream(file)) {
+            fileInputStream.getChannel().position(offsets[Arrays.asList(SECTIONS).indexOf(section)]);
+            Input input = new Input(fileInputStream, BULK_BUFFER_BYTES);
+            Kryo kryo = makeSectionKryo(section);
+            // Any memory-mapped tables referenced by the network are in the same directory as the network file.
+            kryo.getContext().put(MappedIntTables.DIRECTORY_CONTEXT_KEY, file.getAbsoluteFile().getParentFile());
+            for (Object root : otherRoots) {
+                if (root != null) kryo.getContext().put(root.getClass(), root);
+            }
+            Object[] roots;
+            switch (section) {
+                case NETWORK_SECTION:
+                    roots = new Object[] { kryo.readObject(input, TransportNetwork.class) };
+                    break;
+                case STREET_SECTION:
+                    roots = new Object[] { kryo.readObjectOrNull(input, StreetLayer.class) };
+                    break;
+                case TRANSIT_SECTION:
+                    roots = new Object[] { kryo.readObjectOrNull(input, TransitLayer.class) };
+                    break;
+                case LINKAGE_SECTION:
+                    roots = new Object[] {
+                            kryo.readObjectOrNull(input, WebMercatorGridPointSet.class),
+                            kryo.readObjectOrNull(input, LinkageCache.class)
+                    };
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown network file section " + section);
+            }
+            LOG.info("Read {} section of network in {} sec.", section,
+                    (System.currentTimeMillis() - startTime) / 1000.0);
+            return roots;
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read " + section + " section of network file " + file, e);
+        }
+    }
+
+    /** Make a Kryo instance configured like the ones older versions of R5 used to write a network in one stream. */
+    static Kryo makeSingleStreamKryo () {
         Kryo kryo = makeKryo();
-        byte[] header = new byte[HEADER.length];
+        // Older files contain int arrays in Kryo's default variable-length encoding.
+        kryo.register(int[].class, new DefaultArraySerializers.IntArraySerializer());
+        return kryo;
+    }
+
+    /**
+     * Read a network saved by an older version of R5, with all its contents in a single Kryo stream.
+     */
+    private static TransportNetwork readSingleStream (File file) throws Exception {
+        Input input = new Input(new FileInputStream(file));
+        Kryo kryo = makeSingleStreamKryo();
+        // Any memory-mapped tables referenced by the network are in the same directory as the network file.
+        kryo.getContext().put(MappedIntTables.DIRECTORY_CONTEXT_KEY, file.getAbsoluteFile().getParentFile());
+        byte[] header = new byte[SINGLE_STREAM_HEADER.length];
         input.read(header, 0, header.length);
-        if (!Arrays.equals(HEADER, header)) {
+        if (!Arrays.equals(SINGLE_STREAM_HEADER, header)) {
             throw new RuntimeException("Unrecognized file header. Is this an R5 Kryo network?");
         }
         String version = kryo.readObject(input, String.class);
@@ -132,4 +395,67 @@ public abstract class KryoNetworkSerializer {
         return result;
     }
 
+    /**
+     * Stands in for an object at the root of another section of the network file. Nothing is written, and when
+     * reading, the object of the given type that was put into the Kryo context (or null) is returned.
+     */
+    private static class SectionReferenceSerializer<T> extends Serializer<T> {
+
+        private final Class<T> type;
+
+        SectionReferenceSerializer (Class<T> type) {
+            this.type = type;
+        }
+
+        @Override
+        public void write (Kryo kryo, Output output, T object) { }
+
+        @Override
+        public T read (Kryo kryo, Input input, Class<T> type) {
+            return this.type.cast(kryo.getContext().get(this.type));
+        }
+    }
+
+    /**
+     * Writes int arrays as their length followed by raw big-endian values. When reading, the values are copied from
+     * the input in blocks through a ByteBuffer rather than being decoded one at a time.
+     */
+    private static class BulkIntArraySerializer extends Serializer<int[]> {
+
+        BulkIntArraySerializer () {
+            setAcceptsNull(true);
+        }
+
+        @Override
+        public void write (Kryo kryo, Output output, int[] array) {
+            if (array == null) {
+                output.writeVarInt(0, true);
+                return;
+            }
+            output.writeVarInt(array.length + 1, true);
+            ByteBuffer buffer = ByteBuffer.allocate(Math.min(array.length * Integer.BYTES, BULK_BUFFER_BYTES));
+            for (int start = 0; start < array.length; start += buffer.capacity() / Integer.BYTES) {
+                int length = Math.min(array.length - start, buffer.capacity() / Integer.BYTES);
+                buffer.clear();
+                buffer.asIntBuffer().put(array, start, length);
+                output.writeBytes(buffer.array(), 0, length * Integer.BYTES);
+            }
+        }
+
+        @Override
+        public int[] read (Kryo kryo, Input input, Class<int[]> type) {
+            int length = input.readVarInt(true);
+            if (length == 0) return null;
+            int[] array = new int[length - 1];
+            ByteBuffer buffer = ByteBuffer.allocate(Math.min(array.length * Integer.BYTES, BULK_BUFFER_BYTES));
+            for (int start = 0; start < array.length; start += buffer.capacity() / Integer.BYTES) {
+                int blockLength = Math.min(array.length - start, buffer.capacity() / Integer.BYTES);
+                input.readBytes(buffer.array(), 0, blockLength * Integer.BYTES);
+                buffer.clear();
+                buffer.asIntBuffer().get(array, start, blockLength);
+            }
+            return array;
+        }
+    }
+
 }
@@ -0,0 +1,349 @@
+package com.conveyal.r5.kryo;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import gnu.trove.TCollections;
+import gnu.trove.iterator.TIntIntIterator;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A list of int arrays stored in a flat binary file and accessed through memory-mapped buffers, outside the Java heap.
+ *
+ * The stop -> vertex distance tables and the stop -> point egress cost tables are among the biggest objects in a
+ * TransportNetwork. Stored this way they do not need to be deserialized when a worker starts up, they do not count
+ * against the heap size, and several JVMs on the same machine that map the same file will share its pages through
+ * the OS page cache. The tables are read-only once written: reading a table decodes it onto the heap, and the list
+ * views below do not allow replacing tables in place. A bounded number of recently decoded tables are kept on the
+ * heap, so that the same table read for many origins in a row is only decoded once.
+ *
+ * The file consists of a header, the number of tables, then for each table its length followed by its values.
+ * A length of -1 represents a null table. All values are big-endian ints.
+ */
+public class MappedIntTables {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MappedIntTables.class);
+
+    public static final byte[] HEADER = "R5TABLES".getBytes();
+
+    /**
+     * The key under which the directory containing the network file is stored in the Kryo context while reading a
+     * network. Table files referenced by the network are resolved relative to this directory.
+     */
+    public static final String DIRECTORY_CONTEXT_KEY = "mappedTableDirectory";
+
+    /** A single MappedByteBuffer cannot exceed 2GB, so the file is mapped in segments of 2^28 ints (1GB). */
+    private static final int SEGMENT_SHIFT = 28;
+
+    private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+    /** The maximum total number of values in the decoded tables kept on the heap for each file (16MB). */
+    private static final long DECODED_TABLE_CACHE_INTS = 4 * 1024 * 1024;
+
+    /** The file these tables were mapped from. */
+    public final File file;
+
+    /** The index of the first value of each table within the mapped ints, or -1 for null tables. */
+    private final long[] firstValue;
+
+    /** The length of each table. */
+    private final int[] lengths;
+
+    /** Read-only int views on consecutive segments of the file, starting right after the header. */
+    private final IntBuffer[] segments;
+
+    /**
+     * Recently decoded tables (int arrays or unmodifiable distance tables) keyed on table index, shared by all the
+     * list views on this file.
+     */
+    private final Cache<Integer, Object> decodedTables;
+
+    private MappedIntTables (File file) throws IOException {
+        this.file = file;
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            FileChannel channel = randomAccessFile.getChannel();
+            byte[] header = new byte[HEADER.length];
+            randomAccessFile.readFully(header);
+            if (!Arrays.equals(HEADER, header)) {
+                throw new RuntimeException("Unrecognized file header. Is this an R5 table file? " + file);
+            }
+            long dataStart = HEADER.length;
+            long nInts = (channel.size() - dataStart) / Integer.BYTES;
+            int nSegments = (int) ((nInts + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+            segments = new IntBuffer[nSegments];
+            for (int s = 0; s < nSegments; s++) {
+                long segmentInts = Math.min(1L << SEGMENT_SHIFT, nInts - ((long) s << SEGMENT_SHIFT));
+                long segmentStart = dataStart + ((long) s << SEGMENT_SHIFT) * Integer.BYTES;
+                // The mapping remains valid after the channel is closed.
+                segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, segmentStart, segmentInts * Integer.BYTES)
+                        .asIntBuffer();
+            }
+        }
+        // Walk through the table lengths once to find where each table starts.
+        int nTables = getInt(0);
+        firstValue = new long[nTables];
+        lengths = new int[nTables];
+        long position = 1;
+        for (int t = 0; t < nTables; t++) {
+            int length = getInt(position++);
+            if (length < 0) {
+                firstValue[t] = -1;
+            } else {
+                firstValue[t] = position;
+                lengths[t] = length;
+                position += length;
+            }
+        }
+        decodedTables = Caffeine.newBuilder()
+                .maximumWeight(DECODED_TABLE_CACHE_INTS)
+                .weigher((Integer table, Object decoded) -> lengths[table])
+                .build();
+    }
+
+    /** Map the tables in an existing file written by one of the write methods. */
+    public static MappedIntTables map (File file) throws IOException {
+        LOG.info("Memory-mapping tables in {}", file);
+        return new MappedIntTables(file);
+    }
+
+    /** Write a list of int arrays (some of which may be null) to the given file. */
+    public static void write (File file, List<int[]> tables) throws IOException {
+        LOG.info("Writing {} tables to {}", tables.size(), file);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.write(HEADER);
+            out.writeInt(tables.size());
+            for (int[] table : tables) {
+                if (table == null) {
+                    out.writeInt(-1);
+                } else {
+                    out.writeInt(table.length);
+                    for (int value : table) out.writeInt(value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write a list of distance tables (some of which may be null) to the given file. Each map is stored as a
+     * flattened sequence of (key, value) pairs, like the egress cost tables.
+     */
+    public static void writeDistanceTables (File file, List<TIntIntMap> distanceTables) throws IOException {
+        LOG.info("Writing {} distance tables to {}", distanceTables.size(), file);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.write(HEADER);
+            out.writeInt(distanceTables.size());
+            for (TIntIntMap distanceTable : distanceTables) {
+                if (distanceTable == null) {
+                    out.writeInt(-1);
+                } else {
+                    out.writeInt(distanceTable.size() * 2);
+                    for (TIntIntIterator it = distanceTable.iterator(); it.hasNext(); ) {
+                        it.advance();
+                        out.writeInt(it.key());
+                        out.writeInt(it.value());
+                    }
+                }
+            }
+        }
+    }
+
+    private int getInt (long index) {
+        // Absolute gets do not change the buffer position, so this is safe to call from many threads at once.
+        return segments[(int) (index >>> SEGMENT_SHIFT)].get((int) (index & SEGMENT_MASK));
+    }
+
+    /** @return the number of tables in the file. */
+    public int size () {
+        return firstValue.length;
+    }
+
+    /**
+     * @return an on-heap copy of the table at the given index, or null if that table is null. The copy may be shared
+     *         with other callers, so it must not be modified.
+     */
+    public int[] get (int table) {
+        if (firstValue[table] < 0) return null;
+        return (int[]) decodedTables.get(table, this::decode);
+    }
+
+    /**
+     * @return an unmodifiable hash map decoded from the flattened (key, value) pairs at the given index, or null if
+     *         that table is null. The map may be shared with other callers.
+     */
+    public TIntIntMap getDistanceTable (int table) {
+        if (firstValue[table] < 0) return null;
+        return (TIntIntMap) decodedTables.get(table, this::decodeDistanceTable);
+    }
+
+    private int[] decode (int table) {
+        long first = firstValue[table];
+        int[] values = new int[lengths[table]];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = getInt(first + i);
+        }
+        return values;
+    }
+
+    private TIntIntMap decodeDistanceTable (int table) {
+        long first = firstValue[table];
+        int nEntries = lengths[table] / 2;
+        TIntIntMap distanceTable = new TIntIntHashMap(nEntries);
+        for (int e = 0; e < nEntries; e++) {
+            distanceTable.put(getInt(first + e * 2), getInt(first + e * 2 + 1));
+        }
+        return TCollections.unmodifiableMap(distanceTable);
+    }
+
+    /**
+     * A read-only List view of int array tables, usable in place of EgressCostTable.stopToPointLinkageCostTables.
+     * The arrays returned by get() may be shared with other callers, and must not be modified.
+     */
+    public static class IntArrayTableList extends AbstractList<int[]> {
+
+        public final MappedIntTables tables;
+
+        public IntArrayTableList (MappedIntTables tables) {
+            this.tables = tables;
+        }
+
+        @Override
+        public int[] get (int index) {
+            return tables.get(index);
+        }
+
+        @Override
+        public int size () {
+            return tables.size();
+        }
+    }
+
+    /**
+     * A read-only List view of distance tables, usable in place of TransitLayer.stopToVertexDistanceTables.
+     * Scenarios only rebuild the distance tables for stops near their modifications, so this view can hold a few
+     * replacement tables on the heap, overlaid on the shared memory-mapped ones. This avoids decoding every unaffected
+     * table onto the heap for each scenario.
+     */
+    public static class DistanceTableList extends AbstractList<TIntIntMap> {
+
+        public final MappedIntTables tables;
+
+        /** Distance tables replacing (or extending past the end of) the memory-mapped ones, keyed on stop index. */
+        private final TIntObjectMap<TIntIntMap> replacements;
+
+        private final int size;
+
+        public DistanceTableList (MappedIntTables tables) {
+            this(tables, new TIntObjectHashMap<>(), tables.size());
+        }
+
+        private DistanceTableList (MappedIntTables tables, TIntObjectMap<TIntIntMap> replacements, int size) {
+            this.tables = tables;
+            this.replacements = replacements;
+            this.size = size;
+        }
+
+        /**
+         * @return a new view on the same memory-mapped tables, with the given stops' tables replaced by the supplied
+         * ones, and with the given size. Stops past the end of the mapped tables that are not replaced have null
+         * tables. This view is not modified.
+         */
+        public DistanceTableList withReplacements (int[] stops, List<TIntIntMap> newTables, int newSize) {
+            TIntObjectMap<TIntIntMap> newReplacements = new TIntObjectHashMap<>(replacements);
+            for (int i = 0; i < stops.length; i++) {
+                newReplacements.put(stops[i], newTables.get(i));
+            }
+            return new DistanceTableList(tables, newReplacements, newSize);
+        }
+
+        @Override
+        public TIntIntMap get (int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            }
+            if (replacements.containsKey(index)) {
+                return replacements.get(index);
+            }
+            return index < tables.size() ? tables.getDistanceTable(index) : null;
+        }
+
+        @Override
+        public int size () {
+            return size;
+        }
+    }
+
+    /** Find the tables file with the given name in the directory the network is being read from, and map it. */
+    private static MappedIntTables readAndMap (Kryo kryo, Input input) {
+        File directory = (File) kryo.getContext().get(DIRECTORY_CONTEXT_KEY);
+        File file = new File(directory, input.readString());
+        try {
+            return map(file);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not map tables file referenced by network: " + file, e);
+        }
+    }
+
+    /**
+     * Kryo serializer that writes only the name of the backing file, which must be in the same directory as the
+     * network file. When the network is read back, that file is mapped again rather than read onto the heap.
+     */
+    public static class IntArrayTableListSerializer extends Serializer<IntArrayTableList> {
+        @Override
+        public void write (Kryo kryo, Output output, IntArrayTableList list) {
+            output.writeString(list.tables.file.getName());
+        }
+
+        @Override
+        public IntArrayTableList read (Kryo kryo, Input input, Class<IntArrayTableList> type) {
+            return new IntArrayTableList(readAndMap(kryo, input));
+        }
+    }
+
+    /** Like IntArrayTableListSerializer, but also writes out any replacement tables held on the heap. */
+    public static class DistanceTableListSerializer extends Serializer<DistanceTableList> {
+        @Override
+        public void write (Kryo kryo, Output output, DistanceTableList list) {
+            output.writeString(list.tables.file.getName());
+            output.writeInt(list.size);
+            output.writeInt(list.replacements.size());
+            for (int stop : list.replacements.keys()) {
+                output.writeInt(stop);
+                kryo.writeClassAndObject(output, list.replacements.get(stop));
+            }
+        }
+
+        @Override
+        public DistanceTableList read (Kryo kryo, Input input, Class<DistanceTableList> type) {
+            MappedIntTables tables = readAndMap(kryo, input);
+            int size = input.readInt();
+            int nReplacements = input.readInt();
+            TIntObjectMap<TIntIntMap> replacements = new TIntObjectHashMap<>(nReplacements);
+            for (int i = 0; i < nReplacements; i++) {
+                int stop = input.readInt();
+                replacements.put(stop, (TIntIntMap) kryo.readClassAndObject(input));
+            }
+            return new DistanceTableList(tables, replacements, size);
+        }
+    }
+
+}
@@ -16,7 +16,6 @@ import com.conveyal.r5.otp2.service.RequestAlias;
 
 import java.util.BitSet;
 import java.util.Collection;
-import java.util.concurrent.Future;
 
 import static com.conveyal.r5.otp2.api.request.Optimization.PARALLEL;
 import static com.conveyal.r5.otp2.api.request.Optimization.PARETO_CHECK_AGAINST_DESTINATION;
@@ -101,20 +100,17 @@ public class RangeRaptorService<T extends TripScheduleInfo> {
         DebugHeuristics.debug("Forward", fwdHeur.heuristics(), "Reverse", revHeur.heuristics(), req);
     }
 
+    /**
+     * Run both workers, in parallel if enabled. The second worker is handed to the scheduler shared by all
+     * requests, but this thread runs it if no pool thread has picked it up by the time the first worker is done.
+     */
     private void runInParallel(RangeRaptorRequest<T> request, Worker<?> w1, Worker<?> w2) {
         if (!runInParallel(request)) {
             w1.route();
             w2.route();
             return;
         }
-        try {
-            Future<?> f = config.threadPool().submit(w2::route);
-            w1.route();
-            f.get();
-        } catch (Exception e) {
-            e.printStackTrace();
-            throw new RuntimeException(e.getMessage(), e);
-        }
+        config.scheduler().runAll(w1::route, w2::route);
     }
 
     private String alias(RangeRaptorRequest<?> request) {
@@ -30,6 +30,7 @@ public class SearchParams {
     private final BitSet stopFilter;
     private final Collection<TransferLeg> accessLegs;
     private final Collection<TransferLeg> egressLegs;
+    private final long searchDeadline;
 
     /**
      * Default values is defined in the default constructor.
@@ -47,6 +48,7 @@ public class SearchParams {
         stopFilter = null;
         accessLegs = Collections.emptyList();
         egressLegs = Collections.emptyList();
+        searchDeadline = 0;
     }
 
     SearchParams(SearchParamsBuilder builder) {
@@ -63,6 +65,7 @@ public class SearchParams {
         this.stopFilter = builder.stopFilter();
         this.accessLegs = Collections.unmodifiableList(new ArrayList<>(builder.accessLegs()));
         this.egressLegs = Collections.unmodifiableList(new ArrayList<>(builder.egressLegs()));
+        this.searchDeadline = builder.searchDeadline();
     }
 
     static SearchParams defaults() {
@@ -237,6 +240,18 @@ public class SearchParams {
         return egressLegs;
     }
 
+    /**
+     * The wall clock time, in milliseconds since the epoch (see {@link System#currentTimeMillis()}), after which
+     * the search is aborted with a {@link SearchTimeoutException}. The deadline is checked at the start of every
+     * round, and applies to all the searches performed for one request, including the heuristic searches. Use this
+     * to keep a few slow requests from holding on to the threads shared by all requests.
+     * <p/>
+     * The default value is 0 (zero) - no deadline.
+     */
+    public long searchDeadline() {
+        return searchDeadline;
+    }
+
     @Override
     public String toString() {
         return "SearchParams{" +
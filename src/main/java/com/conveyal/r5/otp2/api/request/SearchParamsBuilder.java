@@ -23,6 +23,7 @@ public class SearchParamsBuilder {
     private BitSet stopFilter;
     private final Collection<TransferLeg> accessLegs = new ArrayList<>();
     private final Collection<TransferLeg> egressLegs = new ArrayList<>();
+    private long searchDeadline;
 
 
 
@@ -43,6 +44,7 @@ public class SearchParamsBuilder {
         this.stopFilter = defaults.stopFilter();
         this.accessLegs.addAll(defaults.accessLegs());
         this.egressLegs.addAll(defaults.egressLegs());
+        this.searchDeadline = defaults.searchDeadline();
 
     }
 
@@ -173,6 +175,14 @@ public class SearchParamsBuilder {
         return this;
     }
 
+    public long searchDeadline() {
+        return searchDeadline;
+    }
+
+    public SearchParamsBuilder searchDeadline(long searchDeadline) {
+        this.searchDeadline = searchDeadline;
+        return this;
+    }
 
     public SearchParams build() {
         return new SearchParams(this);
@@ -0,0 +1,12 @@
+package com.conveyal.r5.otp2.api.request;
+
+/**
+ * Thrown by a search which is still running when the deadline of its request has passed,
+ * see {@link SearchParams#searchDeadline()}.
+ */
+public class SearchTimeoutException extends RuntimeException {
+
+    public SearchTimeoutException(String message) {
+        super(message);
+    }
+}
@@ -52,6 +52,9 @@ public interface TuningParameters {
      * parameter to set the total number of executable threads available across all searches.
      * <p/>
      * Multiple searches can run in parallel - this parameter have no effect with regard to that.
+     * The threads are shared by all searches, and a search does the work itself if no thread is
+     * available, so the pool size does not need to grow with the number of concurrent requests.
+     * A good value is the number of cores not already busy serving requests.
      * <p/>
      * The default value is 0 - zero. If 0, no extra threads are stated and the search is done in one thread.
      */
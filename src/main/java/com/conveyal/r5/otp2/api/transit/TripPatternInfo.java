@@ -33,4 +33,35 @@ public interface TripPatternInfo<T extends TripScheduleInfo> {
      * Number of trips in pattern.
      */
     int numberOfTripSchedules();
+
+    /**
+     * Number of frequency entries in pattern. The vehicles of a frequency entry do not have fixed departure times,
+     * so they are boarded using {@link #frequencyTripDepartingAfter(int, int, int)} or, in a reverse search,
+     * {@link #frequencyTripArrivingBefore(int, int, int)} rather than by searching the trip schedules. A provider
+     * can also expand the frequency entries into trip schedules (e.g. with randomized offsets) and return 0 here.
+     */
+    default int numberOfFrequencyEntries() {
+        return 0;
+    }
+
+    /**
+     * Board a vehicle of the given frequency entry at the given stop, no earlier than the given time.
+     *
+     * @param frequencyEntry the frequency entry index in pattern starting at 0.
+     * @return the trip schedule of the boarded vehicle, or null if the frequency entry can not be boarded.
+     */
+    default T frequencyTripDepartingAfter(int frequencyEntry, int stopPositionInPattern, int earliestBoardTime) {
+        return null;
+    }
+
+    /**
+     * Alight from a vehicle of the given frequency entry at the given stop, no later than the given time. This is
+     * used by the reverse search.
+     *
+     * @param frequencyEntry the frequency entry index in pattern starting at 0.
+     * @return the trip schedule of the vehicle, or null if the frequency entry does not reach the stop in time.
+     */
+    default T frequencyTripArrivingBefore(int frequencyEntry, int stopPositionInPattern, int latestAlightTime) {
+        return null;
+    }
 }
@@ -17,6 +17,7 @@ import com.conveyal.r5.otp2.util.AvgTimer;
 
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.function.Function;
 
 
 /**
@@ -35,10 +36,8 @@ import java.util.Iterator;
  *     <li>Range Raptor (RR)
  *     <li>Multi-criteria pareto optimal Range Raptor (McRR)
  *     <li>Reverse search in combination with R and RR
- * </ul>
- * This version do NOT support the following features:
- * <ul>
- *     <li>Frequency routes, supported by the original code using Monte Carlo methods (generating randomized schedules)
+ *     <li>Frequency routes, if the transit data provider returns frequency entries for the patterns (boarded using
+ *     e.g. half-headway, worst-case or randomized Monte Carlo waits)
  * </ul>
  * <p>
  * This class originated as a rewrite of Conveyals RAPTOR code: https://github.com/conveyal/r5.
@@ -79,6 +78,18 @@ public final class RangeRaptorWorker<T extends TripScheduleInfo, S extends Worke
 
     private boolean matchBoardingAlightExactInFirstRound;
 
+    /** Created once and passed to every trip search, rather than creating a new method reference for each pattern. */
+    private final Function<T, Boolean> skipTripScheduleCallback = this::skipTripSchedule;
+
+    /**
+     * The trip searches reused for every pattern explored, instead of allocating new ones for each pattern in each
+     * round. There is one for each kind of search the calculator creates: with or without exact matching in the
+     * first round, and with or without frequency entries, at index (exact ? 2 : 0) + (frequencies ? 1 : 0). Each is
+     * created for the first pattern that needs it.
+     */
+    @SuppressWarnings("unchecked")
+    private final TripScheduleSearch<T>[] tripSearches = new TripScheduleSearch[4];
+
     /**
      * The life cycle is used to publish life cycle events to everyone who
      * listen.
@@ -229,17 +240,24 @@ public final class RangeRaptorWorker<T extends TripScheduleInfo, S extends Worke
     }
 
     /**
-     * Create a trip search using {@link TripScheduleBoardSearch}.
-     * <p/>
-     * This is protected to allow reverse search to override and create a alight search instead.
+     * Get a trip search for the given pattern, e.g. a {@link TripScheduleBoardSearch} in a forward search. The
+     * calculator decides the search direction. The same search objects are reused for every pattern, see
+     * {@link #tripSearches}.
      */
     private TripScheduleSearch<T> createTripSearch(TripPatternInfo<T> pattern) {
-        if(matchBoardingAlightExactInFirstRound && roundTracker.round() == 1) {
-            return calculator.createExactTripSearch(pattern, this::skipTripSchedule);
-        }
-        else {
-            return calculator.createTripSearch(pattern, this::skipTripSchedule);
+        boolean exact = matchBoardingAlightExactInFirstRound && roundTracker.round() == 1;
+        int index = (exact ? 2 : 0) + (pattern.numberOfFrequencyEntries() > 0 ? 1 : 0);
+        TripScheduleSearch<T> tripSearch = tripSearches[index];
+        if (tripSearch != null) {
+            tripSearch.setPattern(pattern);
+        } else if (exact) {
+            tripSearch = calculator.createExactTripSearch(pattern, skipTripScheduleCallback);
+            tripSearches[index] = tripSearch;
+        } else {
+            tripSearch = calculator.createTripSearch(pattern, skipTripScheduleCallback);
+            tripSearches[index] = tripSearch;
         }
+        return tripSearch;
     }
 
     /**
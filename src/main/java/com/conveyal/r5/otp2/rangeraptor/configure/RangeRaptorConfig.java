@@ -15,30 +15,29 @@ import com.conveyal.r5.otp2.rangeraptor.multicriteria.configure.McRangeRaptorCon
 import com.conveyal.r5.otp2.rangeraptor.standard.configure.StdRangeRaptorConfig;
 import com.conveyal.r5.otp2.rangeraptor.standard.heuristics.HeuristicSearch;
 import com.conveyal.r5.otp2.rangeraptor.transit.SearchContext;
+import com.conveyal.r5.otp2.service.SearchTaskScheduler;
 import com.conveyal.r5.otp2.service.WorkerPerformanceTimersCache;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-
 
 /**
  * This class is responsible for creating a new search and holding
  * application scoped Range Raptor state.
  * <p/>
- * This class should have APPLICATION scope. It manage a threadPool,
- * and hold a reference to the application tuning parameters.
+ * This class should have APPLICATION scope. It manage the scheduler
+ * running search tasks in parallel, and hold a reference to the
+ * application tuning parameters.
  *
  * @param <T> The TripSchedule type defined by the user of the range raptor API.
  */
 public class RangeRaptorConfig<T extends TripScheduleInfo> {
-    private final ExecutorService threadPool;
+    private final SearchTaskScheduler scheduler;
     private final TuningParameters tuningParameters;
     private final WorkerPerformanceTimersCache timers;
 
 
     public RangeRaptorConfig(TuningParameters tuningParameters) {
         this.tuningParameters = tuningParameters;
-        this.threadPool = createNewThreadPool(tuningParameters.searchThreadPoolSize());
+        this.scheduler = new SearchTaskScheduler(tuningParameters.searchThreadPoolSize());
         this.timers = new WorkerPerformanceTimersCache(isMultiThreaded());
     }
 
@@ -72,17 +71,15 @@ public class RangeRaptorConfig<T extends TripScheduleInfo> {
     }
 
     public boolean isMultiThreaded() {
-        return threadPool != null;
+        return scheduler.isMultiThreaded();
     }
 
-    public ExecutorService threadPool() {
-        return threadPool;
+    public SearchTaskScheduler scheduler() {
+        return scheduler;
     }
 
     public void shutdown() {
-        if (threadPool != null) {
-            threadPool.shutdown();
-        }
+        scheduler.shutdown();
     }
 
     /* private factory methods */
@@ -112,8 +109,4 @@ public class RangeRaptorConfig<T extends TripScheduleInfo> {
         return copy.build();
     }
 
-    private ExecutorService createNewThreadPool(int size) {
-        return size > 0 ? Executors.newFixedThreadPool(size) : null;
-    }
-
 }
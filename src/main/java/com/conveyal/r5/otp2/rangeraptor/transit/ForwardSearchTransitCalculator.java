@@ -143,7 +143,11 @@ final class ForwardSearchTransitCalculator implements TransitCalculator {
             TripPatternInfo<T> pattern,
             Function<T, Boolean> skipTripScheduleCallback
     ) {
-        return new TripScheduleBoardSearch<>(tripSearchBinarySearchThreshold, pattern, skipTripScheduleCallback);
+        TripScheduleSearch<T> search = new TripScheduleBoardSearch<>(tripSearchBinarySearchThreshold, pattern, skipTripScheduleCallback);
+        if (pattern.numberOfFrequencyEntries() > 0) {
+            return new FrequencyTripSearch<>(search, pattern, this, true);
+        }
+        return search;
     }
 
     @Override
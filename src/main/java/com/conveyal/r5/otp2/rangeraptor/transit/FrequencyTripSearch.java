@@ -0,0 +1,131 @@
+package com.conveyal.r5.otp2.rangeraptor.transit;
+
+import com.conveyal.r5.otp2.api.transit.TripPatternInfo;
+import com.conveyal.r5.otp2.api.transit.TripScheduleInfo;
+
+
+/**
+ * A trip search for patterns with frequency entries. The scheduled trips are searched by the delegate search, then
+ * each frequency entry is boarded (or alighted in a reverse search) and the best of all the trips found is returned.
+ * <p/>
+ * The vehicles of a frequency entry do not have a place in the list of trip schedules, so a trip found on a frequency
+ * entry is given the index one past the last trip schedule. When that index is passed back as the trip index limit,
+ * the trip last returned by this search is the one to improve upon. This is always the case because each worker uses
+ * a trip search for one pattern at a time.
+ * <p/>
+ * As in the original frequency search, the passenger may switch to a vehicle of a frequency entry even if already on
+ * board a vehicle of the same entry, if it departs earlier at a later stop (e.g. using half-headway boarding).
+ *
+ * @param <T> The TripSchedule type defined by the user of the range raptor API.
+ */
+public class FrequencyTripSearch<T extends TripScheduleInfo> implements TripScheduleSearch<T> {
+    private final TripScheduleSearch<T> scheduledTripSearch;
+    private TripPatternInfo<T> pattern;
+    private final TransitCalculator calculator;
+    private final boolean forward;
+    private int frequencyTripIndex;
+    private int nFrequencyEntries;
+
+    private int stopPositionInPattern;
+    private T candidateTrip;
+    private int candidateTripIndex;
+    private T lastFrequencyTrip;
+
+    FrequencyTripSearch(
+            TripScheduleSearch<T> scheduledTripSearch,
+            TripPatternInfo<T> pattern,
+            TransitCalculator calculator,
+            boolean forward
+    ) {
+        this.scheduledTripSearch = scheduledTripSearch;
+        this.pattern = pattern;
+        this.calculator = calculator;
+        this.forward = forward;
+        this.frequencyTripIndex = pattern.numberOfTripSchedules();
+        this.nFrequencyEntries = pattern.numberOfFrequencyEntries();
+    }
+
+    @Override
+    public void setPattern(TripPatternInfo<T> pattern) {
+        scheduledTripSearch.setPattern(pattern);
+        this.pattern = pattern;
+        this.frequencyTripIndex = pattern.numberOfTripSchedules();
+        this.nFrequencyEntries = pattern.numberOfFrequencyEntries();
+        this.candidateTrip = null;
+        this.candidateTripIndex = -1;
+        this.lastFrequencyTrip = null;
+    }
+
+    @Override
+    public T getCandidateTrip() {
+        return candidateTrip;
+    }
+
+    @Override
+    public int getCandidateTripIndex() {
+        return candidateTripIndex;
+    }
+
+    @Override
+    public int getCandidateTripTime() {
+        return tripTime(candidateTrip);
+    }
+
+    @Override
+    public boolean search(int timeLimit, int stopPositionInPattern) {
+        return search(timeLimit, stopPositionInPattern, -1);
+    }
+
+    @Override
+    public boolean search(int timeLimit, int stopPositionInPattern, int tripIndexLimit) {
+        this.stopPositionInPattern = stopPositionInPattern;
+        this.candidateTrip = null;
+        this.candidateTripIndex = -1;
+
+        // The trip the passenger is already on, if any. Any trip found must be better than this one.
+        T onTrip = null;
+        if (tripIndexLimit == frequencyTripIndex) {
+            onTrip = lastFrequencyTrip;
+        } else if (tripIndexLimit >= 0) {
+            onTrip = pattern.getTripSchedule(tripIndexLimit);
+        }
+
+        // The scheduled trip search only knows about the scheduled trips, so it must be unbounded if the passenger
+        // is on a frequency trip.
+        boolean onFrequencyTrip = tripIndexLimit == frequencyTripIndex;
+        if (scheduledTripSearch.search(timeLimit, stopPositionInPattern, onFrequencyTrip ? -1 : tripIndexLimit)) {
+            T trip = scheduledTripSearch.getCandidateTrip();
+            if (!onFrequencyTrip || calculator.isBest(tripTime(trip), tripTime(onTrip))) {
+                candidateTrip = trip;
+                candidateTripIndex = scheduledTripSearch.getCandidateTripIndex();
+            }
+        }
+
+        for (int entry = 0; entry < nFrequencyEntries; entry++) {
+            T trip = forward
+                    ? pattern.frequencyTripDepartingAfter(entry, stopPositionInPattern, timeLimit)
+                    : pattern.frequencyTripArrivingBefore(entry, stopPositionInPattern, timeLimit);
+
+            if (trip == null) {
+                continue;
+            }
+            int time = tripTime(trip);
+
+            if ((candidateTrip == null || calculator.isBest(time, tripTime(candidateTrip))) &&
+                    (onTrip == null || calculator.isBest(time, tripTime(onTrip)))) {
+                candidateTrip = trip;
+                candidateTripIndex = frequencyTripIndex;
+            }
+        }
+
+        if (candidateTripIndex == frequencyTripIndex) {
+            lastFrequencyTrip = candidateTrip;
+        }
+        return candidateTrip != null;
+    }
+
+    /** The board time in a forward search, or the alight time in a reverse search. */
+    private int tripTime(T trip) {
+        return forward ? trip.departure(stopPositionInPattern) : trip.arrival(stopPositionInPattern);
+    }
+}
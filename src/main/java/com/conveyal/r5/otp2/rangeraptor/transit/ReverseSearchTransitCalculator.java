@@ -158,7 +158,11 @@ final class ReverseSearchTransitCalculator implements TransitCalculator {
             TripPatternInfo<T> pattern,
             Function<T, Boolean> skipTripScheduleCallback
     ) {
-        return new TripScheduleAlightSearch<>(tripSearchBinarySearchThreshold, pattern, skipTripScheduleCallback);
+        TripScheduleSearch<T> search = new TripScheduleAlightSearch<>(tripSearchBinarySearchThreshold, pattern, skipTripScheduleCallback);
+        if (pattern.numberOfFrequencyEntries() > 0) {
+            return new FrequencyTripSearch<>(search, pattern, this, false);
+        }
+        return search;
     }
 
     @Override
@@ -6,6 +6,7 @@ import com.conveyal.r5.otp2.api.request.McCostParams;
 import com.conveyal.r5.otp2.api.request.RangeRaptorProfile;
 import com.conveyal.r5.otp2.api.request.RangeRaptorRequest;
 import com.conveyal.r5.otp2.api.request.SearchParams;
+import com.conveyal.r5.otp2.api.request.SearchTimeoutException;
 import com.conveyal.r5.otp2.api.request.TuningParameters;
 import com.conveyal.r5.otp2.api.transit.TransferLeg;
 import com.conveyal.r5.otp2.api.transit.TransitDataProvider;
@@ -65,6 +66,11 @@ public class SearchContext<T extends TripScheduleInfo> {
         this.stopFilter = request.searchParams().stopFilter() != null
                 ? new StopFilterBitSet(request.searchParams().stopFilter())
                 : (s -> true);
+
+        final long deadline = request.searchParams().searchDeadline();
+        if (deadline > 0) {
+            lifeCycle().onPrepareForNextRound(() -> abortIfDeadlineHasPassed(deadline));
+        }
     }
 
     public Collection<TransferLeg> accessLegs() {
@@ -136,6 +142,12 @@ public class SearchContext<T extends TripScheduleInfo> {
         return stopFilter;
     }
 
+    private static void abortIfDeadlineHasPassed(long deadline) {
+        if (System.currentTimeMillis() > deadline) {
+            throw new SearchTimeoutException("The search did not complete before the deadline of the request.");
+        }
+    }
+
     /**
      * Create a new calculator depending on the desired search direction.
      */
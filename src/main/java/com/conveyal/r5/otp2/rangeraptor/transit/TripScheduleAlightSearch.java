@@ -23,8 +23,8 @@ import java.util.function.Function;
  */
 public class TripScheduleAlightSearch<T extends TripScheduleInfo> implements TripScheduleSearch<T> {
     private final int nTripsBinarySearchThreshold;
-    private final TripPatternInfo<T> pattern;
-    private final int nTrips;
+    private TripPatternInfo<T> pattern;
+    private int nTrips;
     private final Function<T, Boolean> skipTripScheduleCallback;
 
     private int latestAlightTime;
@@ -44,6 +44,14 @@ public class TripScheduleAlightSearch<T extends TripScheduleInfo> implements Tri
         this.skipTripScheduleCallback = skipTripScheduleCallback;
     }
 
+    @Override
+    public void setPattern(TripPatternInfo<T> pattern) {
+        this.pattern = pattern;
+        this.nTrips = pattern.numberOfTripSchedules();
+        this.candidateTrip = null;
+        this.candidateTripIndex = -1;
+    }
+
     @Override
     public T getCandidateTrip() {
         return candidateTrip;
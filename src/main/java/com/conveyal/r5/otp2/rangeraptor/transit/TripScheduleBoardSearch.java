@@ -23,8 +23,8 @@ public class TripScheduleBoardSearch<T extends TripScheduleInfo> implements Trip
     private static final int NOT_SET = -1;
 
     private final int nTripsBinarySearchThreshold;
-    private final TripPatternInfo<T> pattern;
-    private final int nTrips;
+    private TripPatternInfo<T> pattern;
+    private int nTrips;
     private final Function<T, Boolean> skipTripScheduleCallback;
 
     private int earliestBoardTime;
@@ -43,6 +43,14 @@ public class TripScheduleBoardSearch<T extends TripScheduleInfo> implements Trip
         this.skipTripScheduleCallback = skipTripScheduleCallback;
     }
 
+    @Override
+    public void setPattern(TripPatternInfo<T> pattern) {
+        this.pattern = pattern;
+        this.nTrips = pattern.numberOfTripSchedules();
+        this.candidateTrip = null;
+        this.candidateTripIndex = NOT_SET;
+    }
+
     @Override
     public T getCandidateTrip() {
         return candidateTrip;
@@ -1,5 +1,6 @@
 package com.conveyal.r5.otp2.rangeraptor.transit;
 
+import com.conveyal.r5.otp2.api.transit.TripPatternInfo;
 import com.conveyal.r5.otp2.api.transit.TripScheduleInfo;
 
 
@@ -27,6 +28,11 @@ public class TripScheduleExactMatchSearch<T extends TripScheduleInfo> implements
         this.calculator = calculator;
     }
 
+    @Override
+    public void setPattern(TripPatternInfo<T> pattern) {
+        delegate.setPattern(pattern);
+    }
+
     @Override
     public boolean search(int timeLimit, int stopPositionInPattern) {
         boolean result = delegate.search(timeLimit, stopPositionInPattern);
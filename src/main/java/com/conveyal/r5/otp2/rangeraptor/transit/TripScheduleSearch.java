@@ -1,5 +1,6 @@
 package com.conveyal.r5.otp2.rangeraptor.transit;
 
+import com.conveyal.r5.otp2.api.transit.TripPatternInfo;
 import com.conveyal.r5.otp2.api.transit.TripScheduleInfo;
 
 
@@ -22,6 +23,13 @@ import com.conveyal.r5.otp2.api.transit.TripScheduleInfo;
  * @param <T> The TripSchedule type defined by the user of the range raptor API.
  */
 public interface TripScheduleSearch<T extends TripScheduleInfo> {
+    /**
+     * Search the trips of the given pattern from now on, instead of those of the pattern the search was created
+     * for. This allows a worker to reuse one search for every pattern it explores. The trip found on the previous
+     * pattern is forgotten, so its index must not be passed as {@code tripIndexLimit} when searching the new one.
+     */
+    void setPattern(TripPatternInfo<T> pattern);
+
     /**
      * Find the best trip matching the given {@code timeLimit}.
      * This is the same as calling {@link #search(int, int, int)} with {@code tripIndexLimit: -1}.
@@ -0,0 +1,162 @@
+package com.conveyal.r5.otp2.service;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Run the parts of a search that can be done in parallel (e.g. the forward and reverse heuristic searches) on a
+ * work-stealing pool shared by all concurrent requests.
+ * <p/>
+ * The number of threads in the pool is fixed, so the total number of threads doing search work is bounded by the
+ * number of request threads plus the pool size, independent of the load. The calling thread always does part of
+ * the work itself, and it never waits for a task that has not started yet: when it has finished its own part it
+ * takes back any task still waiting in the queue and runs it. So when the pool is busy with other requests, a search
+ * degrades to running sequentially in the request thread instead of queuing up behind them. Tasks are not even
+ * offered to the pool when more tasks than there are pool threads are already waiting.
+ * <p/>
+ * This class should have APPLICATION scope.
+ */
+public class SearchTaskScheduler {
+    private final ForkJoinPool pool;
+    private final int maxQueuedTasks;
+
+    /**
+     * The number of tasks offered to the pool that neither a pool thread nor the calling thread has taken yet. Tasks
+     * taken back by the calling thread stay in the pool queue until a pool thread skips them, so the queue size of the
+     * pool over-reports the waiting work.
+     */
+    private final AtomicInteger waitingTasks = new AtomicInteger();
+
+    /**
+     * @param poolSize the number of threads shared by all searches. If 0, no threads are created and all tasks run
+     *                 in the calling thread.
+     */
+    public SearchTaskScheduler(int poolSize) {
+        this.pool = poolSize > 0 ? new ForkJoinPool(poolSize) : null;
+        this.maxQueuedTasks = poolSize;
+    }
+
+    public boolean isMultiThreaded() {
+        return pool != null;
+    }
+
+    /**
+     * Run all the given tasks and return when all of them are complete. The first task is run in the calling
+     * thread, the others are run by the pool if a thread is available before the calling thread gets to them.
+     * If a task fails, the tasks not yet started are skipped, and the first failure is rethrown when the tasks
+     * already running are complete.
+     */
+    public void runAll(Runnable... tasks) {
+        if (pool == null || tasks.length < 2) {
+            for (Runnable task : tasks) {
+                task.run();
+            }
+            return;
+        }
+        SearchTask[] forkedTasks = new SearchTask[tasks.length - 1];
+        for (int i = 0; i < forkedTasks.length; ++i) {
+            forkedTasks[i] = new SearchTask(tasks[i + 1]);
+            if (waitingTasks.incrementAndGet() <= maxQueuedTasks) {
+                forkedTasks[i].waitingTasks = waitingTasks;
+                pool.execute(forkedTasks[i]);
+            } else {
+                waitingTasks.decrementAndGet();
+            }
+        }
+
+        Throwable failure = null;
+        try {
+            tasks[0].run();
+        } catch (RuntimeException | Error e) {
+            failure = e;
+        }
+        for (SearchTask task : forkedTasks) {
+            if (task.claim()) {
+                if (failure == null) {
+                    failure = task.execute();
+                }
+            } else {
+                Throwable taskFailure = task.awaitCompletion();
+                if (failure == null) {
+                    failure = taskFailure;
+                }
+            }
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+    }
+
+    /** The number of tasks offered to the pool and not yet started, for testing. */
+    int getWaitingTaskCount() {
+        return waitingTasks.get();
+    }
+
+    public void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * A task which is run at most once, either by a pool thread or by the thread which created it, whichever
+     * claims it first.
+     */
+    private static final class SearchTask implements Runnable {
+        private final Runnable body;
+        private final AtomicBoolean claimed = new AtomicBoolean(false);
+        private final CountDownLatch completed = new CountDownLatch(1);
+        private volatile Throwable failure;
+
+        /** If the task was offered to the pool, the count of waiting tasks to decrement when the task is claimed. */
+        private AtomicInteger waitingTasks;
+
+        SearchTask(Runnable body) {
+            this.body = body;
+        }
+
+        /** Called by the pool. Does nothing if the task was taken back by the thread that submitted it. */
+        @Override
+        public void run() {
+            if (claim()) {
+                execute();
+            }
+        }
+
+        boolean claim() {
+            if (!claimed.compareAndSet(false, true)) {
+                return false;
+            }
+            if (waitingTasks != null) {
+                waitingTasks.decrementAndGet();
+            }
+            return true;
+        }
+
+        Throwable execute() {
+            try {
+                body.run();
+            } catch (RuntimeException | Error e) {
+                failure = e;
+            } finally {
+                completed.countDown();
+            }
+            return failure;
+        }
+
+        Throwable awaitCompletion() {
+            try {
+                completed.await();
+                return failure;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return new IllegalStateException("Interrupted while waiting for a search task.", e);
+            }
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package com.conveyal.r5.otp2.speed_test;
 
 import com.conveyal.r5.kryo.KryoNetworkSerializer;
+import com.conveyal.r5.profile.FastRaptorWorker.FrequencyBoardingMode;
+import com.conveyal.r5.profile.FrequencyRandomOffsets;
 import com.conveyal.r5.profile.ProfileRequest;
 import com.conveyal.r5.otp2.RangeRaptorService;
 import com.conveyal.r5.otp2.api.path.Path;
@@ -288,12 +290,24 @@ public class SpeedTest {
         return TripPlanSupport.createTripPlanForRequest(request, itineraries);
     }
 
+    /**
+     * Create the transit data for one search. With Monte Carlo frequency boarding each search uses a new draw of the
+     * frequency offsets.
+     */
     private TransitLayerRRDataProvider transitData(ProfileRequest request) {
+        FrequencyBoardingMode frequencyBoardingMode = ((SpeedTestCmdLineOpts) opts).frequencyBoardingMode();
+        FrequencyRandomOffsets frequencyOffsets = null;
+        if (frequencyBoardingMode == FrequencyBoardingMode.MONTE_CARLO) {
+            frequencyOffsets = new FrequencyRandomOffsets(transportNetwork.transitLayer);
+            frequencyOffsets.randomize();
+        }
         return new TransitLayerRRDataProvider(
                 transportNetwork.transitLayer,
                 request.date,
                 request.transitModes,
-                request.walkSpeed
+                request.walkSpeed,
+                frequencyBoardingMode,
+                frequencyOffsets
         );
     }
 
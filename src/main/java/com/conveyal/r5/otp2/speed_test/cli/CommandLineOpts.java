@@ -29,6 +29,7 @@ public class CommandLineOpts {
     static final String TEST_CASES = "c";
     static final String NUM_OF_ADD_TRANSFERS = "t";
     static final String COMPARE_HEURISTICS = "q";
+    static final String FREQUENCY_BOARDING = "f";
     static final String DEBUG = "D";
     static final String DEBUG_REQUEST = "R";
     static final String DEBUG_STOPS = "S";
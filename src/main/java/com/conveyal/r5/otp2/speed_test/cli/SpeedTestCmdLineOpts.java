@@ -1,6 +1,7 @@
 package com.conveyal.r5.otp2.speed_test.cli;
 
 import com.conveyal.r5.otp2.speed_test.SpeedTestProfile;
+import com.conveyal.r5.profile.FastRaptorWorker.FrequencyBoardingMode;
 import org.apache.commons.cli.Options;
 
 import java.util.List;
@@ -23,6 +24,7 @@ public class SpeedTestCmdLineOpts extends CommandLineOpts {
         options.addOption(COMPARE_HEURISTICS, "compare", false, "Compare heuristics for the listed profiles. Must be 2 profiles.");
         options.addOption(TEST_CASES, "testCases", true, "A coma separated list of test case numbers to run.");
         options.addOption(NUM_OF_ADD_TRANSFERS, "nExtraTransfers", true, "The maximum number of extra transfers allowed relative to the path with the fewest transfers.");
+        options.addOption(FREQUENCY_BOARDING, "frequencyBoarding", true, "How to board frequency-based trips: MONTE_CARLO, HALF_HEADWAY or UPPER_BOUND. Frequency-based trips are skipped if not set.");
         return options;
     }
 
@@ -51,6 +53,13 @@ public class SpeedTestCmdLineOpts extends CommandLineOpts {
         return cmd.hasOption(COMPARE_HEURISTICS);
     }
 
+    /** @return how to board frequency-based trips, or null to only use scheduled trips. */
+    public FrequencyBoardingMode frequencyBoardingMode() {
+        return cmd.hasOption(FREQUENCY_BOARDING)
+                ? FrequencyBoardingMode.valueOf(cmd.getOptionValue(FREQUENCY_BOARDING))
+                : null;
+    }
+
     public List<String> testCases() {
         return parseCSVList(TEST_CASES);
     }
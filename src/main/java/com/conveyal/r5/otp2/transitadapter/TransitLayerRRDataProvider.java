@@ -6,9 +6,12 @@ import com.conveyal.r5.otp2.api.transit.TransferLeg;
 import com.conveyal.r5.otp2.api.transit.TransitDataProvider;
 import com.conveyal.r5.otp2.api.transit.TripPatternInfo;
 import com.conveyal.r5.otp2.util.AvgTimer;
+import com.conveyal.r5.profile.FastRaptorWorker.FrequencyBoardingMode;
+import com.conveyal.r5.profile.FrequencyRandomOffsets;
 import com.conveyal.r5.transit.RouteInfo;
 import com.conveyal.r5.transit.TransitLayer;
 import com.conveyal.r5.transit.TripPattern;
+import com.conveyal.r5.transit.TripSchedule;
 import gnu.trove.list.TIntList;
 import gnu.trove.list.array.TIntArrayList;
 import org.slf4j.Logger;
@@ -21,7 +24,12 @@ import java.util.BitSet;
 import java.util.EnumSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.stream.IntStream;
+
+import static com.conveyal.r5.profile.FastRaptorWorker.FrequencyBoardingMode.MONTE_CARLO;
+import static com.conveyal.r5.profile.FastRaptorWorker.FrequencyBoardingMode.UPPER_BOUND;
+import static com.conveyal.r5.profile.FastRaptorWorker.getAverageCaseFrequencyDepartureTime;
+import static com.conveyal.r5.profile.FastRaptorWorker.getRandomFrequencyDepartureTime;
+import static com.conveyal.r5.profile.FastRaptorWorker.getWorstCaseFrequencyDepartureTime;
 
 public class TransitLayerRRDataProvider implements TransitDataProvider<TripScheduleAdapter> {
 
@@ -32,11 +40,17 @@ public class TransitLayerRRDataProvider implements TransitDataProvider<TripSched
 
     private TransitLayer transitLayer;
 
-    /** Array mapping from original pattern indices to the filtered scheduled indices */
-    private int[] scheduledIndexForOriginalPatternIndex;
+    /**
+     * Trip patterns running on a given day, with only their trips in service on that day. Since trips not in service
+     * are already removed, there is no need to implement isTripScheduleInService.
+     */
+    private TPInfo[] runningPatterns;
+
+    /** For each stop, the indexes in runningPatterns of the patterns passing through that stop. */
+    private int[][] runningPatternsForStop;
 
-    /** Schedule-based trip patterns running on a given day */
-    private TripPattern[] runningScheduledPatterns;
+    /** One reusable pattern iterator per thread, as the workers of one search may run in parallel. */
+    private final ThreadLocal<PatternCursor> patternCursor = ThreadLocal.withInitial(PatternCursor::new);
 
     /** Services active on the date of the search */
     private final BitSet servicesActive;
@@ -44,6 +58,12 @@ public class TransitLayerRRDataProvider implements TransitDataProvider<TripSched
     /** Allowed transit modes */
     private final EnumSet<TransitModes> transitModes;
 
+    /** How to board frequency-based trips, or null to only use scheduled trips. */
+    private final FrequencyBoardingMode frequencyBoardingMode;
+
+    /** The randomized offsets of the frequency entries, only used in MONTE_CARLO mode. */
+    private final FrequencyRandomOffsets frequencyOffsets;
+
     private final List<LightweightTransferIterator> transfers;
 
     private static final Iterator<TransferLeg> EMPTY_TRANSFER_ITERATOR = new Iterator<TransferLeg>() {
@@ -52,10 +72,35 @@ public class TransitLayerRRDataProvider implements TransitDataProvider<TripSched
     };
 
     public TransitLayerRRDataProvider(TransitLayer transitLayer, LocalDate date, EnumSet<TransitModes> transitModes, float walkSpeedMetersPerSecond) {
+        this(transitLayer, date, transitModes, walkSpeedMetersPerSecond, null, null);
+    }
+
+    /**
+     * Create a provider which also supports frequency-based trips. In MONTE_CARLO mode the vehicles of each frequency
+     * entry depart at fixed times using the offsets current when the provider is set up, so a new provider must be
+     * created for each randomization of the offsets. In the other modes the frequency entries are boarded with a
+     * deterministic wait.
+     *
+     * @param frequencyBoardingMode how to board frequency-based trips, or null to skip them.
+     * @param frequencyOffsets randomized offsets, required in MONTE_CARLO mode and ignored otherwise.
+     */
+    public TransitLayerRRDataProvider(
+            TransitLayer transitLayer,
+            LocalDate date,
+            EnumSet<TransitModes> transitModes,
+            float walkSpeedMetersPerSecond,
+            FrequencyBoardingMode frequencyBoardingMode,
+            FrequencyRandomOffsets frequencyOffsets
+    ) {
+        if (frequencyBoardingMode == MONTE_CARLO && frequencyOffsets == null) {
+            throw new IllegalArgumentException("Frequency offsets are required for Monte Carlo boarding.");
+        }
         TIMER_INIT_STOP_TIMES.start();
         this.transitLayer = transitLayer;
         this.servicesActive  = transitLayer.getActiveServicesForDate(date);
         this.transitModes = transitModes;
+        this.frequencyBoardingMode = frequencyBoardingMode;
+        this.frequencyOffsets = frequencyOffsets;
         int walkSpeedMillimetersPerSecond = (int) (walkSpeedMetersPerSecond * 1000f);
         this.transfers = createTransfers(transitLayer.transfersForStop, walkSpeedMillimetersPerSecond);
         TIMER_INIT_STOP_TIMES.stop();
@@ -94,90 +139,130 @@ public class TransitLayerRRDataProvider implements TransitDataProvider<TripSched
         return new LightweightTransferIterator(stopTimes);
     }
 
-    @Override
-    public boolean isTripScheduleInService(TripScheduleAdapter trip) {
-        return trip.isScheduledService() && servicesActive.get(trip.serviceCode());
-    }
-
     @Override
     public int numberOfStops() {
         return transitLayer.getStopCount();
     }
 
-    /** Prefilter the patterns to only ones that are running */
-    public void setup() {
-        TIntList scheduledPatterns = new TIntArrayList();
-        scheduledIndexForOriginalPatternIndex = new int[transitLayer.tripPatterns.size()];
-        Arrays.fill(scheduledIndexForOriginalPatternIndex, -1);
+    /**
+     * Prefilter the patterns to only ones that are running, and the trips on each pattern to only the trips running
+     * on the date of the search. This is called by every worker using this provider, possibly in parallel
+     * threads, but only the first call does any work.
+     */
+    public synchronized void setup() {
+        if (runningPatterns != null) return;
+
+        int[] filteredIndexForOriginalPatternIndex = new int[transitLayer.tripPatterns.size()];
+        Arrays.fill(filteredIndexForOriginalPatternIndex, -1);
+        List<TPInfo> patterns = new ArrayList<>();
 
         int patternIndex = -1; // first increment lands at 0
-        int scheduledIndex = 0;
 
         for (TripPattern pattern : transitLayer.tripPatterns) {
             patternIndex++;
             RouteInfo routeInfo = transitLayer.routes.get(pattern.routeIndex);
             TransitModes mode = TransitLayer.getTransitModes(routeInfo.route_type);
-            if (pattern.servicesActive.intersects(servicesActive) && transitModes.contains(mode)) {
+            boolean usePattern = pattern.hasSchedules || (frequencyBoardingMode != null && pattern.hasFrequencies);
+            if (usePattern && pattern.servicesActive.intersects(servicesActive) && transitModes.contains(mode)) {
                 // at least one trip on this pattern is relevant, based on the profile request's date and modes
-                if (pattern.hasSchedules) { // NB not else b/c we still support combined frequency and schedule patterns.
-                    scheduledPatterns.add(patternIndex);
-                    scheduledIndexForOriginalPatternIndex[patternIndex] = scheduledIndex++;
+                TPInfo info = createPatternInfo(patternIndex, pattern);
+                if (info.numberOfTripSchedules() > 0 || info.numberOfFrequencyEntries() > 0) {
+                    filteredIndexForOriginalPatternIndex[patternIndex] = patterns.size();
+                    patterns.add(info);
                 }
             }
         }
 
-        // Map from internal, filtered pattern indices back to original pattern indices for scheduled patterns
-        int[] originalPatternIndexForScheduledIndex = scheduledPatterns.toArray();
-
-        runningScheduledPatterns = IntStream.of(originalPatternIndexForScheduledIndex)
-                .mapToObj(transitLayer.tripPatterns::get).toArray(TripPattern[]::new);
+        // Map each stop to the filtered indexes of the running patterns passing through it.
+        int[][] patternsForStop = new int[transitLayer.patternsForStop.size()][];
+        TIntList filteredPatterns = new TIntArrayList();
+        for (int stop = 0; stop < patternsForStop.length; stop++) {
+            filteredPatterns.clear();
+            TIntList originalPatterns = transitLayer.patternsForStop.get(stop);
+            for (int i = 0; i < originalPatterns.size(); i++) {
+                int filteredPattern = filteredIndexForOriginalPatternIndex[originalPatterns.get(i)];
+                if (filteredPattern >= 0) filteredPatterns.add(filteredPattern);
+            }
+            patternsForStop[stop] = filteredPatterns.toArray();
+        }
 
         if (PRINT_REFILTERING_PATTERNS_INFO) {
             LOG.info("Prefiltering patterns based on date active reduced {} patterns to {} scheduled patterns",
-                    transitLayer.tripPatterns.size(), scheduledPatterns.size());
+                    transitLayer.tripPatterns.size(), patterns.size());
             PRINT_REFILTERING_PATTERNS_INFO = false;
         }
 
-    }
-
-    @Override public Iterator<TripPatternInfo<TripScheduleAdapter>> patternIterator(IntIterator stops) {
-        return new InternalPatternIterator(getPatternsTouchedForStops(stops));
+        this.runningPatternsForStop = patternsForStop;
+        this.runningPatterns = patterns.toArray(new TPInfo[0]);
     }
 
     /**
-     * Get a list of the internal IDs of the patterns "touched" using the given list of stop indexes.
-     * "touched" means they were reached in the last round, and the index maps from the original pattern
-     * index to the local index of the filtered patterns.
+     * Collect the trips of the given pattern running on the date of the search. NB we still support combined
+     * frequency and schedule patterns.
      */
-    private BitSet getPatternsTouchedForStops(IntIterator stops) {
-        BitSet patternsTouched = new BitSet();
-
-        while (stops.hasNext()) {
-            getPatternsForStop(stops.next()).forEach(originalPattern -> {
-                int filteredPattern = scheduledIndexForOriginalPatternIndex[originalPattern];
-
-                if (filteredPattern < 0) {
-                    return true; // this pattern does not exist in the local subset of patterns, continue iteration
+    private TPInfo createPatternInfo(int patternIndex, TripPattern pattern) {
+        List<TripScheduleAdapter> trips = new ArrayList<>();
+        List<TripSchedule> frequencyTrips = new ArrayList<>();
+        TIntList frequencyEntries = new TIntArrayList();
+        TIntList offsets = new TIntArrayList();
+
+        for (int tripScheduleIndex = 0; tripScheduleIndex < pattern.tripSchedules.size(); tripScheduleIndex++) {
+            TripSchedule schedule = pattern.tripSchedules.get(tripScheduleIndex);
+            if (!servicesActive.get(schedule.serviceCode)) continue;
+
+            if (schedule.headwaySeconds == null) {
+                trips.add(new TripScheduleAdapter(pattern, schedule));
+            } else if (frequencyBoardingMode != null) {
+                // The vehicles of a frequency entry are not merged into the scheduled trips even when their departure
+                // times are fixed by the Monte Carlo offsets, as the trips would not be in the same order at every
+                // stop if they overtake one another. Each entry is boarded separately by the frequency trip search.
+                for (int entry = 0; entry < schedule.headwaySeconds.length; entry++) {
+                    frequencyTrips.add(schedule);
+                    frequencyEntries.add(entry);
+                    if (frequencyBoardingMode == MONTE_CARLO) {
+                        // Copy the offset, as the offsets may be randomized again for another provider.
+                        offsets.add(frequencyOffsets.offsets.get(patternIndex)[tripScheduleIndex][entry]);
+                    }
                 }
-
-                patternsTouched.set(filteredPattern);
-                return true; // continue iteration
-            });
+            }
         }
-        return patternsTouched;
+        return new TPInfo(
+                pattern,
+                trips.toArray(new TripScheduleAdapter[0]),
+                frequencyTrips.toArray(new TripSchedule[0]),
+                frequencyEntries.toArray(),
+                offsets.toArray(),
+                frequencyBoardingMode
+        );
     }
 
-    private TIntList getPatternsForStop(int stop) {
-        return transitLayer.patternsForStop.get(stop);
+    /**
+     * Return the patterns touched by the given stops. Each thread gets one iterator which is reset and returned on
+     * every call, so the caller must be done with the previous iterator before asking for a new one. The workers do
+     * exactly that, asking for one iterator per round.
+     */
+    @Override public Iterator<TripPatternInfo<TripScheduleAdapter>> patternIterator(IntIterator stops) {
+        PatternCursor cursor = patternCursor.get();
+        cursor.reset(stops);
+        return cursor;
     }
 
-    class InternalPatternIterator implements Iterator<TripPatternInfo<TripScheduleAdapter>> {
+    /**
+     * Iterates over the running patterns "touched" by a set of stops, i.e. the stops reached in the last round.
+     * The patterns are returned in order of their filtered index, each pattern only once.
+     */
+    private class PatternCursor implements Iterator<TripPatternInfo<TripScheduleAdapter>> {
+        private final BitSet patternsTouched = new BitSet(runningPatterns.length);
         private int nextPatternIndex;
-        private BitSet patternsTouched;
 
-        InternalPatternIterator(BitSet patternsTouched) {
-            this.patternsTouched = patternsTouched;
-            this.nextPatternIndex = patternsTouched.isEmpty() ? -1 : 0;
+        void reset(IntIterator stops) {
+            patternsTouched.clear();
+            while (stops.hasNext()) {
+                for (int filteredPattern : runningPatternsForStop[stops.next()]) {
+                    patternsTouched.set(filteredPattern);
+                }
+            }
+            nextPatternIndex = patternsTouched.nextSetBit(0);
         }
 
         /*  PatternIterator interface implementation */
@@ -187,37 +272,133 @@ public class TransitLayerRRDataProvider implements TransitDataProvider<TripSched
         }
 
         @Override public TripPatternInfo<TripScheduleAdapter> next() {
-            TPInfo res = new TPInfo(runningScheduledPatterns[nextPatternIndex]);
+            TPInfo res = runningPatterns[nextPatternIndex];
             nextPatternIndex = patternsTouched.nextSetBit(nextPatternIndex + 1);
             return res;
         }
     }
 
+    /**
+     * A running pattern with only the trips in service on the date of the search. These are created once in setup()
+     * and are immutable, so the same instance is returned every time a pattern is touched, and the trip schedules can
+     * be retained in paths. Only boarding a frequency entry creates a new trip schedule, as its times depend on when
+     * the passenger reaches the stop.
+     */
     private static class TPInfo implements TripPatternInfo<TripScheduleAdapter> {
         private final TripPattern pattern;
-
-        TPInfo(TripPattern pattern) {
+        private final int[] stops;
+        private final TripScheduleAdapter[] trips;
+
+        /** The trip and frequency entry index within that trip of each frequency entry boarded during the search. */
+        private final TripSchedule[] frequencyTrips;
+        private final int[] frequencyEntries;
+
+        /** The offset of the first vehicle of each frequency entry in MONTE_CARLO mode, otherwise empty. */
+        private final int[] frequencyOffsets;
+        private final FrequencyBoardingMode frequencyBoardingMode;
+
+        TPInfo(
+                TripPattern pattern,
+                TripScheduleAdapter[] trips,
+                TripSchedule[] frequencyTrips,
+                int[] frequencyEntries,
+                int[] frequencyOffsets,
+                FrequencyBoardingMode frequencyBoardingMode
+        ) {
             this.pattern = pattern;
+            this.stops = pattern.stops;
+            this.trips = trips;
+            this.frequencyTrips = frequencyTrips;
+            this.frequencyEntries = frequencyEntries;
+            this.frequencyOffsets = frequencyOffsets;
+            this.frequencyBoardingMode = frequencyBoardingMode;
         }
 
         @Override
         public int stopIndex(int stopPositionInPattern) {
-            return pattern.stops[stopPositionInPattern];
+            return stops[stopPositionInPattern];
         }
 
         @Override
         public int numberOfStopsInPattern() {
-            return pattern.stops.length;
+            return stops.length;
         }
 
         @Override
         public TripScheduleAdapter getTripSchedule(int index) {
-            return new TripScheduleAdapter(pattern, pattern.tripSchedules.get(index));
+            return trips[index];
         }
 
         @Override
         public int numberOfTripSchedules() {
-            return pattern.tripSchedules.size();
+            return trips.length;
+        }
+
+        @Override
+        public int numberOfFrequencyEntries() {
+            return frequencyTrips.length;
+        }
+
+        @Override
+        public TripScheduleAdapter frequencyTripDepartingAfter(int frequencyEntry, int stopPositionInPattern, int earliestBoardTime) {
+            TripSchedule schedule = frequencyTrips[frequencyEntry];
+            int entry = frequencyEntries[frequencyEntry];
+            int boardTime;
+            if (frequencyBoardingMode == MONTE_CARLO) {
+                int offset = frequencyOffsets[frequencyEntry];
+                boardTime = getRandomFrequencyDepartureTime(
+                        schedule, stopPositionInPattern, offset, entry, earliestBoardTime
+                );
+            } else if (frequencyBoardingMode == UPPER_BOUND) {
+                boardTime = getWorstCaseFrequencyDepartureTime(schedule, stopPositionInPattern, entry, earliestBoardTime);
+            } else {
+                boardTime = getAverageCaseFrequencyDepartureTime(schedule, stopPositionInPattern, entry, earliestBoardTime);
+            }
+            if (boardTime < 0) {
+                return null;
+            }
+            return new TripScheduleAdapter(pattern, schedule, boardTime - schedule.departures[stopPositionInPattern]);
+        }
+
+        /**
+         * The mirror image of the departure time calculations in FastRaptorWorker, used by the reverse search: find
+         * the time of alighting at the given stop, no later than the given time.
+         */
+        @Override
+        public TripScheduleAdapter frequencyTripArrivingBefore(int frequencyEntry, int stopPositionInPattern, int latestAlightTime) {
+            TripSchedule schedule = frequencyTrips[frequencyEntry];
+            int entry = frequencyEntries[frequencyEntry];
+            int headway = schedule.headwaySeconds[entry];
+            int travelTimeFromStartOfTrip = schedule.arrivals[stopPositionInPattern];
+            int alightTime;
+
+            if (frequencyBoardingMode == MONTE_CARLO) {
+                // The vehicles leave the terminal one headway apart, starting at the offset and no later than the end.
+                int firstDeparture = schedule.startTimes[entry] + frequencyOffsets[frequencyEntry];
+                int firstAlightTime = firstDeparture + travelTimeFromStartOfTrip;
+                if (firstAlightTime > latestAlightTime || firstDeparture > schedule.endTimes[entry]) return null;
+                int numberOfTripsThisEntry = (schedule.endTimes[entry] - firstDeparture) / headway + 1;
+                // the latest vehicle arriving at this stop at or before the given time
+                int latestFeasibleTripIndex = Math.min(
+                        (latestAlightTime - firstAlightTime) / headway,
+                        numberOfTripsThisEntry - 1
+                );
+                alightTime = firstAlightTime + latestFeasibleTripIndex * headway;
+            } else if (frequencyBoardingMode == UPPER_BOUND) {
+                // The first vehicle could leave the terminal as late as one headway after the start of the entry.
+                int latestStartTimeOfFrequencyEntry = schedule.startTimes[entry] + headway + travelTimeFromStartOfTrip;
+                if (latestStartTimeOfFrequencyEntry > latestAlightTime) return null;
+                // alight pessimistically assuming the entry is still running
+                int earliestAlightTimeAssumingEntryIsStillRunning = latestAlightTime - headway;
+                int earliestAlightTimeOfLastTrip = schedule.endTimes[entry] - headway + travelTimeFromStartOfTrip;
+                alightTime = Math.min(earliestAlightTimeAssumingEntryIsStillRunning, earliestAlightTimeOfLastTrip);
+            } else {
+                int frequencyStartsAtThisStop = schedule.startTimes[entry] + travelTimeFromStartOfTrip;
+                if (frequencyStartsAtThisStop > latestAlightTime) return null;
+                int frequencyEndsAtThisStop = schedule.endTimes[entry] + travelTimeFromStartOfTrip;
+                alightTime = Math.min(latestAlightTime, frequencyEndsAtThisStop) - headway / 2;
+            }
+            return new TripScheduleAdapter(pattern, schedule, alightTime - travelTimeFromStartOfTrip);
         }
     }
 }
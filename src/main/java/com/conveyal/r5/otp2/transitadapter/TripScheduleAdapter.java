@@ -8,23 +8,30 @@ public class TripScheduleAdapter implements TripScheduleInfo {
     private final TripPattern tripPattern;
     private final TripSchedule schedule;
 
+    /**
+     * Added to the times of the schedule. This is zero for scheduled trips, and the departure time from the first
+     * stop of one vehicle of a frequency entry, whose schedule times are relative to the start of the trip.
+     */
+    private final int timeShift;
+
     TripScheduleAdapter(TripPattern tripPattern, TripSchedule schedule) {
-        this.tripPattern = tripPattern;
-        this.schedule = schedule;
+        this(tripPattern, schedule, 0);
     }
 
-    int serviceCode() {
-        return schedule.serviceCode;
+    TripScheduleAdapter(TripPattern tripPattern, TripSchedule schedule, int timeShift) {
+        this.tripPattern = tripPattern;
+        this.schedule = schedule;
+        this.timeShift = timeShift;
     }
 
     @Override
     public int arrival(int stopPosInPattern) {
-        return schedule.arrivals[stopPosInPattern];
+        return schedule.arrivals[stopPosInPattern] + timeShift;
     }
 
     @Override
     public int departure(int stopPosInPattern) {
-        return schedule.departures[stopPosInPattern];
+        return schedule.departures[stopPosInPattern] + timeShift;
     }
 
     @Override
@@ -40,8 +47,4 @@ public class TripScheduleAdapter implements TripScheduleInfo {
         return schedule;
     }
 
-    boolean isScheduledService() {
-        return schedule.headwaySeconds == null;
-    }
-
 }
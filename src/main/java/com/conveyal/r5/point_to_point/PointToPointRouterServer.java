@@ -106,9 +106,8 @@ public class PointToPointRouterServer {
                 LOG.info("Loading transit networks from: {}", dir);
                 TransportNetwork transportNetwork = KryoNetworkSerializer.read(new File(dir, "network.dat"));
                 transportNetwork.readOSM(new File(dir, "osm.mapdb"));
-                transportNetwork.transitLayer.buildDistanceTables(null);
                 // Build WALK and CAR linked pointsets because they are needed for isochrones (which are enabled).
-                transportNetwork.rebuildLinkedGridPointSet(StreetMode.WALK, StreetMode.CAR);
+                transportNetwork.buildDistanceTablesAndLinkedGrid(StreetMode.WALK, StreetMode.CAR);
                 run(transportNetwork);
             } catch (Exception e) {
                 LOG.error("An error occurred during the reading or decoding of transit networks", e);
@@ -0,0 +1,430 @@
+package com.conveyal.r5.profile;
+
+import com.conveyal.r5.api.util.TransitModes;
+import com.conveyal.r5.transit.PickDropType;
+import com.conveyal.r5.transit.RouteInfo;
+import com.conveyal.r5.transit.TransitLayer;
+import com.conveyal.r5.transit.TripPattern;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TIntIntMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static com.conveyal.r5.profile.FastRaptorWorker.DEPARTURE_STEP_SEC;
+import static com.conveyal.r5.profile.FastRaptorWorker.MINIMUM_BOARD_WAIT_SEC;
+import static com.conveyal.r5.profile.FastRaptorWorker.SECONDS_PER_MINUTE;
+import static com.conveyal.r5.profile.FastRaptorWorker.UNREACHED;
+
+/**
+ * Performs the same range-RAPTOR search as FastRaptorWorker for several origins at once, on networks with only
+ * scheduled routes. The arrival times of all the origins at one stop are stored next to each other, at index
+ * (stop * nOrigins + origin), and each round scans every touched pattern and every transfer only once for the whole
+ * batch. Origins that are close together (e.g. neighboring cells of a regional analysis grid) reach almost the same
+ * stops, so most of the work of finding the patterns to explore, loading their stops and departure times, and
+ * looking up transfers is shared, and the per-origin work is a short loop over adjacent array elements.
+ *
+ * For each origin the travel times are exactly those that FastRaptorWorker.routeStopMajor would return for that
+ * origin alone. Paths are not retained and frequency-based routes are not supported: callers should route such
+ * networks one origin at a time with FastRaptorWorker, see canRoute(). Arrive-by searches (request.reverseSearch) are
+ * handled as in FastRaptorWorker, with each "origin" being a destination.
+ *
+ * Regional analysis workers take up to MAX_BATCH_SIZE queued tasks of the same job at once, which are usually
+ * neighboring origins, and route them together with this class, see TravelTimeComputer.computeTravelTimes(List,
+ * TransportNetwork).
+ *
+ * The state and results are held for the whole batch: for each origin, about 16 bytes per stop for each of the
+ * maxRides + 1 rounds, plus 4 bytes per stop and iteration for the travel times returned. The number of origins in a
+ * batch is therefore limited to MAX_BATCH_SIZE.
+ */
+public class BatchedRaptorWorker {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BatchedRaptorWorker.class);
+
+    /**
+     * The maximum number of origins routed at once. With 10000 stops, 8 rides and 120 iterations this is already
+     * about 200MB of state and results, and larger batches share little more work.
+     */
+    public static final int MAX_BATCH_SIZE = 32;
+
+    /** The width of the departure time window in minutes. */
+    public final int nMinutes;
+
+    /** The number of origins routed at once. */
+    public final int nOrigins;
+
+    /** The transit layer to route on. In an arrive-by search this is the reversed copy of the requested layer. */
+    private final TransitLayer transit;
+
+    /** The departure time window in the clock times of the transit layer being searched, see FastRaptorWorker. */
+    private final int fromTime;
+    private final int toTime;
+
+    /** Times to access each transit stop using the street network (seconds), for each origin. */
+    private final List<TIntIntMap> accessStops;
+
+    /** The routing parameters, which are the same for all the origins. */
+    private final ProfileRequest request;
+
+    /** Services active on the date of the search */
+    private final BitSet servicesActive;
+
+    /** Schedule-based trip patterns running on a given day */
+    private TripPattern[] runningScheduledPatterns;
+
+    /** Day-filtered departure times for the scheduled trips on each running scheduled pattern. */
+    private ScheduledDepartureIndex[] scheduledDepartureIndexes;
+
+    /** Map from internal, filtered pattern indices back to original pattern indices for scheduled patterns */
+    private int[] originalPatternIndexForScheduledIndex;
+
+    /** Array mapping from original pattern indices to the filtered scheduled indices */
+    private int[] scheduledIndexForOriginalPatternIndex;
+
+    /** The state at the end of each round, reused at each departure minute (the range-raptor optimization). */
+    private final BatchState[] states;
+
+    /** The number of iterations recorded for each departure minute, to match FastRaptorWorker's output. */
+    private final int iterationsPerMinute;
+
+    /** The total number of iterations this search will produce for each origin. */
+    private final int nIterations;
+
+    // The trip each origin is on while scanning one pattern, and the stop where it was boarded.
+    private final int[] onTrip;
+    private final int[] boardStop;
+
+    /**
+     * @param accessStopsPerOrigin for each origin, the times to access each transit stop using the street network.
+     */
+    public BatchedRaptorWorker (TransitLayer transitLayer, ProfileRequest request, List<TIntIntMap> accessStopsPerOrigin) {
+        if (!canRoute(transitLayer)) {
+            throw new IllegalArgumentException("Batched searches do not support frequency-based routes.");
+        }
+        if (accessStopsPerOrigin.size() > MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("Batched searches are limited to " + MAX_BATCH_SIZE + " origins.");
+        }
+        if (request.reverseSearch) {
+            this.transit = transitLayer.getReversedLayer();
+            this.fromTime = TransitLayer.REVERSED_LAYER_MIRROR_TIME - request.toTime + DEPARTURE_STEP_SEC;
+            this.toTime = TransitLayer.REVERSED_LAYER_MIRROR_TIME - request.fromTime + DEPARTURE_STEP_SEC;
+        } else {
+            this.transit = transitLayer;
+            this.fromTime = request.fromTime;
+            this.toTime = request.toTime;
+        }
+        this.request = request;
+        this.accessStops = accessStopsPerOrigin;
+        this.nOrigins = accessStopsPerOrigin.size();
+        this.servicesActive = transit.getActiveServicesForDate(request.date);
+        // we add one to request.maxRides, first state is result of initial walk
+        this.states = IntStream.range(0, request.maxRides + 1)
+                .mapToObj(i -> new BatchState(
+                        transit.getStopCount(),
+                        nOrigins,
+                        request.maxTripDurationMinutes * SECONDS_PER_MINUTE))
+                .toArray(BatchState[]::new);
+        nMinutes = request.getTimeWindowLengthMinutes();
+        // Zero Monte Carlo draws means half-headway, which yields one iteration per minute as in FastRaptorWorker.
+        iterationsPerMinute = Math.max(request.getMonteCarloDrawsPerMinute(), 1);
+        nIterations = iterationsPerMinute * nMinutes;
+        onTrip = new int[nOrigins];
+        boardStop = new int[nOrigins];
+    }
+
+    /** @return true if the given network can be routed by a batched search, i.e. it has no frequency-based routes. */
+    public static boolean canRoute (TransitLayer transitLayer) {
+        return !transitLayer.hasFrequencies;
+    }
+
+    /** @return the number of iterations produced by one search for each origin. */
+    public int getIterationCount () {
+        return nIterations;
+    }
+
+    /**
+     * Perform the range-RAPTOR search over all departure minutes for all the origins.
+     * @return for each origin, the travel times in stop-major order as returned by FastRaptorWorker.routeStopMajor:
+     *         the travel time to stop s at iteration i is at index s * getIterationCount() + i.
+     */
+    public int[][] routeStopMajor () {
+        long startClockTime = System.nanoTime();
+        prefilterPatterns();
+        int nStops = transit.getStopCount();
+        int[][] travelTimes = new int[nOrigins][nStops * nIterations];
+        int iteration = 0;
+
+        // The main outer loop iterates backward over all minutes in the departure times window.
+        for (int departureTime = toTime - DEPARTURE_STEP_SEC; departureTime >= fromTime;
+             departureTime -= DEPARTURE_STEP_SEC) {
+            advanceToPreviousMinute(departureTime);
+            for (int round = 1; round <= request.maxRides; round++) {
+                states[round].min(states[round - 1]);
+                doScheduledSearchForRound(states[round - 1], states[round]);
+                doTransfers(states[round]);
+            }
+            // As in FastRaptorWorker, the scheduled result is repeated once for each requested Monte Carlo draw.
+            int[] arrivalTimes = states[request.maxRides].bestNonTransferTimes;
+            for (int i = 0; i < iterationsPerMinute; i++, iteration++) {
+                for (int stop = 0, index = 0; stop < nStops; stop++) {
+                    int outputIndex = stop * nIterations + iteration;
+                    for (int origin = 0; origin < nOrigins; origin++, index++) {
+                        int arrivalTime = arrivalTimes[index];
+                        travelTimes[origin][outputIndex] = arrivalTime != UNREACHED ? arrivalTime - departureTime : arrivalTime;
+                    }
+                }
+            }
+        }
+        LOG.info("Batched search for {} origins completed in {}s", nOrigins, (System.nanoTime() - startClockTime) / 1e9d);
+        return travelTimes;
+    }
+
+    /** Prefilter the patterns to only ones that are running, see FastRaptorWorker. */
+    private void prefilterPatterns () {
+        TIntList scheduledPatterns = new TIntArrayList();
+        scheduledIndexForOriginalPatternIndex = new int[transit.tripPatterns.size()];
+        Arrays.fill(scheduledIndexForOriginalPatternIndex, -1);
+
+        int patternIndex = -1; // first increment lands at 0
+        for (TripPattern pattern : transit.tripPatterns) {
+            patternIndex++;
+            RouteInfo routeInfo = transit.routes.get(pattern.routeIndex);
+            TransitModes mode = TransitLayer.getTransitModes(routeInfo.route_type);
+            if (pattern.hasSchedules && pattern.servicesActive.intersects(servicesActive) &&
+                    request.transitModes.contains(mode)) {
+                scheduledIndexForOriginalPatternIndex[patternIndex] = scheduledPatterns.size();
+                scheduledPatterns.add(patternIndex);
+            }
+        }
+        originalPatternIndexForScheduledIndex = scheduledPatterns.toArray();
+        runningScheduledPatterns = IntStream.of(originalPatternIndexForScheduledIndex)
+                .mapToObj(transit.tripPatterns::get).toArray(TripPattern[]::new);
+        scheduledDepartureIndexes = Arrays.stream(runningScheduledPatterns)
+                .map(pattern -> new ScheduledDepartureIndex(pattern, servicesActive))
+                .toArray(ScheduledDepartureIndex[]::new);
+    }
+
+    /**
+     * Set the departure time of all rounds to the given departure time, and add the access stops of each origin
+     * to the initial state.
+     */
+    private void advanceToPreviousMinute (int departureTime) {
+        for (BatchState state : states) {
+            state.setDepartureTime(departureTime);
+        }
+        BatchState initialState = states[0];
+        for (int origin = 0; origin < nOrigins; origin++) {
+            final int finalOrigin = origin;
+            accessStops.get(origin).forEachEntry((stop, accessTime) -> {
+                initialState.setTimeAtStop(stop, finalOrigin, accessTime + departureTime, -1, -1, true);
+                return true; // continue iteration
+            });
+        }
+    }
+
+    /**
+     * Scan each pattern touched by any origin in the previous round once, boarding and alighting for every origin
+     * at each stop. See FastRaptorWorker.doScheduledSearchForRound for the single origin version.
+     */
+    private void doScheduledSearchForRound (BatchState inputState, BatchState outputState) {
+        BitSet patternsTouched = getPatternsTouchedForStops(inputState);
+
+        for (int patternIndex = patternsTouched.nextSetBit(0); patternIndex >= 0;
+             patternIndex = patternsTouched.nextSetBit(patternIndex + 1)) {
+            int originalPatternIndex = originalPatternIndexForScheduledIndex[patternIndex];
+            TripPattern pattern = runningScheduledPatterns[patternIndex];
+            ScheduledDepartureIndex departureIndex = scheduledDepartureIndexes[patternIndex];
+            Arrays.fill(onTrip, -1);
+
+            for (int stopPositionInPattern = 0; stopPositionInPattern < pattern.stops.length; stopPositionInPattern++) {
+                int stop = pattern.stops[stopPositionInPattern];
+
+                if (pattern.dropoffs[stopPositionInPattern] != PickDropType.NONE) {
+                    for (int origin = 0; origin < nOrigins; origin++) {
+                        if (onTrip[origin] > -1) {
+                            int alightTime = departureIndex.schedules[onTrip[origin]].arrivals[stopPositionInPattern];
+                            outputState.setTimeAtStop(stop, origin, alightTime, originalPatternIndex, boardStop[origin], false);
+                        }
+                    }
+                }
+
+                if (pattern.pickups[stopPositionInPattern] == PickDropType.NONE || !inputState.stopsTouched.get(stop)) {
+                    continue;
+                }
+                for (int origin = 0, index = stop * nOrigins; origin < nOrigins; origin++, index++) {
+                    // Don't attempt to board if this stop was not reached in the last round, and don't attempt to
+                    // reboard the same pattern
+                    if (!inputState.bestTouched.get(index)) continue;
+                    int previousStop = inputState.previousStop[index];
+                    int sourcePatternIndex = previousStop == -1 ?
+                            inputState.previousPatterns[index] :
+                            inputState.previousPatterns[previousStop * nOrigins + origin];
+                    if (sourcePatternIndex == originalPatternIndex) continue;
+
+                    int earliestBoardTime = inputState.bestTimes[index] + MINIMUM_BOARD_WAIT_SEC;
+                    int bestTrip;
+                    if (onTrip[origin] == -1) {
+                        bestTrip = departureIndex.findFirstDepartureAfter(
+                                stopPositionInPattern, earliestBoardTime, departureIndex.nTrips());
+                    } else {
+                        // check if we can back up to an earlier trip due to this stop being reached earlier
+                        bestTrip = departureIndex.findEarlierDepartureAfter(
+                                stopPositionInPattern, earliestBoardTime, onTrip[origin]);
+                        if (bestTrip == onTrip[origin]) continue;
+                    }
+                    if (bestTrip > -1) {
+                        onTrip[origin] = bestTrip;
+                        boardStop[origin] = stop;
+                    }
+                }
+            }
+        }
+    }
+
+    /** Transfer from every stop reached by transit in this round, for each origin that reached it. */
+    private void doTransfers (BatchState state) {
+        // avoid integer casts in tight loop below
+        int walkSpeedMillimetersPerSecond = (int) (request.walkSpeed * 1000);
+        int maxWalkMillimeters = walkSpeedMillimetersPerSecond * (request.maxWalkTime * SECONDS_PER_MINUTE);
+
+        for (int stop = state.nonTransferStopsTouched.nextSetBit(0); stop > -1;
+             stop = state.nonTransferStopsTouched.nextSetBit(stop + 1)) {
+            TIntList transfersFromStop = transit.transfersForStop.get(stop);
+            if (transfersFromStop == null) continue;
+            for (int i = 0; i < transfersFromStop.size(); i += 2) {
+                int targetStop = transfersFromStop.get(i);
+                int distanceToTargetStopMillimeters = transfersFromStop.get(i + 1);
+                if (distanceToTargetStopMillimeters >= maxWalkMillimeters) continue;
+                int walkTimeToTargetStopSeconds = distanceToTargetStopMillimeters / walkSpeedMillimetersPerSecond;
+                for (int origin = 0, index = stop * nOrigins; origin < nOrigins; origin++, index++) {
+                    if (!state.nonTransferTouched.get(index)) continue;
+                    int timeAtTargetStop = state.bestNonTransferTimes[index] + walkTimeToTargetStopSeconds;
+                    state.setTimeAtStop(targetStop, origin, timeAtTargetStop, -1, stop, true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the internal IDs of the scheduled patterns passing through any stop reached by any origin in the last
+     * round. Whether each origin may board a pattern is checked during the scan.
+     */
+    private BitSet getPatternsTouchedForStops (BatchState state) {
+        BitSet patternsTouched = new BitSet();
+        for (int stop = state.stopsTouched.nextSetBit(0); stop >= 0; stop = state.stopsTouched.nextSetBit(stop + 1)) {
+            TIntList patterns = transit.patternsForStop.get(stop);
+            for (int i = 0; i < patterns.size(); i++) {
+                int filteredPattern = scheduledIndexForOriginalPatternIndex[patterns.get(i)];
+                if (filteredPattern >= 0) patternsTouched.set(filteredPattern);
+            }
+        }
+        return patternsTouched;
+    }
+
+    /**
+     * The state at the end of one round for all the origins. This holds the subset of RaptorState needed to find
+     * travel times, with the values for all origins at one stop stored next to each other.
+     */
+    private static class BatchState {
+
+        private final int nOrigins;
+
+        private int departureTime;
+
+        private final int maxDurationSeconds;
+
+        /** Best times to reach each stop from each origin, whether via a transfer or via transit directly. */
+        private final int[] bestTimes;
+
+        /** The best times for reaching stops via transit rather than via a transfer from another stop. */
+        private final int[] bestNonTransferTimes;
+
+        /** The previous pattern used to get to each stop, parallel to bestNonTransferTimes. */
+        private final int[] previousPatterns;
+
+        /** The stop the previous pattern was boarded at, parallel to bestNonTransferTimes. */
+        private final int[] previousStop;
+
+        /** The (stop, origin) pairs updated by transit or transfers in this round. */
+        private final BitSet bestTouched;
+
+        /** The (stop, origin) pairs updated by transit in this round. */
+        private final BitSet nonTransferTouched;
+
+        /** The stops updated by transit or transfers for any origin in this round. */
+        private final BitSet stopsTouched;
+
+        /** The stops updated by transit for any origin in this round. */
+        private final BitSet nonTransferStopsTouched;
+
+        private BatchState (int nStops, int nOrigins, int maxDurationSeconds) {
+            this.nOrigins = nOrigins;
+            this.maxDurationSeconds = maxDurationSeconds;
+            int size = nStops * nOrigins;
+            bestTimes = new int[size];
+            bestNonTransferTimes = new int[size];
+            previousPatterns = new int[size];
+            previousStop = new int[size];
+            Arrays.fill(bestTimes, UNREACHED);
+            Arrays.fill(bestNonTransferTimes, UNREACHED);
+            Arrays.fill(previousPatterns, -1);
+            Arrays.fill(previousStop, -1);
+            bestTouched = new BitSet(size);
+            nonTransferTouched = new BitSet(size);
+            stopsTouched = new BitSet(nStops);
+            nonTransferStopsTouched = new BitSet(nStops);
+        }
+
+        /** Move to an earlier departure time, removing trips that are now too long and clearing touched stops. */
+        private void setDepartureTime (int departureTime) {
+            this.departureTime = departureTime;
+            int maxClockTime = departureTime + maxDurationSeconds;
+            for (int i = 0; i < bestTimes.length; i++) {
+                if (bestTimes[i] > maxClockTime) bestTimes[i] = UNREACHED;
+                if (bestNonTransferTimes[i] > maxClockTime) bestNonTransferTimes[i] = UNREACHED;
+            }
+            bestTouched.clear();
+            nonTransferTouched.clear();
+            stopsTouched.clear();
+            nonTransferStopsTouched.clear();
+        }
+
+        /** Keep the better of the times in this state and the previous round, see RaptorState.min. */
+        private void min (BatchState other) {
+            for (int i = 0; i < bestTimes.length; i++) {
+                // prefer times from other when breaking tie as other is earlier in RAPTOR search and thus has fewer transfers
+                if (other.bestTimes[i] <= bestTimes[i]) {
+                    bestTimes[i] = other.bestTimes[i];
+                }
+                if (other.bestNonTransferTimes[i] <= bestNonTransferTimes[i]) {
+                    bestNonTransferTimes[i] = other.bestNonTransferTimes[i];
+                    previousPatterns[i] = other.previousPatterns[i];
+                    previousStop[i] = other.previousStop[i];
+                }
+            }
+        }
+
+        /** Set the time at a transit stop for one origin iff it is optimal, see RaptorState.setTimeAtStop. */
+        private void setTimeAtStop (int stop, int origin, int time, int fromPattern, int fromStop, boolean transfer) {
+            if (time > departureTime + maxDurationSeconds) return;
+            int index = stop * nOrigins + origin;
+            if (!transfer && time < bestNonTransferTimes[index]) {
+                bestNonTransferTimes[index] = time;
+                previousPatterns[index] = fromPattern;
+                previousStop[index] = fromStop;
+                nonTransferTouched.set(index);
+                nonTransferStopsTouched.set(stop);
+            }
+            if (time < bestTimes[index]) {
+                bestTimes[index] = time;
+                bestTouched.set(index);
+                stopsTouched.set(stop);
+            }
+        }
+    }
+}
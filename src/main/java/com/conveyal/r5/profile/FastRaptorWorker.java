@@ -44,6 +44,11 @@ import static com.conveyal.r5.profile.FastRaptorWorker.FrequencyBoardingMode.UPP
  * the way we do all analysis work. This system also accounts for pure-frequency routes by using Monte Carlo methods
  * (generating randomized schedules).
  *
+ * When request.reverseSearch is set, this performs an arrive-by search: the access stops are the stops from which the
+ * destination can be reached, the time window is a window of arrival times at the destination, and the results are
+ * the travel times from each stop to the destination. This is done by running the usual depart-after search on a copy
+ * of the transit layer that runs backward in time (see TransitLayer.getReversedLayer).
+ *
  * TODO rename to remove "fast" and revise above comments, there is only one worker now.
  */
 public class FastRaptorWorker {
@@ -71,13 +76,13 @@ public class FastRaptorWorker {
      * minute. The same functions are also used in BootstrappingTravelTimeReducer where we assume that their product is
      * the number of iterations performed.
      */
-    private static final int DEPARTURE_STEP_SEC = 60;
+    static final int DEPARTURE_STEP_SEC = 60;
 
     /**
      * Minimum wait for boarding to account for schedule variation.
      * FIXME clarify why this is separate from BOARD_SLACK. If it is not, merge the two constants into BOARD_SLACK_SEC.
      */
-    private static final int MINIMUM_BOARD_WAIT_SEC = 60;
+    static final int MINIMUM_BOARD_WAIT_SEC = 60;
 
     /** The width of the departure time window in minutes. */
     public final int nMinutes;
@@ -107,9 +112,16 @@ public class FastRaptorWorker {
     public long timeInFrequencySearchScheduled;
     public long timeInFrequencySearchTransfers;
 
-    /** The transit layer to route on. */
+    /** The transit layer to route on. In an arrive-by search this is the reversed copy of the requested layer. */
     private final TransitLayer transit;
 
+    /**
+     * The beginning and end of the departure time window, in the clock times of the transit layer being searched.
+     * In an arrive-by search these are mirrored along with the trip times, so they are not the request's times.
+     */
+    private final int fromTime;
+    private final int toTime;
+
     /** Times to access each transit stop using the street network (seconds). */
     private final TIntIntMap accessStops;
 
@@ -122,6 +134,12 @@ public class FastRaptorWorker {
     /** Schedule-based trip patterns running on a given day */
     private TripPattern[] runningScheduledPatterns;
 
+    /**
+     * Day-filtered departure times for the scheduled trips on each running scheduled pattern, parallel to
+     * runningScheduledPatterns. Used to find the earliest boardable trip without scanning every TripSchedule.
+     */
+    private ScheduledDepartureIndex[] scheduledDepartureIndexes;
+
     /** Map from internal, filtered frequency pattern indices back to original pattern indices for frequency patterns */
     private int[] originalPatternIndexForFrequencyIndex;
 
@@ -134,8 +152,6 @@ public class FastRaptorWorker {
     /** Array mapping from original pattern indices to the filtered scheduled indices */
     private int[] scheduledIndexForOriginalPatternIndex;
 
-    private FrequencyRandomOffsets offsets;
-
     /** Services active on the date of the search */
     private final BitSet servicesActive;
 
@@ -146,6 +162,28 @@ public class FastRaptorWorker {
      */
     private final RaptorState[] scheduleState;
 
+    /**
+     * Reusable state for the randomized frequency searches. Each context performs one Monte Carlo draw at a time.
+     * There is one context unless parallelMonteCarloDraws is set, in which case there is one per available processor
+     * (created when the search starts). Empty if there are no frequency routes.
+     */
+    private FrequencySearchContext[] frequencySearchContexts;
+
+    /** The total number of iterations (departure minutes times Monte Carlo draws) this search will produce. */
+    private final int nIterations;
+
+    /** The index of the next iteration to be recorded by recordIteration. */
+    private int currentIteration;
+
+    /** If results are being returned in the iteration-major layout, they are accumulated here: [iteration][stop]. */
+    private int[][] iterationMajorTravelTimes;
+
+    /**
+     * If results are being returned in the stop-major layout, they are written here, with the travel time to stop s at
+     * iteration i at index s * nIterations + i.
+     */
+    private int[] stopMajorTravelTimes;
+
     /**
      * This should be either HALF_HEADWAY or MONTE_CARLO.
      * The othe value UPPER_BOUND is only used within a sub-search of MONTE_CARLO.
@@ -158,10 +196,38 @@ public class FastRaptorWorker {
     /** If we're going to store paths to every destination (e.g. for static sites) then they'll be retained here. */
     public List<Path[]> pathsPerIteration;
 
+    /**
+     * Set to true to perform the Monte Carlo draws at each departure minute in parallel on the fork-join common pool.
+     * The draws at one minute are independent of each other once the scheduled search for that minute is complete.
+     * This is intended for single-point requests, where one search would otherwise occupy only one processor. It
+     * should not be used for regional tasks, which are already run in parallel. Results are recorded in draw order
+     * regardless of which thread completes first. Each parallel context holds its own copy of the RaptorStates for
+     * all rounds, so this increases memory use in proportion to the number of processors.
+     */
+    public boolean parallelMonteCarloDraws = false;
+
+    /**
+     * If non-null, the offsets of each Monte Carlo draw are taken from a random number generator seeded with this
+     * value plus the iteration number, so the results do not depend on which search context performs which draw.
+     * This is only set in tests, to compare the results of running the same draws in different ways.
+     */
+    Long monteCarloSeed = null;
+
     public FastRaptorWorker (TransitLayer transitLayer, ProfileRequest request, TIntIntMap accessStops) {
-        this.transit = transitLayer;
         this.request = request;
         this.accessStops = accessStops;
+        if (request.reverseSearch) {
+            // Departing from the destination at time t in the reversed layer is arriving there at real clock time
+            // REVERSED_LAYER_MIRROR_TIME - t. The window is shifted by one step so that the arrival times are the
+            // same minutes at which a forward search over the same window would depart.
+            this.transit = transitLayer.getReversedLayer();
+            this.fromTime = TransitLayer.REVERSED_LAYER_MIRROR_TIME - request.toTime + DEPARTURE_STEP_SEC;
+            this.toTime = TransitLayer.REVERSED_LAYER_MIRROR_TIME - request.fromTime + DEPARTURE_STEP_SEC;
+        } else {
+            this.transit = transitLayer;
+            this.fromTime = request.fromTime;
+            this.toTime = request.toTime;
+        }
         this.servicesActive  = transit.getActiveServicesForDate(request.date);
         // we add one to request.maxRides, first state is result of initial walk
         this.scheduleState = IntStream.range(0, request.maxRides + 1)
@@ -174,8 +240,6 @@ public class FastRaptorWorker {
             this.scheduleState[i].previous = this.scheduleState[i - 1];
         }
 
-        offsets = new FrequencyRandomOffsets(transitLayer);
-
         // compute number of minutes for scheduled search
         nMinutes = request.getTimeWindowLengthMinutes();
 
@@ -184,6 +248,9 @@ public class FastRaptorWorker {
 
         // Zero Monte Carlo draws means use half-headway instead of Monte Carlo randomization.
         boardingMode = (monteCarloDrawsPerMinute == 0) ? HALF_HEADWAY : MONTE_CARLO;
+
+        // Results are one arrival time at each stop, for every raptor iteration.
+        nIterations = (boardingMode == HALF_HEADWAY) ? nMinutes : monteCarloDrawsPerMinute * nMinutes;
     }
 
     /**
@@ -193,46 +260,71 @@ public class FastRaptorWorker {
      * TODO Create proper types for return values?
      */
     public int[][] route () {
+        iterationMajorTravelTimes = new int[nIterations][];
+        runAllMinutes();
+        int[][] result = iterationMajorTravelTimes;
+        iterationMajorTravelTimes = null;
+        return result;
+    }
+
+    /**
+     * Like route(), but writes the travel times for all iterations into a single flat array in stop-major order: the
+     * travel time to stop s at iteration i is at index s * getIterationCount() + i. This is the layout used by the
+     * PerTargetPropagater, so using this method avoids allocating one array per iteration and then transposing them.
+     */
+    public int[] routeStopMajor () {
+        stopMajorTravelTimes = new int[transit.getStopCount() * nIterations];
+        runAllMinutes();
+        int[] result = stopMajorTravelTimes;
+        stopMajorTravelTimes = null;
+        return result;
+    }
 
+    /** @return the number of iterations (departure minutes times Monte Carlo draws) produced by one search. */
+    public int getIterationCount () {
+        return nIterations;
+    }
+
+    /**
+     * Perform the range-RAPTOR search over all departure minutes, recording the travel times of every iteration in
+     * whichever output layout was set up by the caller.
+     */
+    private void runAllMinutes () {
         startClockTime = System.nanoTime();
         prefilterPatterns();
 
-        // Initialize result storage.
-        // Results are one arrival time at each stop, for every raptor iteration.
-        int nIterations;
         if (boardingMode == HALF_HEADWAY) {
-            nIterations = nMinutes;
             LOG.info("Performing {} scheduled iterations using half-headway for frequency routes.", nMinutes);
         } else {
-            nIterations = monteCarloDrawsPerMinute * nMinutes;
             LOG.info("Performing {} scheduled iterations each with {} Monte Carlo draws for a total of {} iterations.",
                     nMinutes, monteCarloDrawsPerMinute, nIterations);
         }
-        int[][] arrivalTimesAtStopsPerIteration = new int[nIterations][];
         if (retainPaths) pathsPerIteration = new ArrayList<>();
-        int currentIteration = 0;
+        currentIteration = 0;
+
+        int nFrequencySearchContexts = 0;
+        if (transit.hasFrequencies) {
+            int iterationsPerMinute = (boardingMode == MONTE_CARLO) ? monteCarloDrawsPerMinute : 1;
+            nFrequencySearchContexts = parallelMonteCarloDraws ?
+                    Math.min(iterationsPerMinute, Runtime.getRuntime().availableProcessors()) : 1;
+            if (nFrequencySearchContexts > 1) {
+                LOG.info("Performing Monte Carlo draws in parallel using {} search contexts.", nFrequencySearchContexts);
+            }
+        }
+        frequencySearchContexts = IntStream.range(0, nFrequencySearchContexts)
+                .mapToObj(i -> new FrequencySearchContext())
+                .toArray(FrequencySearchContext[]::new);
 
         // The main outer loop iterates backward over all minutes in the departure times window.
-        for (int departureTime = request.toTime - DEPARTURE_STEP_SEC, minute = nMinutes;
-             departureTime >= request.fromTime;
+        for (int departureTime = toTime - DEPARTURE_STEP_SEC, minute = nMinutes;
+             departureTime >= fromTime;
              departureTime -= DEPARTURE_STEP_SEC, minute--) {
 
             if (minute % 15 == 0) LOG.debug("  minute {}", minute);
 
-            // Run the raptor search. For this particular departure time, we receive N arrays of arrival times at all
-            // stops, one for each randomized schedule: resultsForMinute[randScheduleNumber][transitStop]
-            int[][] resultsForMinute = runRaptorForMinute(departureTime);
-
-            // Bypass Java's "effectively final" nonsense.
-            // FIXME we could avoid this "final" weirdness by just using non-stream explicit loop syntax over the stops.
-            // TODO clarify identifiers and explain how results are being unrolled from minutes into 'iterations'.
-            final int finalDepartureTime = departureTime;
-            for (int[] arrivalTimesAtStops : resultsForMinute) {
-                // NB this copies the array, so we don't have issues with it being updated later
-                arrivalTimesAtStopsPerIteration[currentIteration++] = IntStream.of(arrivalTimesAtStops)
-                        .map(r -> r != UNREACHED ? r - finalDepartureTime : r)
-                        .toArray();
-            }
+            // Run the raptor search. For this particular departure time, this records one array of arrival times at
+            // all stops for each randomized schedule (Monte Carlo draw).
+            runRaptorForMinute(departureTime);
         }
 
         LOG.info("Search completed in {}s", (System.nanoTime() - startClockTime) / 1e9d);
@@ -240,12 +332,39 @@ public class FastRaptorWorker {
         LOG.info("  - Scheduled search: {}s", timeInScheduledSearchTransit / 1e9d);
         LOG.info("  - Frequency upper bounds: {}s", timeInScheduledSearchFrequencyBounds / 1e9d);
         LOG.info("  - Transfers: {}s", timeInScheduledSearchTransfers / 1e9d);
+        for (FrequencySearchContext context : frequencySearchContexts) {
+            timeInFrequencySearchScheduled += context.timeInScheduled;
+            timeInFrequencySearchFrequency += context.timeInFrequency;
+            timeInFrequencySearchTransfers += context.timeInTransfers;
+        }
+        frequencySearchContexts = null;
         LOG.info("Frequency search: {}s", timeInFrequencySearch / 1e9d);
         LOG.info("  - Frequency component: {}s", timeInFrequencySearchFrequency / 1e9d);
         LOG.info("  - Resulting updates to scheduled component: {}s", timeInFrequencySearchScheduled / 1e9d);
         LOG.info("  - Transfers: {}s", timeInFrequencySearchTransfers / 1e9d);
+    }
 
-        return arrivalTimesAtStopsPerIteration;
+    /**
+     * Convert the arrival (clock) times at each stop for one iteration to travel times, and record them in the output
+     * as the given iteration. The arrival times are read immediately, so the caller is free to reuse the array.
+     * This may be called concurrently for different iterations, as each iteration is written to a separate location.
+     */
+    private void recordIteration (int[] arrivalTimesAtStops, int departureTime, int iteration) {
+        int nStops = arrivalTimesAtStops.length;
+        if (stopMajorTravelTimes != null) {
+            for (int stop = 0, index = iteration; stop < nStops; stop++, index += nIterations) {
+                int arrivalTime = arrivalTimesAtStops[stop];
+                stopMajorTravelTimes[index] = arrivalTime != UNREACHED ? arrivalTime - departureTime : arrivalTime;
+            }
+        } else {
+            // Copy the array, so we don't have issues with it being updated later
+            int[] travelTimesAtStops = new int[nStops];
+            for (int stop = 0; stop < nStops; stop++) {
+                int arrivalTime = arrivalTimesAtStops[stop];
+                travelTimesAtStops[stop] = arrivalTime != UNREACHED ? arrivalTime - departureTime : arrivalTime;
+            }
+            iterationMajorTravelTimes[iteration] = travelTimesAtStops;
+        }
     }
 
     /** Prefilter the patterns to only ones that are running */
@@ -284,6 +403,9 @@ public class FastRaptorWorker {
                 .mapToObj(transit.tripPatterns::get).toArray(TripPattern[]::new);
         runningScheduledPatterns = IntStream.of(originalPatternIndexForScheduledIndex)
                 .mapToObj(transit.tripPatterns::get).toArray(TripPattern[]::new);
+        scheduledDepartureIndexes = Arrays.stream(runningScheduledPatterns)
+                .map(pattern -> new ScheduledDepartureIndex(pattern, servicesActive))
+                .toArray(ScheduledDepartureIndex[]::new);
 
         LOG.info("Prefiltering patterns based on date active reduced {} patterns to {} frequency and {} scheduled patterns",
                 transit.tripPatterns.size(), frequencyPatterns.size(), scheduledPatterns.size());
@@ -314,11 +436,11 @@ public class FastRaptorWorker {
      * consists of many such searches at different departure times, typically working backward from the end of a time
      * window toward its beginning, and reusing state between searches as an optimization.
      *
+     * The arrival times at each stop for each of the iterationsPerMinute iterations are passed to recordIteration.
+     *
      * @param departureTime       When this search departs.
-     * @return an array of length iterationsPerMinute, containing the arrival (clock) times at each stop for each
-     * iteration.
      */
-    private int[][] runRaptorForMinute (int departureTime) {
+    private void runRaptorForMinute (int departureTime) {
         advanceScheduledSearchToPreviousMinute(departureTime);
 
         int iterationsPerMinute = (boardingMode == MONTE_CARLO) ? monteCarloDrawsPerMinute : 1;
@@ -353,7 +475,7 @@ public class FastRaptorWorker {
                 // perhaps we should only do it when iterationsPerMinute is high (2 or more?).
                 if (transit.hasFrequencies && boardingMode == MONTE_CARLO) {
                     long frequencyStartTime = System.nanoTime();
-                    doFrequencySearchForRound(scheduleState[round - 1], scheduleState[round], UPPER_BOUND);
+                    doFrequencySearchForRound(scheduleState[round - 1], scheduleState[round], UPPER_BOUND, null);
                     timeInScheduledSearchFrequencyBounds += System.nanoTime() - frequencyStartTime;
                 }
 
@@ -370,76 +492,126 @@ public class FastRaptorWorker {
         // Conway, Byrd, and van der Linden 2017.
         if (transit.hasFrequencies) {
             long startTime = System.nanoTime();
-            int[][] result = new int[iterationsPerMinute][];
             // Each iteration is a fresh Monte Carlo draw (randomization of frequency route offsets).
             // In half-headway mode, only one iteration will happen with no randomization.
-            for (int iteration = 0; iteration < iterationsPerMinute; iteration++) {
-                // At each iteration, we make a copy of the upper bound state.
-                RaptorState[] frequencyState = Stream.of(scheduleState).map((s) -> s.copy()).toArray(RaptorState[]::new);
-                for (int i = 1; i < frequencyState.length; i++) {
-                    frequencyState[i].previous = frequencyState[i - 1];
-                }
-
-                if (boardingMode == MONTE_CARLO) {
-                    // Take a new Monte Carlo draw if requested (i.e. if boarding assumption is not half-headway): for
-                    // each frequency-based route, choose how long after service starts the first vehicle leaves (the
-                    // route's "phase"). We run all Raptor rounds with one draw before proceeding to the next draw.
-                    offsets.randomize();
-                }
-
-                for (int round = 1; round <= request.maxRides; round++) {
-                    frequencyState[round].min(frequencyState[round - 1]);
-
-                    // Scheduled search. This is improving on travel times from stops touched by frequency routes or
-                    // combinations of frequency and scheduled routes.
-                    long scheduledStart = System.nanoTime();
-                    doScheduledSearchForRound(frequencyState[round - 1], frequencyState[round]);
-                    timeInFrequencySearchScheduled += System.nanoTime() - scheduledStart;
-
-                    // frequency search: additionally use stops touched by scheduled search
-                    // okay to destructively modify last round frequency state, it will not be used after this
-                    long frequencyStart = System.nanoTime();
-                    frequencyState[round - 1].bestStopsTouched.or(scheduleState[round - 1].bestStopsTouched);
-                    frequencyState[round - 1].nonTransferStopsTouched.or(scheduleState[round - 1].nonTransferStopsTouched);
-                    doFrequencySearchForRound(frequencyState[round - 1], frequencyState[round], boardingMode);
-
-                    timeInFrequencySearchFrequency += System.nanoTime() - frequencyStart;
-
-                    long transferStart = System.nanoTime();
-                    doTransfers(frequencyState[round]);
-                    timeInFrequencySearchTransfers += System.nanoTime() - transferStart;
-                }
-                // We are processing frequency routes, states are already a copy of the retained scheduled search state,
-                // no need to make an additional protective copy.
-                RaptorState finalRoundState = frequencyState[request.maxRides];
-                result[iteration] = finalRoundState.bestNonTransferTimes;
-                if (retainPaths) {
-                    pathsPerIteration.add(pathToEachStop(finalRoundState));
+            Path[][] pathsForMinute = retainPaths ? new Path[iterationsPerMinute][] : null;
+            final int firstIteration = currentIteration;
+            int nContexts = frequencySearchContexts.length;
+            if (nContexts == 1) {
+                for (int draw = 0; draw < iterationsPerMinute; draw++) {
+                    frequencySearchContexts[0].performDraw(departureTime, firstIteration + draw, pathsForMinute, draw);
                 }
+            } else {
+                // Split the draws into one contiguous block per context. Each context handles its block sequentially
+                // and writes its results to the slots for those draws, so the output does not depend on scheduling.
+                IntStream.range(0, nContexts).parallel().forEach(c -> {
+                    for (int draw = c * iterationsPerMinute / nContexts;
+                         draw < (c + 1) * iterationsPerMinute / nContexts;
+                         draw++) {
+                        frequencySearchContexts[c].performDraw(departureTime, firstIteration + draw, pathsForMinute, draw);
+                    }
+                });
+            }
+            currentIteration += iterationsPerMinute;
+            if (retainPaths) {
+                pathsPerIteration.addAll(Arrays.asList(pathsForMinute));
             }
             timeInFrequencySearch += System.nanoTime() - startTime;
-            return result;
         } else {
             // If there are no frequency trips, return the result of the scheduled search, but repeated as many times
             // as there are requested MC draws, so that the scheduled search accessibility avoids potential bugs
             // where assumptions are made about how many results will be returned from a search, e.g., in
             // https://github.com/conveyal/r5/issues/306
             // FIXME on large networks with no frequency routes this seems extremely inefficient.
-            // It may be somewhat less inefficient than it seems if we make arrays of references all to the same object.
             // TODO check whether we're actually hitting this code with iterationsPerMinute > 1 on scheduled networks.
-            int[][] result = new int[iterationsPerMinute][];
             RaptorState finalRoundState = scheduleState[request.maxRides];
             // This scheduleState is repeatedly modified as the outer loop progresses over departure minutes.
             // We have to be careful here that creating these paths does not modify the state, and makes
             // protective copies of any information we want to retain.
             Path[] paths = retainPaths ? pathToEachStop(finalRoundState) : null;
             for (int iteration = 0; iteration < iterationsPerMinute; iteration++) {
-                result[iteration] = finalRoundState.bestNonTransferTimes;
+                recordIteration(finalRoundState.bestNonTransferTimes, departureTime, currentIteration++);
                 if (retainPaths) {
                     pathsPerIteration.add(paths);
                 }
             }
-            return result;
+        }
+    }
+
+    /**
+     * The state needed to perform one randomized frequency search (Monte Carlo draw) on top of the scheduled search
+     * at the current departure minute: RaptorStates for all rounds that are overwritten at each draw, and the random
+     * offsets of the frequency routes. Separate contexts can perform draws concurrently, as they only read the shared
+     * scheduleState and network data.
+     */
+    private class FrequencySearchContext {
+
+        private final RaptorState[] frequencyState;
+
+        private final FrequencyRandomOffsets offsets = new FrequencyRandomOffsets(transit);
+
+        // Time spent in each part of the frequency search by this context, summed into the worker's totals at the end.
+        private long timeInScheduled;
+        private long timeInFrequency;
+        private long timeInTransfers;
+
+        private FrequencySearchContext () {
+            frequencyState = Stream.of(scheduleState).map(RaptorState::copy).toArray(RaptorState[]::new);
+            for (int i = 1; i < frequencyState.length; i++) {
+                frequencyState[i].previous = frequencyState[i - 1];
+            }
+        }
+
+        /**
+         * Perform one randomized frequency search (or one half-headway search) starting from the upper bound state
+         * produced by the scheduled search, and record the results as the given iteration.
+         *
+         * @param paths if non-null, the paths to each stop are stored in this array at index draw.
+         */
+        private void performDraw (int departureTime, int iteration, Path[][] paths, int draw) {
+            // At each draw, we overwrite the pooled frequency states with a copy of the upper bound state.
+            for (int round = 0; round < frequencyState.length; round++) {
+                frequencyState[round].copyFrom(scheduleState[round]);
+            }
+
+            if (boardingMode == MONTE_CARLO) {
+                // Take a new Monte Carlo draw if requested (i.e. if boarding assumption is not half-headway): for
+                // each frequency-based route, choose how long after service starts the first vehicle leaves (the
+                // route's "phase"). We run all Raptor rounds with one draw before proceeding to the next draw.
+                if (monteCarloSeed != null) {
+                    offsets.setSeed(monteCarloSeed + iteration);
+                }
+                offsets.randomize();
+            }
+
+            for (int round = 1; round <= request.maxRides; round++) {
+                frequencyState[round].min(frequencyState[round - 1]);
+
+                // Scheduled search. This is improving on travel times from stops touched by frequency routes or
+                // combinations of frequency and scheduled routes.
+                long scheduledStart = System.nanoTime();
+                doScheduledSearchForRound(frequencyState[round - 1], frequencyState[round]);
+                timeInScheduled += System.nanoTime() - scheduledStart;
+
+                // frequency search: additionally use stops touched by scheduled search
+                // okay to destructively modify last round frequency state, it will not be used after this
+                long frequencyStart = System.nanoTime();
+                frequencyState[round - 1].bestStopsTouched.or(scheduleState[round - 1].bestStopsTouched);
+                frequencyState[round - 1].nonTransferStopsTouched.or(scheduleState[round - 1].nonTransferStopsTouched);
+                doFrequencySearchForRound(frequencyState[round - 1], frequencyState[round], boardingMode, offsets);
+                timeInFrequency += System.nanoTime() - frequencyStart;
+
+                long transferStart = System.nanoTime();
+                doTransfers(frequencyState[round]);
+                timeInTransfers += System.nanoTime() - transferStart;
+            }
+            // The pooled states will be overwritten by the next draw, but recordIteration copies the times out
+            // and paths are extracted into new objects, so no additional protective copy is needed.
+            RaptorState finalRoundState = frequencyState[request.maxRides];
+            recordIteration(finalRoundState.bestNonTransferTimes, departureTime, iteration);
+            if (paths != null) {
+                paths[draw] = pathToEachStop(finalRoundState);
+            }
         }
     }
 
@@ -470,6 +642,8 @@ public class FastRaptorWorker {
         for (int patternIndex = patternsTouched.nextSetBit(0); patternIndex >= 0; patternIndex = patternsTouched.nextSetBit(patternIndex + 1)) {
             int originalPatternIndex = originalPatternIndexForScheduledIndex[patternIndex];
             TripPattern pattern = runningScheduledPatterns[patternIndex];
+            ScheduledDepartureIndex departureIndex = scheduledDepartureIndexes[patternIndex];
+            // Index of the trip we are on within the day-filtered trips of departureIndex, or -1 if not on board.
             int onTrip = -1;
             int waitTime = 0;
             int boardTime = 0;
@@ -501,50 +675,25 @@ public class FastRaptorWorker {
                 if (inputState.bestStopsTouched.get(stop) && sourcePatternIndex != originalPatternIndex && pattern.pickups[stopPositionInPattern] != PickDropType.NONE) {
                     int earliestBoardTime = inputState.bestTimes[stop] + MINIMUM_BOARD_WAIT_SEC;
 
-                    // only attempt to board if the stop was touched
+                    // The departure index only contains trips that are scheduled (not frequency-based) and running
+                    // on the day of the search, so there is no need to check that here.
+                    int bestTrip;
                     if (onTrip == -1) {
-                        if (inputState.bestStopsTouched.get(stop)) {
-                            int candidateTripIndex = -1;
-                            EARLIEST_TRIP:
-                            for (TripSchedule candidateSchedule : pattern.tripSchedules) {
-                                candidateTripIndex++;
-
-                                if (!servicesActive.get(candidateSchedule.serviceCode) || candidateSchedule.headwaySeconds != null) {
-                                    // frequency trip or not running
-                                    continue;
-                                }
-
-                                if (earliestBoardTime < candidateSchedule.departures[stopPositionInPattern]) {
-                                    // board this vehicle
-                                    onTrip = candidateTripIndex;
-                                    schedule = candidateSchedule;
-                                    boardTime = candidateSchedule.departures[stopPositionInPattern];
-                                    waitTime = boardTime - inputState.bestTimes[stop];
-                                    boardStop = stop;
-                                    break EARLIEST_TRIP;
-                                }
-                            }
-                        }
+                        bestTrip = departureIndex.findFirstDepartureAfter(
+                                stopPositionInPattern, earliestBoardTime, departureIndex.nTrips());
                     } else {
                         // check if we can back up to an earlier trip due to this stop being reached earlier
-                        int bestTripIdx = onTrip;
-                        while (--bestTripIdx >= 0) {
-                            TripSchedule trip = pattern.tripSchedules.get(bestTripIdx);
-                            if (trip.headwaySeconds != null || !servicesActive.get(trip.serviceCode)) {
-                                // This is a frequency trip or it is not running on the day of the search.
-                                continue;
-                            }
-                            if (trip.departures[stopPositionInPattern] > earliestBoardTime) {
-                                onTrip = bestTripIdx;
-                                schedule = trip;
-                                boardTime = trip.departures[stopPositionInPattern];
-                                waitTime = boardTime - inputState.bestTimes[stop];
-                                boardStop = stop;
-                            } else {
-                                // this trip arrives too early, break loop since they are sorted by departure time
-                                break;
-                            }
-                        }
+                        bestTrip = departureIndex.findEarlierDepartureAfter(
+                                stopPositionInPattern, earliestBoardTime, onTrip);
+                        if (bestTrip == onTrip) continue;
+                    }
+                    if (bestTrip > -1) {
+                        // board this vehicle
+                        onTrip = bestTrip;
+                        schedule = departureIndex.schedules[bestTrip];
+                        boardTime = departureIndex.departures[stopPositionInPattern][bestTrip];
+                        waitTime = boardTime - inputState.bestTimes[stop];
+                        boardStop = stop;
                     }
                 }
             }
@@ -571,11 +720,13 @@ public class FastRaptorWorker {
      * used to improve upon the output of the range-RAPTOR bounds search.
      *
      * @param frequencyBoardingMode see comments on enum values.
+     * @param offsets the randomized offsets of the frequency routes, only used in MONTE_CARLO mode.
      */
     private void doFrequencySearchForRound(
             RaptorState inputState,
             RaptorState outputState,
-            FrequencyBoardingMode frequencyBoardingMode
+            FrequencyBoardingMode frequencyBoardingMode,
+            FrequencyRandomOffsets offsets
     ) {
         BitSet patternsTouched = getPatternsTouchedForStops(inputState, frequencyIndexForOriginalPatternIndex);
         for (int patternIndex = patternsTouched.nextSetBit(0); patternIndex >= 0; patternIndex = patternsTouched.nextSetBit(patternIndex + 1)) {
@@ -672,7 +823,7 @@ public class FastRaptorWorker {
      * @return the earliest departure time on a particular scheduled frequency entry, or -1 if the frequency entry is
      * not usable.
      */
-    public int getRandomFrequencyDepartureTime (
+    public static int getRandomFrequencyDepartureTime (
             TripSchedule schedule,
             int stopPositionInPattern,
             int offset,
@@ -716,7 +867,7 @@ public class FastRaptorWorker {
         }
     }
 
-    public int getWorstCaseFrequencyDepartureTime (TripSchedule schedule, int stopPositionInPattern, int frequencyEntryIdx, int earliestTime) {
+    public static int getWorstCaseFrequencyDepartureTime (TripSchedule schedule, int stopPositionInPattern, int frequencyEntryIdx, int earliestTime) {
         int headway = schedule.headwaySeconds[frequencyEntryIdx];
         int travelTimeFromStartOfTrip = schedule.departures[stopPositionInPattern];
         // The last vehicle could leave the terminal as early as headwaySeconds before the end of the frequency entry.
@@ -44,6 +44,11 @@ public class FrequencyRandomOffsets {
         }
     }
 
+    /** Reseed the random number generator, so that the following draws can be reproduced. */
+    public void setSeed (long seed) {
+        mt.setSeed(seed);
+    }
+
     public void randomize () {
         int remaining = 0;
 
@@ -11,7 +11,6 @@ import com.conveyal.r5.streets.EgressCostTable;
 import com.conveyal.r5.streets.LinkedPointSet;
 import com.conveyal.r5.streets.StreetLayer;
 import com.conveyal.r5.streets.StreetRouter;
-import gnu.trove.map.TIntIntMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -64,8 +63,11 @@ public class PerTargetPropagater {
     /** Times at targets using the street network */
     private final int[] nonTransitTravelTimesToTargets;
 
-    /** Times at transit stops for each iteration. Plus a transposed version of that same matrix as an optimization. */
-    private int[][] travelTimesToStopsForIteration, travelTimesToStop;
+    /**
+     * Travel times to transit stops for each iteration, in a single flat array in stop-major order: the time to stop s
+     * at iteration i is at index s * nIterations + i. See invertTravelTimes for why this layout is used.
+     */
+    private final int[] travelTimesToStop;
 
     /**
      * The number of "iterations" (departure minutes & Monte Carlo schedules) and the number of stops and destination
@@ -106,21 +108,56 @@ public class PerTargetPropagater {
      */
     private Path[] perIterationPaths;
 
+    /** The highest value in perIterationTravelTimes. No stop that can't beat this time can improve the destination. */
+    private int worstTravelTimeToTarget;
+
+    /** The number of iterations in perIterationTravelTimes that are below relevantCutoffSeconds. */
+    private int iterationsBelowCutoff;
+
+    // SUMMARIES AND THRESHOLDS WHICH ARE COMPUTED ONCE FOR EACH ORIGIN.
+
     /**
-     * Constructor.
+     * The lowest travel time to each stop over all iterations. If this time plus the egress time cannot improve on the
+     * worst time at a target, no iteration can and the whole stop can be skipped.
+     */
+    private int[] minTravelTimeToStop;
+
+    /**
+     * Travel times at or above this value are all equivalent in the results. This is the cutoffSeconds, or if only
+     * accessibility is being recorded, the travel time at which destinations no longer count as accessible if lower.
+     */
+    private int relevantCutoffSeconds;
+
+    /**
+     * If only accessibility is being recorded, once this many iterations reach a target below relevantCutoffSeconds,
+     * the target is known to count as accessible at every percentile and no further stops need to be examined.
+     * Otherwise this is larger than the number of iterations, so processing never stops early.
+     */
+    private int iterationsToReachAllPercentiles;
+
+    /**
+     * If false, every nearby stop is examined at every iteration and processing of a target never stops early. This is
+     * only set in tests, to check that skipping stops and targets does not change the results.
+     */
+    boolean skipStopsThatCannotImprove = true;
+
+    /**
+     * Constructor. Travel times to stops must be in the flat stop-major layout used internally, as produced by
+     * FastRaptorWorker.routeStopMajor or invertTravelTimes. The array is used directly without copying.
      */
     public PerTargetPropagater(
                 PointSet targets,
                 StreetLayer streetLayer,
                 Set<StreetMode> modes,
                 AnalysisTask task,
-                int[][] travelTimesToStopsForIteration,
+                int[] stopMajorTravelTimesToStops,
+                int nIterations,
                 int[] nonTransitTravelTimesToTargets
     ) {
         this.targets = targets;
         this.modes = modes;
         this.request = task;
-        this.travelTimesToStopsForIteration = travelTimesToStopsForIteration;
+        this.travelTimesToStop = stopMajorTravelTimesToStops;
         this.nonTransitTravelTimesToTargets = nonTransitTravelTimesToTargets;
         // If we're making a static site we'll break travel times down into components and make paths.
         // This expects the pathsToStopsForIteration and pathWriter fields to be set separately by the caller.
@@ -128,9 +165,11 @@ public class PerTargetPropagater {
 
         oneToOne = request instanceof RegionalTask && ((RegionalTask) request).oneToOne;
 
-        nIterations = travelTimesToStopsForIteration.length;
-        nStops = travelTimesToStopsForIteration[0].length;
-        invertTravelTimes();
+        this.nIterations = nIterations;
+        if (nIterations == 0 || stopMajorTravelTimesToStops.length % nIterations != 0) {
+            throw new IllegalArgumentException("Travel times to stops must contain the same number of iterations for every stop.");
+        }
+        nStops = stopMajorTravelTimesToStops.length / nIterations;
         nTargets = targets.featureCount();
         if (nonTransitTravelTimesToTargets.length != nTargets) {
             throw new IllegalArgumentException("Non-transit travel times must have the same number of entries as there are points.");
@@ -160,6 +199,25 @@ public class PerTargetPropagater {
         // Retain additional information about how the target was reached to report travel time breakdown and paths to targets.
         perIterationPaths = calculateComponents ? new Path[nIterations] : null;
 
+        // Summarize the travel times to each stop so whole stops can be skipped when propagating to each target.
+        minTravelTimeToStop = new int[nStops];
+        for (int stop = 0; stop < nStops; stop++) {
+            int minTime = FastRaptorWorker.UNREACHED;
+            for (int i = stop * nIterations, end = i + nIterations; i < end; i++) {
+                if (travelTimesToStop[i] < minTime) minTime = travelTimesToStop[i];
+            }
+            minTravelTimeToStop[stop] = minTime;
+        }
+
+        // Regional accessibility analyses only need to know whether each target is reached below the cutoff at each
+        // percentile, not the precise travel times, which allows skipping some of the work for each target.
+        relevantCutoffSeconds = cutoffSeconds;
+        iterationsToReachAllPercentiles = Integer.MAX_VALUE;
+        if (travelTimeReducer.isRecordingAccessibilityOnly() && !calculateComponents && skipStopsThatCannotImprove) {
+            relevantCutoffSeconds = Math.min(cutoffSeconds, travelTimeReducer.getMaxTripDurationSeconds());
+            iterationsToReachAllPercentiles = travelTimeReducer.getIterationsToReachAllPercentiles();
+        }
+
         // In most tasks, we want to propagate travel times for each origin out to all the destinations.
         int startTarget = 0;
         int endTarget = nTargets;
@@ -175,7 +233,10 @@ public class PerTargetPropagater {
 
             // Initialize the travel times to that achieved without transit (if any).
             // These travel times do not vary with departure time or MC draw, so they are all the same at a given target.
-            Arrays.fill(perIterationTravelTimes, nonTransitTravelTimesToTargets[targetIdx]);
+            int nonTransitTime = nonTransitTravelTimesToTargets[targetIdx];
+            Arrays.fill(perIterationTravelTimes, nonTransitTime);
+            worstTravelTimeToTarget = nonTransitTime;
+            iterationsBelowCutoff = nonTransitTime < relevantCutoffSeconds ? nIterations : 0;
 
             // Clear out the Path array if we're building one. These are transit solution details, so they remain
             // null until we find a good transit solution.
@@ -185,7 +246,15 @@ public class PerTargetPropagater {
 
             // Improve upon these non-transit travel times based on transit travel times to nearby stops.
             // This fills in perIterationTravelTimes and perIterationPaths for one particular target.
-            propagateTransit(targetIdx);
+            boolean improvedByTransit = propagateTransit(targetIdx);
+            int targetToWrite = oneToOne ? 0 : targetIdx;
+
+            // Where transit does not help (e.g. there are no stops nearby) every iteration has the same non-transit
+            // time, so that time is every percentile and there is no need to summarize the per-iteration times.
+            if (!improvedByTransit && !calculateComponents) {
+                travelTimeReducer.recordUnvaryingTravelTimeAtTarget(targetToWrite, nonTransitTime);
+                continue;
+            }
 
             // Construct the PathScorer before extracting percentiles because the scorer needs to make a copy of
             // the unsorted complete travel times.
@@ -196,8 +265,9 @@ public class PerTargetPropagater {
                 pathScorer = new PathScorer(perIterationPaths, perIterationTravelTimes);
             }
 
-            // Extract the requested percentiles and save them (and/or the resulting accessibility indicator values)
-            int targetToWrite = oneToOne ? 0 : targetIdx;
+            // Extract the requested percentiles and save them (and/or the resulting accessibility indicator values).
+            // If propagation stopped early because the target is reached at all percentiles, some of these times may be
+            // higher than the real ones, but all the percentiles will still be correctly found below the cutoff.
             int[] percentilesMinutes = travelTimeReducer.extractTravelTimesAndRecord(targetToWrite, perIterationTravelTimes);
 
             if (calculateComponents) {
@@ -235,18 +305,26 @@ public class PerTargetPropagater {
      * This should not increase memory consumption very much as we're only duplicating the travel times to transit
      * stops. For example, the Netherlands has about 70,000 stops, if you do 1,000 iterations to 70,000 stops, the
      * array being transposed and duplicated is 70,000 * 1000 * 4 bytes per int ~= 267 megabytes. It does not seem
-     * worthwhile to change the routing algorithm to output already-transposed data, as that will create memory
-     * locality problems elsewhere (since the pathfinding algorithm solves one iteration for all stops simultaneously).
+     * worthwhile to change the pathfinding itself to work on transposed data, as that will create memory locality
+     * problems elsewhere (since the pathfinding algorithm solves one iteration for all stops simultaneously). However
+     * FastRaptorWorker.routeStopMajor can write each finished iteration straight into this layout, which avoids this
+     * transposition step and the intermediate per-iteration arrays entirely.
+     * The transposed matrix is stored as a single flat array, so that each stop's times are also contiguous with
+     * those of the next stop and there is no per-stop array object.
      */
-    private void invertTravelTimes() {
+    public static int[] invertTravelTimes(int[][] travelTimesToStopsForIteration) {
         long startTime = System.currentTimeMillis();
-        travelTimesToStop = new int[nStops][nIterations];
+        int nIterations = travelTimesToStopsForIteration.length;
+        int nStops = travelTimesToStopsForIteration[0].length;
+        int[] travelTimesToStop = new int[nStops * nIterations];
         for (int iteration = 0; iteration < nIterations; iteration++) {
+            int[] travelTimesForIteration = travelTimesToStopsForIteration[iteration];
             for (int stop = 0; stop < nStops; stop++) {
-                travelTimesToStop[stop][iteration] = travelTimesToStopsForIteration[iteration][stop];
+                travelTimesToStop[stop * nIterations + iteration] = travelTimesForIteration[stop];
             }
         }
         LOG.info("Travel time matrix transposition took {} msec", System.currentTimeMillis() - startTime);
+        return travelTimesToStop;
     }
 
     /**
@@ -258,12 +336,17 @@ public class PerTargetPropagater {
      *
      * It is possible that computation would be faster with the iteration order inverted to (mode, targetIndex) instead
      * of (targetIndex, mode).
+     *
+     * @return true if transit improved on the non-transit travel time to the target at any iteration.
      */
-    private void propagateTransit (int targetIndex) {
+    private boolean propagateTransit (int targetIndex) {
+        boolean improved = false;
         // All linked pointsets are known to be for the same StreetLayer and PointSet, just different modes.
         for (LinkedPointSet linkedPointSet : linkedTargets) {
-            propagateTransit(targetIndex, linkedPointSet);
+            if (iterationsBelowCutoff >= iterationsToReachAllPercentiles) break;
+            improved |= propagateTransit(targetIndex, linkedPointSet);
         }
+        return improved;
     }
 
     /**
@@ -272,12 +355,16 @@ public class PerTargetPropagater {
      * Also record the best paths if we're going to be saving transit path details.
      * TODO verify if these are actually travel times (vs. clock times after midnight) and clarify code comments.
      * They appear to be travel times (are compared against cutoffSeconds which is a trip duration).
+     *
+     * @return true if the best known time was improved at any iteration.
      */
-    private void propagateTransit (int targetIndex, LinkedPointSet linkedTargets) {
+    private boolean propagateTransit (int targetIndex, LinkedPointSet linkedTargets) {
+        boolean improved = false;
 
         // Grab the set of nearby stops for this target, with their distances.
         EgressCostTable egressCostTable = linkedTargets.getEgressCostTable();
-        TIntIntMap pointToStopLinkageCostTable = egressCostTable.getCostTableForPoint(targetIndex);
+        int firstEntry = egressCostTable.getFirstEntryForPoint(targetIndex);
+        int endEntry = egressCostTable.getEndEntryForPoint(targetIndex);
         StreetRouter.State.RoutingVariable unit = egressCostTable.linkageCostUnit;
 
         /**
@@ -296,46 +383,68 @@ public class PerTargetPropagater {
                 (linkedTargets.streetMode == StreetMode.CAR && linkedTargets.streetLayer.waitTimePolygons != null) ?
                 (int)(linkedTargets.streetLayer.waitTimePolygons.defaultData * SECONDS_PER_MINUTE) : 0;
 
-        // Only try to propagate transit travel times if there are transit stops near this target.
-        // Even if we don't propagate transit travel times, we still need to pass these non-transit times to
-        // the reducer later in the caller, because you can walk even where there is no transit.
-        if (pointToStopLinkageCostTable != null) {
-            // Propagate all iterations from each relevant alighting stop out to this target.
-            pointToStopLinkageCostTable.forEachEntry((stop, linkageCost) -> {
-                int secondsFromStopToTarget;
-                if (unit == StreetRouter.State.RoutingVariable.DISTANCE_MILLIMETERS) {
-                    secondsFromStopToTarget = linkageCost / speedMillimetersPerSecond;
-                } else if (unit == StreetRouter.State.RoutingVariable.DURATION_SECONDS) {
-                    secondsFromStopToTarget = linkageCost;
-                } else {
-                    throw new UnsupportedOperationException("Linkage costs have an unknown unit.");
-                }
-                if (secondsFromStopToTarget < egressLegTimeLimitSeconds){
-                    for (int iteration = 0; iteration < nIterations; iteration++) {
-                        int timeAtStop = travelTimesToStop[stop][iteration];
-                        if (timeAtStop > cutoffSeconds || timeAtStop > perIterationTravelTimes[iteration]) {
-                            // Skip propagation if all resulting times will be greater than the cutoff and
-                            // cannot improve on the best known time at this iteration. Also avoids overflow.
-                            continue;
-                        }
+        // Propagate all iterations from each relevant alighting stop out to this target. Entries are sorted by stop,
+        // so this steps forward through the travel times to stops array. If there are no transit stops near this
+        // target the loop does nothing. Even if we don't propagate transit travel times, we still need to pass the
+        // non-transit times to the reducer later in the caller, because you can walk even where there is no transit.
+        for (int entry = firstEntry; entry < endEntry; entry++) {
+            if (iterationsBelowCutoff >= iterationsToReachAllPercentiles) {
+                // Accessibility-only mode, and this target is already known to be reached at every percentile.
+                break;
+            }
+            int stop = egressCostTable.getStopForEntry(entry);
+            int linkageCost = egressCostTable.getCostForEntry(entry);
+            int secondsFromStopToTarget;
+            if (unit == StreetRouter.State.RoutingVariable.DISTANCE_MILLIMETERS) {
+                secondsFromStopToTarget = linkageCost / speedMillimetersPerSecond;
+            } else if (unit == StreetRouter.State.RoutingVariable.DURATION_SECONDS) {
+                secondsFromStopToTarget = linkageCost;
+            } else {
+                throw new UnsupportedOperationException("Linkage costs have an unknown unit.");
+            }
+            if (secondsFromStopToTarget >= egressLegTimeLimitSeconds) {
+                continue;
+            }
+            // Account for any additional delay waiting for taxi or autonomous vehicle.
+            secondsFromStopToTarget += waitingTimeSeconds;
+
+            // Skip the whole stop if even its best time over all iterations cannot improve on the worst time at this
+            // target, or cannot produce a time below the cutoff. Check the cutoff first to avoid overflow.
+            if (skipStopsThatCannotImprove) {
+                int minTimeAtStop = minTravelTimeToStop[stop];
+                if (minTimeAtStop > cutoffSeconds) continue;
+                int minTimeAtTarget = minTimeAtStop + secondsFromStopToTarget;
+                if (minTimeAtTarget >= relevantCutoffSeconds || minTimeAtTarget >= worstTravelTimeToTarget) continue;
+            }
 
-                        // Account for any additional delay waiting for taxi or autonomous vehicle.
-                        secondsFromStopToTarget += waitingTimeSeconds;
-
-                        int timeAtTarget = timeAtStop + secondsFromStopToTarget;
-                        if (timeAtTarget < cutoffSeconds && timeAtTarget < perIterationTravelTimes[iteration]) {
-                            // To reach this target, alighting at this stop is faster than any previously checked stop.
-                            perIterationTravelTimes[iteration] = timeAtTarget;
-                            if (calculateComponents) {
-                                Path[] pathsToStops = pathsToStopsForIteration.get(iteration);
-                                perIterationPaths[iteration] = pathsToStops[stop];
-                            }
+            int stopOffset = stop * nIterations;
+            int newWorstTime = 0;
+            for (int iteration = 0; iteration < nIterations; iteration++) {
+                int timeAtStop = travelTimesToStop[stopOffset + iteration];
+                int bestTime = perIterationTravelTimes[iteration];
+                // Skip propagation if all resulting times will be greater than the cutoff and cannot improve on the
+                // best known time at this iteration. Also avoids overflow.
+                if (timeAtStop <= cutoffSeconds && timeAtStop <= bestTime) {
+                    int timeAtTarget = timeAtStop + secondsFromStopToTarget;
+                    if (timeAtTarget < cutoffSeconds && timeAtTarget < bestTime) {
+                        // To reach this target, alighting at this stop is faster than any previously checked stop.
+                        if (bestTime >= relevantCutoffSeconds && timeAtTarget < relevantCutoffSeconds) {
+                            iterationsBelowCutoff += 1;
+                        }
+                        bestTime = timeAtTarget;
+                        perIterationTravelTimes[iteration] = timeAtTarget;
+                        improved = true;
+                        if (calculateComponents) {
+                            Path[] pathsToStops = pathsToStopsForIteration.get(iteration);
+                            perIterationPaths[iteration] = pathsToStops[stop];
                         }
                     }
                 }
-                return true; // Trove "continue iteration" signal.
-            });
+                if (bestTime > newWorstTime) newWorstTime = bestTime;
+            }
+            worstTravelTimeToTarget = newWorstTime;
         }
+        return improved;
     }
 
 
@@ -126,6 +126,27 @@ public class RaptorState {
         return new RaptorState(this);
     }
 
+    /**
+     * Overwrite this state with the contents of another one, reusing the arrays already allocated in this state
+     * rather than making new ones. Like the copy constructor this leaves touchedStops data empty, but unlike the copy
+     * constructor it does not change the previous state, so a chain of pooled states can be reused across Monte
+     * Carlo draws.
+     */
+    public void copyFrom (RaptorState other) {
+        int nStops = other.bestTimes.length;
+        System.arraycopy(other.bestTimes, 0, this.bestTimes, 0, nStops);
+        System.arraycopy(other.bestNonTransferTimes, 0, this.bestNonTransferTimes, 0, nStops);
+        System.arraycopy(other.previousPatterns, 0, this.previousPatterns, 0, nStops);
+        System.arraycopy(other.previousStop, 0, this.previousStop, 0, nStops);
+        System.arraycopy(other.transferStop, 0, this.transferStop, 0, nStops);
+        System.arraycopy(other.nonTransferWaitTime, 0, this.nonTransferWaitTime, 0, nStops);
+        System.arraycopy(other.nonTransferInVehicleTravelTime, 0, this.nonTransferInVehicleTravelTime, 0, nStops);
+        this.departureTime = other.departureTime;
+        this.maxDurationSeconds = other.maxDurationSeconds;
+        this.nonTransferStopsTouched.clear();
+        this.bestStopsTouched.clear();
+    }
+
     /**
      * Set this state to the min values found in this state or the other passed in (used in Range RAPTOR).
      * Since this is used to progress between rounds, does not copy stopsTouched data.
@@ -0,0 +1,111 @@
+package com.conveyal.r5.profile;
+
+import com.conveyal.r5.transit.TripPattern;
+import com.conveyal.r5.transit.TripSchedule;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * A day-filtered view of the scheduled (non-frequency) trips on one TripPattern, with the departure times copied into
+ * one primitive int array per stop position. This is built once per search in FastRaptorWorker.prefilterPatterns, so
+ * the inner loop of the scheduled search does not need to re-check servicesActive and headwaySeconds on every
+ * candidate trip, and can use a binary search to find the earliest boardable trip.
+ *
+ * This follows the same approach as otp2.rangeraptor.transit.TripScheduleBoardSearch: narrow the range with a binary
+ * search, then finish with a short linear scan. Trips on a pattern are sorted by departure time at the first stop.
+ * If trips on the same day never pass each other, they are also sorted at every other stop. We check that while
+ * building the index. When it does not hold, we fall back on a plain linear scan, so the search result is exactly the
+ * same as scanning the full list of trip schedules.
+ */
+class ScheduledDepartureIndex {
+
+    /** Below this number of trips a linear scan is as fast as a binary search. Same as the otp2 default. */
+    static final int BINARY_SEARCH_THRESHOLD = 50;
+
+    /** The scheduled trips running on the search date, in the same order as they appear in the TripPattern. */
+    final TripSchedule[] schedules;
+
+    /** The departure times of the filtered trips, indexed by [stopPositionInPattern][filteredTripIndex]. */
+    final int[][] departures;
+
+    /** True if, at every stop position, departure times do not decrease as the filtered trip index increases. */
+    final boolean sorted;
+
+    ScheduledDepartureIndex (TripPattern pattern, BitSet servicesActive) {
+        List<TripSchedule> running = new ArrayList<>();
+        for (TripSchedule schedule : pattern.tripSchedules) {
+            if (schedule.headwaySeconds == null && servicesActive.get(schedule.serviceCode)) {
+                running.add(schedule);
+            }
+        }
+        schedules = running.toArray(new TripSchedule[0]);
+        int nStops = pattern.stops.length;
+        departures = new int[nStops][schedules.length];
+        boolean sorted = true;
+        for (int stopPosition = 0; stopPosition < nStops; stopPosition++) {
+            int[] departuresAtStop = departures[stopPosition];
+            for (int trip = 0; trip < schedules.length; trip++) {
+                departuresAtStop[trip] = schedules[trip].departures[stopPosition];
+                if (trip > 0 && departuresAtStop[trip] < departuresAtStop[trip - 1]) sorted = false;
+            }
+        }
+        this.sorted = sorted;
+    }
+
+    /** @return the number of scheduled trips on this pattern that are running on the search date. */
+    int nTrips () {
+        return schedules.length;
+    }
+
+    /**
+     * Find the first trip (in pattern order) whose index is below tripIndexUpperBound and which departs the given stop
+     * strictly after the given time.
+     *
+     * @param tripIndexUpperBound exclusive upper bound on the filtered trip index, use nTrips() for an unbounded search.
+     * @return the filtered index of the trip, or -1 if no such trip exists.
+     */
+    int findFirstDepartureAfter (int stopPositionInPattern, int time, int tripIndexUpperBound) {
+        int[] departuresAtStop = departures[stopPositionInPattern];
+        int lower = 0;
+        if (sorted) {
+            // Binary search for the first trip departing after the given time, stopping when the remaining range is
+            // short enough that a linear scan is cheaper.
+            int upper = tripIndexUpperBound;
+            while (upper - lower > BINARY_SEARCH_THRESHOLD) {
+                int middle = (lower + upper) >>> 1;
+                if (departuresAtStop[middle] > time) {
+                    upper = middle + 1;
+                } else {
+                    lower = middle + 1;
+                }
+            }
+        }
+        for (int trip = lower; trip < tripIndexUpperBound; trip++) {
+            if (departuresAtStop[trip] > time) return trip;
+        }
+        return -1;
+    }
+
+    /**
+     * Given that we are already on the trip with the given filtered index, check whether we can back up to an earlier
+     * trip departing the given stop strictly after the given time. Like the original scan over all trip schedules,
+     * this steps backward and stops at the first trip that leaves too early.
+     *
+     * @return the filtered index of the earliest such trip, or currentTripIndex if there is no earlier one.
+     */
+    int findEarlierDepartureAfter (int stopPositionInPattern, int time, int currentTripIndex) {
+        int[] departuresAtStop = departures[stopPositionInPattern];
+        if (sorted && currentTripIndex > BINARY_SEARCH_THRESHOLD) {
+            int trip = findFirstDepartureAfter(stopPositionInPattern, time, currentTripIndex);
+            return trip == -1 ? currentTripIndex : trip;
+        }
+        int bestTrip = currentTripIndex;
+        while (--bestTrip >= 0) {
+            if (departuresAtStop[bestTrip] <= time) break;
+        }
+        return bestTrip + 1;
+    }
+
+}
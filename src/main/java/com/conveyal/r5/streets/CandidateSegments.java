@@ -0,0 +1,205 @@
+package com.conveyal.r5.streets;
+
+import com.conveyal.r5.common.GeometryUtils;
+import com.conveyal.r5.profile.StreetMode;
+import com.vividsolutions.jts.geom.Envelope;
+import gnu.trove.TIntCollection;
+import gnu.trove.list.array.TIntArrayList;
+import org.apache.commons.math3.util.FastMath;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The segments of all the street edges near some location that points may be linked to by a given mode, copied out
+ * of the edge store into flat primitive lists. Finding the closest of these segments to a point is then a simple
+ * loop over primitives. This is what Split.find does for a single point, but when linking many points that are close
+ * together (e.g. the cells of a grid) the same CandidateSegments can be used to link all of them, performing a
+ * single spatial index query and checking the permissions and geometry of each edge only once.
+ */
+public class CandidateSegments {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CandidateSegments.class);
+
+    private static final double METERS_PER_DEGREE_LAT = 111111.111;
+
+    private final EdgeStore.Edge edge;
+
+    // One entry in each of these lists for each segment, in fixed-point degrees.
+    private final TIntArrayList segmentEdge = new TIntArrayList();
+    private final TIntArrayList segmentIndex = new TIntArrayList();
+    private final TIntArrayList fixedLat0 = new TIntArrayList();
+    private final TIntArrayList fixedLon0 = new TIntArrayList();
+    private final TIntArrayList fixedLat1 = new TIntArrayList();
+    private final TIntArrayList fixedLon1 = new TIntArrayList();
+
+    /**
+     * Copy the segments of the given edges, skipping any edges that can't be linked to by the given mode.
+     * @param candidateEdges forward (even) edges, usually found with StreetLayer.findEdgesInEnvelope.
+     */
+    public CandidateSegments (StreetLayer streetLayer, StreetMode streetMode, TIntCollection candidateEdges) {
+        edge = streetLayer.edgeStore.getCursor();
+        candidateEdges.forEach(e -> {
+            edge.seek(e);
+            // Do not consider linking to edges that are links to streets from transit stops, P+Rs, and bike shares.
+            // These edges allow all modes to traverse, but may be connected to roads with more restrictive permissions.
+            // On a given edge pair both directions will have the same flag.
+            if (edge.getFlag(EdgeStore.EdgeFlag.LINK)) return true;
+
+            // If either direction of the current edge doesn't allow the specified mode of travel, skip it.
+            // It is arguably better to skip it only if BOTH directions forbid the specified mode. This system has odd
+            // effects in areas with lots of one-way streets or divided roads.
+            // TODO Really, we want to allow linking to two different edge-pairs in such cases but that is more complex.
+            // Do not consider linking to edges that are not marked "linkable". This excludes e.g. tunnels and motorways.
+            if (!edge.allowsStreetMode(streetMode) || !edge.getFlag(EdgeStore.EdgeFlag.LINKABLE)) {
+                return true;
+            }
+            edge.advance();
+            if (!edge.allowsStreetMode(streetMode) || !edge.getFlag(EdgeStore.EdgeFlag.LINKABLE)) {
+                return true;
+            }
+            edge.retreat();
+
+            edge.forEachSegment((seg, lat0, lon0, lat1, lon1) -> {
+                segmentEdge.add(e);
+                segmentIndex.add(seg);
+                fixedLat0.add(lat0);
+                fixedLon0.add(lon0);
+                fixedLat1.add(lat1);
+                fixedLon1.add(lon1);
+            });
+            return true; // The loop over the edges should continue.
+        });
+    }
+
+    /**
+     * @return the envelope in fixed-point degrees within which edges must be found to link the given point with
+     *         the given search radius.
+     */
+    public static Envelope searchEnvelope (double lat, double lon, double searchRadiusMeters) {
+        int fixedLat = VertexStore.floatingDegreesToFixed(lat);
+        int fixedLon = VertexStore.floatingDegreesToFixed(lon);
+        double cosLat = FastMath.cos(FastMath.toRadians(lat));
+        long radiusFixedLat = VertexStore.floatingDegreesToFixed(searchRadiusMeters / METERS_PER_DEGREE_LAT);
+        long radiusFixedLon = (int)(radiusFixedLat / cosLat); // Expand the X search space, don't shrink it.
+        Envelope envelope = new Envelope(fixedLon, fixedLon, fixedLat, fixedLat);
+        envelope.expandBy(radiusFixedLon, radiusFixedLat);
+        return envelope;
+    }
+
+    /**
+     * Find the closest location to the given point on any of these segments. To give the same result as Split.find,
+     * these must include the segments of all edges in the searchEnvelope of the point.
+     * @return a new Split object, or null if no segment is within the search radius.
+     */
+    public Split findSplit (double lat, double lon, double searchRadiusMeters) {
+        // After this conversion, the entire geometric calculation is happening in fixed precision int degrees.
+        int fixedLat = VertexStore.floatingDegreesToFixed(lat);
+        int fixedLon = VertexStore.floatingDegreesToFixed(lon);
+        double cosLat = FastMath.cos(FastMath.toRadians(lat)); // The projection factor, Earth is a "sphere"
+
+        // Use longs for radii and their square because squaring the fixed-point radius _will_ overflow a signed int32.
+        long radiusFixedLat = VertexStore.floatingDegreesToFixed(searchRadiusMeters / METERS_PER_DEGREE_LAT);
+        long radiusFixedLon = (int)(radiusFixedLat / cosLat);
+        long squaredRadiusFixedLat = radiusFixedLat * radiusFixedLat;
+        // Segments lying entirely outside the search envelope cannot be within the search radius.
+        long minLon = fixedLon - radiusFixedLon;
+        long maxLon = fixedLon + radiusFixedLon;
+        long minLat = fixedLat - radiusFixedLat;
+        long maxLat = fixedLat + radiusFixedLat;
+
+        // The split location currently being examined and the best one seen so far.
+        Split curr = new Split();
+        Split best = new Split();
+        for (int s = 0; s < segmentEdge.size(); s++) {
+            int lat0 = fixedLat0.get(s);
+            int lon0 = fixedLon0.get(s);
+            int lat1 = fixedLat1.get(s);
+            int lon1 = fixedLon1.get(s);
+            if (Math.max(lon0, lon1) < minLon || Math.min(lon0, lon1) > maxLon ||
+                    Math.max(lat0, lat1) < minLat || Math.min(lat0, lat1) > maxLat) {
+                continue;
+            }
+            curr.edge = segmentEdge.get(s);
+            curr.seg = segmentIndex.get(s);
+            // Find the fraction along the current segment
+            curr.frac = GeometryUtils.segmentFraction(lon0, lat0, lon1, lat1, fixedLon, fixedLat, cosLat);
+            // Project to get the closest point on the segment.
+            // Note: the fraction is scaleless, xScale is accounted for in the segmentFraction function.
+            curr.fixedLon = (int)(lon0 + curr.frac * (lon1 - lon0));
+            curr.fixedLat = (int)(lat0 + curr.frac * (lat1 - lat0));
+            // Find squared distance to edge (avoid taking square root, which is slow)
+            long dx = (long)((curr.fixedLon - fixedLon) * cosLat);
+            long dy = (long) (curr.fixedLat - fixedLat);
+            curr.distanceToEdge_squaredFixedDegrees = dx * dx + dy * dy;
+            // Ignore segments that are too far away (filter false positives).
+            if (curr.distanceToEdge_squaredFixedDegrees < squaredRadiusFixedLat) {
+                if (curr.distanceToEdge_squaredFixedDegrees < best.distanceToEdge_squaredFixedDegrees) {
+                    // Update the best segment if we've found something closer.
+                    best.setFrom(curr);
+                } else if (curr.distanceToEdge_squaredFixedDegrees == best.distanceToEdge_squaredFixedDegrees
+                        && curr.edge < best.edge) {
+                    // Break distance ties by favoring lower edge IDs. This makes destination linking
+                    // deterministic where centroids are equidistant to edges (see issue #159).
+                    best.setFrom(curr);
+                }
+            }
+        }
+
+        if (best.edge < 0) {
+            // No edge found nearby.
+            return null;
+        }
+
+        // We found an edge. Iterate over its segments again, accumulating distances along its geometry.
+        // The distance calculations involve square roots so are deferred to happen here, only on the selected edge.
+        // The length is are stored in one-element array to dodge Java's "effectively final" BS.
+        edge.seek(best.edge);
+        best.vertex0 = edge.getFromVertex();
+        best.vertex1 = edge.getToVertex();
+        double[] lengthBefore_fixedDeg = new double[1];
+        edge.forEachSegment((seg, fLat0, fLon0, fLat1, fLon1) -> {
+            // Sum lengths only up to the split point.
+            // lengthAfter should be total length minus lengthBefore, which ensures splits do not change total lengths.
+            if (seg <= best.seg) {
+                double dx = (fLon1 - fLon0) * cosLat;
+                double dy = (fLat1 - fLat0);
+                double length = FastMath.sqrt(dx * dx + dy * dy);
+                if (seg == best.seg) {
+                    length *= best.frac;
+                }
+                lengthBefore_fixedDeg[0] += length;
+            }
+        });
+        // Convert the fixed-precision degree measurements into (milli)meters
+        double lengthBefore_floatDeg = VertexStore.fixedDegreesToFloating((int)lengthBefore_fixedDeg[0]);
+        best.distance0_mm = (int)(lengthBefore_floatDeg * METERS_PER_DEGREE_LAT * 1000);
+        // FIXME perhaps we should be using the sphericalDistanceLibrary here, or the other way around.
+        // The initial edge lengths are set using that library on OSM node coordinates, and they are slightly different.
+        // We are using a single cosLat value at the linking point, instead of a different value at each segment.
+        if (best.distance0_mm < 0) {
+            best.distance0_mm = 0;
+            LOG.error("Length of first street segment was not positive.");
+        }
+
+        if (best.distance0_mm > edge.getLengthMm()) {
+            // This mistake happens because the linear distance calculation we're using comes out longer than the
+            // spherical distance. The graph remains coherent because we force the two split edge lengths to add up
+            // to the original edge length.
+            LOG.debug("Length of first street segment was greater than the whole edge ({} > {}).",
+                    best.distance0_mm, edge.getLengthMm());
+            best.distance0_mm = edge.getLengthMm();
+        }
+        best.distance1_mm = edge.getLengthMm() - best.distance0_mm;
+
+        // To speed up computation above, square roots were avoided and distanceToEdge_squaredFixedDegrees was
+        // calculated using fixed point degrees. We now want to calculate the distance in millimeters, for routing.
+        // To do so, we take the square root of distanceToEdge_squaredFixedDegrees, convert to floating point degrees
+        // latitude then multiply by the metersPerDegreeLat factor above and 1000 to convert to millimeters.
+        // This is accurate enough for our purposes.
+        double distanceToEdge_fixedDegrees = FastMath.sqrt(best.distanceToEdge_squaredFixedDegrees);
+        double distanceToEdge_floatingDegrees = VertexStore.fixedDegreesToFloating(distanceToEdge_fixedDegrees);
+        best.distanceToEdge_mm = (int) (distanceToEdge_floatingDegrees * METERS_PER_DEGREE_LAT * 1000);
+        return best;
+    }
+
+}
@@ -6,8 +6,12 @@ import com.conveyal.r5.common.GeometryUtils;
 import com.conveyal.r5.profile.StreetMode;
 import com.conveyal.r5.profile.ProfileRequest;
 import com.conveyal.r5.trove.AugmentedList;
+import com.conveyal.r5.trove.TByteSharedArrayList;
 import com.conveyal.r5.trove.TIntAugmentedList;
+import com.conveyal.r5.trove.TIntSharedArrayList;
 import com.conveyal.r5.trove.TLongAugmentedList;
+import com.conveyal.r5.trove.TLongSharedArrayList;
+import com.conveyal.r5.trove.TShortSharedArrayList;
 import com.conveyal.r5.util.P2;
 import com.conveyal.r5.util.TIntIntHashMultimap;
 import com.conveyal.r5.util.TIntIntMultimap;
@@ -74,6 +78,13 @@ public class EdgeStore implements Serializable {
     private static final short DEFAULT_SPEED_KPH = 50;
     private static final int[] EMPTY_INT_ARRAY = new int[0];
 
+    /**
+     * If true, the geometries of all edges are packed into a single delta-coded byte array when the edge store is
+     * frozen, which greatly reduces the memory used by large networks at the cost of decoding each geometry when it's
+     * read. It must be set before networks are built or loaded.
+     */
+    public static boolean PACK_GEOMETRIES = false;
+
     // The vertices that are referred to in these edges
     public VertexStore vertexStore;
 
@@ -103,6 +114,8 @@ public class EdgeStore implements Serializable {
     /**
      * Geometries. One entry for each edge pair. These are packed lists of lat, lon, lat, lon... as fixed-point
      * integers, and don't include the endpoints (i.e. don't include the intersection vertices, only intermediate points).
+     * When PACK_GEOMETRIES is set this is a read-only PackedGeometryList once the edge store is frozen, and the
+     * arrays it returns are decoded on demand, so they should not be retained or modified.
      */
     public List<int[]> geometries;
 
@@ -120,6 +133,28 @@ public class EdgeStore implements Serializable {
      */
     public TByteList outAngles;
 
+    /**
+     * Once a network is built, the values of the columns above for all of its edges are read from plain arrays, which
+     * are much faster to read in the routing inner loops than Trove lists (which are accessed through an interface,
+     * and are augmented lists wrapping the base lists in scenario copies). Edges below frozenEdges, and edge pairs
+     * below frozenEdges / 2, are read from these arrays. The lists are then growable lists using these same arrays as
+     * their storage, so the values are only held once and edges can still be added to a frozen network and by
+     * scenarios. Any change to one of these edges is written to both the list and the array.
+     * Scenario copies share the arrays of their base network, and only read the augmented lists for the edges the
+     * scenario added. The columns they copy (speeds and angles) are held in arrays of their own, again shared with the
+     * lists of the copy.
+     * These are not serialized, and are recreated by calling freeze() after a network is built or loaded.
+     */
+    private transient int frozenEdges = 0;
+    private transient int[] frozenFlags;
+    private transient short[] frozenSpeeds;
+    private transient int[] frozenFromVertices;
+    private transient int[] frozenToVertices;
+    private transient int[] frozenLengths;
+    private transient long[] frozenOsmids;
+    private transient byte[] frozenInAngles;
+    private transient byte[] frozenOutAngles;
+
     /**
      * When applying scenarios, we don't duplicate the entire set of edges and vertices. We extend them, treating
      * the baseline graph as immutable. We have to be careful not to change or delete any elements of that baseline
@@ -316,6 +351,12 @@ public class EdgeStore implements Serializable {
             throw new IllegalArgumentException(String.format("Attempt to end edge pair at nonexistent vertex %s", endVertexIndex));
         }
 
+        // A base network that is still being built (or is being extended after it was built) is read from its lists
+        // until it's frozen again. Otherwise the growing lists would reallocate and the arrays would be duplicates.
+        if (!isExtendOnlyCopy()) {
+            thaw();
+        }
+
         // Extend the parallel lists in the EdgeStore to hold the values for the new edge pair.
         // Store only one length, set of endpoints, and intermediate geometry per pair of edges.
         lengths_mm.add(edgeLengthMillimeters);
@@ -338,6 +379,14 @@ public class EdgeStore implements Serializable {
         speeds.add(DEFAULT_SPEED_KPH);
         flags.add(0);
 
+        // In a frozen scenario copy the lists of speeds and angles may have moved to larger arrays as they grew. Read
+        // the base edges from those, rather than keeping the old arrays as a second copy.
+        if (frozenEdges > 0) {
+            frozenSpeeds = ((TShortSharedArrayList) speeds).array();
+            frozenInAngles = ((TByteSharedArrayList) inAngles).array();
+            frozenOutAngles = ((TByteSharedArrayList) outAngles).array();
+        }
+
         Edge edge = getCursor(forwardEdgeIndex);
         //angles needs to be calculated here since some edges don't get additional geometry (P+R, transit, etc.)
         edge.calculateAngles();
@@ -424,10 +473,16 @@ public class EdgeStore implements Serializable {
         }
 
         public int getFromVertex() {
+            if (edgeIndex < frozenEdges) {
+                return isBackward ? frozenToVertices[pairIndex] : frozenFromVertices[pairIndex];
+            }
             return isBackward ? toVertices.get(pairIndex) : fromVertices.get(pairIndex);
         }
 
         public int getToVertex() {
+            if (edgeIndex < frozenEdges) {
+                return isBackward ? frozenFromVertices[pairIndex] : frozenToVertices[pairIndex];
+            }
             return isBackward ? fromVertices.get(pairIndex) : toVertices.get(pairIndex);
         }
 
@@ -437,21 +492,32 @@ public class EdgeStore implements Serializable {
         public void setToVertex(int toVertexIndex) {
             if (isBackward) {
                 fromVertices.set(pairIndex, toVertexIndex);
+                if (edgeIndex < frozenEdges) frozenFromVertices[pairIndex] = toVertexIndex;
             } else {
                 toVertices.set(pairIndex, toVertexIndex);
+                if (edgeIndex < frozenEdges) frozenToVertices[pairIndex] = toVertexIndex;
             }
         }
 
+        private int getFlagBits () {
+            return edgeIndex < frozenEdges ? frozenFlags[edgeIndex] : flags.get(edgeIndex);
+        }
+
+        private void setFlagBits (int flagBits) {
+            flags.set(edgeIndex, flagBits);
+            if (edgeIndex < frozenEdges) frozenFlags[edgeIndex] = flagBits;
+        }
+
         public boolean getFlag(EdgeFlag flag) {
-            return (flags.get(edgeIndex) & flag.flag) != 0;
+            return (getFlagBits() & flag.flag) != 0;
         }
 
         public void setFlag(EdgeFlag flag) {
-            flags.set(edgeIndex, flags.get(edgeIndex) | flag.flag);
+            setFlagBits(getFlagBits() | flag.flag);
         }
 
         public void clearFlag(EdgeFlag flag) {
-            flags.set(edgeIndex, flags.get(edgeIndex) & ~(flag.flag)); // TODO verify logic
+            setFlagBits(getFlagBits() & ~(flag.flag)); // TODO verify logic
         }
 
         /**
@@ -482,7 +548,7 @@ public class EdgeStore implements Serializable {
         }
 
         public short getSpeed() {
-            return speeds.get(edgeIndex);
+            return edgeIndex < frozenEdges ? frozenSpeeds[edgeIndex] : speeds.get(edgeIndex);
         }
 
         /**
@@ -490,19 +556,20 @@ public class EdgeStore implements Serializable {
          * yet implemented)
          */
         public float getCarSpeedMetersPerSecond() {
-            return (float) ((speeds.get(edgeIndex) / 100.));
+            return (float) ((getSpeed() / 100.));
         }
 
         public float getSpeedkmh() {
-            return (float) ((speeds.get(edgeIndex) / 100.) * 3.6);
+            return (float) ((getSpeed() / 100.) * 3.6);
         }
 
         public void setSpeed(short speed) {
             speeds.set(edgeIndex, speed);
+            if (edgeIndex < frozenEdges) frozenSpeeds[edgeIndex] = speed;
         }
 
         public int getLengthMm () {
-            return lengths_mm.get(pairIndex);
+            return edgeIndex < frozenEdges ? frozenLengths[pairIndex] : lengths_mm.get(pairIndex);
         }
 
         /**
@@ -519,6 +586,12 @@ public class EdgeStore implements Serializable {
             flags.set(backEdge, other.getEdgeStore().flags.get(otherBackEdge));
             speeds.set(foreEdge, other.getEdgeStore().speeds.get(otherForeEdge));
             speeds.set(backEdge, other.getEdgeStore().speeds.get(otherBackEdge));
+            if (backEdge < frozenEdges) {
+                frozenFlags[foreEdge] = flags.get(foreEdge);
+                frozenFlags[backEdge] = flags.get(backEdge);
+                frozenSpeeds[foreEdge] = speeds.get(foreEdge);
+                frozenSpeeds[backEdge] = speeds.get(backEdge);
+            }
         }
 
         /**
@@ -533,6 +606,7 @@ public class EdgeStore implements Serializable {
          */
         public void setLengthMm (int millimeters) {
             lengths_mm.set(pairIndex, millimeters);
+            if (edgeIndex < frozenEdges) frozenLengths[pairIndex] = millimeters;
         }
 
         public boolean isBackward () {
@@ -564,6 +638,10 @@ public class EdgeStore implements Serializable {
             return options.getSpeedForMode(traverseStreetMode);
         }
 
+        /**
+         * Note that StreetRouter.traverseToLabel performs the same calculations for walk and car searches on primitive
+         * labels. Any change to the costs calculated here must also be made there.
+         */
         public StreetRouter.State traverse (StreetRouter.State s0, StreetMode streetMode, ProfileRequest req,
                                             TurnCostCalculator turnCostCalculator, TravelTimeCalculator travelTimeCalculator) {
 
@@ -774,6 +852,7 @@ public class EdgeStore implements Serializable {
          * @param coordinates Packed lists of lat, lon, lat, lon... as fixed-point integers
          */
         public void setGeometry (int[] coordinates) {
+            if (!isExtendOnlyCopy()) unpackGeometries();
             geometries.set(pairIndex, coordinates);
             calculateAngles();
         }
@@ -782,6 +861,7 @@ public class EdgeStore implements Serializable {
          * Set intermediate coordinates from OSM nodes
          */
         public void setGeometry (List<Node> nodes) {
+            if (!isExtendOnlyCopy()) unpackGeometries();
             // The same empty int array represents all straight-line edges.
             if (nodes.size() <= 2) {
                 geometries.set(pairIndex, EMPTY_INT_ARRAY);
@@ -833,15 +913,28 @@ public class EdgeStore implements Serializable {
 
             byte outAngleRad = DirectionUtils.getLastAngleBrads(geometry);
             outAngles.set(pairIndex, outAngleRad);
+
+            if (edgeIndex < frozenEdges) {
+                frozenInAngles[pairIndex] = inAngleRad;
+                frozenOutAngles[pairIndex] = outAngleRad;
+            }
+        }
+
+        private byte getInAngleBrads () {
+            return edgeIndex < frozenEdges ? frozenInAngles[pairIndex] : inAngles.get(pairIndex);
+        }
+
+        private byte getOutAngleBrads () {
+            return edgeIndex < frozenEdges ? frozenOutAngles[pairIndex] : outAngles.get(pairIndex);
         }
 
         public int getOutAngle() {
             int angle;
             if (isBackward()) {
-                angle  = DirectionUtils.bradsToDegree((byte)(inAngles.get(pairIndex)-DirectionUtils.m180));
+                angle  = DirectionUtils.bradsToDegree((byte)(getInAngleBrads()-DirectionUtils.m180));
                 return angle;
             } else {
-                angle  = DirectionUtils.bradsToDegree(outAngles.get(pairIndex));
+                angle  = DirectionUtils.bradsToDegree(getOutAngleBrads());
                 return angle;
             }
         }
@@ -849,10 +942,10 @@ public class EdgeStore implements Serializable {
         public int getInAngle() {
             int angle;
             if (isBackward()) {
-                angle = DirectionUtils.bradsToDegree((byte)(outAngles.get(pairIndex)-DirectionUtils.m180));
+                angle = DirectionUtils.bradsToDegree((byte)(getOutAngleBrads()-DirectionUtils.m180));
                 return angle;
             } else {
-                angle = DirectionUtils.bradsToDegree(inAngles.get(pairIndex));
+                angle = DirectionUtils.bradsToDegree(getInAngleBrads());
                 return angle;
             }
         }
@@ -868,7 +961,7 @@ public class EdgeStore implements Serializable {
         public LineString getGeometry() {
             int[] coords = geometries.get(pairIndex);
             //Size is 2 (from and to vertex) if there are no intermediate vertices
-            int size = coords == EMPTY_INT_ARRAY ? 2 :
+            int size = coords.length == 0 ? 2 :
                 //division with two since coordinates are in same array saved as lat, lon,lat etc.
                 (coords.length / 2) + 2;
             Coordinate[] c = new Coordinate[size];
@@ -1059,7 +1152,7 @@ public class EdgeStore implements Serializable {
         }
 
         public long getOSMID() {
-            return osmids.get(pairIndex);
+            return edgeIndex < frozenEdges ? frozenOsmids[pairIndex] : osmids.get(pairIndex);
         }
     }
 
@@ -1120,6 +1213,86 @@ public class EdgeStore implements Serializable {
         // Private trivial constructor. Leaves all fields blank for use in extend-only copy method.
     }
 
+    /**
+     * Copy the values of every edge into plain arrays that are read in place of the lists, and replace the lists with
+     * lists sharing those arrays. This should be called once the base network is completely built or loaded, and does
+     * nothing on scenario copies, which share the arrays frozen in their base network. Adding edges to a base network
+     * after it's frozen will thaw it, and it will have to be frozen again to read from arrays.
+     */
+    public void freeze () {
+        if (isExtendOnlyCopy()) return;
+        frozenFlags = flags.toArray();
+        flags = new TIntSharedArrayList(frozenFlags);
+        frozenSpeeds = speeds.toArray();
+        speeds = new TShortSharedArrayList(frozenSpeeds);
+        frozenFromVertices = fromVertices.toArray();
+        fromVertices = new TIntSharedArrayList(frozenFromVertices);
+        frozenToVertices = toVertices.toArray();
+        toVertices = new TIntSharedArrayList(frozenToVertices);
+        frozenLengths = lengths_mm.toArray();
+        lengths_mm = new TIntSharedArrayList(frozenLengths);
+        frozenOsmids = osmids.toArray();
+        osmids = new TLongSharedArrayList(frozenOsmids);
+        frozenInAngles = inAngles.toArray();
+        inAngles = new TByteSharedArrayList(frozenInAngles);
+        frozenOutAngles = outAngles.toArray();
+        outAngles = new TByteSharedArrayList(frozenOutAngles);
+        if (PACK_GEOMETRIES && !(geometries instanceof PackedGeometryList)) {
+            PackedGeometryList packedGeometries = PackedGeometryList.pack(geometries);
+            if (packedGeometries == null) {
+                LOG.warn("Street geometries are too large to pack, leaving them unpacked.");
+            } else {
+                geometries = packedGeometries;
+            }
+        }
+        frozenEdges = nEdges();
+    }
+
+    /** @return true if the edges are being read from the plain arrays created by freeze(). */
+    public boolean isFrozen () {
+        return frozenEdges > 0;
+    }
+
+    /**
+     * Stop reading edges from the frozen arrays, so that the lists can be extended. The lists keep the arrays as their
+     * storage until they grow.
+     */
+    private void thaw () {
+        frozenEdges = 0;
+        frozenFlags = null;
+        frozenSpeeds = null;
+        frozenFromVertices = null;
+        frozenToVertices = null;
+        frozenLengths = null;
+        frozenOsmids = null;
+        frozenInAngles = null;
+        frozenOutAngles = null;
+        unpackGeometries();
+    }
+
+    /** If the geometries are packed, replace them with a modifiable list of the same geometries. */
+    private void unpackGeometries () {
+        if (geometries instanceof PackedGeometryList) {
+            geometries = new ArrayList<>(geometries);
+        }
+    }
+
+    /**
+     * Replace the speeds of all edges, keeping the frozen speeds (if any) in sync. Scenario copies have their own
+     * speeds rather than an extension of the base speeds, so they can be replaced without affecting the base network.
+     */
+    public void setSpeeds (TShortList newSpeeds) {
+        if (newSpeeds.size() != nEdges()) {
+            throw new IllegalArgumentException("There must be exactly one speed per edge.");
+        }
+        if (frozenEdges > 0) {
+            frozenSpeeds = newSpeeds.toArray();
+            speeds = new TShortSharedArrayList(frozenSpeeds);
+        } else {
+            speeds = newSpeeds;
+        }
+    }
+
     /**
      * Returns a semi-deep copy of this EdgeStore for use when applying Scenarios. Mutable objects and collections
      * will be cloned, but their contents will not. The lists containing the edge characteristics will be copied
@@ -1138,8 +1311,6 @@ public class EdgeStore implements Serializable {
         // So the StreetLayer that makes this copy needs to grab a pointer to the new extend only VertexStore
         copy.vertexStore = vertexStore.extendOnlyCopy();
         copy.flags = new TIntAugmentedList(flags);
-        // This is a deep copy, we should do an extend-copy but need a new class for that. Can we just use ints?
-        copy.speeds = new TShortArrayList(speeds);
         // Vertex indices, geometries, and lengths are shared between pairs of forward and backward edges.
         copy.fromVertices = new TIntAugmentedList(fromVertices);
         copy.toVertices = new TIntAugmentedList(toVertices);
@@ -1147,9 +1318,28 @@ public class EdgeStore implements Serializable {
         copy.lengths_mm = new TIntAugmentedList(lengths_mm);
         copy.osmids = new TLongAugmentedList(this.osmids);
         copy.temporarilyDeletedEdges = new TIntHashSet();
-        //Angles are deep copy for now
-        copy.inAngles = new TByteArrayList(inAngles);
-        copy.outAngles = new TByteArrayList(outAngles);
+        // Speeds are a deep copy, we should do an extend-copy but need a new class for that. Can we just use ints?
+        // Angles are deep copy for now. These lists must be growable, as the scenario may add edges.
+        if (frozenEdges > 0) {
+            // The copy reads the base edges from the frozen arrays of the base network. The deep-copied columns need
+            // their own arrays because the scenario may change them, which are also the storage of the copied lists.
+            copy.frozenEdges = frozenEdges;
+            copy.frozenFlags = frozenFlags;
+            copy.frozenFromVertices = frozenFromVertices;
+            copy.frozenToVertices = frozenToVertices;
+            copy.frozenLengths = frozenLengths;
+            copy.frozenOsmids = frozenOsmids;
+            copy.frozenSpeeds = speeds.toArray();
+            copy.speeds = new TShortSharedArrayList(copy.frozenSpeeds);
+            copy.frozenInAngles = inAngles.toArray();
+            copy.inAngles = new TByteSharedArrayList(copy.frozenInAngles);
+            copy.frozenOutAngles = outAngles.toArray();
+            copy.outAngles = new TByteSharedArrayList(copy.frozenOutAngles);
+        } else {
+            copy.speeds = new TShortArrayList(speeds);
+            copy.inAngles = new TByteArrayList(inAngles);
+            copy.outAngles = new TByteArrayList(outAngles);
+        }
         // We don't expect to add/change any turn restrictions.
         copy.turnRestrictions = turnRestrictions;
         copy.turnRestrictionsReverse = turnRestrictionsReverse;
@@ -3,6 +3,7 @@ package com.conveyal.r5.streets;
 import com.conveyal.r5.analyst.WebMercatorGridPointSet;
 import com.conveyal.r5.analyst.progress.ProgressListener;
 import com.conveyal.r5.common.GeometryUtils;
+import com.conveyal.r5.kryo.MappedIntTables;
 import com.conveyal.r5.profile.StreetMode;
 import com.conveyal.r5.transit.TransitLayer;
 import com.conveyal.r5.util.LambdaCounter;
@@ -12,7 +13,6 @@ import com.vividsolutions.jts.geom.Point;
 import gnu.trove.list.TIntList;
 import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.TIntIntMap;
-import gnu.trove.map.hash.TIntIntHashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -73,8 +73,9 @@ public class EgressCostTable implements Serializable {
     public List<int[]> stopToPointLinkageCostTables;
 
     /**
-     * For each PointSet point, the transit stops from which it can be reached as a map from StopID to distance or time
-     * (i.e. "cost"). For walk and bike, distance is in millimeters; for car, distance is actually time in seconds.
+     * For each PointSet point, the transit stops from which it can be reached and the distance or time (i.e. "cost")
+     * from each of those stops. For walk and bike, distance is in millimeters; for car, distance is actually time in
+     * seconds.
      *
      * This is a transposed version of stopToPointLinkageCostTables for direct use in propagation. This is used in
      * PerTargetPropagator to find all the stops near a particular point (grid cell) so we can perform propagation to
@@ -83,12 +84,24 @@ public class EgressCostTable implements Serializable {
      * We only retain a few percentiles of travel time at each target cell, so handling one cell at a time allows us to
      * keep the output size within reason.
      *
+     * The table is stored in compressed sparse row form: the entries for point p are at indexes
+     * pointToStopOffsets[p] (inclusive) through pointToStopOffsets[p + 1] (exclusive) of the two parallel arrays
+     * pointToStopStops and pointToStopCosts. Within each point the entries are sorted by stop index, so the
+     * propagation loop steps through the travel times to stops in memory order. This uses three arrays in total
+     * rather than one hash map object per point, which matters on grids with hundreds of thousands of cells.
+     *
      * TODO This appears to be transient only because the stopToPointLinkageCostTables are more compact (less references).
      * We serialize one walk linkage and associated distance tables along with each TransportNetwork.
      * However, keeping both of these in memory is a huge waste of space. The cost tables are one of the largest and
      * most problematic objects in our application from a memory consumption (and S3 data transfer) point of view.
      */
-    private transient List<TIntIntMap> pointToStopLinkageCostTables;
+    private transient int[] pointToStopOffsets;
+
+    /** The stop index of each entry in the transposed point -> stop table, see pointToStopOffsets. */
+    private transient int[] pointToStopStops;
+
+    /** The cost of each entry in the transposed point -> stop table, parallel to pointToStopStops. */
+    private transient int[] pointToStopCosts;
 
     /**
      * Build an EgressCostTable for the given LinkedPointSet.
@@ -387,39 +400,104 @@ public class EgressCostTable implements Serializable {
      * One should represent the region, or read-through crops of the whole region, and the other should be per-scenario.
      */
     public synchronized void destructivelyTransposeForPropagationAsNeeded() {
-        if (pointToStopLinkageCostTables == null) {
+        if (pointToStopOffsets == null) {
             // Release reference to the source table, in order to fail fast if any other thread tries to read them.
-            // We make a local copy so we can release each reference while copying.
-            List<int[]> stopToPointTables = new ArrayList<>(this.stopToPointLinkageCostTables);
+            // We make a local copy so we can release each reference while copying. Memory-mapped tables are not on
+            // the heap and are read-only, so they are read in place. Their tables may be decoded again in the second pass
+            // if they are no longer among the recently decoded tables kept on the heap.
+            boolean mapped = this.stopToPointLinkageCostTables instanceof MappedIntTables.IntArrayTableList;
+            List<int[]> stopToPointTables = mapped ? this.stopToPointLinkageCostTables
+                    : new ArrayList<>(this.stopToPointLinkageCostTables);
             this.stopToPointLinkageCostTables = null;
-            TIntIntMap[] result = new TIntIntMap[linkedPointSet.size()];
+            int nPoints = linkedPointSet.size();
+            // First pass: count the entries for each point, then convert the counts to offsets.
+            // Each count is stored one slot ahead so that the cumulative sum gives the start of each point's entries.
+            int[] offsets = new int[nPoints + 1];
+            for (int[] stopToPointTable : stopToPointTables) {
+                if (stopToPointTable == null) {
+                    continue;
+                }
+                for (int idx = 0; idx < stopToPointTable.length; idx += 2) {
+                    offsets[stopToPointTable[idx] + 1] += 1;
+                }
+            }
+            for (int point = 0; point < nPoints; point++) {
+                offsets[point + 1] += offsets[point];
+            }
+            // Second pass: fill in the entries. Stops are visited in ascending order, so the entries for each point
+            // end up sorted by stop index.
+            int nEntries = offsets[nPoints];
+            int[] stops = new int[nEntries];
+            int[] costs = new int[nEntries];
+            int[] nextEntryForPoint = Arrays.copyOf(offsets, nPoints);
             for (int stop = 0; stop < stopToPointTables.size(); stop++) {
                 int[] stopToPointTable = stopToPointTables.get(stop);
                 if (stopToPointTable == null) {
                     continue;
                 }
                 for (int idx = 0; idx < stopToPointTable.length; idx += 2) {
-                    int point = stopToPointTable[idx];
-                    int distance = stopToPointTable[idx + 1];
-                    if (result[point] == null) {
-                        result[point] = new TIntIntHashMap();
-                    }
-                    result[point].put(stop, distance);
+                    int entry = nextEntryForPoint[stopToPointTable[idx]]++;
+                    stops[entry] = stop;
+                    costs[entry] = stopToPointTable[idx + 1];
                 }
                 // Release the reference to this stop's table for garbage collection.
-                stopToPointTables.set(stop, null);
+                if (!mapped) {
+                    stopToPointTables.set(stop, null);
+                }
             }
-            // Make the transposed table available to propagation.
-            this.pointToStopLinkageCostTables = Arrays.asList(result);
+            // Make the transposed table available to propagation. The offsets are assigned last, as they are used
+            // to check whether the transposition has already been performed.
+            this.pointToStopStops = stops;
+            this.pointToStopCosts = costs;
+            this.pointToStopOffsets = offsets;
         }
     }
 
+    /*
+     * Accessors for the transposed cost tables. You should first call destructivelyTransposeForPropagationAsNeeded
+     * before calling any of these methods. The cost table for a point consists of the entries from
+     * getFirstEntryForPoint (inclusive) to getEndEntryForPoint (exclusive), sorted by stop index.
+     */
+    /** @return the index of the first entry in the cost table for the given destination point. */
+    public int getFirstEntryForPoint (int pointIndex) {
+        return pointToStopOffsets[pointIndex];
+    }
+
+    /** @return one past the index of the last entry in the cost table for the given destination point. */
+    public int getEndEntryForPoint (int pointIndex) {
+        return pointToStopOffsets[pointIndex + 1];
+    }
+
+    /** @return the index of the transit stop for the given cost table entry. */
+    public int getStopForEntry (int entry) {
+        return pointToStopStops[entry];
+    }
+
+    /** @return the cost to reach the point from the stop, for the given cost table entry. */
+    public int getCostForEntry (int entry) {
+        return pointToStopCosts[entry];
+    }
+
     /**
-     * You should first call destructivelyTransposeForPropagationAsNeeded before calling this method.
-     * @return for the given destination point index, a map from stop_index -> cost_to_reach_point for all nearby stops
+     * @return a rough estimate of the heap memory retained by these cost tables in bytes, for weighing caches.
+     * Memory-mapped tables are not on the heap and are not counted. Tables reused from a base linkage are counted
+     * again here, so this errs on the high side for scenario linkages.
      */
-    public TIntIntMap getCostTableForPoint (int pointIndex) {
-        return pointToStopLinkageCostTables.get(pointIndex);
+    public long estimateRetainedBytes () {
+        long bytes = 0;
+        List<int[]> tables = stopToPointLinkageCostTables;
+        if (tables != null && !(tables instanceof MappedIntTables.IntArrayTableList)) {
+            for (int[] table : tables) {
+                // One reference in the list, plus an array header and the values themselves.
+                bytes += 8;
+                if (table != null) bytes += 16 + table.length * 4L;
+            }
+        }
+        int[] offsets = pointToStopOffsets;
+        if (offsets != null) {
+            bytes += offsets.length * 4L + offsets[offsets.length - 1] * 8L;
+        }
+        return bytes;
     }
 
 }
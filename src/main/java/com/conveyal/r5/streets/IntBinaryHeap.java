@@ -0,0 +1,79 @@
+package com.conveyal.r5.streets;
+
+import java.util.Arrays;
+
+/**
+ * A binary min-heap of int values prioritized by int keys, stored in two parallel primitive arrays.
+ * Unlike a java.util.PriorityQueue this does not need a boxed object or a comparator call for each element.
+ * There is no decrease-key operation: as in StreetRouter's object-based search, when a better path is found the
+ * element is simply added again and the caller must skip outdated elements as they come off the heap.
+ */
+class IntBinaryHeap {
+
+    private int[] keys;
+
+    private int[] values;
+
+    private int size = 0;
+
+    IntBinaryHeap (int initialCapacity) {
+        keys = new int[Math.max(initialCapacity, 16)];
+        values = new int[keys.length];
+    }
+
+    boolean isEmpty () {
+        return size == 0;
+    }
+
+    void clear () {
+        size = 0;
+    }
+
+    void push (int key, int value) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        // Sift up: move parents down until we find the right position for the new element.
+        int position = size++;
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            if (keys[parent] <= key) break;
+            keys[position] = keys[parent];
+            values[position] = values[parent];
+            position = parent;
+        }
+        keys[position] = key;
+        values[position] = value;
+    }
+
+    /** @return the lowest key in the heap, which belongs to the element that will be returned by the next pop(). */
+    int peekKey () {
+        return keys[0];
+    }
+
+    /** Remove the element with the lowest key and return its value. */
+    int pop () {
+        int value = values[0];
+        size--;
+        if (size > 0) {
+            // Sift down the last element from the root: move smaller children up until we find its position.
+            int key = keys[size];
+            int movedValue = values[size];
+            int position = 0;
+            while (true) {
+                int child = position * 2 + 1;
+                if (child >= size) break;
+                if (child + 1 < size && keys[child + 1] < keys[child]) child++;
+                if (keys[child] >= key) break;
+                keys[position] = keys[child];
+                values[position] = values[child];
+                position = child;
+            }
+            keys[position] = key;
+            values[position] = movedValue;
+        }
+        return value;
+    }
+
+}
@@ -21,6 +21,7 @@ import gnu.trove.list.TIntList;
 import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.TLongObjectMap;
 import gnu.trove.map.hash.TLongObjectHashMap;
+import gnu.trove.procedure.TIntProcedure;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.TLongSet;
 import gnu.trove.set.hash.TIntHashSet;
@@ -29,6 +30,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -43,6 +45,10 @@ import java.util.concurrent.atomic.AtomicInteger;
  * 
  * Note: For performance reasons, write operations are not synchronized, synchronization must be handled by the caller.
  * Read-only operations are thread-safe though.
+ *
+ * Once a large number of objects have been inserted, the index can be packed: the contents of all bins are copied
+ * into a few sorted primitive arrays, avoiding a hashtable entry and a list object for every bin. Objects inserted
+ * after packing are held in bins in the hashtable as usual, and queries return the contents of both.
  * 
  * @author laurentg, abyrd
  */
@@ -57,6 +63,16 @@ public class IntHashGrid implements Serializable {
     /* The map of all bins. Please see visit() and xKey/yKey for details on the key. */
     private final TLongObjectMap<TIntList> bins;
 
+    /**
+     * The packed bins, in order of their packed keys (see packedKey), which groups them into rows of increasing
+     * y key and orders each row by x key. The contents of the bin with key packedKeys[i] are the sorted, distinct
+     * values in packedEntries from index packedOffsets[i] up to (but not including) packedOffsets[i + 1].
+     * All these arrays are null if the index has not been packed.
+     */
+    private long[] packedKeys;
+    private int[] packedOffsets;
+    private int[] packedEntries;
+
     private int nBins = 0;
 
     private int nObjects = 0;
@@ -154,10 +170,110 @@ public class IntHashGrid implements Serializable {
             ret.addAll(bin);
             return false;
         });
+        visitPacked(envelope, item -> {
+            ret.add(item);
+            return true;
+        });
         return ret;
     }
 
+    /**
+     * Call the given procedure on the contents of every packed bin touching the given envelope, stopping as soon as
+     * the procedure returns false. An object appearing in several of these bins is visited once for each of them.
+     * @return false if the procedure stopped the iteration, true otherwise (including if the index is not packed).
+     */
+    private boolean visitPacked (Envelope envelope, TIntProcedure procedure) {
+        if (packedKeys == null) return true;
+        long minXKey = Math.round(envelope.getMinX() / xBinSize);
+        long maxXKey = Math.round(envelope.getMaxX() / xBinSize);
+        long minYKey = Math.round(envelope.getMinY() / yBinSize);
+        long maxYKey = Math.round(envelope.getMaxY() / yBinSize);
+        if ((maxXKey - minXKey) * (maxYKey - minYKey) > 10000) {
+            LOG.error("Visiting too many spatial index cells.");
+            return true;
+        }
+        for (long yKey = minYKey; yKey <= maxYKey; yKey++) {
+            // The bins in each row are contiguous and sorted by x key, so find the first one and scan along.
+            long maxKey = packedKey(maxXKey, yKey);
+            int i = Arrays.binarySearch(packedKeys, packedKey(minXKey, yKey));
+            if (i < 0) i = -(i + 1);
+            for (; i < packedKeys.length && packedKeys[i] <= maxKey; i++) {
+                for (int j = packedOffsets[i]; j < packedOffsets[i + 1]; j++) {
+                    if (!procedure.execute(packedEntries[j])) return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Move the contents of all bins into the packed arrays, which take much less memory and are faster to query.
+     * Packed bins cannot be modified: objects inserted after packing go into new hashtable bins, and remove() will
+     * refuse to remove objects from the packed bins.
+     */
+    public void pack () {
+        // Combine any existing packed bins with the ones in the hashtable.
+        TLongObjectMap<TIntSet> contents = new TLongObjectHashMap<>();
+        if (packedKeys != null) {
+            for (int i = 0; i < packedKeys.length; i++) {
+                TIntSet bin = new TIntHashSet();
+                for (int j = packedOffsets[i]; j < packedOffsets[i + 1]; j++) bin.add(packedEntries[j]);
+                contents.put(packedKeys[i], bin);
+            }
+        }
+        bins.forEachEntry((mapKey, bin) -> {
+            // Reverse the swapping of the two halves of the x key performed in visit().
+            long yKey = mapKey >> 32;
+            long xKey = (int) (((mapKey & 0xFFFF) << 16) | ((mapKey >> 16) & 0xFFFF));
+            long key = packedKey(xKey, yKey);
+            TIntSet packedBin = contents.get(key);
+            if (packedBin == null) {
+                packedBin = new TIntHashSet();
+                contents.put(key, packedBin);
+            }
+            packedBin.addAll(bin);
+            return true;
+        });
+        long[] keys = contents.keys();
+        Arrays.sort(keys);
+        int[] offsets = new int[keys.length + 1];
+        int nPackedEntries = 0;
+        for (int i = 0; i < keys.length; i++) {
+            nPackedEntries += contents.get(keys[i]).size();
+            offsets[i + 1] = nPackedEntries;
+        }
+        int[] entries = new int[nPackedEntries];
+        for (int i = 0; i < keys.length; i++) {
+            int[] bin = contents.get(keys[i]).toArray();
+            Arrays.sort(bin);
+            System.arraycopy(bin, 0, entries, offsets[i], bin.length);
+        }
+        packedKeys = keys;
+        packedOffsets = offsets;
+        packedEntries = entries;
+        bins.clear();
+        nBins = keys.length;
+        nEntries = nPackedEntries;
+    }
+
+    /**
+     * Combine the x and y keys of a bin into a single long, such that sorting these values orders the bins by y key
+     * and then by x key. The x key is offset so that negative keys sort before positive ones.
+     */
+    private static long packedKey (long xKey, long yKey) {
+        return (yKey << 32) | ((xKey - Integer.MIN_VALUE) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Remove the given object from all the bins touching the given envelope.
+     * @return true if the object was found and removed from at least one bin.
+     * @throws IllegalStateException if the object is held in any packed bin touching the envelope, as packed bins
+     *         cannot be modified. The index is left unchanged in that case.
+     */
     public final boolean remove(Envelope envelope, final int item) {
+        if (!visitPacked(envelope, packedItem -> packedItem != item)) {
+            throw new IllegalStateException("Cannot remove an object from the packed bins of a spatial index.");
+        }
         final AtomicInteger removedCount = new AtomicInteger();
         visit(envelope, false, (bin, mapKey) -> {
             boolean removed = bin.remove(item);
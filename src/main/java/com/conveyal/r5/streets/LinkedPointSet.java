@@ -33,6 +33,9 @@ public class LinkedPointSet implements Serializable {
 
     private static final Logger LOG = LoggerFactory.getLogger(LinkedPointSet.class);
 
+    /** When linking a grid, the width and height in cells of the tiles that share a single spatial index query. */
+    private static final int LINK_TILE_SIZE = 8;
+
     // CONSTANTS
 
     public static final int OFF_STREET_SPEED_MILLIMETERS_PER_SECOND = (int) (1.3f * 1000);
@@ -293,6 +296,11 @@ public class LinkedPointSet implements Serializable {
     private void linkPointsToStreets (boolean all) {
         LambdaCounter linkCounter = new LambdaCounter(LOG, pointSet.featureCount(), 10000,
                 "Linked {} of {} PointSet points to streets.");
+        if (all && pointSet instanceof WebMercatorGridPointSet) {
+            linkGridToStreets(linkCounter);
+            logLinkingSummary(linkCounter);
+            return;
+        }
         // Perform linkage calculations in parallel, writing results to the shared parallel arrays.
         IntStream.range(0, pointSet.featureCount()).parallel().forEach(p -> {
             // When working with a scenario, skip all points that are not linked to a deleted street (i.e. one that has
@@ -306,17 +314,68 @@ public class LinkedPointSet implements Serializable {
                 // Use radius from StreetLayer such that maximum origin and destination walk distances are symmetric.
                 Split split = streetLayer.findSplit(pointSet.getLat(p), pointSet.getLon(p),
                         StreetLayer.LINK_RADIUS_METERS, streetMode);
-                if (split == null) {
-                    edges[p] = -1;
-                } else {
-                    edges[p] = split.edge;
-                    distancesToEdge_mm[p] = split.distanceToEdge_mm;
-                    distances0_mm[p] = split.distance0_mm;
-                    distances1_mm[p] = split.distance1_mm;
-                }
+                setLinkage(p, split);
                 linkCounter.increment();
             }
         });
+        logLinkingSummary(linkCounter);
+    }
+
+    /**
+     * Link every cell of a grid, working on square tiles of neighboring cells in parallel. The streets near all the
+     * cells in a tile are found with a single spatial index query, and their segments are extracted only once.
+     * This gives the same results as calling StreetLayer.findSplit for each cell: most cells are close to a street
+     * and are linked using the tile's segments within the initial radius, and the rest fall back on a full search.
+     */
+    private void linkGridToStreets (LambdaCounter linkCounter) {
+        WebMercatorGridPointSet grid = (WebMercatorGridPointSet) pointSet;
+        int tileColumns = (grid.width + LINK_TILE_SIZE - 1) / LINK_TILE_SIZE;
+        int tileRows = (grid.height + LINK_TILE_SIZE - 1) / LINK_TILE_SIZE;
+        IntStream.range(0, tileColumns * tileRows).parallel().forEach(tile -> {
+            int minX = (tile % tileColumns) * LINK_TILE_SIZE;
+            int minY = (tile / tileColumns) * LINK_TILE_SIZE;
+            int maxX = Math.min(minX + LINK_TILE_SIZE, grid.width);
+            int maxY = Math.min(minY + LINK_TILE_SIZE, grid.height);
+            Envelope tileEnvelope = new Envelope();
+            for (int y = minY; y < maxY; y++) {
+                for (int x = minX; x < maxX; x++) {
+                    int p = y * grid.width + x;
+                    tileEnvelope.expandToInclude(CandidateSegments.searchEnvelope(grid.getLat(p), grid.getLon(p),
+                            StreetLayer.INITIAL_LINK_RADIUS_METERS));
+                }
+            }
+            CandidateSegments candidates = new CandidateSegments(streetLayer, streetMode,
+                    streetLayer.findEdgesInEnvelope(tileEnvelope));
+            for (int y = minY; y < maxY; y++) {
+                for (int x = minX; x < maxX; x++) {
+                    int p = y * grid.width + x;
+                    double lat = grid.getLat(p);
+                    double lon = grid.getLon(p);
+                    // As in StreetLayer.findSplit, try a small radius before searching with the full radius.
+                    Split split = candidates.findSplit(lat, lon, StreetLayer.INITIAL_LINK_RADIUS_METERS);
+                    if (split == null) {
+                        split = Split.find(lat, lon, StreetLayer.LINK_RADIUS_METERS, streetLayer, streetMode);
+                    }
+                    setLinkage(p, split);
+                    linkCounter.increment();
+                }
+            }
+        });
+    }
+
+    /** Record the linkage of point p to the street network, or the absence of a linkage if split is null. */
+    private void setLinkage (int p, Split split) {
+        if (split == null) {
+            edges[p] = -1;
+        } else {
+            edges[p] = split.edge;
+            distancesToEdge_mm[p] = split.distanceToEdge_mm;
+            distances0_mm[p] = split.distance0_mm;
+            distances1_mm[p] = split.distance1_mm;
+        }
+    }
+
+    private void logLinkingSummary (LambdaCounter linkCounter) {
         long unlinked = Arrays.stream(edges).filter(e -> e == -1).count();
         linkCounter.done();
         LOG.info("      {} of {} points were copied unchanged from the source linkage.",
@@ -331,6 +390,23 @@ public class LinkedPointSet implements Serializable {
         return edges.length;
     }
 
+    /**
+     * @return a rough estimate of the heap memory retained by this linkage in bytes, including its egress cost table
+     * if that has already been built. The PointSet and StreetLayer are shared with other objects and are not counted.
+     * This does not synchronize on the linkage, to avoid waiting while the egress cost table is being built.
+     */
+    public long estimateRetainedBytes () {
+        long bytes = 4L * (edges.length + distancesToEdge_mm.length + distances0_mm.length + distances1_mm.length);
+        EgressCostTable table = egressCostTable;
+        if (table != null) bytes += table.estimateRetainedBytes();
+        return bytes;
+    }
+
+    /** @return true if the egress cost table for this linkage has already been built, without building it. */
+    public boolean hasEgressCostTable () {
+        return egressCostTable != null;
+    }
+
     /**
      * A functional interface for fetching the travel time to any street vertex in the transport network. Note that
      * TIntIntMap::get matches this functional interface. There may be a generic IntToIntFunction library interface
@@ -0,0 +1,132 @@
+package com.conveyal.r5.streets;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.List;
+
+/**
+ * A read-only list of the intermediate point arrays of street edge geometries, packed into a single byte array.
+ * Storing one int array per edge pair costs an object header and a reference for every edge pair, even though most
+ * geometries are only a few points long. Here each geometry is stored as its number of values followed by the
+ * difference of each fixed-point latitude or longitude from the previous latitude or longitude, as zigzag-encoded
+ * variable-length integers. Neighboring points on a street are close together, so most differences fit in one or two
+ * bytes. Geometries are decoded into a new int array each time they are retrieved, which is acceptable because they
+ * are only needed for linking, splitting and producing output, not for routing.
+ */
+public class PackedGeometryList extends AbstractList<int[]> implements Serializable {
+
+    private static final int[] EMPTY_INT_ARRAY = new int[0];
+
+    /** The packed geometries of all edge pairs, one after another. */
+    private final byte[] packed;
+
+    /** The position in the packed array at which the geometry of each edge pair begins. */
+    private final int[] offsets;
+
+    private PackedGeometryList (byte[] packed, int[] offsets) {
+        this.packed = packed;
+        this.offsets = offsets;
+    }
+
+    /**
+     * Pack the given geometries.
+     * @return the packed geometries, or null if they are too big to fit in a single array.
+     */
+    public static PackedGeometryList pack (List<int[]> geometries) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(geometries.size() * 4);
+        int[] offsets = new int[geometries.size()];
+        for (int g = 0; g < offsets.length; g++) {
+            if (out.size() < 0 || out.size() > Integer.MAX_VALUE - 1024) return null;
+            offsets[g] = out.size();
+            int[] geometry = geometries.get(g);
+            if (geometry == null) geometry = EMPTY_INT_ARRAY;
+            writeVarInt(out, geometry.length);
+            // Latitudes and longitudes alternate, so each value is coded relative to the one two positions earlier.
+            int previousLat = 0;
+            int previousLon = 0;
+            for (int i = 0; i < geometry.length; i += 2) {
+                writeVarInt(out, geometry[i] - previousLat);
+                writeVarInt(out, geometry[i + 1] - previousLon);
+                previousLat = geometry[i];
+                previousLon = geometry[i + 1];
+            }
+        }
+        return new PackedGeometryList(out.toByteArray(), offsets);
+    }
+
+    @Override
+    public int[] get (int index) {
+        int[] position = new int[] { offsets[index] };
+        int length = readVarInt(position);
+        if (length == 0) return EMPTY_INT_ARRAY;
+        int[] geometry = new int[length];
+        int previousLat = 0;
+        int previousLon = 0;
+        for (int i = 0; i < length; i += 2) {
+            previousLat += readVarInt(position);
+            previousLon += readVarInt(position);
+            geometry[i] = previousLat;
+            geometry[i + 1] = previousLon;
+        }
+        return geometry;
+    }
+
+    @Override
+    public int size () {
+        return offsets.length;
+    }
+
+    /** @return the number of bytes of heap memory used by this list. */
+    public long estimateRetainedBytes () {
+        return packed.length + offsets.length * 4L + 64;
+    }
+
+    private static void writeVarInt (ByteArrayOutputStream out, int value) {
+        int zigzag = (value << 1) ^ (value >> 31);
+        while ((zigzag & ~0x7F) != 0) {
+            out.write((zigzag & 0x7F) | 0x80);
+            zigzag >>>= 7;
+        }
+        out.write(zigzag);
+    }
+
+    /** Read one variable-length integer starting at position[0], advancing the position past it. */
+    private int readVarInt (int[] position) {
+        int zigzag = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = packed[position[0]++];
+            zigzag |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    /**
+     * Kryo would otherwise treat this as an ordinary collection and try to rebuild it by adding elements one by one.
+     * Write the packed arrays directly instead, so the geometries stay packed when the network is reloaded.
+     */
+    public static class PackedGeometryListSerializer extends Serializer<PackedGeometryList> {
+        @Override
+        public void write (Kryo kryo, Output output, PackedGeometryList list) {
+            output.writeInt(list.packed.length);
+            output.writeBytes(list.packed);
+            kryo.writeObject(output, list.offsets);
+        }
+
+        @Override
+        public PackedGeometryList read (Kryo kryo, Input input, Class<PackedGeometryList> type) {
+            byte[] packed = input.readBytes(input.readInt());
+            int[] offsets = kryo.readObject(input, int[].class);
+            return new PackedGeometryList(packed, offsets);
+        }
+    }
+
+}
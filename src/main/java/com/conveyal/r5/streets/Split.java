@@ -73,137 +73,10 @@ public class Split {
      */
     public static Split find (double lat, double lon, double searchRadiusMeters, StreetLayer streetLayer,
                               StreetMode streetMode) {
-
-        // After this conversion, the entire geometric calculation is happening in fixed precision int degrees.
-        int fixedLat = VertexStore.floatingDegreesToFixed(lat);
-        int fixedLon = VertexStore.floatingDegreesToFixed(lon);
-
-        // We won't worry about the perpendicular walks yet.
-        // Just insert or find a vertex on the nearest road and return that vertex.
-
-        final double metersPerDegreeLat = 111111.111;
-        double cosLat = FastMath.cos(FastMath.toRadians(lat)); // The projection factor, Earth is a "sphere"
-
-        // Use longs for radii and their square because squaring the fixed-point radius _will_ overflow a signed int32.
-        long radiusFixedLat = VertexStore.floatingDegreesToFixed(searchRadiusMeters / metersPerDegreeLat);
-        long radiusFixedLon = (int)(radiusFixedLat / cosLat); // Expand the X search space, don't shrink it.
-        Envelope envelope = new Envelope(fixedLon, fixedLon, fixedLat, fixedLat);
-        envelope.expandBy(radiusFixedLon, radiusFixedLat);
-        long squaredRadiusFixedLat = radiusFixedLat * radiusFixedLat;
-        EdgeStore.Edge edge = streetLayer.edgeStore.getCursor();
+        Envelope envelope = CandidateSegments.searchEnvelope(lat, lon, searchRadiusMeters);
         // Iterate over the set of forward (even) edges that may be near the given coordinate.
         TIntCollection candidateEdges = streetLayer.findEdgesInEnvelope(envelope);
-        // The split location currently being examined and the best one seen so far.
-        Split curr = new Split();
-        Split best = new Split();
-        candidateEdges.forEach(e -> {
-            curr.edge = e;
-            edge.seek(e);
-
-            // Do not consider linking to edges that are links to streets from transit stops, P+Rs, and bike shares.
-            // These edges allow all modes to traverse, but may be connected to roads with more restrictive permissions.
-            // On a given edge pair both directions will have the same flag.
-            if (edge.getFlag(EdgeStore.EdgeFlag.LINK)) return true;
-
-            // If either direction of the current edge doesn't allow the specified mode of travel, skip it.
-            // It is arguably better to skip it only if BOTH directions forbid the specified mode (see commented block
-            // below). This system has odd effects in areas with lots of one-way streets or divided roads.
-            // TODO Really, we want to allow linking to two different edge-pairs in such cases but that is more complex.
-            // Do not consider linking to edges that are not marked "linkable". This excludes e.g. tunnels and motorways.
-            if (!edge.allowsStreetMode(streetMode) || !edge.getFlag(EdgeStore.EdgeFlag.LINKABLE)) {
-                return true;
-            }
-            edge.advance();
-            if (!edge.allowsStreetMode(streetMode) || !edge.getFlag(EdgeStore.EdgeFlag.LINKABLE)) {
-                return true;
-            }
-            edge.retreat();
-
-            // The distance to this edge is the distance to the closest segment of its geometry.
-            edge.forEachSegment((seg, fixedLat0, fixedLon0, fixedLat1, fixedLon1) -> {
-                // Find the fraction along the current segment
-                curr.seg = seg;
-                curr.frac = GeometryUtils.segmentFraction(fixedLon0, fixedLat0, fixedLon1, fixedLat1, fixedLon, fixedLat, cosLat);
-                // Project to get the closest point on the segment.
-                // Note: the fraction is scaleless, xScale is accounted for in the segmentFraction function.
-                curr.fixedLon = (int)(fixedLon0 + curr.frac * (fixedLon1 - fixedLon0));
-                curr.fixedLat = (int)(fixedLat0 + curr.frac * (fixedLat1 - fixedLat0));
-                // Find squared distance to edge (avoid taking square root, which is slow)
-                long dx = (long)((curr.fixedLon - fixedLon) * cosLat);
-                long dy = (long) (curr.fixedLat - fixedLat);
-                curr.distanceToEdge_squaredFixedDegrees = dx * dx + dy * dy;
-                // Ignore segments that are too far away (filter false positives).
-                if (curr.distanceToEdge_squaredFixedDegrees < squaredRadiusFixedLat) {
-                    if (curr.distanceToEdge_squaredFixedDegrees < best.distanceToEdge_squaredFixedDegrees) {
-                        // Update the best segment if we've found something closer.
-                        best.setFrom(curr);
-                    } else if (curr.distanceToEdge_squaredFixedDegrees == best.distanceToEdge_squaredFixedDegrees
-                            && curr.edge < best.edge) {
-                        // Break distance ties by favoring lower edge IDs. This makes destination linking
-                        // deterministic where centroids are equidistant to edges (see issue #159).
-                        best.setFrom(curr);
-                    }
-                }
-            });
-            // The loop over the edges should continue.
-            return true;
-        });
-
-        if (best.edge < 0) {
-            // No edge found nearby.
-            return null;
-        }
-
-        // We found an edge. Iterate over its segments again, accumulating distances along its geometry.
-        // The distance calculations involve square roots so are deferred to happen here, only on the selected edge.
-        // The length is are stored in one-element array to dodge Java's "effectively final" BS.
-        edge.seek(best.edge);
-        best.vertex0 = edge.getFromVertex();
-        best.vertex1 = edge.getToVertex();
-        double[] lengthBefore_fixedDeg = new double[1];
-        edge.forEachSegment((seg, fLat0, fLon0, fLat1, fLon1) -> {
-            // Sum lengths only up to the split point.
-            // lengthAfter should be total length minus lengthBefore, which ensures splits do not change total lengths.
-            if (seg <= best.seg) {
-                double dx = (fLon1 - fLon0) * cosLat;
-                double dy = (fLat1 - fLat0);
-                double length = FastMath.sqrt(dx * dx + dy * dy);
-                if (seg == best.seg) {
-                    length *= best.frac;
-                }
-                lengthBefore_fixedDeg[0] += length;
-            }
-        });
-        // Convert the fixed-precision degree measurements into (milli)meters
-        double lengthBefore_floatDeg = VertexStore.fixedDegreesToFloating((int)lengthBefore_fixedDeg[0]);
-        best.distance0_mm = (int)(lengthBefore_floatDeg * metersPerDegreeLat * 1000);
-        // FIXME perhaps we should be using the sphericalDistanceLibrary here, or the other way around.
-        // The initial edge lengths are set using that library on OSM node coordinates, and they are slightly different.
-        // We are using a single cosLat value at the linking point, instead of a different value at each segment.
-        if (best.distance0_mm < 0) {
-            best.distance0_mm = 0;
-            LOG.error("Length of first street segment was not positive.");
-        }
-
-        if (best.distance0_mm > edge.getLengthMm()) {
-            // This mistake happens because the linear distance calculation we're using comes out longer than the
-            // spherical distance. The graph remains coherent because we force the two split edge lengths to add up
-            // to the original edge length.
-            LOG.debug("Length of first street segment was greater than the whole edge ({} > {}).",
-                    best.distance0_mm, edge.getLengthMm());
-            best.distance0_mm = edge.getLengthMm();
-        }
-        best.distance1_mm = edge.getLengthMm() - best.distance0_mm;
-
-        // To speed up computation above, square roots were avoided and distanceToEdge_squaredFixedDegrees was
-        // calculated using fixed point degrees. We now want to calculate the distance in millimeters, for routing.
-        // To do so, we take the square root of distanceToEdge_squaredFixedDegrees, convert to floating point degrees
-        // latitude then multiply by the metersPerDegreeLat factor above and 1000 to convert to millimeters.
-        // This is accurate enough for our purposes.
-        double distanceToEdge_fixedDegrees = FastMath.sqrt(best.distanceToEdge_squaredFixedDegrees);
-        double distanceToEdge_floatingDegrees = VertexStore.fixedDegreesToFloating(distanceToEdge_fixedDegrees);
-        best.distanceToEdge_mm = (int) (distanceToEdge_floatingDegrees * metersPerDegreeLat * 1000);
-        return best;
+        return new CandidateSegments(streetLayer, streetMode, candidateEdges).findSplit(lat, lon, searchRadiusMeters);
     }
 
     /**
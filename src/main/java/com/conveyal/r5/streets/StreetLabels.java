@@ -0,0 +1,134 @@
+package com.conveyal.r5.streets;
+
+import com.conveyal.r5.profile.StreetMode;
+import gnu.trove.list.array.TByteArrayList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+
+/**
+ * Primitive storage for the search state of a StreetRouter, used in place of StreetRouter.State objects when no turn
+ * restrictions can apply. In that case there is never more than one non-dominated state at the end of each edge, so
+ * a state can be represented by a "label": a slot in a set of parallel primitive lists. This avoids allocating a
+ * State object, a boxed queue entry and a multimap entry for every edge that is relaxed.
+ *
+ * Labels are never modified once created. When a better path to an edge is found a new label is added, and the
+ * edge is associated with that new label. This keeps the chain of back-labels leading to any label identical to the
+ * chain of backStates the object-based search would have produced, so States can be reconstructed when needed.
+ *
+ * The lists are sized by the number of labels created rather than the number of edges in the street layer,
+ * because most searches (e.g. those building distance tables for each transit stop) only explore a small area.
+ */
+class StreetLabels {
+
+    private static final StreetMode[] STREET_MODES = StreetMode.values();
+
+    /** The current (best) label at the end of each edge that has been reached. */
+    final TIntIntMap labelForEdge = new TIntIntHashMap(64, 0.5f, -1, -1);
+
+    /** The edge that was traversed to produce each label, or a negative number for labels at the origin. */
+    final TIntArrayList edge = new TIntArrayList();
+
+    final TIntArrayList vertex = new TIntArrayList();
+
+    final TIntArrayList weight = new TIntArrayList();
+
+    final TIntArrayList durationSeconds = new TIntArrayList();
+
+    final TIntArrayList distance = new TIntArrayList();
+
+    /** The label from which each label was produced, or -1 for labels at the origin. */
+    final TIntArrayList backLabel = new TIntArrayList();
+
+    /** The ordinal of the street mode of each label. */
+    final TByteArrayList streetMode = new TByteArrayList();
+
+    /** The State objects the origin labels were created from, so they can be returned as is. */
+    final TIntObjectMap<StreetRouter.State> originStates = new TIntObjectHashMap<>();
+
+    /** Labels waiting to be explored, prioritized by the routing variable. */
+    final IntBinaryHeap queue = new IntBinaryHeap(64);
+
+    /** Add an origin label copied from the given State, which should not have a backState or turn restrictions. */
+    int addOrigin (StreetRouter.State state) {
+        int label = add(state.backEdge, state.vertex, state.weight, state.getDurationSeconds(), state.distance, -1,
+                state.streetMode);
+        originStates.put(label, state);
+        return label;
+    }
+
+    /**
+     * Add a new label without checking whether it is dominated. If it is the result of traversing an edge it becomes
+     * the current label for that edge.
+     */
+    int add (int edge, int vertex, int weight, int durationSeconds, int distance, int backLabel, StreetMode mode) {
+        int label = this.edge.size();
+        this.edge.add(edge);
+        this.vertex.add(vertex);
+        this.weight.add(weight);
+        this.durationSeconds.add(durationSeconds);
+        this.distance.add(distance);
+        this.backLabel.add(backLabel);
+        this.streetMode.add((byte) mode.ordinal());
+        if (edge >= 0) {
+            labelForEdge.put(edge, label);
+        }
+        return label;
+    }
+
+    int size () {
+        return edge.size();
+    }
+
+    StreetMode getStreetMode (int label) {
+        return STREET_MODES[streetMode.get(label)];
+    }
+
+    int getRoutingVariable (int label, StreetRouter.State.RoutingVariable variable) {
+        switch (variable) {
+            case DURATION_SECONDS:
+                return durationSeconds.get(label);
+            case WEIGHT:
+                return weight.get(label);
+            case DISTANCE_MILLIMETERS:
+                return distance.get(label);
+            default:
+                throw new IllegalStateException("Unknown routing variable");
+        }
+    }
+
+    /** @return whether the given label is still the best one at the end of its edge. Origin labels are always current. */
+    boolean isCurrent (int label) {
+        int edge = this.edge.get(label);
+        return edge < 0 || labelForEdge.get(edge) == label;
+    }
+
+    /**
+     * Create State objects equivalent to all the labels, including their chains of backStates.
+     * @return an array of States indexed by label.
+     */
+    StreetRouter.State[] toStates () {
+        StreetRouter.State[] states = new StreetRouter.State[size()];
+        // Labels are always created after the label they were produced from, so the back-states already exist.
+        for (int label = 0; label < states.length; label++) {
+            int back = backLabel.get(label);
+            if (back < 0) {
+                states[label] = originStates.get(label);
+                continue;
+            }
+            StreetRouter.State backState = states[back];
+            StreetRouter.State state = new StreetRouter.State(vertex.get(label), edge.get(label), backState);
+            state.streetMode = getStreetMode(label);
+            state.weight = weight.get(label);
+            state.distance = distance.get(label);
+            // Every traversal increments both durations by the same amount.
+            int increment = durationSeconds.get(label) - backState.getDurationSeconds();
+            state.incrementTimeInSeconds(increment);
+            states[label] = state;
+        }
+        return states;
+    }
+
+}
@@ -1093,6 +1093,8 @@ public class StreetLayer implements Serializable, Cloneable {
             edge.seek(e);
             spatialIndex.insert(edge.getGeometry(), e);
         }
+        // Edges added later (e.g. when linking transit stops) are few, and will go into the unpacked part of the index.
+        spatialIndex.pack();
         LOG.info("Done indexing streets.");
     }
 
@@ -1395,7 +1397,13 @@ public class StreetLayer implements Serializable, Cloneable {
             copy.temporaryEdgeIndex = new IntHashGrid();
         }
         copy.parentNetwork = newScenarioNetwork;
-        copy.baseStreetLayer = this;
+        // When copying a scenario layer that left the streets of its own base unchanged (e.g. one that only applied
+        // transit modifications), wrap that base directly so linkages can still be built on the base linkage.
+        if (isScenarioCopy() && !edgeStore.isExtendOnlyCopy()) {
+            copy.baseStreetLayer = baseStreetLayer;
+        } else {
+            copy.baseStreetLayer = this;
+        }
         return copy;
     }
 
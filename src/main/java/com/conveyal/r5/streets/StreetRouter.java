@@ -154,6 +154,15 @@ public class StreetRouter {
     PriorityQueue<State> queue = new PriorityQueue<>(
             Comparator.comparingInt(s0 -> (s0.getRoutingVariable(quantityToMinimize) + s0.heuristic)));
 
+    /**
+     * When this is non-null, the search is being performed on primitive labels instead of State objects, and
+     * bestStatesAtEdge and queue are not used. This is the case for the most common searches, where no turn
+     * restrictions can apply and the results are read as values at vertices rather than as paths. Any method that
+     * needs State objects calls materializeStates() to convert these labels back into the object representation.
+     * See canUseLabels().
+     */
+    private StreetLabels labels;
+
     /**
      * If you set this to a non-negative number, the search will end at the vertex with the given index,
      * and will be directed toward that vertex.
@@ -218,6 +227,11 @@ public class StreetRouter {
         TransitLayer transitLayer = streetLayer.parentNetwork.transitLayer;
         transitLayer.stopForStreetVertex.forEachEntry((streetVertex, stop) -> {
             if (streetVertex == -1) return true;
+            if (labels != null) {
+                int label = getLabelAtVertex(streetVertex);
+                if (label >= 0) result.put(stop, labels.getRoutingVariable(label, quantityToMinimize));
+                return true;
+            }
             State state = getStateAtVertex(streetVertex);
             if (state != null) result.put(stop, state.getRoutingVariable(quantityToMinimize));
             return true; // continue iteration
@@ -231,6 +245,15 @@ public class StreetRouter {
      */
     public TIntIntMap getReachedVertices () {
         TIntIntMap result = new TIntIntHashMap();
+        if (labels != null) {
+            labels.labelForEdge.forEachValue(label -> {
+                int vidx = labels.vertex.get(label);
+                int value = labels.getRoutingVariable(label, quantityToMinimize);
+                if (!result.containsKey(vidx) || result.get(vidx) > value) result.put(vidx, value);
+                return true; // continue iteration
+            });
+            return result;
+        }
         EdgeStore.Edge e = streetLayer.edgeStore.getCursor();
         bestStatesAtEdge.forEachEntry((eidx, states) -> {
             if (eidx < 0) return true;
@@ -263,6 +286,7 @@ public class StreetRouter {
         if (flagSearch == flag && routingVisitor instanceof VertexFlagVisitor) {
             return ((VertexFlagVisitor) routingVisitor).getVertices();
         }
+        materializeStates();
         TIntObjectMap<State> result = new TIntObjectHashMap<>();
         EdgeStore.Edge e = streetLayer.edgeStore.getCursor();
         VertexStore.Vertex v = streetLayer.vertexStore.getCursor();
@@ -323,6 +347,7 @@ public class StreetRouter {
         originSplit = split;
         bestStatesAtEdge.clear();
         queue.clear();
+        labels = null;
         // The states are located at the end of edges. Vertex0 is at the end of the reverse edge (split.edge + 1).
         // In these states we must specify which edge was traversed to reach them, so that turn costs work.
         State startState0 = new State(split.vertex0, split.edge + 1, streetMode);
@@ -368,6 +393,7 @@ public class StreetRouter {
     public void setOrigin (int fromVertex) {
         bestStatesAtEdge.clear();
         queue.clear();
+        labels = null;
 
         // sets maximal absolute origin latitude used for goal direction heuristic
         VertexStore.Vertex vertex = streetLayer.vertexStore.getCursor(fromVertex);
@@ -392,6 +418,7 @@ public class StreetRouter {
     public void setOrigin(TIntObjectMap<State> previousStates, int switchTime, int switchCost, LegMode legMode) {
         bestStatesAtEdge.clear();
         queue.clear();
+        labels = null;
         //Maximal origin latitude is used in goal direction heuristic.
         final int[] maxOriginLatArr = { Integer.MIN_VALUE };
 
@@ -501,7 +528,7 @@ public class StreetRouter {
             LOG.debug("Using time limit of {} sec", timeLimitSeconds);
         }
 
-        if (queue.size() == 0) {
+        if (queue.size() == 0 && labels == null) {
             LOG.warn("Routing without first setting an origin, no search will happen.");
         }
 
@@ -525,6 +552,14 @@ public class StreetRouter {
         } else if (flagSearch != null) {
             routingVisitor = new VertexFlagVisitor(streetLayer, quantityToMinimize, flagSearch, flagSearchQuantity, profileRequest.getMinTimeSeconds(streetMode));
         }
+        if (canUseLabels()) {
+            routeOnLabels(distanceLimitMm, tmpTimeLimitSeconds);
+            if (DEBUG_OUTPUT) {
+                debugPrintStream.close();
+            }
+            LOG.debug("Routing on primitive labels took {} msec", System.currentTimeMillis() - startTime);
+            return;
+        }
         while (!queue.isEmpty()) {
             State s0 = queue.poll();
 
@@ -608,6 +643,164 @@ public class StreetRouter {
         LOG.debug("Routing took {} msec", routingTimeMsec);
     }
 
+    /**
+     * Decide whether the search can be performed on primitive labels rather than State objects. This requires that
+     * no turn restrictions can ever apply (they only apply to cars), because only then is there a single state at the
+     * end of each edge. It also requires a plain forward one-to-many search: no goal direction, no routing visitor,
+     * and origin states that are not the continuation of a previous search. If the previous call to route() already
+     * used labels, the labels are used again (see keepRoutingOnFoot).
+     */
+    private boolean canUseLabels () {
+        if (labels != null) return true;
+        if (destinationSplit != null || toVertex > 0 || routingVisitor != null || profileRequest.reverseSearch) {
+            return false;
+        }
+        if (streetMode == StreetMode.CAR) {
+            if (!streetLayer.turnRestrictions.isEmpty()) return false;
+        } else if (streetMode != StreetMode.WALK) {
+            return false;
+        }
+        for (State state : queue) {
+            if (state.backState != null || state.turnRestrictions != null || state.isBikeShare
+                    || state.streetMode != streetMode) {
+                return false;
+            }
+        }
+        // Move the origin states into the labels.
+        labels = new StreetLabels();
+        for (State state : queue) {
+            int label = labels.addOrigin(state);
+            labels.queue.push(state.getRoutingVariable(quantityToMinimize), label);
+        }
+        queue.clear();
+        bestStatesAtEdge.clear();
+        return true;
+    }
+
+    /**
+     * The main loop of route() performed on primitive labels. This must produce exactly the same results as the
+     * loop over State objects. Edge traversal is performed by traverseToLabel() which mirrors EdgeStore.Edge.traverse.
+     */
+    private void routeOnLabels (int distanceLimitMm, int timeLimitSeconds) {
+        EdgeStore.Edge edge = streetLayer.edgeStore.getCursor();
+        EdgeStore.Edge backEdge = streetLayer.edgeStore.getCursor();
+        while (!labels.queue.isEmpty()) {
+            int label = labels.queue.pop();
+            // Skip labels that have been superseded by a better label at the end of the same edge.
+            if (!labels.isCurrent(label)) continue;
+            TIntList edgeList = streetLayer.outgoingEdges.get(labels.vertex.get(label));
+            for (int i = 0; i < edgeList.size(); i++) {
+                edge.seek(edgeList.get(i));
+                traverseToLabel(label, edge, backEdge, distanceLimitMm, timeLimitSeconds);
+            }
+        }
+    }
+
+    /**
+     * Traverse the edge the cursor is on from the given label. If the result is within the limits and is not
+     * dominated, record it as a new label and add it to the queue. The cost calculations must be kept in sync with
+     * EdgeStore.Edge.traverse, which does the same thing on State objects. It is simplified here because no turn
+     * restrictions apply, and because only walk and car searches use labels (bicycles can switch to walking).
+     */
+    private void traverseToLabel (int label, EdgeStore.Edge edge, EdgeStore.Edge backEdge,
+                                  int distanceLimitMm, int timeLimitSeconds) {
+        int s0BackEdge = labels.edge.get(label);
+        int s0Duration = labels.durationSeconds.get(label);
+        float time = travelTimeCalculator.getTravelTimeSeconds(edge, s0Duration, streetMode, profileRequest);
+        float weight;
+
+        // Two link edges in a row is a shortcut, which is not allowed except from the origin.
+        if (s0BackEdge >= 0 && labels.backLabel.get(label) >= 0 && edge.getFlag(EdgeStore.EdgeFlag.LINK)) {
+            backEdge.seek(s0BackEdge);
+            if (backEdge.getFlag(EdgeStore.EdgeFlag.LINK)) return;
+        }
+
+        if (streetMode == StreetMode.WALK && edge.getFlag(EdgeStore.EdgeFlag.ALLOWS_PEDESTRIAN)) {
+            weight = time;
+            if (profileRequest.wheelchair && !edge.getFlag(EdgeStore.EdgeFlag.ALLOWS_WHEELCHAIR)) return;
+        } else if (streetMode == StreetMode.CAR && edge.getFlag(EdgeStore.EdgeFlag.ALLOWS_CAR)) {
+            weight = time;
+        } else {
+            return; // this mode cannot traverse this edge
+        }
+
+        if (edge.getFlag(EdgeStore.EdgeFlag.STAIRS)) {
+            weight *= EdgeStore.STAIR_RELUCTANCE_FACTOR;
+        } else if (streetMode == StreetMode.WALK) {
+            weight *= EdgeStore.WALK_RELUCTANCE_FACTOR;
+        }
+
+        int roundedTime = (int) Math.ceil(time);
+        int turnCost = 0;
+        if (s0BackEdge >= 0) {
+            turnCost = turnCostCalculator.computeTurnCost(s0BackEdge, edge.getEdgeIndex(), streetMode);
+        }
+
+        int s0Weight = labels.weight.get(label);
+        int s0Distance = labels.distance.get(label);
+        // Same as State.incrementTimeInSeconds, which ignores negative increments.
+        int timeIncrement = roundedTime + turnCost;
+        int s1Duration = timeIncrement < 0 ? s0Duration : s0Duration + timeIncrement;
+        int s1Weight = s0Weight + (int) (weight + turnCost);
+        int s1Distance = s0Distance + edge.getLengthMm();
+
+        // make sure we don't have states that don't increment weight/time, otherwise we can get weird loops
+        if (s1Weight == s0Weight) s1Weight += 1;
+        if (s1Duration == s0Duration) s1Duration += 1;
+        if (s1Distance == s0Distance) s1Distance += 1;
+
+        if (s1Distance > distanceLimitMm || s1Duration >= timeLimitSeconds) return;
+
+        int edgeIndex = edge.getEdgeIndex();
+        int value;
+        switch (quantityToMinimize) {
+            case DURATION_SECONDS: value = s1Duration; break;
+            case WEIGHT: value = s1Weight; break;
+            case DISTANCE_MILLIMETERS: value = s1Distance; break;
+            default: throw new IllegalStateException("Unknown routing variable");
+        }
+        // An existing label with the same value wins, as in isDominated().
+        int existingLabel = labels.labelForEdge.get(edgeIndex);
+        if (existingLabel >= 0 && labels.getRoutingVariable(existingLabel, quantityToMinimize) <= value) return;
+        int s1 = labels.add(edgeIndex, edge.getToVertex(), s1Weight, s1Duration, s1Distance, label, streetMode);
+        labels.queue.push(value, s1);
+    }
+
+    /**
+     * If the search was performed on primitive labels, convert them to State objects in bestStatesAtEdge, so that
+     * methods operating on States work as usual. The labels are then discarded.
+     */
+    private void materializeStates () {
+        if (labels == null) return;
+        State[] states = labels.toStates();
+        bestStatesAtEdge.clear();
+        labels.labelForEdge.forEachValue(label -> {
+            bestStatesAtEdge.put(states[label].backEdge, states[label]);
+            return true;
+        });
+        labels = null;
+    }
+
+    /**
+     * Like getStateAtVertex, but for a search performed on labels.
+     * @return the label with the lowest routing variable on any edge leading to the given vertex, or -1 if none.
+     */
+    private int getLabelAtVertex (int vertexIndex) {
+        int best = -1;
+        int bestValue = Integer.MAX_VALUE;
+        TIntList edgeList = streetLayer.incomingEdges.get(vertexIndex);
+        for (int i = 0; i < edgeList.size(); i++) {
+            int label = labels.labelForEdge.get(edgeList.get(i));
+            if (label < 0) continue;
+            int value = labels.getRoutingVariable(label, quantityToMinimize);
+            if (best < 0 || bestValue > value) {
+                best = label;
+                bestValue = value;
+            }
+        }
+        return best;
+    }
+
     /**
      * Given a new state, check whether it is dominated by any existing state that resulted from traversing the
      * same edge. Side effect: Boot out any existing states that are dominated by the new one.
@@ -690,6 +883,7 @@ public class StreetRouter {
      * There can be more than one state at the end of an edge due to turn restrictions
      */
     public State getStateAtEdge (int edgeIndex) {
+        materializeStates();
         Collection<State> states = bestStatesAtEdge.get(edgeIndex);
         if (states.isEmpty()) {
             return null; // Unreachable
@@ -730,6 +924,10 @@ public class StreetRouter {
     }
 
     public int getTravelTimeToVertex (int vertexIndex) {
+        if (labels != null) {
+            int label = getLabelAtVertex(vertexIndex);
+            return label >= 0 ? labels.durationSeconds.get(label) : Integer.MAX_VALUE;
+        }
         State state = getStateAtVertex(vertexIndex);
         return state != null ? state.durationSeconds : Integer.MAX_VALUE;
     }
@@ -743,6 +941,7 @@ public class StreetRouter {
      * @return
      */
     public State getState(Split split) {
+        materializeStates();
         // get all the states at all the vertices
         List<State> relevantStates = new ArrayList<>();
 
@@ -1209,6 +1408,16 @@ public class StreetRouter {
      * Just allowing more than one mode doesn't give the desired effect - we really want a sequence of separate modes.
      */
     public void keepRoutingOnFoot() {
+        if (labels != null) {
+            labels.queue.clear();
+            labels.labelForEdge.forEachValue(label -> {
+                labels.queue.push(labels.getRoutingVariable(label, quantityToMinimize), label);
+                return true;
+            });
+            streetMode = StreetMode.WALK;
+            route();
+            return;
+        }
         queue.clear();
         bestStatesAtEdge.forEachEntry((edgeId, states) -> queue.addAll(states));
         streetMode = StreetMode.WALK;
@@ -0,0 +1,137 @@
+package com.conveyal.r5.streets;
+
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A one-to-many search for the walking distance from one street vertex to all other street vertices within a distance
+ * limit, as used to build the distance tables and transfers of transit stops. This gives exactly the same distances as
+ * a StreetRouter walk search minimizing DISTANCE_MILLIMETERS, but it is meant to be run thousands of times in a row.
+ *
+ * When minimizing distance on foot there are no turn restrictions, and the only thing about the path to the end of an
+ * edge that constrains how the search can continue is whether that edge was a link edge (two link edges can't be
+ * traversed in a row). So rather than keeping one state per edge, we keep the best distance to each vertex through
+ * a link edge and through any other edge, in a plain array indexed by vertex. These arrays are allocated once and
+ * only the entries touched by one search are reset before the next one, so an instance should be reused for all the
+ * searches performed by one thread. Instances are not threadsafe, see Pool.
+ */
+public class WalkDistanceSearch {
+
+    private final StreetLayer streetLayer;
+
+    private final EdgeStore.Edge edge;
+
+    /**
+     * The best distance in millimeters found to each vertex, at index (vertex * 2) for paths ending with an edge that
+     * is not a link edge and (vertex * 2 + 1) for paths ending with a link edge. Integer.MAX_VALUE if not reached.
+     */
+    private final int[] bestDistance;
+
+    /** The indexes in bestDistance that were set by the current search, which must be reset before the next one. */
+    private final TIntList touched = new TIntArrayList();
+
+    /** Indexes in bestDistance waiting to be explored, prioritized by distance. */
+    private final IntBinaryHeap queue = new IntBinaryHeap(1024);
+
+    public WalkDistanceSearch (StreetLayer streetLayer) {
+        this.streetLayer = streetLayer;
+        this.edge = streetLayer.edgeStore.getCursor();
+        this.bestDistance = new int[streetLayer.getVertexCount() * 2];
+        Arrays.fill(bestDistance, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Find the walking distance to every street vertex that can be reached from the origin vertex without exceeding
+     * the distance limit. As in StreetRouter.getReachedVertices, the origin itself is only included if it can be
+     * reached again by traversing some edges.
+     * @return a map from street vertex indexes to distances in millimeters.
+     */
+    public TIntIntMap search (int originVertex, int distanceLimitMm) {
+        for (int i = 0; i < touched.size(); i++) {
+            bestDistance[touched.get(i)] = Integer.MAX_VALUE;
+        }
+        touched.clear();
+        queue.clear();
+
+        // Any edge can be traversed from the origin, including a link edge.
+        explore(originVertex, false, 0, distanceLimitMm);
+        while (!queue.isEmpty()) {
+            int distance = queue.peekKey();
+            int state = queue.pop();
+            // Skip states that were improved upon after they were added to the queue.
+            if (distance > bestDistance[state]) continue;
+            explore(state >> 1, (state & 1) == 1, distance, distanceLimitMm);
+        }
+
+        // Combine the two distances to each vertex. Most vertices are only reached by one kind of edge.
+        TIntIntMap distanceToVertex = new TIntIntHashMap(touched.size(), 0.5f, -1, -1);
+        for (int i = 0; i < touched.size(); i++) {
+            int state = touched.get(i);
+            int vertex = state >> 1;
+            int distance = bestDistance[state];
+            int existingDistance = distanceToVertex.get(vertex);
+            if (existingDistance == -1 || existingDistance > distance) distanceToVertex.put(vertex, distance);
+        }
+        return distanceToVertex;
+    }
+
+    /**
+     * Traverse every walkable edge leaving the given vertex. This mirrors StreetRouter.traverseToLabel for the
+     * special case of walking while minimizing distance, and must be kept consistent with it.
+     */
+    private void explore (int vertex, boolean reachedByLink, int distance, int distanceLimitMm) {
+        TIntList edgeList = streetLayer.outgoingEdges.get(vertex);
+        for (int i = 0; i < edgeList.size(); i++) {
+            edge.seek(edgeList.get(i));
+            boolean link = edge.getFlag(EdgeStore.EdgeFlag.LINK);
+            // Two link edges in a row is a shortcut, which is not allowed except from the origin.
+            if (reachedByLink && link) continue;
+            if (!edge.getFlag(EdgeStore.EdgeFlag.ALLOWS_PEDESTRIAN)) continue;
+            int newDistance = distance + edge.getLengthMm();
+            // Every edge must increase the distance, otherwise we can get weird loops.
+            if (newDistance == distance) newDistance += 1;
+            if (newDistance > distanceLimitMm) continue;
+            int newState = edge.getToVertex() * 2 + (link ? 1 : 0);
+            // An existing state with the same distance wins, as in StreetRouter.
+            if (bestDistance[newState] <= newDistance) continue;
+            if (bestDistance[newState] == Integer.MAX_VALUE) touched.add(newState);
+            bestDistance[newState] = newDistance;
+            queue.push(newDistance, newState);
+        }
+    }
+
+    /**
+     * Hands out WalkDistanceSearches to the threads of a parallel stream, so that each search context is reused by
+     * one thread at a time and no more of them are created than there are threads. The pool and its searches can be
+     * garbage collected once the distances have been found.
+     */
+    public static class Pool {
+
+        private final StreetLayer streetLayer;
+
+        private final Queue<WalkDistanceSearch> idleSearches = new ConcurrentLinkedQueue<>();
+
+        public Pool (StreetLayer streetLayer) {
+            this.streetLayer = streetLayer;
+        }
+
+        /** Perform one search using an idle search context, see WalkDistanceSearch.search. */
+        public TIntIntMap search (int originVertex, int distanceLimitMm) {
+            WalkDistanceSearch search = idleSearches.poll();
+            if (search == null) search = new WalkDistanceSearch(streetLayer);
+            try {
+                return search.search(originVertex, distanceLimitMm);
+            } finally {
+                idleSearches.add(search);
+            }
+        }
+
+    }
+
+}
@@ -3,6 +3,7 @@ package com.conveyal.r5.transit;
 import com.conveyal.r5.api.util.ParkRideParking;
 import com.conveyal.r5.streets.StreetLayer;
 import com.conveyal.r5.streets.StreetRouter;
+import com.conveyal.r5.streets.WalkDistanceSearch;
 import com.conveyal.r5.util.LambdaCounter;
 import gnu.trove.list.TIntList;
 import gnu.trove.list.array.TIntArrayList;
@@ -13,6 +14,7 @@ import gnu.trove.map.hash.TIntObjectHashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.List;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -22,7 +24,7 @@ import static com.conveyal.r5.transit.TransitLayer.TRANSFER_DISTANCE_LIMIT_METER
 
 /**
  * Pre-compute walking transfers between transit stops via the street network, up to a given distance limit.
- * TODO optimization: combine TransferFinder with stop-to-vertex distance table builder.
+ * When the stop-to-vertex distance tables have already been built, transfers are read from them instead of searching.
  */
 public class TransferFinder {
 
@@ -112,6 +114,12 @@ public class TransferFinder {
         LambdaCounter unconnectedCounter = new LambdaCounter(LOG, nStopsToProcess, 1_000,
                 "{} of {} transit stops are unlinked.");
 
+        // Transfers are read from the stop-to-vertex distance tables when they have been built for the current street
+        // network, which saves performing a second street search from every stop.
+        List<TIntIntMap> distanceTables = transitLayer.stopToVertexDistanceTables;
+        WalkDistanceSearch.Pool searches = new WalkDistanceSearch.Pool(streetLayer);
+        int transferDistanceLimitMm = TRANSFER_DISTANCE_LIMIT_METERS * 1000;
+
         // Create transfers for all new stops, appending them to the list of transfers for any existing stops.
         // This handles both newly built networks and the case where a scenario adds stops to an existing network.
         transitLayer.transfersForStop.addAll(
@@ -125,14 +133,16 @@ public class TransferFinder {
                 return EMPTY_INT_LIST;
             }
 
-            StreetRouter streetRouter = new StreetRouter(streetLayer);
-            streetRouter.distanceLimitMeters = TRANSFER_DISTANCE_LIMIT_METERS;
-
-            streetRouter.setOrigin(originStreetVertex);
-            streetRouter.quantityToMinimize = RoutingVariable.DISTANCE_MILLIMETERS;
-
-            streetRouter.route();
-            TIntIntMap distancesToReachedStops = streetRouter.getReachedStops();
+            // The distance table for this stop, if it has already been built, contains the results of a search
+            // that went beyond the transfer distance limit. Otherwise perform a new search to the transfer limit.
+            TIntIntMap distancesToVertices = null;
+            if (distanceTables != null && sourceStopIndex < distanceTables.size()) {
+                distancesToVertices = distanceTables.get(sourceStopIndex);
+            }
+            if (distancesToVertices == null) {
+                distancesToVertices = searches.search(originStreetVertex, transferDistanceLimitMm);
+            }
+            TIntIntMap distancesToReachedStops = distancesToReachedStops(distancesToVertices);
             // TODO the following optimization is incorrect for some loop and U-shaped routes, measure that it's actually improving routing speed
             retainClosestStopsOnPatterns(distancesToReachedStops);
             // At this point we have the distances to all stops that are the closest one on some pattern.
@@ -180,6 +190,25 @@ public class TransferFinder {
     }
 
 
+    /**
+     * Find the transit stops within the transfer distance limit in a map from street vertices to distances, such as a
+     * stop-to-vertex distance table. This gives the same result as StreetRouter.getReachedStops() for a search
+     * limited to the transfer distance.
+     * @return a map from stop indexes to distances in millimeters.
+     */
+    private TIntIntMap distancesToReachedStops (TIntIntMap distancesToVertices) {
+        int transferDistanceLimitMm = TRANSFER_DISTANCE_LIMIT_METERS * 1000;
+        TIntIntMap distancesToStops = new TIntIntHashMap();
+        distancesToVertices.forEachEntry((vertex, distance) -> {
+            if (distance <= transferDistanceLimitMm) {
+                int stop = transitLayer.stopForStreetVertex.get(vertex);
+                if (stop != -1) distancesToStops.put(stop, distance);
+            }
+            return true; // continue iteration
+        });
+        return distancesToStops;
+    }
+
     /**
      * Filter down a map from target stop indexes to distances so it only includes those stops that are the
      * closest on some pattern. This is technically incorrect (think of transfers to a U shaped metro from a bus line
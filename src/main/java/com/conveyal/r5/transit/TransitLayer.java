@@ -8,8 +8,10 @@ import com.conveyal.gtfs.model.Stop;
 import com.conveyal.gtfs.model.Trip;
 import com.conveyal.r5.api.util.*;
 import com.conveyal.r5.common.GeometryUtils;
+import com.conveyal.r5.kryo.MappedIntTables;
 import com.conveyal.r5.streets.EdgeStore;
 import com.conveyal.r5.streets.VertexStore;
+import com.conveyal.r5.streets.WalkDistanceSearch;
 import com.conveyal.r5.util.LambdaCounter;
 import com.conveyal.r5.util.LocationIndexedLineInLocalCoordinateSystem;
 import com.google.common.base.Strings;
@@ -26,7 +28,6 @@ import gnu.trove.map.TIntIntMap;
 import gnu.trove.map.TObjectIntMap;
 import gnu.trove.map.hash.TIntIntHashMap;
 import gnu.trove.map.hash.TObjectIntHashMap;
-import com.conveyal.r5.streets.StreetRouter;
 import java.time.LocalDate;
 
 import gnu.trove.set.TIntSet;
@@ -166,6 +167,15 @@ public class TransitLayer implements Serializable, Cloneable {
      */
     public String scenarioId;
 
+    /**
+     * Clock times in the layer returned by getReversedLayer() are this many seconds minus the real clock time. This is
+     * later than any time in a GTFS feed, so that mirrored times remain positive.
+     */
+    public static final int REVERSED_LAYER_MIRROR_TIME = 7 * 24 * 60 * 60;
+
+    /** A copy of this layer running backward in time, built on demand for arrive-by searches. */
+    private transient TransitLayer reversedLayer;
+
     /** Load a GTFS feed with full load level */
     public void loadFromGtfs (GTFSFeed gtfs) throws DuplicateFeedException {
         loadFromGtfs(gtfs, LoadLevel.FULL);
@@ -541,20 +551,43 @@ public class TransitLayer implements Serializable, Cloneable {
 
         LambdaCounter buildCounter = new LambdaCounter(LOG, getStopCount(), 1000,
                 "Computed distances to street vertices from {} of {} transit stops.");
+        // Each thread reuses the same search context for all the stops it handles.
+        WalkDistanceSearch.Pool searches = new WalkDistanceSearch.Pool(parentNetwork.streetLayer);
+
+        if (rebuildZone != null && stopToVertexDistanceTables instanceof MappedIntTables.DistanceTableList) {
+            // The existing tables are memory-mapped. Rather than decoding every unaffected table onto the heap, only
+            // build the tables inside the zone and overlay them on the mapped ones.
+            int nExistingTables = stopToVertexDistanceTables.size();
+            int[] stopsToRebuild = IntStream.range(0, getStopCount()).filter(stopIndex -> {
+                // Stops added by the scenario have no table yet, wherever they are.
+                if (stopIndex >= nExistingTables) return true;
+                Point p = getJTSPointForStopFixed(stopIndex);
+                return p != null && rebuildZone.contains(p);
+            }).toArray();
+            List<TIntIntMap> rebuiltTables = Arrays.stream(stopsToRebuild).parallel().mapToObj(stopIndex -> {
+                buildCounter.increment();
+                return this.buildOneDistanceTable(stopIndex, searches);
+            }).collect(Collectors.toList());
+            stopToVertexDistanceTables = ((MappedIntTables.DistanceTableList) stopToVertexDistanceTables)
+                    .withReplacements(stopsToRebuild, rebuiltTables, getStopCount());
+            buildCounter.done();
+            return;
+        }
 
         // Working in parallel, create a new list containing one distance table for each stop index, optionally
         // skipping stops falling outside the specified geometry.
+        List<TIntIntMap> existingTables = stopToVertexDistanceTables;
         stopToVertexDistanceTables = IntStream.range(0, getStopCount()).parallel().mapToObj(stopIndex -> {
-            if (rebuildZone != null) {
+            if (rebuildZone != null && stopIndex < existingTables.size()) {
                 // Skip existing or new stops outside the zone that may be affected by the scenario.
                 Point p = getJTSPointForStopFixed(stopIndex);
                 if (p == null || !rebuildZone.contains(p)) {
-                    // This stop can't be affected, return any existing one.
-                    return stopIndex < stopToVertexDistanceTables.size() ? stopToVertexDistanceTables.get(stopIndex) : null;
+                    // This stop can't be affected, return the existing one.
+                    return existingTables.get(stopIndex);
                 }
             }
             buildCounter.increment();
-            return this.buildOneDistanceTable(stopIndex);
+            return this.buildOneDistanceTable(stopIndex, searches);
         }).collect(Collectors.toList());
         buildCounter.done();
     }
@@ -562,27 +595,25 @@ public class TransitLayer implements Serializable, Cloneable {
     /**
      * Perform a single on-street WALK search from the specified transit stop.
      * Return the distance in millimeters to every reached street vertex.
+     * This allocates a search context sized to the whole street layer, so when building many tables use
+     * buildDistanceTables, which reuses search contexts.
      * @param stop the internal integer stop ID for which to build a distance table.
      * @return a map from street vertex numbers to distances in millimeters
      */
     public TIntIntMap buildOneDistanceTable(int stop) {
+        return buildOneDistanceTable(stop, new WalkDistanceSearch.Pool(parentNetwork.streetLayer));
+    }
+
+    private TIntIntMap buildOneDistanceTable(int stop, WalkDistanceSearch.Pool searches) {
         int originVertex = streetVertexForStop.get(stop);
         if (originVertex == -1) {
             // -1 indicates that this stop is not linked to the street network.
             LOG.warn("Stop {} has not been linked to the street network, cannot build a distance table for it.", stop);
             return null;
         }
-        StreetRouter router = new StreetRouter(parentNetwork.streetLayer);
-        router.distanceLimitMeters = WALK_DISTANCE_LIMIT_METERS;
-
-        // Dominate based on distance in millimeters, since (a) we're using a hard distance limit, and (b) we divide
-        // by a speed to get time when we use these tables.
-        router.quantityToMinimize = StreetRouter.State.RoutingVariable.DISTANCE_MILLIMETERS;
-        router.setOrigin(originVertex);
-        router.route();
-
-        // The values in this map will be distances in millimeters since that is our dominance function.
-        return router.getReachedVertices();
+        // Distances rather than times, since (a) we're using a hard distance limit, and (b) we divide by a speed to
+        // get time when we use these tables.
+        return searches.search(originVertex, WALK_DISTANCE_LIMIT_METERS * 1000);
     }
 
     public int getStopCount () {
@@ -607,12 +638,54 @@ public class TransitLayer implements Serializable, Cloneable {
 
     public TransitLayer clone() {
         try {
-            return (TransitLayer) super.clone();
+            TransitLayer copy = (TransitLayer) super.clone();
+            // The copy may be modified (e.g. by a scenario) so it must not share the reversed layer built from this one.
+            copy.reversedLayer = null;
+            return copy;
         } catch (CloneNotSupportedException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Get a copy of this layer in which all trips run backward in time, so that a depart-after search on the copy is
+     * an arrive-by search on this layer. A clock time t in this layer is REVERSED_LAYER_MIRROR_TIME - t in the copy.
+     * Patterns keep their indexes but visit their stops in the opposite order, and each stop's transfers lead to the
+     * stops from which it can be reached. The copy is built the first time it is requested and then reused, so it
+     * must not be modified.
+     */
+    public synchronized TransitLayer getReversedLayer () {
+        if (reversedLayer == null) {
+            LOG.info("Building reversed transit layer for arrive-by searches.");
+            TransitLayer reversed = this.clone();
+            reversed.tripPatterns = tripPatterns.stream()
+                    .map(pattern -> pattern.reversedInTime(REVERSED_LAYER_MIRROR_TIME))
+                    .collect(Collectors.toList());
+            // Every pattern still passes through the same set of stops, so patternsForStop does not change.
+            int nStops = getStopCount();
+            reversed.transfersForStop = new ArrayList<>(nStops);
+            for (int stop = 0; stop < nStops; stop++) {
+                reversed.transfersForStop.add(new TIntArrayList());
+            }
+            for (int stop = 0; stop < transfersForStop.size(); stop++) {
+                TIntList transfers = transfersForStop.get(stop);
+                if (transfers == null) continue;
+                for (int i = 0; i < transfers.size(); i += 2) {
+                    TIntList reversedTransfers = reversed.transfersForStop.get(transfers.get(i));
+                    reversedTransfers.add(stop);
+                    reversedTransfers.add(transfers.get(i + 1));
+                }
+            }
+            reversedLayer = reversed;
+        }
+        return reversedLayer;
+    }
+
+    /** @return the copy of this layer reversed in time if it has already been built, otherwise null. */
+    synchronized TransitLayer getReversedLayerIfBuilt () {
+        return reversedLayer;
+    }
+
     /** Get a coordinate for a stop in FIXED POINT DEGREES */
     public Coordinate getCoordinateForStopFixed(int s) {
         int v = streetVertexForStop.get(s);
@@ -727,7 +800,10 @@ public class TransitLayer implements Serializable, Cloneable {
             copy.stopIdForIndex = new ArrayList<>(this.stopIdForIndex);
             copy.stopNames = new ArrayList<>(this.stopNames);
             copy.streetVertexForStop = new TIntArrayList(this.streetVertexForStop);
-            copy.stopToVertexDistanceTables = new ArrayList<>(this.stopToVertexDistanceTables);
+            // Memory-mapped distance tables are read-only, and copying them would decode them all onto the heap.
+            if (!(this.stopToVertexDistanceTables instanceof MappedIntTables.DistanceTableList)) {
+                copy.stopToVertexDistanceTables = new ArrayList<>(this.stopToVertexDistanceTables);
+            }
             copy.transfersForStop = new ArrayList<>(this.transfersForStop);
             copy.routes = new ArrayList<>(this.routes);
             // To indicate that this layer is different than the one it was copied from, record the scenarioId of
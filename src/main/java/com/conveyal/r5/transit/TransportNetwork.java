@@ -8,6 +8,7 @@ import com.conveyal.r5.analyst.error.TaskError;
 import com.conveyal.r5.analyst.scenario.Scenario;
 import com.conveyal.r5.common.JsonUtilities;
 import com.conveyal.r5.kryo.KryoNetworkSerializer;
+import com.conveyal.r5.kryo.MappedIntTables;
 import com.conveyal.r5.point_to_point.builder.TNBuilderConfig;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.Hashing;
@@ -15,13 +16,24 @@ import com.conveyal.r5.analyst.fare.InRoutingFareCalculator;
 import com.conveyal.r5.profile.StreetMode;
 import com.google.common.io.Files;
 import com.vividsolutions.jts.geom.Envelope;
+import com.conveyal.r5.streets.LinkedPointSet;
+import com.conveyal.r5.streets.PackedGeometryList;
 import com.conveyal.r5.streets.StreetLayer;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import gnu.trove.list.TIntList;
+import gnu.trove.map.TIntIntMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.time.ZoneId;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.zip.*;
 
 /**
@@ -57,6 +69,21 @@ public class TransportNetwork implements Serializable {
      */
     public transient Map<String, TransportNetwork> scenarios = new HashMap<>();
 
+    /**
+     * The number of networks retained in appliedModifications. Applying a scenario adds at most two of them: the
+     * network with all of its modifications applied, and the one with all but the last, which is reused when an
+     * analyst edits the last modification of the scenario.
+     */
+    public static final int MAX_APPLIED_MODIFICATIONS = 4;
+
+    /**
+     * Networks produced by applying some leading part of a scenario's modifications to this base network, keyed on a
+     * hash of the contents of those modifications (see Scenario.modificationPrefixHashes). This allows reusing work
+     * across scenarios that have different IDs but share some or all of their modifications. Unlike the scenarios
+     * map above this is bounded, and the networks it holds are counted in estimateRetainedBytes.
+     */
+    public transient Cache<String, TransportNetwork> appliedModifications = createAppliedModificationsCache();
+
     /**
      * A grid point set that covers the full extent of this transport network.
      * This unlinked GridPointSet is not specific to any mode of travel, it's just a set of points.
@@ -87,6 +114,7 @@ public class TransportNetwork implements Serializable {
      * Distance tables and street spatial indexes are now serialized with the network.
      */
     public void rebuildTransientIndexes() {
+        streetLayer.edgeStore.freeze();
         streetLayer.buildEdgeLists();
         streetLayer.indexStreets();
         transitLayer.rebuildTransientIndexes();
@@ -118,56 +146,71 @@ public class TransportNetwork implements Serializable {
 
         // Create a transport network to hold the street and transit layers
         TransportNetwork transportNetwork = new TransportNetwork();
-
-        // Load OSM data into MapDB
-        OSM osm = new OSM(new File(dir,"osm.mapdb").getPath());
-        osm.intersectionDetection = true;
-        osm.readFromFile(osmSourceFile);
-
-        // Make street layer from OSM data in MapDB
         StreetLayer streetLayer = new StreetLayer(tnBuilderConfig);
         transportNetwork.streetLayer = streetLayer;
         streetLayer.parentNetwork = transportNetwork;
-        streetLayer.loadFromOsm(osm);
-        osm.close();
-
-        // The street index is needed for associating transit stops with the street network
-        // and for associating bike shares with the street network
-        streetLayer.indexStreets();
-
-        if (tnBuilderConfig.bikeRentalFile != null) {
-            streetLayer.associateBikeSharing(tnBuilderConfig);
-        }
-
-        // Load transit data TODO remove need to supply street layer at this stage
         TransitLayer transitLayer = new TransitLayer();
-
-        if (feeds != null) {
-            for (GTFSFeed feed : feeds) {
-                transitLayer.loadFromGtfs(feed);
-            }
-        } else {
-            for (String feedFile: gtfsSourceFiles) {
-                GTFSFeed feed = GTFSFeed.fromFile(feedFile);
-                transitLayer.loadFromGtfs(feed);
-                feed.close();
-            }
-        }
         transportNetwork.transitLayer = transitLayer;
         transitLayer.parentNetwork = transportNetwork;
+
+        // The street and transit layers are loaded independently of one another, so load them at the same time on
+        // separate threads. They are only connected to each other once both are complete, when stops are linked.
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            CompletableFuture<Void> streetStage = startStage("load streets", executor, () -> {
+                // Load OSM data into MapDB
+                OSM osm = new OSM(new File(dir,"osm.mapdb").getPath());
+                osm.intersectionDetection = true;
+                osm.readFromFile(osmSourceFile);
+                // Make street layer from OSM data in MapDB. This also prunes islands and indexes the streets.
+                streetLayer.loadFromOsm(osm);
+                osm.close();
+                // The street index is needed for associating bike shares with the street network
+                if (tnBuilderConfig.bikeRentalFile != null) {
+                    streetLayer.associateBikeSharing(tnBuilderConfig);
+                }
+            });
+            // GTFS feeds are loaded one after another, as stops, patterns and routes are numbered in the order loaded.
+            CompletableFuture<Void> transitStage = startStage("load transit", executor, () -> {
+                if (feeds != null) {
+                    for (GTFSFeed feed : feeds) {
+                        transitLayer.loadFromGtfs(feed);
+                    }
+                } else {
+                    for (String feedFile: gtfsSourceFiles) {
+                        GTFSFeed feed = GTFSFeed.fromFile(feedFile);
+                        transitLayer.loadFromGtfs(feed);
+                        feed.close();
+                    }
+                }
+            });
+            awaitStages(streetStage, transitStage);
+        } finally {
+            executor.shutdown();
+        }
         // transitLayer.summarizeRoutesAndPatterns();
 
-        // The street index is needed for associating transit stops with the street network.
-        // FIXME indexStreets is called three times: in StreetLayer::loadFromOsm, just after loading the OSM, and here
-        streetLayer.indexStreets();
-        streetLayer.associateStops(transitLayer);
-        // Edge lists must be built after all inter-layer linking has occurred.
-        streetLayer.buildEdgeLists();
-        transitLayer.rebuildTransientIndexes();
+        runStage("link stops", () -> {
+            // The street index is needed for associating transit stops with the street network.
+            // FIXME indexStreets is called twice: in StreetLayer::loadFromOsm and here, after bike shares are linked
+            streetLayer.indexStreets();
+            streetLayer.associateStops(transitLayer);
+            // Edge lists must be built after all inter-layer linking has occurred.
+            streetLayer.buildEdgeLists();
+            transitLayer.rebuildTransientIndexes();
+        });
+
+        // No more edges will be added to the base network, read them from plain arrays from now on.
+        streetLayer.edgeStore.freeze();
+
+        // Build the stop-to-vertex distance tables first, so transfers can be read from them without a second search.
+        runStage("build distance tables", () -> transitLayer.buildDistanceTables(null));
 
         // Create transfers
-        new TransferFinder(transportNetwork).findTransfers();
-        new TransferFinder(transportNetwork).findParkRideTransfer();
+        runStage("find transfers", () -> {
+            new TransferFinder(transportNetwork).findTransfers();
+            new TransferFinder(transportNetwork).findParkRideTransfer();
+        });
 
         transportNetwork.fareCalculator = tnBuilderConfig.analysisFareCalculator;
 
@@ -288,6 +331,69 @@ public class TransportNetwork implements Serializable {
         }
     }
 
+    /**
+     * Build the tables of distances from transit stops to street vertices (unless they were already built along with
+     * the network), and the full-extent grid PointSet with linkages for the given modes, as needed for analysis.
+     * The linkages for the different modes only read the street and transit layers, so each one is built on its own
+     * thread at the same time as the others.
+     */
+    public void buildDistanceTablesAndLinkedGrid (StreetMode... modes) {
+        if (fullExtentGridPointSet != null) {
+            throw new RuntimeException("Linked grid pointset was built more than once.");
+        }
+        fullExtentGridPointSet = new WebMercatorGridPointSet(this);
+        // Distance tables are usually built along with transfers when the network itself is built. They must be
+        // complete before any linkage is built: the WALK egress cost table is derived from the stop to vertex
+        // distance tables rather than by searching the streets again.
+        if (transitLayer.stopToVertexDistanceTables == null
+                || transitLayer.stopToVertexDistanceTables.size() != transitLayer.getStopCount()) {
+            runStage("build distance tables", () -> transitLayer.buildDistanceTables(null));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, modes.length));
+        try {
+            List<CompletableFuture<Void>> stages = new ArrayList<>();
+            for (StreetMode mode : modes) {
+                stages.add(startStage("link grid for " + mode, executor, () ->
+                        linkageCache.buildUnevictableLinkage(fullExtentGridPointSet, streetLayer, mode)));
+            }
+            awaitStages(stages.toArray(new CompletableFuture[0]));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Run one stage of building a network, logging how long it took and how much heap memory is in use once it's
+     * finished. Stages running concurrently each report their own elapsed time.
+     */
+    private static void runStage (String name, Runnable stage) {
+        long startTime = System.currentTimeMillis();
+        stage.run();
+        Runtime runtime = Runtime.getRuntime();
+        LOG.info("Network build stage '{}' took {} sec, heap in use is now {} MB.", name,
+                (System.currentTimeMillis() - startTime) / 1000.0,
+                (runtime.totalMemory() - runtime.freeMemory()) / 1024 / 1024);
+    }
+
+    /** Start one stage of building a network on the given executor, to run concurrently with others. */
+    private static CompletableFuture<Void> startStage (String name, Executor executor, Runnable stage) {
+        return CompletableFuture.runAsync(() -> runStage(name, stage), executor);
+    }
+
+    /**
+     * Wait for all the given concurrent stages to finish. If any of them failed, rethrow its exception as if the
+     * stage had been run on the calling thread.
+     */
+    private static void awaitStages (CompletableFuture<?>... stages) {
+        try {
+            CompletableFuture.allOf(stages).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error) throw (Error) e.getCause();
+            throw e;
+        }
+    }
+
     /**
      * For Analysis purposes, build an efficient implicit grid PointSet for this TransportNetwork. Then, for any modes
      * supplied, we also build a linkage that is held permanently in the GridPointSet. This method is called when a
@@ -371,6 +477,123 @@ public class TransportNetwork implements Serializable {
         return copy;
     }
 
+    /**
+     * Create the cache of networks with some leading modifications applied. Evictions happen in the calling thread,
+     * so that the cache never holds more than MAX_APPLIED_MODIFICATIONS networks.
+     */
+    public static Cache<String, TransportNetwork> createAppliedModificationsCache () {
+        return Caffeine.newBuilder().maximumSize(MAX_APPLIED_MODIFICATIONS).executor(Runnable::run).build();
+    }
+
+    /**
+     * Roughly estimate the heap memory retained by this network, to weigh it against other networks in a cache.
+     * This counts the elements of the biggest structures (street edges and vertices, transit schedules, distance
+     * tables, and the linkages serialized with the network) multiplied by approximate per-element sizes, rather than
+     * walking the whole object graph. The networks in appliedModifications are counted for what they don't share
+     * with this one. Other scenario networks built on this one and linkages built later are not counted.
+     * @return the estimated number of bytes retained.
+     */
+    public long estimateRetainedBytes () {
+        long bytes = 0;
+        if (streetLayer != null) {
+            bytes += estimateEdgeBytes(streetLayer.edgeStore.nEdges());
+            List<int[]> geometries = streetLayer.edgeStore.geometries;
+            if (geometries instanceof PackedGeometryList) {
+                bytes += ((PackedGeometryList) geometries).estimateRetainedBytes();
+            } else {
+                for (int[] geometry : geometries) {
+                    if (geometry != null) bytes += geometry.length * 4L;
+                }
+            }
+            bytes += estimateVertexBytes(streetLayer.vertexStore.getVertexCount());
+        }
+        if (transitLayer != null) {
+            for (TripPattern pattern : transitLayer.tripPatterns) {
+                bytes += estimatePatternBytes(pattern);
+            }
+            List<TIntIntMap> distanceTables = transitLayer.stopToVertexDistanceTables;
+            if (distanceTables != null && !(distanceTables instanceof MappedIntTables.DistanceTableList)) {
+                for (TIntIntMap distanceTable : distanceTables) {
+                    bytes += estimateDistanceTableBytes(distanceTable);
+                }
+            }
+            // The copy of the transit layer used in arrive-by searches has its own patterns and transfers.
+            TransitLayer reversedLayer = transitLayer.getReversedLayerIfBuilt();
+            if (reversedLayer != null) {
+                for (TripPattern pattern : reversedLayer.tripPatterns) {
+                    bytes += estimatePatternBytes(pattern);
+                }
+                for (TIntList transfers : reversedLayer.transfersForStop) {
+                    bytes += 32 + transfers.size() * 4L;
+                }
+            }
+        }
+        for (LinkedPointSet linkage : linkageCache.getUnevictableLinkages()) {
+            bytes += linkage.estimateRetainedBytes();
+        }
+        if (appliedModifications != null) {
+            for (TransportNetwork appliedNetwork : appliedModifications.asMap().values()) {
+                bytes += estimateScenarioRetainedBytes(appliedNetwork);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Estimate the heap memory retained by a network made by applying a scenario to this one, leaving out what it
+     * shares with this network. Scenario copies have their own per-edge speeds and angles and their own list of
+     * patterns, plus any edges, vertices, modified patterns and new stop distance tables added by the scenario.
+     */
+    private long estimateScenarioRetainedBytes (TransportNetwork scenarioNetwork) {
+        long bytes = 0;
+        if (streetLayer != null && scenarioNetwork.streetLayer != streetLayer) {
+            long nEdges = scenarioNetwork.streetLayer.edgeStore.nEdges();
+            bytes += nEdges * 3 + estimateEdgeBytes(nEdges - streetLayer.edgeStore.nEdges());
+            long nVertices = scenarioNetwork.streetLayer.vertexStore.getVertexCount();
+            bytes += estimateVertexBytes(nVertices - streetLayer.vertexStore.getVertexCount());
+        }
+        if (transitLayer != null && scenarioNetwork.transitLayer != transitLayer) {
+            List<TripPattern> patterns = scenarioNetwork.transitLayer.tripPatterns;
+            bytes += patterns.size() * 8L;
+            for (int p = 0; p < patterns.size(); p++) {
+                TripPattern pattern = patterns.get(p);
+                boolean shared = p < transitLayer.tripPatterns.size() && transitLayer.tripPatterns.get(p) == pattern;
+                if (!shared) bytes += estimatePatternBytes(pattern);
+            }
+            List<TIntIntMap> distanceTables = scenarioNetwork.transitLayer.stopToVertexDistanceTables;
+            if (distanceTables != null && distanceTables != transitLayer.stopToVertexDistanceTables) {
+                bytes += distanceTables.size() * 8L;
+                for (int s = transitLayer.getStopCount(); s < distanceTables.size(); s++) {
+                    bytes += estimateDistanceTableBytes(distanceTables.get(s));
+                }
+            }
+        }
+        return bytes;
+    }
+
+    private static long estimateEdgeBytes (long nEdges) {
+        // Per edge: flags, speeds and angles. Per edge pair: vertices, length, OSM ID and geometry array header.
+        // Spatial indexes and edge lists on vertices are roughly another int or two per edge.
+        return nEdges * (8 + 8) + (nEdges / 2) * (12 + 8 + 16);
+    }
+
+    private static long estimateVertexBytes (long nVertices) {
+        return nVertices * (9L + 16);
+    }
+
+    private static long estimatePatternBytes (TripPattern pattern) {
+        long bytes = pattern.stops.length * 16L;
+        for (TripSchedule schedule : pattern.tripSchedules) {
+            bytes += 64 + (schedule.arrivals.length + schedule.departures.length) * 4L;
+        }
+        return bytes;
+    }
+
+    private static long estimateDistanceTableBytes (TIntIntMap distanceTable) {
+        // Trove hash maps at their default load factor use about twice the space of their keys and values.
+        return distanceTable == null ? 0 : 64 + distanceTable.size() * 20L;
+    }
+
     /**
      * FIXME why is this a long when crc32 returns an int?
      * @return a checksum of the graph, for use in verifying whether it changed or remained the same after
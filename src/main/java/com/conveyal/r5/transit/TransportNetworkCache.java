@@ -9,7 +9,9 @@ import com.conveyal.gtfs.BaseGTFSCache;
 import com.conveyal.gtfs.GTFSCache;
 import com.conveyal.r5.analyst.cluster.AnalysisTask;
 import com.conveyal.r5.analyst.cluster.BundleManifest;
+import com.conveyal.r5.analyst.cluster.CacheStatus;
 import com.conveyal.r5.analyst.cluster.ScenarioCache;
+import com.conveyal.r5.analyst.error.TaskError;
 import com.conveyal.r5.analyst.scenario.Scenario;
 import com.conveyal.r5.common.JsonUtilities;
 import com.conveyal.r5.common.R5Version;
@@ -21,6 +23,9 @@ import com.conveyal.r5.streets.OSMCache;
 import com.conveyal.r5.streets.StreetLayer;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.Weigher;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import com.google.common.io.ByteStreams;
 import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
@@ -33,9 +38,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
@@ -58,8 +67,29 @@ public class TransportNetworkCache {
 
     private final String bucket;
 
+    /** The number of networks retained when no heap budget is specified. */
     private static final int DEFAULT_CACHE_SIZE = 1;
 
+    /**
+     * If greater than zero, networks are retained until their total estimated size (see
+     * TransportNetwork.estimateRetainedBytes) exceeds this number of bytes, rather than retaining DEFAULT_CACHE_SIZE
+     * networks. This allows a worker to keep several small networks in memory when switching between regions.
+     */
+    private final long heapBudgetBytes;
+
+    /** If greater than zero, the memory budget for the evictable linkages of each network, see LinkageCache. */
+    private final long linkageCacheBytes;
+
+    /**
+     * The estimated size of each network in the cache when it was last weighed, i.e. when it was loaded and each time
+     * a scenario was applied to it. This allows reporting the size of the cache without estimating it again.
+     */
+    private final Map<String, Long> estimatedBytes = new ConcurrentHashMap<>();
+
+    private static final long KB = 1024;
+
+    private static final long MB = 1024 * 1024;
+
     private final LoadingCache<String, TransportNetwork> cache; // TODO change all other caches from Guava to Caffeine caches
     private final BaseGTFSCache gtfsCache;
     private final OSMCache osmCache;
@@ -70,11 +100,39 @@ public class TransportNetworkCache {
      */
     private final ScenarioCache scenarioCache = new ScenarioCache();
 
+    /**
+     * If this is true, after a network is built or loaded its distance tables and the egress cost tables of its
+     * serialized linkages are moved into flat files in the cache directory and memory-mapped, and a second copy of the
+     * network referencing those files is saved locally. Later loads of the same network use that local copy, so the
+     * tables are mapped rather than deserialized onto the heap, and several workers on the same machine share them
+     * through the OS page cache. The complete network file is still the one uploaded to S3.
+     */
+    public boolean mapDistanceTables = false;
+
     /** Create a transport network cache. If source bucket is null, will work offline. */
     public TransportNetworkCache(String region, String bucket, File cacheDir) {
+        this(region, bucket, cacheDir, 0);
+    }
+
+    /**
+     * Create a transport network cache that will retain networks up to the given total estimated size in bytes,
+     * or DEFAULT_CACHE_SIZE networks if the size is zero. If source bucket is null, will work offline.
+     */
+    public TransportNetworkCache(String region, String bucket, File cacheDir, long heapBudgetBytes) {
+        this(region, bucket, cacheDir, heapBudgetBytes, 0);
+    }
+
+    /**
+     * Create a transport network cache as above, in which the evictable linkages of each network are retained up to
+     * the given total estimated size in bytes, or LinkageCache.LINKAGE_CACHE_SIZE linkages if the size is zero.
+     */
+    public TransportNetworkCache(String region, String bucket, File cacheDir, long heapBudgetBytes,
+                                 long linkageCacheBytes) {
         this.cacheDir = cacheDir;
         this.bucket = bucket;
-        this.cache = createCache(DEFAULT_CACHE_SIZE);
+        this.heapBudgetBytes = heapBudgetBytes;
+        this.linkageCacheBytes = linkageCacheBytes;
+        this.cache = createCache();
         this.gtfsCache = new GTFSCache(region, bucket, null, cacheDir);
         this.osmCache = new OSMCache(bucket, cacheDir);
         this.s3 = (bucket == null) ? null : AmazonS3ClientBuilder.defaultClient();
@@ -83,7 +141,9 @@ public class TransportNetworkCache {
     public TransportNetworkCache(BaseGTFSCache gtfsCache, OSMCache osmCache) {
         this.gtfsCache = gtfsCache;
         this.osmCache = osmCache;
-        this.cache = createCache(DEFAULT_CACHE_SIZE);
+        this.heapBudgetBytes = 0;
+        this.linkageCacheBytes = 0;
+        this.cache = createCache();
         this.cacheDir = gtfsCache.cacheDir;
         this.bucket = gtfsCache.bucket;
         // This constructor is only called when working offline, so don't create an S3 client to avoid region settings.
@@ -144,21 +204,99 @@ public class TransportNetworkCache {
             // However, because we are caching transportNetworks with scenarios already applied to them, we can’t use
             // the InactiveTripsFilter. The solution may be to cache linked point sets based on scenario ID but always
             // apply scenarios every time.
-            scenarioNetwork = scenario.applyToTransportNetwork(baseNetwork);
+            scenarioNetwork = applyScenario(baseNetwork, scenario);
             LOG.info("Done applying scenario. Caching the resulting network.");
             baseNetwork.scenarios.put(scenario.id, scenarioNetwork);
+            if (heapBudgetBytes > 0) {
+                // Replace the base network with itself so that its weight includes the networks it now retains.
+                cache.put(networkId, baseNetwork);
+            } else {
+                weigh(networkId, baseNetwork);
+            }
         } else {
             LOG.info("Reusing cached TransportNetwork for scenario {}.", scenarioId);
         }
         return scenarioNetwork;
     }
 
+    /**
+     * Apply a scenario to a base network, starting from the network produced by the longest run of leading
+     * modifications that has already been applied to this base network by any scenario. At most two new networks are
+     * made and kept: one with all the modifications except the last, so that a later scenario sharing them (typically
+     * the same scenario after an analyst edits its last modification) can start from there, and the final one.
+     * Scenario street layers cannot themselves be wrapped by another scenario, so the intermediate network stops
+     * before the first modification that changes the streets, and that and all remaining modifications are applied
+     * in one step.
+     */
+    static TransportNetwork applyScenario (TransportNetwork baseNetwork, Scenario scenario) {
+        if (baseNetwork.appliedModifications == null) {
+            baseNetwork.appliedModifications = TransportNetwork.createAppliedModificationsCache();
+        }
+        List<String> prefixHashes = scenario.modificationPrefixHashes();
+        int nModifications = prefixHashes.size();
+        if (nModifications == 0) {
+            return scenario.applyToTransportNetwork(baseNetwork);
+        }
+        // Find the most modifications already applied, to a network that can be either used as is or built upon.
+        TransportNetwork network = baseNetwork;
+        int nApplied = 0;
+        for (int n = nModifications; n > 0; n--) {
+            TransportNetwork appliedNetwork = baseNetwork.appliedModifications.getIfPresent(prefixHashes.get(n - 1));
+            if (appliedNetwork != null &&
+                    (n == nModifications || !appliedNetwork.streetLayer.edgeStore.isExtendOnlyCopy())) {
+                network = appliedNetwork;
+                nApplied = n;
+                break;
+            }
+        }
+        if (nApplied == nModifications) {
+            LOG.info("All modifications of scenario {} were already applied by another scenario.", scenario.id);
+            return network;
+        }
+        LOG.info("Reusing a network with {} of the {} modifications in scenario {} already applied.",
+                nApplied, nModifications, scenario.id);
+        // Stop the intermediate network before the last modification, or before any modification changing the streets.
+        int nIntermediate = nApplied;
+        while (nIntermediate < nModifications - 1 && !scenario.modifications.get(nIntermediate).affectsStreetLayer()) {
+            nIntermediate++;
+        }
+        while (nApplied < nModifications) {
+            int nToApply = nApplied < nIntermediate ? nIntermediate - nApplied : nModifications - nApplied;
+            Scenario step = new Scenario();
+            step.feedChecksums = scenario.feedChecksums;
+            step.modifications = new ArrayList<>(scenario.modifications.subList(nApplied, nApplied + nToApply));
+            nApplied += nToApply;
+            // Intermediate networks are identified by the contents of the modifications they contain.
+            step.id = nApplied == nModifications ? scenario.id : prefixHashes.get(nApplied - 1);
+            TransportNetwork previousNetwork = network;
+            network = step.applyToTransportNetwork(previousNetwork);
+            if (previousNetwork.scenarioApplicationWarnings != null) {
+                List<TaskError> warnings = new ArrayList<>(previousNetwork.scenarioApplicationWarnings);
+                warnings.addAll(network.scenarioApplicationWarnings);
+                network.scenarioApplicationWarnings = warnings;
+            }
+            baseNetwork.appliedModifications.put(prefixHashes.get(nApplied - 1), network);
+        }
+        return network;
+    }
+
     private String getScenarioFilename(String networkId, String scenarioId) {
         return String.format("%s_%s.json", networkId, scenarioId);
     }
 
     /** If this transport network is already built and cached, fetch it quick */
     private TransportNetwork checkCached (String networkId) {
+        if (mapDistanceTables) {
+            File mappedCacheLocation = new File(cacheDir, getMappedR5NetworkFilename(networkId));
+            if (mappedCacheLocation.exists()) {
+                try {
+                    LOG.info("Loading cached transport network with memory-mapped tables at {}", mappedCacheLocation);
+                    return KryoNetworkSerializer.read(mappedCacheLocation);
+                } catch (Exception e) {
+                    LOG.error("Exception occurred loading network with memory-mapped tables, falling back on full network", e);
+                }
+            }
+        }
         try {
             File cacheLocation = new File(cacheDir, getR5NetworkFilename(networkId));
             if (cacheLocation.exists())
@@ -192,7 +330,9 @@ public class TransportNetworkCache {
                 }
             }
             LOG.info("Loading cached transport network at {}", cacheLocation);
-            return KryoNetworkSerializer.read(cacheLocation);
+            TransportNetwork network = KryoNetworkSerializer.read(cacheLocation);
+            saveWithMappedTablesAsNeeded(network, networkId);
+            return network;
         } catch (Exception e) {
             LOG.error("Exception occurred retrieving cached transport network", e);
             return null;
@@ -203,6 +343,27 @@ public class TransportNetworkCache {
         return networkId + "_" + R5Version.version + ".dat";
     }
 
+    /** The name of the local-only network file whose large tables are stored in separate memory-mapped files. */
+    private String getMappedR5NetworkFilename(String networkId) {
+        return networkId + "_" + R5Version.version + "_mapped.dat";
+    }
+
+    /**
+     * If memory-mapping is enabled, move the large tables of the given network into memory-mapped files and save a
+     * copy of the network referencing them. This also releases the heap space used by those tables.
+     */
+    private void saveWithMappedTablesAsNeeded (TransportNetwork network, String networkId) {
+        if (!mapDistanceTables) return;
+        File mappedCacheLocation = new File(cacheDir, getMappedR5NetworkFilename(networkId));
+        try {
+            KryoNetworkSerializer.writeWithMappedTables(network, mappedCacheLocation);
+        } catch (Exception e) {
+            // The network is still usable, but the next load will have to deserialize the full network again.
+            LOG.error("Error saving network with memory-mapped tables", e);
+            mappedCacheLocation.delete();
+        }
+    }
+
     /** If we did not find a cached network, build one */
     public TransportNetwork buildNetwork (String networkId) {
 
@@ -224,8 +385,7 @@ public class TransportNetworkCache {
         // should be serialized along with the network, which avoids building them when an analysis worker starts.
         // The linkage we create here will never be used directly, but serves as a basis for scenario linkages, making
         // analysis much faster to start up.
-        network.transitLayer.buildDistanceTables(null);
-        network.rebuildLinkedGridPointSet(StreetMode.WALK);
+        network.buildDistanceTablesAndLinkedGrid(StreetMode.WALK);
 
         // Cache the serialized network on the local filesystem.
         File cacheLocation = new File(cacheDir, getR5NetworkFilename(networkId));
@@ -246,6 +406,7 @@ public class TransportNetworkCache {
             LOG.error("Error saving cached network", e);
             cacheLocation.delete();
         }
+        saveWithMappedTablesAsNeeded(network, networkId);
         return network;
     }
 
@@ -351,6 +512,9 @@ public class TransportNetworkCache {
 
         network.rebuildTransientIndexes();
 
+        // Build the distance tables before the transfers, which can then be read from the tables.
+        network.transitLayer.buildDistanceTables(null);
+
         TransferFinder transferFinder = new TransferFinder(network);
         transferFinder.findTransfers();
         transferFinder.findParkRideTransfer();
@@ -362,10 +526,25 @@ public class TransportNetworkCache {
         return GTFSCache.cleanId(networkId) + ".json";
     }
 
-    private LoadingCache createCache(int size) {
-        return Caffeine.newBuilder()
-                .maximumSize(size)
+    private LoadingCache createCache() {
+        Caffeine<Object, Object> builder = Caffeine.newBuilder();
+        if (heapBudgetBytes > 0) {
+            LOG.info("Retaining transport networks up to an estimated total of {} MB.", heapBudgetBytes / MB);
+            // Caffeine weights are ints, so weigh networks in kilobytes. Weights are computed when a network is loaded
+            // and again each time a scenario is applied to it, so linkages built later are covered by headroom left in
+            // the budget.
+            Weigher<String, TransportNetwork> weigher = (networkId, network) ->
+                    (int) Math.min(Integer.MAX_VALUE, weigh(networkId, network) / KB);
+            builder.maximumWeight(heapBudgetBytes / KB).weigher(weigher);
+        } else {
+            builder.maximumSize(DEFAULT_CACHE_SIZE);
+        }
+        return builder
+                .recordStats()
                 .removalListener((networkId, network, cause) -> {
+                    // Networks are replaced with themselves to update their weight, which must not remove their files.
+                    if (cause == RemovalCause.REPLACED) return;
+                    estimatedBytes.remove(networkId);
                     LOG.info("Network {} was evicted from the cache.", networkId);
                     // delete local files ONLY if using s3
                     if (bucket != null) {
@@ -380,6 +559,16 @@ public class TransportNetworkCache {
                 .build(this::loadNetwork);
     }
 
+    /**
+     * Estimate the memory retained by a network and record it for reporting in getNetworkCacheStatus.
+     * @return the estimated number of bytes retained by the network.
+     */
+    private long weigh (String networkId, TransportNetwork network) {
+        long bytes = network.estimateRetainedBytes();
+        estimatedBytes.put(networkId, bytes);
+        return bytes;
+    }
+
     /**
      * Return the graph for the given unique identifier for graph builder inputs on S3.
      * If this is the same as the last graph built, just return the pre-built graph.
@@ -396,6 +585,14 @@ public class TransportNetworkCache {
             network = buildNetwork(networkId);
         }
 
+        if (linkageCacheBytes > 0) {
+            network.linkageCache.setMaximumBytes(linkageCacheBytes);
+        }
+        if (heapBudgetBytes == 0) {
+            // Networks are weighed as they enter the cache when it has a budget, otherwise record their size here.
+            weigh(networkId, network);
+        }
+
         // TODO determine why we were manually inserting into the cache.
         // It now results in concurrent modification deadlock because it's called inside a cacheloader.
         // cache.put(networkId, network);
@@ -416,6 +613,29 @@ public class TransportNetworkCache {
         return cache.asMap().keySet();
     }
 
+    /** @return the cumulative statistics and current contents of the cache of base networks. */
+    public CacheStatus getNetworkCacheStatus () {
+        CacheStats stats = cache.stats();
+        CacheStatus status = new CacheStatus();
+        status.hits = stats.hitCount();
+        status.misses = stats.missCount();
+        status.evictions = stats.evictionCount();
+        status.loadSeconds = stats.totalLoadTime() / 1e9;
+        status.entries = cache.estimatedSize();
+        status.estimatedMegabytes = estimatedBytes.values().stream().mapToLong(Long::longValue).sum() / MB;
+        status.budgetMegabytes = heapBudgetBytes / MB;
+        return status;
+    }
+
+    /** @return the combined statistics and contents of the linkage caches of all networks held in this cache. */
+    public CacheStatus getLinkageCacheStatus () {
+        CacheStatus status = new CacheStatus();
+        for (TransportNetwork network : cache.asMap().values()) {
+            status.accumulate(network.linkageCache.getStatus());
+        }
+        return status;
+    }
+
     public Set<String> getAppliedScenarios() {
         return cache.asMap().values().stream()
                 .filter(network -> network.scenarios != null)
@@ -151,6 +151,37 @@ public class TripPattern implements Serializable, Cloneable {
         }
     }
 
+    /**
+     * Make a copy of this pattern visiting the same stops in the opposite order, with every trip reversed in time
+     * (see TripSchedule.reversedInTime). Pick-ups become drop-offs and vice versa. The reversed trips are sorted by
+     * departure time from the first stop, which is the order the routers expect. Shapes are not reversed.
+     */
+    public TripPattern reversedInTime (int mirrorTime) {
+        TripPattern reversed = this.clone();
+        int nStops = stops.length;
+        reversed.stops = new int[nStops];
+        reversed.pickups = new PickDropType[nStops];
+        reversed.dropoffs = new PickDropType[nStops];
+        reversed.wheelchairAccessible = new BitSet();
+        for (int i = 0; i < nStops; i++) {
+            int forwardPosition = nStops - 1 - i;
+            reversed.stops[i] = stops[forwardPosition];
+            reversed.pickups[i] = dropoffs[forwardPosition];
+            reversed.dropoffs[i] = pickups[forwardPosition];
+            if (wheelchairAccessible != null && wheelchairAccessible.get(forwardPosition)) {
+                reversed.wheelchairAccessible.set(i);
+            }
+        }
+        reversed.tripSchedules = tripSchedules.stream()
+                .map(schedule -> schedule.reversedInTime(mirrorTime))
+                .sorted()
+                .collect(Collectors.toList());
+        reversed.shape = null;
+        reversed.stopShapeSegment = null;
+        reversed.stopShapeFraction = null;
+        return reversed;
+    }
+
     @Override
     public String toString() {
         return "TripPattern on route " + routeId + " with stops " + Arrays.toString(stops);
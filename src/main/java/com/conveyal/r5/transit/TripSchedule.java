@@ -249,6 +249,48 @@ public class TripSchedule implements Serializable, Comparable<TripSchedule>, Clo
         return firstStopTime <= toTime && lastStopTime >= fromTime;
     }
 
+    /**
+     * Make a copy of this trip running backward in time over the reversed sequence of stops, for use in arrive-by
+     * searches. Each clock time t becomes mirrorTime - t, so an arrival at one stop becomes a departure from the same
+     * stop in the reversed trip and vice versa. For frequency trips the stop times remain relative to the first stop
+     * of the reversed trip, and the start and end times of each frequency entry are moved to the (mirrored) last stop.
+     * Phasing is dropped: it is defined at specific stops of the forward trip, and the reversed trips are only used
+     * for routing.
+     */
+    public TripSchedule reversedInTime (int mirrorTime) {
+        TripSchedule reversed = this.clone();
+        int nStops = arrivals.length;
+        reversed.arrivals = new int[nStops];
+        reversed.departures = new int[nStops];
+        // Frequency trips have stop times relative to the start of the trip, which must stay at zero.
+        int lastArrival = arrivals[nStops - 1];
+        int timeOrigin = headwaySeconds == null ? mirrorTime : lastArrival;
+        for (int i = 0; i < nStops; i++) {
+            reversed.departures[i] = timeOrigin - arrivals[nStops - 1 - i];
+            reversed.arrivals[i] = timeOrigin - departures[nStops - 1 - i];
+        }
+        if (headwaySeconds != null) {
+            reversed.startTimes = new int[headwaySeconds.length];
+            reversed.endTimes = new int[headwaySeconds.length];
+            for (int i = 0; i < headwaySeconds.length; i++) {
+                reversed.startTimes[i] = mirrorTime - (endTimes[i] + lastArrival);
+                reversed.endTimes[i] = mirrorTime - (startTimes[i] + lastArrival);
+            }
+        }
+        if (stopSequences != null) {
+            reversed.stopSequences = new int[stopSequences.length];
+            for (int i = 0; i < stopSequences.length; i++) {
+                reversed.stopSequences[i] = stopSequences[stopSequences.length - 1 - i];
+            }
+        }
+        reversed.nextInBlock = null;
+        reversed.phaseFromId = null;
+        reversed.phaseAtStop = null;
+        reversed.phaseFromStop = null;
+        reversed.phaseSeconds = null;
+        return reversed;
+    }
+
     public int getNStops() {
         return arrivals.length;
     }
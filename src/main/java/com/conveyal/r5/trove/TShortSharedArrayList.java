@@ -0,0 +1,21 @@
+package com.conveyal.r5.trove;
+
+import gnu.trove.list.array.TShortArrayList;
+
+/**
+ * A TShortArrayList that uses the supplied array as its storage rather than a copy of it, so the caller can keep
+ * reading the array directly without holding the same values twice. Unlike the lists returned by
+ * TShortArrayList.wrap() this one can still grow, moving its values to a larger array returned by array().
+ */
+public class TShortSharedArrayList extends TShortArrayList {
+
+    public TShortSharedArrayList (short[] values) {
+        super(values, (short) 0, true);
+    }
+
+    /** @return the array currently holding the values of this list, which may be longer than the list. */
+    public short[] array () {
+        return _data;
+    }
+
+}
@@ -0,0 +1,97 @@
+package com.conveyal.r5.analyst;
+
+import com.conveyal.r5.OneOriginResult;
+import com.conveyal.r5.analyst.cluster.RegionalTask;
+import com.conveyal.r5.analyst.cluster.TravelTimeSurfaceTask;
+import com.conveyal.r5.analyst.scenario.FakeGraph;
+import com.conveyal.r5.api.util.LegMode;
+import com.conveyal.r5.api.util.TransitModes;
+import com.conveyal.r5.transit.TransportNetwork;
+import org.junit.Test;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TravelTimeComputerTest {
+
+    /** Egress tables are only symmetric for walking, so arrive-by searches must reject other egress modes. */
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectNonWalkEgressInArriveBySearch () {
+        TravelTimeSurfaceTask task = new TravelTimeSurfaceTask();
+        task.reverseSearch = true;
+        task.accessModes = EnumSet.of(LegMode.WALK);
+        task.directModes = EnumSet.of(LegMode.WALK);
+        task.egressModes = EnumSet.of(LegMode.WALK, LegMode.BICYCLE);
+        // The request is rejected before the network is used.
+        new TravelTimeComputer(task, null).computeTravelTimes();
+    }
+
+    /**
+     * Neighboring origins of a regional analysis, whose transit searches are performed together, should each get the
+     * same travel times and accessibility as when they are handled alone. The origins are spread along a transit line,
+     * so some reach transit stops and some do not.
+     */
+    @Test
+    public void testSameResultsForBatchedOrigins () {
+        TransportNetwork network = FakeGraph.buildNetwork(FakeGraph.TransitNetwork.MULTIPLE_LINES);
+        WebMercatorGridPointSet targets = new WebMercatorGridPointSet(network);
+        Grid opportunities = new Grid(targets.zoom, targets.width, targets.height, targets.north, targets.west);
+        Random random = new Random(5);
+        for (int x = 0; x < opportunities.width; x++) {
+            for (int y = 0; y < opportunities.height; y++) {
+                opportunities.grid[x][y] = random.nextInt(1000);
+            }
+        }
+
+        List<RegionalTask> tasks = new ArrayList<>();
+        int nOrigins = 6;
+        for (int i = 0; i < nOrigins; i++) {
+            RegionalTask task = new RegionalTask();
+            task.jobId = "batch";
+            task.taskId = i;
+            // Between the first and last stops of a line, 40.02182,-83.0889 and 39.9621,-83.0007.
+            double fraction = (double) i / (nOrigins - 1);
+            task.fromLat = 40.02182 + fraction * (39.9621 - 40.02182);
+            task.fromLon = -83.0889 + fraction * (-83.0007 + 83.0889);
+            task.date = LocalDate.of(2018, 1, 1);
+            task.fromTime = 7 * 3600;
+            task.toTime = 8 * 3600;
+            task.accessModes = EnumSet.of(LegMode.WALK);
+            task.directModes = EnumSet.of(LegMode.WALK);
+            task.egressModes = EnumSet.of(LegMode.WALK);
+            task.transitModes = EnumSet.of(TransitModes.BUS);
+            task.monteCarloDraws = 0;
+            task.maxTripDurationMinutes = 90;
+            task.percentiles = new double[] { 5, 50, 95 };
+            task.recordTimes = true;
+            task.recordAccessibility = true;
+            task.destinationPointSet = opportunities;
+            tasks.add(task);
+        }
+
+        List<OneOriginResult> batchedResults = TravelTimeComputer.computeTravelTimes(tasks, network);
+        assertEquals(nOrigins, batchedResults.size());
+        for (int i = 0; i < nOrigins; i++) {
+            OneOriginResult expected = new TravelTimeComputer(tasks.get(i), network).computeTravelTimes();
+            OneOriginResult actual = batchedResults.get(i);
+            int[][] expectedTimes = expected.travelTimes.getValues();
+            int[][] actualTimes = actual.travelTimes.getValues();
+            assertEquals(expectedTimes.length, actualTimes.length);
+            for (int p = 0; p < expectedTimes.length; p++) {
+                assertArrayEquals(expectedTimes[p], actualTimes[p]);
+            }
+            int[][][] expectedAccessibility = expected.accessibility.getIntValues();
+            int[][][] actualAccessibility = actual.accessibility.getIntValues();
+            for (int p = 0; p < tasks.get(i).percentiles.length; p++) {
+                assertArrayEquals(expectedAccessibility[0][p], actualAccessibility[0][p]);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,94 @@
+package com.conveyal.r5.analyst;
+
+import com.conveyal.r5.analyst.cluster.TravelTimeSurfaceTask;
+import com.conveyal.r5.profile.FastRaptorWorker;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Check that extracting percentiles with a per-minute counting sort gives the same results as sorting all the travel
+ * times to a destination and reading the percentiles at their indexes.
+ */
+public class TravelTimeReducerTest {
+
+    /** Percentiles requested out of order, so they are not read from the histogram in the order they are returned. */
+    private static final double[] PERCENTILES = new double[] { 95, 5, 50, 25, 100, 75, 1 };
+
+    private static final int MAX_TRIP_DURATION_MINUTES = 45;
+
+    @Test
+    public void testHalfHeadwayPercentilesMatchSorting () {
+        checkPercentilesMatchSorting(task(0));
+    }
+
+    @Test
+    public void testMonteCarloPercentilesMatchSorting () {
+        checkPercentilesMatchSorting(task(600));
+    }
+
+    private static void checkPercentilesMatchSorting (TravelTimeSurfaceTask task) {
+        int timesPerDestination = task.monteCarloDraws == 0 ?
+                task.getTimeWindowLengthMinutes() : task.getTimeWindowLengthMinutes() * task.getMonteCarloDrawsPerMinute();
+        TravelTimeReducer reducer = new TravelTimeReducer(task);
+        Random random = new Random(42);
+        for (int destination = 0; destination < 1000; destination++) {
+            int[] timesSeconds = randomTimes(random, timesPerDestination);
+            int[] unmodifiedTimesSeconds = timesSeconds.clone();
+            int[] expected = percentilesBySorting(timesSeconds.clone(), task.percentiles);
+            assertArrayEquals(expected, reducer.extractTravelTimesAndRecord(0, timesSeconds));
+            assertArrayEquals(unmodifiedTimesSeconds, timesSeconds);
+        }
+    }
+
+    /**
+     * Draw travel times around the maxTripDurationMinutes, some of them on exact minute boundaries and some of them
+     * UNREACHED. Destinations vary in how many of their times are unreached, so that percentiles fall on both sides of
+     * the maximum.
+     */
+    private static int[] randomTimes (Random random, int n) {
+        int[] timesSeconds = new int[n];
+        double unreachedFraction = random.nextDouble();
+        int limitSeconds = MAX_TRIP_DURATION_MINUTES * FastRaptorWorker.SECONDS_PER_MINUTE;
+        for (int i = 0; i < n; i++) {
+            if (random.nextDouble() < unreachedFraction) {
+                timesSeconds[i] = FastRaptorWorker.UNREACHED;
+            } else if (random.nextBoolean()) {
+                timesSeconds[i] = random.nextInt(MAX_TRIP_DURATION_MINUTES + 5) * FastRaptorWorker.SECONDS_PER_MINUTE;
+            } else {
+                timesSeconds[i] = random.nextInt(limitSeconds + 600);
+            }
+        }
+        return timesSeconds;
+    }
+
+    /** The previous implementation: sort all the times, then convert those at the percentile indexes to minutes. */
+    private static int[] percentilesBySorting (int[] timesSeconds, double[] percentiles) {
+        Arrays.sort(timesSeconds);
+        int[] percentilesMinutes = new int[percentiles.length];
+        for (int p = 0; p < percentiles.length; p++) {
+            int index = (int)(Math.ceil(percentiles[p] / 100 * timesSeconds.length) - 1);
+            int timeSeconds = timesSeconds[index];
+            int timeMinutes = timeSeconds / FastRaptorWorker.SECONDS_PER_MINUTE;
+            boolean reached = timeSeconds != FastRaptorWorker.UNREACHED && timeMinutes < MAX_TRIP_DURATION_MINUTES;
+            percentilesMinutes[p] = reached ? timeMinutes : FastRaptorWorker.UNREACHED;
+        }
+        return percentilesMinutes;
+    }
+
+    private static TravelTimeSurfaceTask task (int monteCarloDraws) {
+        TravelTimeSurfaceTask task = new TravelTimeSurfaceTask();
+        task.fromTime = 7 * 3600;
+        task.toTime = 8 * 3600;
+        task.monteCarloDraws = monteCarloDraws;
+        task.maxTripDurationMinutes = MAX_TRIP_DURATION_MINUTES;
+        task.percentiles = PERCENTILES;
+        task.width = 1;
+        task.height = 1;
+        return task;
+    }
+
+}
@@ -0,0 +1,190 @@
+package com.conveyal.r5.analyst.cluster;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RegionalTaskQueueTest {
+
+    private static final int CAPACITY = 12;
+    private static final int LOW_WATER_MARK = 4;
+
+    /**
+     * A polling thread feeding batches of tasks whenever the queue runs low, and several threads processing them,
+     * should process every task exactly once.
+     */
+    @Test
+    public void processEveryTaskExactlyOnce () throws Exception {
+        RegionalTaskQueue queue = new RegionalTaskQueue(CAPACITY, LOW_WATER_MARK);
+        int nBatches = 200;
+        int batchSize = 10;
+        int nTasks = nBatches * batchSize;
+        AtomicIntegerArray timesProcessed = new AtomicIntegerArray(nTasks);
+        CountDownLatch allProcessed = new CountDownLatch(nTasks);
+
+        List<Thread> consumers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Random random = new Random(t);
+            Thread consumer = new Thread(() -> {
+                try {
+                    while (true) {
+                        RegionalTask task = queue.take();
+                        if (random.nextInt(4) == 0) Thread.sleep(1);
+                        timesProcessed.incrementAndGet(task.taskId);
+                        allProcessed.countDown();
+                    }
+                } catch (InterruptedException e) {
+                    // Stop processing.
+                }
+            });
+            consumer.start();
+            consumers.add(consumer);
+        }
+
+        try {
+            for (int batch = 0, taskId = 0; batch < nBatches; batch++) {
+                queue.awaitLow(60_000, () -> false);
+                // Only the polling thread adds tasks, so the queue cannot have grown since it was found to be low.
+                assertTrue(queue.size() <= LOW_WATER_MARK);
+                for (int i = 0; i < batchSize; i++) {
+                    RegionalTask task = new RegionalTask();
+                    task.taskId = taskId++;
+                    queue.put(task);
+                }
+            }
+            assertTrue(allProcessed.await(30, TimeUnit.SECONDS));
+            for (int taskId = 0; taskId < nTasks; taskId++) {
+                assertEquals(1, timesProcessed.get(taskId));
+            }
+            assertEquals(0, queue.size());
+        } finally {
+            for (Thread consumer : consumers) consumer.interrupt();
+        }
+    }
+
+    /** The polling thread is woken up as soon as a task is taken leaving the queue at the low-water mark. */
+    @Test
+    public void wakePollingThreadWhenQueueIsLow () throws Exception {
+        RegionalTaskQueue queue = fullQueue();
+        CountDownLatch pollingThreadWoken = new CountDownLatch(1);
+        Thread pollingThread = awaitLowInThread(queue, 60_000, () -> false, pollingThreadWoken);
+
+        while (queue.size() > LOW_WATER_MARK + 1) queue.take();
+        assertFalse(pollingThreadWoken.await(200, TimeUnit.MILLISECONDS));
+        queue.take();
+        assertTrue(pollingThreadWoken.await(5, TimeUnit.SECONDS));
+        pollingThread.join();
+    }
+
+    /** When the queue stays full, the polling thread only stops waiting if there are results to return. */
+    @Test
+    public void stopWaitingToReturnResults () throws Exception {
+        RegionalTaskQueue queue = fullQueue();
+        AtomicBoolean resultsWaiting = new AtomicBoolean(false);
+        CountDownLatch pollingThreadWoken = new CountDownLatch(1);
+        Thread pollingThread = awaitLowInThread(queue, 50, resultsWaiting::get, pollingThreadWoken);
+
+        assertFalse(pollingThreadWoken.await(300, TimeUnit.MILLISECONDS));
+        resultsWaiting.set(true);
+        assertTrue(pollingThreadWoken.await(5, TimeUnit.SECONDS));
+        pollingThread.join();
+        assertEquals(CAPACITY, queue.size());
+    }
+
+    /** Tasks are taken together only while they belong to the same job, and no more than the number requested. */
+    @Test
+    public void takeBatchesOfOneJob () throws Exception {
+        RegionalTaskQueue queue = new RegionalTaskQueue(CAPACITY, LOW_WATER_MARK);
+        for (int i = 0; i < 8; i++) {
+            RegionalTask task = new RegionalTask();
+            task.jobId = i < 5 ? "A" : "B";
+            task.taskId = i;
+            queue.put(task);
+        }
+        assertTaskIds(queue.takeBatch(3), 0, 1, 2);
+        assertTaskIds(queue.takeBatch(3), 3, 4);
+        assertTaskIds(queue.takeBatch(10), 5, 6, 7);
+        assertEquals(0, queue.size());
+    }
+
+    /**
+     * A thread waiting for a task checks whether it should hold off only once a task is available, and if so takes
+     * nothing, leaving the task in the queue for when it is ready to start it.
+     */
+    @Test
+    public void holdOffLeavesTasksQueued () throws Exception {
+        RegionalTaskQueue queue = new RegionalTaskQueue(CAPACITY, LOW_WATER_MARK);
+        AtomicBoolean holdOff = new AtomicBoolean(false);
+        List<RegionalTask> taken = new ArrayList<>();
+        CountDownLatch returned = new CountDownLatch(1);
+        Thread consumer = new Thread(() -> {
+            try {
+                taken.addAll(queue.takeBatch(2, holdOff::get));
+                returned.countDown();
+            } catch (InterruptedException e) {
+                // Failures are checked through the latch.
+            }
+        });
+        consumer.setDaemon(true);
+        consumer.start();
+
+        assertFalse(returned.await(200, TimeUnit.MILLISECONDS));
+        // Single-point work arrives while the thread is waiting for a regional task.
+        holdOff.set(true);
+        RegionalTask task = new RegionalTask();
+        task.taskId = 7;
+        queue.put(task);
+        assertTrue(returned.await(5, TimeUnit.SECONDS));
+        consumer.join();
+        assertTrue(taken.isEmpty());
+        assertEquals(1, queue.size());
+
+        holdOff.set(false);
+        assertTaskIds(queue.takeBatch(2, holdOff::get), 7);
+        assertEquals(0, queue.size());
+    }
+
+    private static void assertTaskIds (List<RegionalTask> tasks, int... expectedTaskIds) {
+        assertEquals(expectedTaskIds.length, tasks.size());
+        for (int i = 0; i < expectedTaskIds.length; i++) {
+            assertEquals(expectedTaskIds[i], tasks.get(i).taskId);
+        }
+    }
+
+    private static RegionalTaskQueue fullQueue () throws InterruptedException {
+        RegionalTaskQueue queue = new RegionalTaskQueue(CAPACITY, LOW_WATER_MARK);
+        for (int i = 0; i < CAPACITY; i++) {
+            RegionalTask task = new RegionalTask();
+            task.taskId = i;
+            queue.put(task);
+        }
+        return queue;
+    }
+
+    private static Thread awaitLowInThread (RegionalTaskQueue queue, long flushMillis, BooleanSupplier resultsWaiting,
+                                            CountDownLatch woken) {
+        Thread thread = new Thread(() -> {
+            try {
+                queue.awaitLow(flushMillis, resultsWaiting);
+                woken.countDown();
+            } catch (InterruptedException e) {
+                // Failures are checked by the tests through the latch.
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+}
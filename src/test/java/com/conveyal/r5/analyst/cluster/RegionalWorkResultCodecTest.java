@@ -0,0 +1,62 @@
+package com.conveyal.r5.analyst.cluster;
+
+import com.conveyal.r5.profile.FastRaptorWorker;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Check that regional results survive a round trip through the binary encoding, including null arrays and the very
+ * large UNREACHED values found in travel time results.
+ */
+public class RegionalWorkResultCodecTest {
+
+    @Test
+    public void testRoundTrip () throws Exception {
+        RegionalWorkResult times = new RegionalWorkResult();
+        times.jobId = "job-1";
+        times.taskId = 12345;
+        times.travelTimeValues = new int[][] {
+                { 0, 5, 4, FastRaptorWorker.UNREACHED, 119, FastRaptorWorker.UNREACHED, 3 },
+                { }
+        };
+
+        RegionalWorkResult accessibility = new RegionalWorkResult();
+        accessibility.jobId = "job-2";
+        accessibility.taskId = 0;
+        accessibility.accessibilityValues = new int[][][] { { { 1000000, -2, 0 }, { Integer.MIN_VALUE } } };
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        RegionalWorkResultCodec.write(Arrays.asList(times, accessibility), outputStream);
+        List<RegionalWorkResult> results = RegionalWorkResultCodec.read(
+                new ByteArrayInputStream(outputStream.toByteArray()));
+
+        assertEquals(2, results.size());
+        RegionalWorkResult result = results.get(0);
+        assertEquals("job-1", result.jobId);
+        assertEquals(12345, result.taskId);
+        assertEquals(2, result.travelTimeValues.length);
+        for (int p = 0; p < 2; p++) {
+            assertArrayEquals(times.travelTimeValues[p], result.travelTimeValues[p]);
+        }
+        assertNull(result.accessibilityValues);
+
+        result = results.get(1);
+        assertEquals("job-2", result.jobId);
+        assertEquals(0, result.taskId);
+        assertNull(result.travelTimeValues);
+        assertEquals(1, result.accessibilityValues.length);
+        assertEquals(2, result.accessibilityValues[0].length);
+        for (int p = 0; p < 2; p++) {
+            assertArrayEquals(accessibility.accessibilityValues[0][p], result.accessibilityValues[0][p]);
+        }
+    }
+
+}
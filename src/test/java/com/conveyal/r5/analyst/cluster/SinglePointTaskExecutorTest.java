@@ -0,0 +1,182 @@
+package com.conveyal.r5.analyst.cluster;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SinglePointTaskExecutorTest {
+
+    @Test
+    public void returnResultAndRethrowCheckedExceptions () throws Exception {
+        SinglePointTaskExecutor executor = new SinglePointTaskExecutor(1, 1);
+        try {
+            assertEquals("result", executor.run(() -> "result"));
+            try {
+                executor.run(() -> { throw new IOException("Failed"); });
+                fail();
+            } catch (IOException e) {
+                assertEquals("Failed", e.getMessage());
+            }
+            // Failed tasks must not be counted as pending work.
+            assertTrue(awaitNoSinglePointWork(executor));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /** Once all threads are busy and the queue is full, further tasks are rejected immediately. */
+    @Test
+    public void rejectTasksWhenQueueIsFull () throws Exception {
+        SinglePointTaskExecutor executor = new SinglePointTaskExecutor(1, 1);
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            Thread runningTask = runInThread(executor, () -> { running.countDown(); await(release); return null; });
+            running.await();
+            Thread queuedTask = runInThread(executor, () -> null);
+            awaitQueueDepth(executor, 1);
+            assertEquals(1, executor.getActiveCount());
+
+            try {
+                executor.run(() -> null);
+                fail();
+            } catch (WorkerBusyException e) {
+                assertEquals(1, e.queueDepth);
+            }
+            assertFalse(awaitNoSinglePointWork(executor));
+
+            release.countDown();
+            runningTask.join();
+            queuedTask.join();
+            assertTrue(awaitNoSinglePointWork(executor));
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Interrupting a caller whose task is still queued cancels the task. It must no longer be counted as pending,
+     * otherwise regional threads would wait for it forever.
+     */
+    @Test
+    public void cancelQueuedTaskWhenCallerIsInterrupted () throws Exception {
+        SinglePointTaskExecutor executor = new SinglePointTaskExecutor(1, 1);
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicBoolean cancelledTaskRan = new AtomicBoolean(false);
+        AtomicReference<Exception> cancelledTaskFailure = new AtomicReference<>();
+        try {
+            Thread runningTask = runInThread(executor, () -> { running.countDown(); await(release); return null; });
+            running.await();
+            Thread queuedTask = new Thread(() -> {
+                try {
+                    executor.run(() -> { cancelledTaskRan.set(true); return null; });
+                } catch (Exception e) {
+                    cancelledTaskFailure.set(e);
+                }
+            });
+            queuedTask.start();
+            awaitQueueDepth(executor, 1);
+            queuedTask.interrupt();
+            queuedTask.join();
+            assertTrue(cancelledTaskFailure.get() instanceof InterruptedException);
+            // The cancelled task frees its place in the queue.
+            assertEquals(0, executor.getQueueDepth());
+
+            release.countDown();
+            runningTask.join();
+            assertTrue(awaitNoSinglePointWork(executor));
+            assertFalse(cancelledTaskRan.get());
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    /** Interrupting a caller whose task is already running leaves the task to count itself as finished. */
+    @Test
+    public void countRunningTaskUntilItFinishesWhenCallerIsInterrupted () throws Exception {
+        SinglePointTaskExecutor executor = new SinglePointTaskExecutor(1, 1);
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            Thread runningTask = runInThread(executor, () -> {
+                running.countDown();
+                // Ignore the interruption caused by cancelling, so the task is still running when the caller returns.
+                while (true) {
+                    try {
+                        release.await();
+                        return null;
+                    } catch (InterruptedException e) {
+                        // Keep waiting.
+                    }
+                }
+            });
+            running.await();
+            runningTask.interrupt();
+            runningTask.join();
+            assertFalse(awaitNoSinglePointWork(executor));
+
+            release.countDown();
+            assertTrue(awaitNoSinglePointWork(executor));
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    private interface Task {
+        Object call () throws Exception;
+    }
+
+    private static Thread runInThread (SinglePointTaskExecutor executor, Task task) {
+        Thread thread = new Thread(() -> {
+            try {
+                executor.run(task::call);
+            } catch (Exception e) {
+                // Failures are checked by the tests through their side effects.
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    /** @return whether awaitNoSinglePointWork returned within a second, i.e. no single-point work is pending. */
+    private static boolean awaitNoSinglePointWork (SinglePointTaskExecutor executor) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        Thread regionalThread = new Thread(() -> {
+            executor.awaitNoSinglePointWork();
+            done.countDown();
+        });
+        regionalThread.setDaemon(true);
+        regionalThread.start();
+        boolean returned = done.await(1, TimeUnit.SECONDS);
+        regionalThread.interrupt();
+        return returned;
+    }
+
+    private static void awaitQueueDepth (SinglePointTaskExecutor executor, int depth) throws InterruptedException {
+        while (executor.getQueueDepth() != depth) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static void await (CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
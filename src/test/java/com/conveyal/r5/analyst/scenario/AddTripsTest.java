@@ -238,6 +238,49 @@ public class AddTripsTest {
         assertEquals(checksum, network.checksum());
     }
 
+    /**
+     * Networks are frozen once built, so that their edges are read from plain arrays. Creating and linking a new stop
+     * in a scenario must still be able to add streets to the scenario copy of the frozen edge store.
+     */
+    @Test
+    public void testAddStopsToFrozenNetwork () {
+        assertTrue(network.streetLayer.edgeStore.isFrozen());
+        int nEdges = network.streetLayer.edgeStore.nEdges();
+
+        AddTrips at = new AddTrips();
+        at.bidirectional = true;
+        at.stops = Arrays.asList(
+                new StopSpec(-83.001, 40.012),
+                new StopSpec(-83.002, 40.013)
+        );
+        at.mode = Route.BUS;
+
+        AddTrips.PatternTimetable entry = new AddTrips.PatternTimetable();
+        entry.headwaySecs = 900;
+        entry.monday = entry.tuesday = entry.wednesday = entry.thursday = entry.friday = true;
+        entry.saturday = entry.sunday = false;
+        entry.hopTimes = new int[] { 120 };
+        entry.dwellTimes = new int[] { 0, 0 };
+        entry.startTime = 7 * 3600;
+        entry.endTime = 10 * 3600;
+        at.frequencies = Arrays.asList(entry);
+
+        Scenario scenario = new Scenario();
+        scenario.modifications = Arrays.asList(at);
+        TransportNetwork mod = scenario.applyToTransportNetwork(network);
+
+        assertEquals(network.transitLayer.getStopCount() + 2, mod.transitLayer.getStopCount());
+        assertTrue(mod.streetLayer.edgeStore.nEdges() > nEdges);
+        for (int stop = network.transitLayer.getStopCount(); stop < mod.transitLayer.getStopCount(); stop++) {
+            assertTrue(mod.transitLayer.streetVertexForStop.get(stop) >= 0);
+        }
+
+        // The base network must be unchanged and still frozen.
+        assertEquals(nEdges, network.streetLayer.edgeStore.nEdges());
+        assertTrue(network.streetLayer.edgeStore.isFrozen());
+        assertEquals(checksum, network.checksum());
+    }
+
     /**
      * Simple test of adding a unidirectional trip with one frequency entry and a newly created stop.
      */
@@ -0,0 +1,59 @@
+package com.conveyal.r5.analyst.scenario;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/**
+ * Test that the hashes used to reuse applied modifications across scenarios depend only on the contents and order of
+ * the modifications, not on scenario IDs or comments.
+ */
+public class ScenarioHashTest {
+
+    @Test
+    public void testPrefixHashes () {
+        Scenario first = new Scenario();
+        first.id = "first";
+        first.modifications = Arrays.asList(removeTrips("route1", "Remove the first route"), adjustDwell(30));
+
+        // Same modifications, given in a different order that will be canonicalized, with a different comment.
+        Scenario second = new Scenario();
+        second.id = "second";
+        second.modifications = Arrays.asList(adjustDwell(30), removeTrips("route1", "Another comment"));
+
+        // The same first (canonically ordered) modification, but a different second one.
+        Scenario third = new Scenario();
+        third.id = "third";
+        third.modifications = Arrays.asList(adjustDwell(30), removeTrips("route2", null));
+
+        List<String> firstHashes = first.modificationPrefixHashes();
+        List<String> secondHashes = second.modificationPrefixHashes();
+        List<String> thirdHashes = third.modificationPrefixHashes();
+
+        assertEquals(2, firstHashes.size());
+        assertEquals(firstHashes, secondHashes);
+        assertEquals(firstHashes.get(0), thirdHashes.get(0));
+        assertNotEquals(firstHashes.get(1), thirdHashes.get(1));
+        assertNotEquals(firstHashes.get(0), firstHashes.get(1));
+    }
+
+    private static RemoveTrips removeTrips (String route, String comment) {
+        RemoveTrips removeTrips = new RemoveTrips();
+        removeTrips.routes = Collections.singleton(route);
+        removeTrips.comment = comment;
+        return removeTrips;
+    }
+
+    private static AdjustDwellTime adjustDwell (int dwellSecs) {
+        AdjustDwellTime adjustDwellTime = new AdjustDwellTime();
+        adjustDwellTime.routes = Collections.singleton("route1");
+        adjustDwellTime.dwellSecs = dwellSecs;
+        return adjustDwellTime;
+    }
+
+}
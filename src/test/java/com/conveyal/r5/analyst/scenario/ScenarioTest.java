@@ -0,0 +1,137 @@
+package com.conveyal.r5.analyst.scenario;
+
+import com.conveyal.r5.streets.EdgeStore;
+import com.conveyal.r5.streets.StreetLayer;
+import com.conveyal.r5.streets.VertexStore;
+import com.conveyal.r5.transit.TransferFinder;
+import com.conveyal.r5.transit.TransportNetwork;
+import gnu.trove.list.TIntList;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.conveyal.r5.analyst.scenario.FakeGraph.buildNetwork;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Test that applying a scenario only rebuilds the derived data (transit indexes, edge lists, distance tables and
+ * transfers) that depends on what the scenario changed, and that the result is the same as rebuilding all of it.
+ */
+public class ScenarioTest {
+
+    /** A scenario that only changes timetables reuses the street-derived data of the base network. */
+    @Test
+    public void testTransitOnlyScenario () {
+        TransportNetwork baseNetwork = buildNetwork(FakeGraph.TransitNetwork.SINGLE_LINE);
+        TransportNetwork network = adjustDwellTimeScenario().applyToTransportNetwork(baseNetwork);
+
+        assertSame(baseNetwork.streetLayer.outgoingEdges, network.streetLayer.outgoingEdges);
+        assertSame(baseNetwork.transitLayer.stopToVertexDistanceTables, network.transitLayer.stopToVertexDistanceTables);
+        assertSameDerivedData(applyWithFullRebuild(adjustDwellTimeScenario(), baseNetwork), network);
+    }
+
+    /** A scenario that only changes streets rebuilds the edge lists and nearby distance tables, but not transit. */
+    @Test
+    public void testStreetOnlyScenario () {
+        TransportNetwork baseNetwork = buildNetwork(FakeGraph.TransitNetwork.SINGLE_LINE);
+        TransportNetwork network = addStreetSpurScenario().applyToTransportNetwork(baseNetwork);
+
+        assertSame(baseNetwork.transitLayer.patternsForStop, network.transitLayer.patternsForStop);
+        assertNotEquals(baseNetwork.streetLayer.outgoingEdges.size(), network.streetLayer.outgoingEdges.size());
+        assertNotEquals(baseNetwork.transitLayer.stopToVertexDistanceTables.get(AddStreetSpur.STOP),
+                network.transitLayer.stopToVertexDistanceTables.get(AddStreetSpur.STOP));
+        assertSameDerivedData(applyWithFullRebuild(addStreetSpurScenario(), baseNetwork), network);
+    }
+
+    private static Scenario adjustDwellTimeScenario () {
+        AdjustDwellTime adjustDwellTime = new AdjustDwellTime();
+        adjustDwellTime.routes = Collections.singleton("SINGLE_LINE:route");
+        adjustDwellTime.dwellSecs = 60;
+        Scenario scenario = new Scenario();
+        scenario.modifications = Collections.singletonList(adjustDwellTime);
+        return scenario;
+    }
+
+    private static Scenario addStreetSpurScenario () {
+        Scenario scenario = new Scenario();
+        scenario.modifications = Collections.singletonList(new AddStreetSpur());
+        return scenario;
+    }
+
+    /** Apply the scenario, then rebuild all the derived data regardless of what the scenario changed. */
+    private static TransportNetwork applyWithFullRebuild (Scenario scenario, TransportNetwork baseNetwork) {
+        TransportNetwork network = scenario.applyToTransportNetwork(baseNetwork);
+        network.transitLayer.rebuildTransientIndexes();
+        network.streetLayer.buildEdgeLists();
+        network.transitLayer.buildDistanceTables(null);
+        network.transitLayer.transfersForStop = new ArrayList<>();
+        new TransferFinder(network).findTransfers();
+        return network;
+    }
+
+    private static void assertSameDerivedData (TransportNetwork expected, TransportNetwork actual) {
+        assertEquals(expected.transitLayer.patternsForStop, actual.transitLayer.patternsForStop);
+        assertEquals(expected.streetLayer.outgoingEdges, actual.streetLayer.outgoingEdges);
+        assertEquals(expected.streetLayer.incomingEdges, actual.streetLayer.incomingEdges);
+        assertEquals(expected.transitLayer.stopToVertexDistanceTables, actual.transitLayer.stopToVertexDistanceTables);
+        List<TIntList> expectedTransfers = expected.transitLayer.transfersForStop;
+        List<TIntList> actualTransfers = actual.transitLayer.transfersForStop;
+        assertEquals(expectedTransfers.size(), actualTransfers.size());
+        for (int stop = 0; stop < expectedTransfers.size(); stop++) {
+            assertEquals(transferDistances(expectedTransfers.get(stop)), transferDistances(actualTransfers.get(stop)));
+        }
+    }
+
+    /** @return the packed (target stop, distance) pairs of a transfer list as a map, ignoring their order. */
+    private static TIntIntMap transferDistances (TIntList transfers) {
+        TIntIntMap distances = new TIntIntHashMap();
+        for (int i = 0; i < transfers.size(); i += 2) {
+            distances.put(transfers.get(i), transfers.get(i + 1));
+        }
+        return distances;
+    }
+
+    /**
+     * Add a short dead-end street leading away from a stop. This changes the street edges and the distance table of
+     * that stop, but no transit data and no transfers, as no path between existing vertices is shortened.
+     */
+    private static class AddStreetSpur extends Modification {
+
+        static final int STOP = 1;
+
+        @Override
+        public boolean apply (TransportNetwork network) {
+            StreetLayer streetLayer = network.streetLayer;
+            int stopVertex = network.transitLayer.streetVertexForStop.get(STOP);
+            VertexStore.Vertex vertex = streetLayer.vertexStore.getCursor(stopVertex);
+            int spurVertex = streetLayer.vertexStore.addVertex(vertex.getLat() + 0.0005, vertex.getLon());
+            EdgeStore.Edge edge = streetLayer.edgeStore.addStreetPair(stopVertex, spurVertex, 55_000, -1);
+            edge.allowAllModes();
+            edge.advance();
+            edge.allowAllModes();
+            return false;
+        }
+
+        @Override
+        public boolean affectsStreetLayer () {
+            return true;
+        }
+
+        @Override
+        public boolean affectsTransitLayer () {
+            return false;
+        }
+
+        @Override
+        public int getSortOrder () {
+            return 0;
+        }
+    }
+
+}
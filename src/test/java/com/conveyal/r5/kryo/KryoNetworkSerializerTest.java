@@ -2,16 +2,31 @@ package com.conveyal.r5.kryo;
 
 import com.conveyal.r5.analyst.scenario.FakeGraph;
 import com.conveyal.object_differ.ObjectDiffer;
+import com.conveyal.r5.common.R5Version;
 import com.conveyal.r5.profile.StreetMode;
+import com.conveyal.r5.streets.EgressCostTable;
 import com.conveyal.r5.streets.IntHashGrid;
+import com.conveyal.r5.streets.LinkedPointSet;
 import com.conveyal.r5.transit.TransportNetwork;
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Output;
+import gnu.trove.map.TIntIntMap;
 import org.junit.Test;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
 
 import static com.conveyal.r5.analyst.scenario.FakeGraph.buildNetwork;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Tests that serialization and deserialization of TransportNetworks functions as expected and does not corrupt objects.
@@ -49,6 +64,90 @@ public class KryoNetworkSerializerTest {
         assertNoDifferences(copiedNetwork1, copiedNetwork2);
     }
 
+    /**
+     * Check that a network written in a single Kryo stream, as older versions of R5 did, can still be read back.
+     */
+    @Test
+    public void testReadSingleStreamNetwork () throws Exception {
+        TransportNetwork originalNetwork = buildNetwork(FakeGraph.TransitNetwork.MULTIPLE_LINES);
+        originalNetwork.rebuildLinkedGridPointSet(StreetMode.WALK);
+
+        // Write the network the way older versions of R5 did, with the whole network following the header.
+        File tempFile = File.createTempFile("r5-single-stream-test-", ".dat");
+        tempFile.deleteOnExit();
+        try (Output output = new Output(new FileOutputStream(tempFile))) {
+            Kryo kryo = KryoNetworkSerializer.makeSingleStreamKryo();
+            output.write(KryoNetworkSerializer.SINGLE_STREAM_HEADER);
+            kryo.writeObject(output, R5Version.version);
+            kryo.writeObject(output, R5Version.commit);
+            kryo.writeObject(output, originalNetwork);
+        }
+
+        TransportNetwork copiedNetwork = KryoNetworkSerializer.read(tempFile);
+        assertNoDifferences(originalNetwork, copiedNetwork);
+    }
+
+    /**
+     * Check that moving the distance tables and egress cost tables out into memory-mapped files and reading the
+     * network back again yields the same tables.
+     */
+    @Test
+    public void testMappedTablesRoundTrip () throws Exception {
+        TransportNetwork network = buildNetwork(FakeGraph.TransitNetwork.MULTIPLE_LINES);
+        network.rebuildLinkedGridPointSet(StreetMode.WALK);
+        List<TIntIntMap> originalDistanceTables = new ArrayList<>(network.transitLayer.stopToVertexDistanceTables);
+        EgressCostTable originalEgressCostTable = getOnlyUnevictableLinkage(network).getEgressCostTable();
+        List<int[]> originalCostTables = new ArrayList<>(originalEgressCostTable.stopToPointLinkageCostTables);
+
+        File tempDir = Files.createTempDirectory("r5-mapped-tables-test-").toFile();
+        tempDir.deleteOnExit();
+        File networkFile = new File(tempDir, "network.dat");
+        KryoNetworkSerializer.writeWithMappedTables(network, networkFile);
+        for (File file : tempDir.listFiles()) file.deleteOnExit();
+
+        // The tables in the network that was written should have been replaced with memory-mapped views.
+        assertTrue(network.transitLayer.stopToVertexDistanceTables instanceof MappedIntTables.DistanceTableList);
+        assertTrue(originalEgressCostTable.stopToPointLinkageCostTables instanceof MappedIntTables.IntArrayTableList);
+        assertSameTables(originalDistanceTables, originalCostTables, network);
+
+        TransportNetwork copiedNetwork = KryoNetworkSerializer.read(networkFile);
+        assertSameTables(originalDistanceTables, originalCostTables, copiedNetwork);
+
+        // Reading the same table again should reuse the table already decoded onto the heap.
+        List<TIntIntMap> mappedDistanceTables = copiedNetwork.transitLayer.stopToVertexDistanceTables;
+        List<int[]> mappedCostTables =
+                getOnlyUnevictableLinkage(copiedNetwork).getEgressCostTable().stopToPointLinkageCostTables;
+        for (int stop = 0; stop < mappedDistanceTables.size(); stop++) {
+            if (mappedDistanceTables.get(stop) != null) {
+                assertSame(mappedDistanceTables.get(stop), mappedDistanceTables.get(stop));
+            }
+            if (mappedCostTables.get(stop) != null) {
+                assertSame(mappedCostTables.get(stop), mappedCostTables.get(stop));
+            }
+        }
+    }
+
+    private static void assertSameTables (List<TIntIntMap> distanceTables, List<int[]> costTables,
+                                          TransportNetwork network) {
+        List<TIntIntMap> mappedDistanceTables = network.transitLayer.stopToVertexDistanceTables;
+        assertEquals(distanceTables.size(), mappedDistanceTables.size());
+        for (int stop = 0; stop < distanceTables.size(); stop++) {
+            assertEquals(distanceTables.get(stop), mappedDistanceTables.get(stop));
+        }
+        List<int[]> mappedCostTables =
+                getOnlyUnevictableLinkage(network).getEgressCostTable().stopToPointLinkageCostTables;
+        assertEquals(costTables.size(), mappedCostTables.size());
+        for (int stop = 0; stop < costTables.size(); stop++) {
+            assertArrayEquals(costTables.get(stop), mappedCostTables.get(stop));
+        }
+    }
+
+    private static LinkedPointSet getOnlyUnevictableLinkage (TransportNetwork network) {
+        Collection<LinkedPointSet> linkages = network.linkageCache.getUnevictableLinkages();
+        assertEquals(1, linkages.size());
+        return linkages.iterator().next();
+    }
+
     /**
      * Create an ObjectDiffer configured to work on R5 TransportNetworks.
      * Make some exclusions for classes that are inherently transient or contain unordered lists we can't yet compare.
@@ -0,0 +1,163 @@
+package com.conveyal.r5.otp2;
+
+import com.conveyal.r5.otp2.api.TestLeg;
+import com.conveyal.r5.otp2.api.TestTripPattern;
+import com.conveyal.r5.otp2.api.TestTripSchedule;
+import com.conveyal.r5.otp2.api.request.Optimization;
+import com.conveyal.r5.otp2.api.request.RangeRaptorProfile;
+import com.conveyal.r5.otp2.api.request.RangeRaptorRequest;
+import com.conveyal.r5.otp2.api.request.RequestBuilder;
+import com.conveyal.r5.otp2.api.request.SearchTimeoutException;
+import com.conveyal.r5.otp2.api.request.TuningParameters;
+import com.conveyal.r5.otp2.api.transit.IntIterator;
+import com.conveyal.r5.otp2.api.transit.TransferLeg;
+import com.conveyal.r5.otp2.api.transit.TransitDataProvider;
+import com.conveyal.r5.otp2.api.transit.TripPatternInfo;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.conveyal.r5.otp2.api.TestTripSchedule.createTripScheduleUseingArrivalTimes;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**
+ * Check that the deadline of a request aborts every search performed for it: the reverse and forward heuristic
+ * searches and the multi-criteria search, which run in that order.
+ */
+public class RangeRaptorServiceTest {
+
+    private static final int DEADLINE_MILLIS = 1000;
+
+    @Test
+    public void reverseHeuristicSearchIsAbortedAfterTheDeadline() {
+        assertWorkerIsAborted(1);
+    }
+
+    @Test
+    public void forwardHeuristicSearchIsAbortedAfterTheDeadline() {
+        assertWorkerIsAborted(2);
+    }
+
+    @Test
+    public void multiCriteriaSearchIsAbortedAfterTheDeadline() {
+        assertWorkerIsAborted(3);
+    }
+
+    @Test
+    public void parallelHeuristicSearchesAreAbortedAfterTheDeadline() {
+        RangeRaptorService<TestTripSchedule> service = new RangeRaptorService<>(tuningParameters(2));
+        try {
+            TestTransitData transitData = new TestTransitData(0);
+            try {
+                service.route(request(1, true), transitData);
+                fail();
+            } catch (SearchTimeoutException e) {
+                // Expected
+            }
+            assertEquals(0, transitData.patternSearches.get());
+
+            // The threads shared by all requests are free to route the next request.
+            assertFalse(service.route(request(0, true), new TestTransitData(0)).isEmpty());
+        } finally {
+            service.shutdown();
+        }
+    }
+
+    /**
+     * Let the searches before the given one complete, and hold up the given search until the deadline has passed.
+     * It should be aborted before looking for any trips, and no further search should be started.
+     */
+    private static void assertWorkerIsAborted(int nSearches) {
+        RangeRaptorService<TestTripSchedule> service = new RangeRaptorService<>(tuningParameters(0));
+        TestTransitData transitData = new TestTransitData(nSearches);
+        try {
+            service.route(request(System.currentTimeMillis() + DEADLINE_MILLIS, false), transitData);
+            fail();
+        } catch (SearchTimeoutException e) {
+            assertEquals(nSearches, transitData.searches.get());
+            assertEquals(0, transitData.patternSearches.get());
+        } finally {
+            service.shutdown();
+        }
+    }
+
+    private static TuningParameters tuningParameters(int searchThreadPoolSize) {
+        return new TuningParameters() {
+            @Override
+            public int searchThreadPoolSize() {
+                return searchThreadPoolSize;
+            }
+        };
+    }
+
+    private static RangeRaptorRequest<TestTripSchedule> request(long searchDeadline, boolean parallel) {
+        RequestBuilder<TestTripSchedule> builder = new RequestBuilder<>();
+        builder.profile(RangeRaptorProfile.MULTI_CRITERIA)
+                .enableOptimization(Optimization.TRANSFERS_STOP_FILTER);
+        if (parallel) {
+            builder.enableOptimization(Optimization.PARALLEL);
+        }
+        builder.searchParams()
+                .earliestDepartureTime(7 * 3600 + 50 * 60)
+                .latestArrivalTime(9 * 3600)
+                .searchWindowInSeconds(600)
+                .addAccessStop(new TestLeg(1, 60))
+                .addEgressStop(new TestLeg(3, 60))
+                .searchDeadline(searchDeadline);
+        return builder.build();
+    }
+
+    /**
+     * A single trip serving stops 1, 2 and 3. Counts the searches that are started, and the searches for trips done
+     * since the last search was started.
+     */
+    private static class TestTransitData implements TransitDataProvider<TestTripSchedule> {
+
+        private final TestTripPattern pattern = new TestTripPattern(
+                createTripScheduleUseingArrivalTimes(8 * 3600, 8 * 3600 + 600, 8 * 3600 + 1200)
+        );
+
+        /** The search to hold up until the deadline has passed, counting from 1, or 0 for none. */
+        private final int searchToHoldUp;
+
+        final AtomicInteger searches = new AtomicInteger();
+
+        final AtomicInteger patternSearches = new AtomicInteger();
+
+        TestTransitData(int searchToHoldUp) {
+            this.searchToHoldUp = searchToHoldUp;
+        }
+
+        @Override
+        public void setup() {
+            patternSearches.set(0);
+            if (searches.incrementAndGet() == searchToHoldUp) {
+                try {
+                    Thread.sleep(DEADLINE_MILLIS + 100);
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+
+        @Override
+        public Iterator<? extends TransferLeg> getTransfers(int fromStop) {
+            return Collections.emptyIterator();
+        }
+
+        @Override
+        public Iterator<? extends TripPatternInfo<TestTripSchedule>> patternIterator(IntIterator stops) {
+            patternSearches.incrementAndGet();
+            return Collections.singletonList(pattern).iterator();
+        }
+
+        @Override
+        public int numberOfStops() {
+            return 4;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.conveyal.r5.otp2.rangeraptor.transit;
+
+import com.conveyal.r5.otp2.api.TestTripPattern;
+import com.conveyal.r5.otp2.api.TestTripSchedule;
+import org.junit.Test;
+
+import static com.conveyal.r5.otp2.api.TestTripSchedule.createTripScheduleUseingDepartureTimes;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FrequencyTripSearchTest {
+
+    /*
+     * A pattern with 2 stops, 2 scheduled trips and one frequency entry:
+     *
+     * Trip:  |  A   |  B   | Frequency
+     * Stop 1 | 1000 | 2000 | earliest board time + 300
+     * Stop 2 | 1500 | 2500 | departure from stop 1 + 400
+     */
+    private static final int HALF_HEADWAY = 300;
+    private static final int TRAVEL_TIME = 400;
+
+    private static final int STOP_1 = 0;
+    private static final int STOP_2 = 1;
+
+    private static final int TRIP_A_INDEX = 0;
+    private static final int FREQUENCY_TRIP_INDEX = 2;
+
+    private TestTripSchedule tripA = createTripScheduleUseingDepartureTimes(1000, 1500);
+    private TestTripSchedule tripB = createTripScheduleUseingDepartureTimes(2000, 2500);
+
+    private TestTripPattern pattern = new TestTripPattern(tripA, tripB) {
+        @Override
+        public int numberOfFrequencyEntries() {
+            return 1;
+        }
+
+        @Override
+        public TestTripSchedule frequencyTripDepartingAfter(int frequencyEntry, int stopPositionInPattern, int earliestBoardTime) {
+            int boardTime = earliestBoardTime + HALF_HEADWAY;
+            int departureFromStop1 = boardTime - stopPositionInPattern * TRAVEL_TIME;
+            return createTripScheduleUseingDepartureTimes(departureFromStop1, departureFromStop1 + TRAVEL_TIME);
+        }
+    };
+
+    private TransitCalculator calculator = TransitCalculator.testDummyCalculator(0, true);
+
+    private FrequencyTripSearch<TestTripSchedule> subject = new FrequencyTripSearch<>(
+            new TripScheduleBoardSearch<>(10, pattern, t -> false), pattern, calculator, true
+    );
+
+    @Test
+    public void boardScheduledTripIfItDepartsFirst() {
+        assertTrue(subject.search(900, STOP_1));
+        assertSame(tripA, subject.getCandidateTrip());
+        assertEquals(TRIP_A_INDEX, subject.getCandidateTripIndex());
+        assertEquals(1000, subject.getCandidateTripTime());
+    }
+
+    @Test
+    public void boardFrequencyTripIfItDepartsFirst() {
+        assertTrue(subject.search(1100, STOP_1));
+        assertEquals(FREQUENCY_TRIP_INDEX, subject.getCandidateTripIndex());
+        assertEquals(1400, subject.getCandidateTripTime());
+        assertEquals(1800, subject.getCandidateTrip().departure(STOP_2));
+    }
+
+    @Test
+    public void switchFromFrequencyTripOnlyToAnEarlierTrip() {
+        // Board the frequency trip at stop 1, it departs from stop 2 at 1800
+        assertTrue(subject.search(1100, STOP_1));
+
+        // Trip A departs from stop 2 before the frequency trip
+        assertTrue(subject.search(1250, STOP_2, FREQUENCY_TRIP_INDEX));
+        assertSame(tripA, subject.getCandidateTrip());
+
+        // Board the frequency trip at stop 1 again, nothing departing from stop 2 after 1600 is earlier
+        assertTrue(subject.search(1100, STOP_1));
+        assertFalse(subject.search(1600, STOP_2, FREQUENCY_TRIP_INDEX));
+
+        // Reaching stop 2 earlier allows boarding an earlier vehicle of the frequency entry
+        assertTrue(subject.search(1100, STOP_2, FREQUENCY_TRIP_INDEX));
+        assertEquals(FREQUENCY_TRIP_INDEX, subject.getCandidateTripIndex());
+        assertEquals(1400, subject.getCandidateTripTime());
+    }
+}
@@ -104,6 +104,23 @@ public class TripScheduleBoardSearchTest {
                 .withBoardTime(TIME_A1);
     }
 
+    @Test
+    public void searchAnotherPatternWithTheSameSearch() {
+        searchForTrip(TIME_A0 + 1, STOP_1)
+                .assertTripFound()
+                .withIndex(TRIP_B_INDEX);
+
+        // The search is reused for a pattern with trip A only, as a worker does for each pattern it explores.
+        subject.setPattern(new TestTripPattern(tripA));
+
+        searchForTrip(TIME_0, STOP_2)
+                .assertTripFound()
+                .withIndex(TRIP_A_INDEX)
+                .withBoardTime(TIME_A1);
+        searchForTrip(TIME_A0 + 1, STOP_1)
+                .assertNoTripFound();
+    }
+
     @Test
     public void boardFirstTripWithTheMinimumPossibleSlack() {
         searchForTrip(latestTimeToBoardAt(TIME_A0), STOP_1)
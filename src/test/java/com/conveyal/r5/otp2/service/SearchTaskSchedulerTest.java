@@ -0,0 +1,122 @@
+package com.conveyal.r5.otp2.service;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SearchTaskSchedulerTest {
+
+    @Test
+    public void runAllTasksInCallingThreadWithoutPool() {
+        SearchTaskScheduler subject = new SearchTaskScheduler(0);
+        assertFalse(subject.isMultiThreaded());
+        Thread caller = Thread.currentThread();
+        AtomicInteger count = new AtomicInteger();
+
+        subject.runAll(
+                () -> { assertSame(caller, Thread.currentThread()); count.incrementAndGet(); },
+                () -> { assertSame(caller, Thread.currentThread()); count.incrementAndGet(); }
+        );
+        assertEquals(2, count.get());
+    }
+
+    @Test
+    public void runAllTasksBeforeReturning() {
+        SearchTaskScheduler subject = new SearchTaskScheduler(2);
+        try {
+            assertTrue(subject.isMultiThreaded());
+            AtomicInteger count = new AtomicInteger();
+            for (int i = 0; i < 100; ++i) {
+                subject.runAll(count::incrementAndGet, count::incrementAndGet, count::incrementAndGet);
+            }
+            assertEquals(300, count.get());
+        } finally {
+            subject.shutdown();
+        }
+    }
+
+    @Test
+    public void callerRunsTaskIfThePoolIsBusy() throws Exception {
+        SearchTaskScheduler subject = new SearchTaskScheduler(1);
+        CountDownLatch poolThreadBusy = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            // Keep the only pool thread busy with the second task of another request
+            Thread otherRequest = new Thread(() -> subject.runAll(
+                    () -> await(release),
+                    () -> { poolThreadBusy.countDown(); await(release); }
+            ));
+            otherRequest.start();
+            poolThreadBusy.await();
+
+            AtomicReference<Thread> thread = new AtomicReference<>();
+            subject.runAll(() -> { }, () -> thread.set(Thread.currentThread()));
+            assertSame(Thread.currentThread(), thread.get());
+
+            release.countDown();
+            otherRequest.join();
+        } finally {
+            release.countDown();
+            subject.shutdown();
+        }
+    }
+
+    @Test
+    public void tasksTakenBackAreNoLongerCountedAsWaiting() throws Exception {
+        SearchTaskScheduler subject = new SearchTaskScheduler(1);
+        CountDownLatch poolThreadBusy = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            Thread otherRequest = new Thread(() -> subject.runAll(
+                    () -> await(release),
+                    () -> { poolThreadBusy.countDown(); await(release); }
+            ));
+            otherRequest.start();
+            poolThreadBusy.await();
+
+            // Each task is offered to the busy pool and then taken back, so later tasks can still be offered.
+            Thread caller = Thread.currentThread();
+            for (int i = 0; i < 3; ++i) {
+                AtomicReference<Thread> thread = new AtomicReference<>();
+                subject.runAll(() -> { }, () -> thread.set(Thread.currentThread()));
+                assertSame(caller, thread.get());
+                assertEquals(0, subject.getWaitingTaskCount());
+            }
+
+            release.countDown();
+            otherRequest.join();
+        } finally {
+            release.countDown();
+            subject.shutdown();
+        }
+    }
+
+    @Test
+    public void rethrowFailureOfForkedTask() {
+        SearchTaskScheduler subject = new SearchTaskScheduler(2);
+        try {
+            subject.runAll(() -> { }, () -> { throw new IllegalStateException("Failed"); });
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("Failed", e.getMessage());
+        } finally {
+            subject.shutdown();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package com.conveyal.r5.otp2.transitadapter;
+
+import com.conveyal.r5.analyst.scenario.AddTrips;
+import com.conveyal.r5.analyst.scenario.AdjustFrequency;
+import com.conveyal.r5.analyst.scenario.FakeGraph;
+import com.conveyal.r5.analyst.scenario.Scenario;
+import com.conveyal.r5.api.util.TransitModes;
+import com.conveyal.r5.otp2.api.transit.TripPatternInfo;
+import com.conveyal.r5.otp2.util.BitSetIterator;
+import com.conveyal.r5.profile.FastRaptorWorker.FrequencyBoardingMode;
+import com.conveyal.r5.profile.FrequencyRandomOffsets;
+import com.conveyal.r5.transit.TransportNetwork;
+import com.conveyal.r5.transit.TripSchedule;
+import org.junit.Test;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+
+import static com.conveyal.r5.profile.FastRaptorWorker.FrequencyBoardingMode.HALF_HEADWAY;
+import static com.conveyal.r5.profile.FastRaptorWorker.FrequencyBoardingMode.MONTE_CARLO;
+import static com.conveyal.r5.profile.FastRaptorWorker.FrequencyBoardingMode.UPPER_BOUND;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TransitLayerRRDataProviderTest {
+
+    private static final TransportNetwork NETWORK = FakeGraph.buildNetwork(FakeGraph.TransitNetwork.MULTIPLE_LINES);
+
+    private static final LocalDate DATE = LocalDate.of(2018, 1, 1);
+
+    /** A single line run every 10 minutes from 8 to 9 am, and by scheduled trips the rest of the day. */
+    private static final TransportNetwork FREQUENCY_NETWORK = buildFrequencyNetwork();
+    private static final int START = 8 * 3600;
+    private static final int END = 9 * 3600;
+    private static final int HEADWAY = 600;
+    private static final int HALF_HEADWAY_WAIT = HEADWAY / 2;
+
+    /** Stop positions in the pattern of the line, which has four stops. */
+    private static final int BOARD_POS = 1;
+    private static final int ALIGHT_POS = 3;
+
+    @Test
+    public void patterns_and_trips_are_created_once_and_reused() {
+        TransitLayerRRDataProvider subject = provider(LocalDate.of(2018, 1, 1), EnumSet.of(TransitModes.BUS));
+
+        List<TripPatternInfo<TripScheduleAdapter>> first = patternsTouchedByAllStops(subject);
+        List<TripPatternInfo<TripScheduleAdapter>> second = patternsTouchedByAllStops(subject);
+
+        // There are two routes, each with 78 scheduled trips (6 per hour from 7 am to 8 pm).
+        assertEquals(2, first.size());
+        assertEquals(2, second.size());
+        for (int i = 0; i < first.size(); i++) {
+            TripPatternInfo<TripScheduleAdapter> pattern = first.get(i);
+            assertSame(pattern, second.get(i));
+            assertEquals(78, pattern.numberOfTripSchedules());
+            assertSame(pattern.getTripSchedule(0), pattern.getTripSchedule(0));
+            // Trips stay in order of departure from the first stop
+            for (int t = 1; t < pattern.numberOfTripSchedules(); t++) {
+                assertTrue(pattern.getTripSchedule(t - 1).departure(0) <= pattern.getTripSchedule(t).departure(0));
+            }
+        }
+    }
+
+    @Test
+    public void patterns_not_running_on_the_date_or_with_other_modes_are_skipped() {
+        assertTrue(patternsTouchedByAllStops(provider(LocalDate.of(1990, 1, 1), EnumSet.of(TransitModes.BUS))).isEmpty());
+        assertTrue(patternsTouchedByAllStops(provider(LocalDate.of(2018, 1, 1), EnumSet.of(TransitModes.RAIL))).isEmpty());
+    }
+
+    @Test
+    public void frequency_entries_are_skipped_without_a_boarding_mode() {
+        TripPatternInfo<TripScheduleAdapter> pattern = frequencyPattern(null, null);
+        assertEquals(0, pattern.numberOfFrequencyEntries());
+        assertTrue(pattern.numberOfTripSchedules() > 0);
+    }
+
+    /**
+     * Frequency entries are never merged into the scheduled trips, not even in MONTE_CARLO mode, so the scheduled
+     * trips stay in the same order at every stop.
+     */
+    @Test
+    public void frequency_entries_are_kept_apart_from_scheduled_trips() {
+        int nScheduledTrips = frequencyPattern(null, null).numberOfTripSchedules();
+        for (FrequencyBoardingMode mode : FrequencyBoardingMode.values()) {
+            TripPatternInfo<TripScheduleAdapter> pattern = frequencyPattern(mode, randomOffsets());
+            assertEquals(1, pattern.numberOfFrequencyEntries());
+            assertEquals(nScheduledTrips, pattern.numberOfTripSchedules());
+            for (int stopPos = 0; stopPos < pattern.numberOfStopsInPattern(); stopPos++) {
+                for (int t = 1; t < pattern.numberOfTripSchedules(); t++) {
+                    assertTrue(pattern.getTripSchedule(t - 1).departure(stopPos) <= pattern.getTripSchedule(t).departure(stopPos));
+                    assertTrue(pattern.getTripSchedule(t - 1).arrival(stopPos) <= pattern.getTripSchedule(t).arrival(stopPos));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void monte_carlo_boards_the_next_vehicle_after_the_offset() {
+        FrequencyRandomOffsets offsets = randomOffsets();
+        TripPatternInfo<TripScheduleAdapter> pattern = frequencyPattern(MONTE_CARLO, offsets);
+        int firstDeparture = START + offset(offsets) + frequencySchedule().departures[BOARD_POS];
+        int lastDeparture = firstDeparture + (END - START - offset(offsets)) / HEADWAY * HEADWAY;
+
+        assertEquals(firstDeparture, departure(pattern, START));
+        assertEquals(firstDeparture, departure(pattern, firstDeparture));
+        assertEquals(firstDeparture + HEADWAY, departure(pattern, firstDeparture + 1));
+        assertEquals(lastDeparture, departure(pattern, lastDeparture));
+        assertNull(pattern.frequencyTripDepartingAfter(0, BOARD_POS, lastDeparture + 1));
+
+        // The trip keeps the travel times of the schedule.
+        TripScheduleAdapter trip = pattern.frequencyTripDepartingAfter(0, BOARD_POS, START);
+        TripSchedule schedule = frequencySchedule();
+        assertEquals(schedule.arrivals[ALIGHT_POS] - schedule.departures[BOARD_POS],
+                trip.arrival(ALIGHT_POS) - trip.departure(BOARD_POS));
+    }
+
+    @Test
+    public void monte_carlo_alights_from_the_previous_vehicle_before_the_time_limit() {
+        FrequencyRandomOffsets offsets = randomOffsets();
+        TripPatternInfo<TripScheduleAdapter> pattern = frequencyPattern(MONTE_CARLO, offsets);
+        int firstArrival = START + offset(offsets) + frequencySchedule().arrivals[ALIGHT_POS];
+        int lastArrival = firstArrival + (END - START - offset(offsets)) / HEADWAY * HEADWAY;
+
+        assertNull(pattern.frequencyTripArrivingBefore(0, ALIGHT_POS, firstArrival - 1));
+        assertEquals(firstArrival, arrival(pattern, firstArrival));
+        assertEquals(firstArrival, arrival(pattern, firstArrival + HEADWAY - 1));
+        assertEquals(firstArrival + HEADWAY, arrival(pattern, firstArrival + HEADWAY));
+        assertEquals(lastArrival, arrival(pattern, lastArrival + 3 * HEADWAY));
+    }
+
+    /** The offsets are read when the provider is set up, so randomizing them again does not change its trips. */
+    @Test
+    public void monte_carlo_offsets_are_fixed_when_the_provider_is_set_up() {
+        FrequencyRandomOffsets offsets = randomOffsets();
+        TripPatternInfo<TripScheduleAdapter> pattern = frequencyPattern(MONTE_CARLO, offsets);
+        int departure = departure(pattern, START);
+        for (int i = 0; i < 10; i++) {
+            offsets.randomize();
+            assertEquals(departure, departure(pattern, START));
+        }
+    }
+
+    @Test
+    public void upper_bound_boards_and_alights_with_a_full_headway_wait() {
+        TripPatternInfo<TripScheduleAdapter> pattern = frequencyPattern(UPPER_BOUND, null);
+        int boardTravelTime = frequencySchedule().departures[BOARD_POS];
+        int alightTravelTime = frequencySchedule().arrivals[ALIGHT_POS];
+
+        // The first vehicle may leave the terminal as late as one headway after the start of the entry
+        assertEquals(START + HEADWAY + boardTravelTime, departure(pattern, START));
+        assertEquals(START + 1800 + HEADWAY, departure(pattern, START + 1800));
+        // ... and the last one as early as one headway before the end.
+        int lastDeparture = END - HEADWAY + boardTravelTime;
+        assertEquals(lastDeparture + HEADWAY, departure(pattern, lastDeparture));
+        assertNull(pattern.frequencyTripDepartingAfter(0, BOARD_POS, lastDeparture + 1));
+
+        // The reverse search mirrors these bounds.
+        int firstArrival = START + HEADWAY + alightTravelTime;
+        assertNull(pattern.frequencyTripArrivingBefore(0, ALIGHT_POS, firstArrival - 1));
+        assertEquals(firstArrival - HEADWAY, arrival(pattern, firstArrival));
+        assertEquals(START + 1800, arrival(pattern, START + 1800 + HEADWAY));
+        assertEquals(END - HEADWAY + alightTravelTime, arrival(pattern, END + 2 * alightTravelTime));
+    }
+
+    @Test
+    public void half_headway_boards_and_alights_with_a_half_headway_wait() {
+        TripPatternInfo<TripScheduleAdapter> pattern = frequencyPattern(HALF_HEADWAY, null);
+        int boardTravelTime = frequencySchedule().departures[BOARD_POS];
+        int alightTravelTime = frequencySchedule().arrivals[ALIGHT_POS];
+
+        assertEquals(START + boardTravelTime + HALF_HEADWAY_WAIT, departure(pattern, 0));
+        assertEquals(START + 1800 + HALF_HEADWAY_WAIT, departure(pattern, START + 1800));
+        assertEquals(END + boardTravelTime + HALF_HEADWAY_WAIT, departure(pattern, END + boardTravelTime));
+        assertNull(pattern.frequencyTripDepartingAfter(0, BOARD_POS, END + boardTravelTime + 1));
+
+        assertNull(pattern.frequencyTripArrivingBefore(0, ALIGHT_POS, START + alightTravelTime - 1));
+        assertEquals(START + alightTravelTime - HALF_HEADWAY_WAIT, arrival(pattern, START + alightTravelTime));
+        assertEquals(START + 1800 - HALF_HEADWAY_WAIT, arrival(pattern, START + 1800));
+        assertEquals(END + alightTravelTime - HALF_HEADWAY_WAIT, arrival(pattern, 24 * 3600));
+    }
+
+    private static int departure(TripPatternInfo<TripScheduleAdapter> pattern, int earliestBoardTime) {
+        return pattern.frequencyTripDepartingAfter(0, BOARD_POS, earliestBoardTime).departure(BOARD_POS);
+    }
+
+    private static int arrival(TripPatternInfo<TripScheduleAdapter> pattern, int latestAlightTime) {
+        return pattern.frequencyTripArrivingBefore(0, ALIGHT_POS, latestAlightTime).arrival(ALIGHT_POS);
+    }
+
+    private static TransportNetwork buildFrequencyNetwork() {
+        TransportNetwork network = FakeGraph.buildNetwork(FakeGraph.TransitNetwork.SINGLE_LINE);
+        AddTrips.PatternTimetable entry = new AddTrips.PatternTimetable();
+        entry.headwaySecs = HEADWAY;
+        entry.startTime = START;
+        entry.endTime = END;
+        entry.monday = entry.tuesday = entry.wednesday = entry.thursday = entry.friday = entry.saturday = entry.sunday = true;
+        entry.sourceTrip = "SINGLE_LINE:trip25200";
+
+        AdjustFrequency adjustFrequency = new AdjustFrequency();
+        adjustFrequency.route = "SINGLE_LINE:route";
+        adjustFrequency.entries = Collections.singletonList(entry);
+        adjustFrequency.retainTripsOutsideFrequencyEntries = true;
+
+        Scenario scenario = new Scenario();
+        scenario.modifications = Collections.singletonList(adjustFrequency);
+        return scenario.applyToTransportNetwork(network);
+    }
+
+    private static FrequencyRandomOffsets randomOffsets() {
+        FrequencyRandomOffsets offsets = new FrequencyRandomOffsets(FREQUENCY_NETWORK.transitLayer);
+        offsets.randomize();
+        return offsets;
+    }
+
+    /** @return the offset of the only frequency entry, on the only pattern. */
+    private static int offset(FrequencyRandomOffsets offsets) {
+        return offsets.offsets.get(0)[frequencyScheduleIndex()][0];
+    }
+
+    private static TripSchedule frequencySchedule() {
+        return FREQUENCY_NETWORK.transitLayer.tripPatterns.get(0).tripSchedules.get(frequencyScheduleIndex());
+    }
+
+    private static int frequencyScheduleIndex() {
+        List<TripSchedule> schedules = FREQUENCY_NETWORK.transitLayer.tripPatterns.get(0).tripSchedules;
+        for (int i = 0; i < schedules.size(); i++) {
+            if (schedules.get(i).headwaySeconds != null) return i;
+        }
+        throw new IllegalStateException("No frequency entry");
+    }
+
+    private static TripPatternInfo<TripScheduleAdapter> frequencyPattern(FrequencyBoardingMode mode, FrequencyRandomOffsets offsets) {
+        TransitLayerRRDataProvider provider = new TransitLayerRRDataProvider(
+                FREQUENCY_NETWORK.transitLayer, DATE, EnumSet.of(TransitModes.BUS), 1.3f, mode, offsets
+        );
+        provider.setup();
+        List<TripPatternInfo<TripScheduleAdapter>> patterns = patternsTouchedByAllStops(provider);
+        assertEquals(1, patterns.size());
+        return patterns.get(0);
+    }
+
+    private static TransitLayerRRDataProvider provider(LocalDate date, EnumSet<TransitModes> modes) {
+        TransitLayerRRDataProvider provider = new TransitLayerRRDataProvider(NETWORK.transitLayer, date, modes, 1.3f);
+        provider.setup();
+        return provider;
+    }
+
+    private static List<TripPatternInfo<TripScheduleAdapter>> patternsTouchedByAllStops(TransitLayerRRDataProvider provider) {
+        BitSet stops = new BitSet();
+        stops.set(0, provider.numberOfStops());
+        List<TripPatternInfo<TripScheduleAdapter>> patterns = new ArrayList<>();
+        Iterator<TripPatternInfo<TripScheduleAdapter>> it = provider.patternIterator(new BitSetIterator(stops));
+        while (it.hasNext()) {
+            patterns.add(it.next());
+        }
+        return patterns;
+    }
+}
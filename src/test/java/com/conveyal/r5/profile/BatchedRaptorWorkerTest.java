@@ -0,0 +1,67 @@
+package com.conveyal.r5.profile;
+
+import com.conveyal.r5.analyst.scenario.FakeGraph;
+import com.conveyal.r5.api.util.TransitModes;
+import com.conveyal.r5.transit.TransportNetwork;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import org.junit.Test;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Check that routing several origins at once gives each origin the same travel times as routing it alone.
+ */
+public class BatchedRaptorWorkerTest {
+
+    @Test
+    public void testSameTravelTimesAsFastRaptorWorker () {
+        TransportNetwork network = FakeGraph.buildNetwork(FakeGraph.TransitNetwork.MULTIPLE_LINES);
+        ProfileRequest request = new ProfileRequest();
+        request.date = LocalDate.of(2018, 1, 1);
+        request.fromTime = 7 * 3600;
+        request.toTime = 9 * 3600;
+        request.transitModes = EnumSet.of(TransitModes.BUS);
+        request.monteCarloDraws = 0;
+
+        // Some origins reach several stops and some reach none.
+        Random random = new Random(3);
+        int nStops = network.transitLayer.getStopCount();
+        List<TIntIntMap> accessStopsPerOrigin = new ArrayList<>();
+        for (int origin = 0; origin < 6; origin++) {
+            TIntIntMap accessStops = new TIntIntHashMap();
+            for (int stop = 0; stop < nStops; stop++) {
+                if (random.nextInt(3) > 0) accessStops.put(stop, random.nextInt(1200));
+            }
+            accessStopsPerOrigin.add(accessStops);
+        }
+
+        BatchedRaptorWorker batchedWorker = new BatchedRaptorWorker(network.transitLayer, request, accessStopsPerOrigin);
+        int[][] batchedTravelTimes = batchedWorker.routeStopMajor();
+        assertEquals(accessStopsPerOrigin.size(), batchedTravelTimes.length);
+
+        for (int origin = 0; origin < accessStopsPerOrigin.size(); origin++) {
+            FastRaptorWorker worker = new FastRaptorWorker(network.transitLayer, request, accessStopsPerOrigin.get(origin));
+            assertArrayEquals(worker.routeStopMajor(), batchedTravelTimes[origin]);
+            assertEquals(worker.getIterationCount(), batchedWorker.getIterationCount());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectOversizedBatch () {
+        TransportNetwork network = FakeGraph.buildNetwork(FakeGraph.TransitNetwork.MULTIPLE_LINES);
+        List<TIntIntMap> accessStopsPerOrigin = new ArrayList<>();
+        for (int origin = 0; origin <= BatchedRaptorWorker.MAX_BATCH_SIZE; origin++) {
+            accessStopsPerOrigin.add(new TIntIntHashMap());
+        }
+        new BatchedRaptorWorker(network.transitLayer, new ProfileRequest(), accessStopsPerOrigin);
+    }
+
+}
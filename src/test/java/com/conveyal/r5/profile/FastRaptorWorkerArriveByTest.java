@@ -0,0 +1,89 @@
+package com.conveyal.r5.profile;
+
+import com.conveyal.r5.analyst.scenario.FakeGraph;
+import com.conveyal.r5.api.util.TransitModes;
+import com.conveyal.r5.transit.TransitLayer;
+import com.conveyal.r5.transit.TransportNetwork;
+import com.conveyal.r5.transit.TripPattern;
+import com.conveyal.r5.transit.TripSchedule;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import org.junit.Test;
+
+import java.time.LocalDate;
+import java.util.EnumSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Test arrive-by searches, which route on a copy of the transit layer reversed in time.
+ */
+public class FastRaptorWorkerArriveByTest {
+
+    private static final TransportNetwork NETWORK = FakeGraph.buildNetwork(FakeGraph.TransitNetwork.MULTIPLE_LINES);
+
+    @Test
+    public void testReversingTwiceRestoresTrips () {
+        TransitLayer transitLayer = NETWORK.transitLayer;
+        TransitLayer reversed = transitLayer.getReversedLayer();
+        assertSame(reversed, transitLayer.getReversedLayer());
+        TransitLayer restored = reversed.getReversedLayer();
+
+        assertEquals(transitLayer.tripPatterns.size(), restored.tripPatterns.size());
+        for (int p = 0; p < transitLayer.tripPatterns.size(); p++) {
+            TripPattern pattern = transitLayer.tripPatterns.get(p);
+            TripPattern reversedPattern = reversed.tripPatterns.get(p);
+            TripPattern restoredPattern = restored.tripPatterns.get(p);
+            assertEquals(pattern.stops[0], reversedPattern.stops[reversedPattern.stops.length - 1]);
+            assertArrayEquals(pattern.stops, restoredPattern.stops);
+            assertArrayEquals(pattern.pickups, restoredPattern.pickups);
+            assertArrayEquals(pattern.dropoffs, restoredPattern.dropoffs);
+            for (int t = 0; t < pattern.tripSchedules.size(); t++) {
+                TripSchedule schedule = pattern.tripSchedules.get(t);
+                TripSchedule restoredSchedule = restoredPattern.tripSchedules.get(t);
+                assertEquals(schedule.tripId, restoredSchedule.tripId);
+                assertArrayEquals(schedule.arrivals, restoredSchedule.arrivals);
+                assertArrayEquals(schedule.departures, restoredSchedule.departures);
+            }
+        }
+    }
+
+    /**
+     * Arrive at the last stop of a line over an hour-long window, and check the travel time from its first stop.
+     * Trips on the line leave the first stop every FREQUENCY seconds from 7 AM and take TRAVEL_TIME seconds.
+     */
+    @Test
+    public void testArriveByTravelTimes () {
+        TripPattern pattern = NETWORK.transitLayer.tripPatterns.get(0);
+        int firstStop = pattern.stops[0];
+        int lastStop = pattern.stops[pattern.stops.length - 1];
+
+        ProfileRequest request = new ProfileRequest();
+        request.date = LocalDate.of(2018, 1, 1);
+        request.fromTime = 8 * 3600;
+        request.toTime = 9 * 3600;
+        request.transitModes = EnumSet.of(TransitModes.BUS);
+        request.monteCarloDraws = 0;
+        request.reverseSearch = true;
+
+        TIntIntMap accessStops = new TIntIntHashMap();
+        accessStops.put(lastStop, 0);
+        FastRaptorWorker worker = new FastRaptorWorker(NETWORK.transitLayer, request, accessStops);
+        int[][] travelTimes = worker.route();
+        assertEquals(60, travelTimes.length);
+
+        for (int iteration = 0; iteration < travelTimes.length; iteration++) {
+            // The reversed search runs backward over mirrored times, so the first iteration arrives earliest.
+            int arrivalTime = request.fromTime + iteration * 60;
+            // As in a forward search, there must be more than one minute between alighting and the end of the trip.
+            int latestDeparture = 7 * 3600;
+            while (latestDeparture + FakeGraph.FREQUENCY + FakeGraph.TRAVEL_TIME < arrivalTime - 60) {
+                latestDeparture += FakeGraph.FREQUENCY;
+            }
+            assertEquals(arrivalTime - latestDeparture, travelTimes[iteration][firstStop]);
+        }
+    }
+
+}
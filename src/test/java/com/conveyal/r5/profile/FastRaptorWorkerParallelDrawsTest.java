@@ -0,0 +1,100 @@
+package com.conveyal.r5.profile;
+
+import com.conveyal.r5.analyst.scenario.AddTrips;
+import com.conveyal.r5.analyst.scenario.AdjustFrequency;
+import com.conveyal.r5.analyst.scenario.FakeGraph;
+import com.conveyal.r5.analyst.scenario.Scenario;
+import com.conveyal.r5.api.util.TransitModes;
+import com.conveyal.r5.transit.TransportNetwork;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import org.junit.Test;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Check that performing the Monte Carlo draws of a search in parallel gives the same results as performing them one
+ * after another.
+ */
+public class FastRaptorWorkerParallelDrawsTest {
+
+    private static final TransportNetwork NETWORK = buildFrequencyNetwork();
+
+    @Test
+    public void testSameMonteCarloResultsInParallel () {
+        ProfileRequest request = request(240);
+        FastRaptorWorker sequential = worker(request, false, 42L);
+        int[] sequentialTravelTimes = sequential.routeStopMajor();
+        FastRaptorWorker parallel = worker(request, true, 42L);
+        int[] parallelTravelTimes = parallel.routeStopMajor();
+
+        assertArrayEquals(sequentialTravelTimes, parallelTravelTimes);
+        // The draws are kept in the same order, along with their paths.
+        assertSamePaths(sequential, parallel);
+        // The results do depend on the draws, so the comparison above is meaningful.
+        assertFalse(Arrays.equals(sequentialTravelTimes, worker(request, false, 43L).routeStopMajor()));
+    }
+
+    @Test
+    public void testSameHalfHeadwayResultsInParallel () {
+        ProfileRequest request = request(0);
+        FastRaptorWorker sequential = worker(request, false, null);
+        FastRaptorWorker parallel = worker(request, true, null);
+        assertArrayEquals(sequential.route(), parallel.route());
+        assertSamePaths(sequential, parallel);
+    }
+
+    private static void assertSamePaths (FastRaptorWorker expected, FastRaptorWorker actual) {
+        assertEquals(expected.pathsPerIteration.size(), actual.pathsPerIteration.size());
+        for (int iteration = 0; iteration < expected.pathsPerIteration.size(); iteration++) {
+            assertArrayEquals(expected.pathsPerIteration.get(iteration), actual.pathsPerIteration.get(iteration));
+        }
+    }
+
+    private static FastRaptorWorker worker (ProfileRequest request, boolean parallel, Long seed) {
+        TIntIntMap accessStops = new TIntIntHashMap();
+        accessStops.put(0, 60);
+        FastRaptorWorker worker = new FastRaptorWorker(NETWORK.transitLayer, request, accessStops);
+        worker.parallelMonteCarloDraws = parallel;
+        worker.monteCarloSeed = seed;
+        worker.retainPaths = true;
+        return worker;
+    }
+
+    private static ProfileRequest request (int monteCarloDraws) {
+        ProfileRequest request = new ProfileRequest();
+        request.date = LocalDate.of(2018, 1, 1);
+        request.fromTime = 7 * 3600 + 1800;
+        request.toTime = 8 * 3600 + 1800;
+        request.transitModes = EnumSet.of(TransitModes.BUS);
+        request.monteCarloDraws = monteCarloDraws;
+        return request;
+    }
+
+    /** A single line run every 15 minutes from 7 to 10 am. */
+    private static TransportNetwork buildFrequencyNetwork () {
+        TransportNetwork network = FakeGraph.buildNetwork(FakeGraph.TransitNetwork.SINGLE_LINE);
+        AddTrips.PatternTimetable entry = new AddTrips.PatternTimetable();
+        entry.headwaySecs = 900;
+        entry.startTime = 7 * 3600;
+        entry.endTime = 10 * 3600;
+        entry.monday = entry.tuesday = entry.wednesday = entry.thursday = entry.friday = entry.saturday = entry.sunday = true;
+        entry.sourceTrip = "SINGLE_LINE:trip25200";
+
+        AdjustFrequency adjustFrequency = new AdjustFrequency();
+        adjustFrequency.route = "SINGLE_LINE:route";
+        adjustFrequency.entries = Collections.singletonList(entry);
+
+        Scenario scenario = new Scenario();
+        scenario.modifications = Collections.singletonList(adjustFrequency);
+        return scenario.applyToTransportNetwork(network);
+    }
+
+}
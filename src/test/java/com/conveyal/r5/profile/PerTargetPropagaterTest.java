@@ -0,0 +1,131 @@
+package com.conveyal.r5.profile;
+
+import com.conveyal.r5.OneOriginResult;
+import com.conveyal.r5.analyst.Grid;
+import com.conveyal.r5.analyst.TravelTimeReducer;
+import com.conveyal.r5.analyst.WebMercatorGridPointSet;
+import com.conveyal.r5.analyst.cluster.RegionalTask;
+import com.conveyal.r5.analyst.scenario.FakeGraph;
+import com.conveyal.r5.transit.TransportNetwork;
+import org.junit.Test;
+
+import java.util.EnumSet;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Check that skipping stops that cannot improve the travel time to a target, and stopping early at targets that are
+ * already reached at every percentile, gives the same results as examining every nearby stop at every iteration.
+ */
+public class PerTargetPropagaterTest {
+
+    private static final TransportNetwork NETWORK = FakeGraph.buildNetwork(FakeGraph.TransitNetwork.SINGLE_LINE);
+
+    private static final WebMercatorGridPointSet TARGETS = new WebMercatorGridPointSet(NETWORK);
+
+    private static final int N_ITERATIONS = 30;
+
+    @Test
+    public void testSameTravelTimesWhenSkippingStops () {
+        RegionalTask task = task();
+        task.recordTimes = true;
+        Random random = new Random(42);
+        for (int origin = 0; origin < 10; origin++) {
+            int[] timesToStops = randomTimesToStops(random);
+            int[] nonTransitTimes = randomNonTransitTimes(random);
+            OneOriginResult expected = propagate(task, timesToStops, nonTransitTimes, false);
+            OneOriginResult actual = propagate(task, timesToStops, nonTransitTimes, true);
+            int[][] expectedValues = expected.travelTimes.getValues();
+            int[][] actualValues = actual.travelTimes.getValues();
+            assertEquals(expectedValues.length, actualValues.length);
+            for (int p = 0; p < expectedValues.length; p++) {
+                assertArrayEquals(expectedValues[p], actualValues[p]);
+            }
+        }
+    }
+
+    @Test
+    public void testSameAccessibilityWhenSkippingStopsAndTargets () {
+        RegionalTask task = task();
+        task.recordAccessibility = true;
+        Random random = new Random(43);
+        task.destinationPointSet = randomOpportunities(random);
+        for (int origin = 0; origin < 10; origin++) {
+            int[] timesToStops = randomTimesToStops(random);
+            int[] nonTransitTimes = randomNonTransitTimes(random);
+            OneOriginResult expected = propagate(task, timesToStops, nonTransitTimes, false);
+            OneOriginResult actual = propagate(task, timesToStops, nonTransitTimes, true);
+            int[][][] expectedValues = expected.accessibility.getIntValues();
+            int[][][] actualValues = actual.accessibility.getIntValues();
+            for (int p = 0; p < task.percentiles.length; p++) {
+                assertArrayEquals(expectedValues[0][p], actualValues[0][p]);
+            }
+        }
+    }
+
+    private static OneOriginResult propagate (RegionalTask task, int[] timesToStops, int[] nonTransitTimes,
+                                              boolean skipStopsThatCannotImprove) {
+        // The propagater uses the travel times to stops without copying them, so give each one its own copy.
+        PerTargetPropagater propagater = new PerTargetPropagater(TARGETS, NETWORK.streetLayer,
+                EnumSet.of(StreetMode.WALK), task, timesToStops.clone(), N_ITERATIONS, nonTransitTimes);
+        propagater.travelTimeReducer = new TravelTimeReducer(task);
+        propagater.skipStopsThatCannotImprove = skipStopsThatCannotImprove;
+        return propagater.propagate();
+    }
+
+    /**
+     * A task whose time window produces N_ITERATIONS travel times per target, with percentiles on both sides of the
+     * median and a maximum trip duration below the propagation cutoff.
+     */
+    private static RegionalTask task () {
+        RegionalTask task = new RegionalTask();
+        task.fromTime = 7 * 3600;
+        task.toTime = task.fromTime + N_ITERATIONS * 60;
+        task.monteCarloDraws = 0;
+        task.maxTripDurationMinutes = 60;
+        task.percentiles = new double[] { 5, 50, 95 };
+        task.destinationPointSet = TARGETS;
+        return task;
+    }
+
+    /**
+     * Travel times to stops in the stop-major layout, varying by stop and by iteration, some of them unreached, so that
+     * some stops improve on other stops at only some iterations.
+     */
+    private static int[] randomTimesToStops (Random random) {
+        int nStops = NETWORK.transitLayer.getStopCount();
+        int[] timesToStops = new int[nStops * N_ITERATIONS];
+        for (int stop = 0; stop < nStops; stop++) {
+            int baseTime = random.nextInt(80 * 60);
+            for (int iteration = 0; iteration < N_ITERATIONS; iteration++) {
+                boolean reached = random.nextInt(10) > 0;
+                timesToStops[stop * N_ITERATIONS + iteration] =
+                        reached ? baseTime + random.nextInt(20 * 60) : FastRaptorWorker.UNREACHED;
+            }
+        }
+        return timesToStops;
+    }
+
+    private static int[] randomNonTransitTimes (Random random) {
+        int[] nonTransitTimes = new int[TARGETS.featureCount()];
+        for (int target = 0; target < nonTransitTimes.length; target++) {
+            boolean reached = random.nextInt(10) < 3;
+            nonTransitTimes[target] = reached ? random.nextInt(90 * 60) : FastRaptorWorker.UNREACHED;
+        }
+        return nonTransitTimes;
+    }
+
+    /** A grid of opportunities matching the targets, so accessibility depends on exactly which targets are reached. */
+    private static Grid randomOpportunities (Random random) {
+        Grid grid = new Grid(TARGETS.zoom, TARGETS.width, TARGETS.height, TARGETS.north, TARGETS.west);
+        for (int x = 0; x < grid.width; x++) {
+            for (int y = 0; y < grid.height; y++) {
+                grid.grid[x][y] = random.nextInt(1000);
+            }
+        }
+        return grid;
+    }
+
+}
@@ -0,0 +1,84 @@
+package com.conveyal.r5.profile;
+
+import com.conveyal.gtfs.model.Trip;
+import com.conveyal.r5.transit.TripPattern;
+import com.conveyal.r5.transit.TripSchedule;
+import gnu.trove.list.array.TIntArrayList;
+import org.junit.Test;
+
+import java.util.BitSet;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Check that searching the day-filtered departure index gives the same trips as a linear scan over all the trip
+ * schedules on a pattern, which is what FastRaptorWorker did before the index existed.
+ */
+public class ScheduledDepartureIndexTest {
+
+    private static final int N_TRIPS = 300;
+
+    @Test
+    public void testBinarySearchMatchesLinearScan () {
+        TripPattern pattern = new TripPattern(new TIntArrayList(new int[] { 0, 1, 2 }));
+        for (int i = 0; i < N_TRIPS; i++) {
+            // Every third trip runs on a service that is not active, and trips have equal departure times in pairs.
+            int start = 6 * 60 * 60 + (i / 2) * 120;
+            pattern.addTrip(makeTrip(i, start, i % 3 == 0 ? 1 : 0));
+        }
+        BitSet servicesActive = new BitSet();
+        servicesActive.set(0);
+
+        ScheduledDepartureIndex index = new ScheduledDepartureIndex(pattern, servicesActive);
+        assertTrue(index.sorted);
+        assertEquals(N_TRIPS - N_TRIPS / 3, index.nTrips());
+
+        for (int stopPosition = 0; stopPosition < 3; stopPosition++) {
+            for (int time = 5 * 60 * 60; time < 12 * 60 * 60; time += 37) {
+                int expected = linearScan(index, stopPosition, time);
+                assertEquals(expected, index.findFirstDepartureAfter(stopPosition, time, index.nTrips()));
+                // Backing up from the last trip should find the same trip, or stay put if none is found.
+                int last = index.nTrips() - 1;
+                int backedUp = index.findEarlierDepartureAfter(stopPosition, time, last);
+                assertEquals(expected == -1 || expected > last ? last : expected, backedUp);
+            }
+        }
+    }
+
+    @Test
+    public void testOvertakingTripsUseLinearScan () {
+        TripPattern pattern = new TripPattern(new TIntArrayList(new int[] { 0, 1, 2 }));
+        for (int i = 0; i < N_TRIPS; i++) {
+            pattern.addTrip(makeTrip(i, 6 * 60 * 60 + i * 60, 0));
+        }
+        // Make one trip much slower so that it is overtaken by the following trips at later stops.
+        pattern.tripSchedules.get(10).departures[2] += 3600;
+        BitSet servicesActive = new BitSet();
+        servicesActive.set(0);
+
+        ScheduledDepartureIndex index = new ScheduledDepartureIndex(pattern, servicesActive);
+        assertFalse(index.sorted);
+        for (int time = 5 * 60 * 60; time < 12 * 60 * 60; time += 37) {
+            assertEquals(linearScan(index, 2, time), index.findFirstDepartureAfter(2, time, index.nTrips()));
+        }
+    }
+
+    private static int linearScan (ScheduledDepartureIndex index, int stopPosition, int time) {
+        for (int trip = 0; trip < index.nTrips(); trip++) {
+            if (index.schedules[trip].departures[stopPosition] > time) return trip;
+        }
+        return -1;
+    }
+
+    private static TripSchedule makeTrip (int i, int start, int serviceCode) {
+        Trip trip = new Trip();
+        trip.feed_id = "FEED";
+        trip.trip_id = "TRIP" + i;
+        int[] times = new int[] { start, start + 300, start + 600 };
+        return TripSchedule.create(trip, times, times.clone(), Collections.emptyList(), new int[] { 1, 2, 3 }, serviceCode);
+    }
+
+}
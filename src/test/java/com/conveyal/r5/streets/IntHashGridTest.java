@@ -0,0 +1,79 @@
+package com.conveyal.r5.streets;
+
+import com.vividsolutions.jts.geom.Envelope;
+import gnu.trove.set.TIntSet;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Check that packing a spatial index does not change the results of queries, including for objects inserted after
+ * it has been packed and for coordinates on both sides of the equator and prime meridian, and that objects can only
+ * be removed from the bins that have not been packed.
+ */
+public class IntHashGridTest {
+
+    @Test
+    public void testPackedQueries () {
+        Random random = new Random(1);
+        IntHashGrid unpacked = new IntHashGrid();
+        IntHashGrid packed = new IntHashGrid();
+        for (int i = 0; i < 2000; i++) {
+            Envelope envelope = randomEnvelope(random, 3000);
+            unpacked.insert(envelope, i);
+            packed.insert(envelope, i);
+        }
+        packed.pack();
+        // Objects inserted after packing go into the unpacked part of the index.
+        for (int i = 2000; i < 2100; i++) {
+            Envelope envelope = randomEnvelope(random, 3000);
+            unpacked.insert(envelope, i);
+            packed.insert(envelope, i);
+        }
+        List<Envelope> queries = new ArrayList<>();
+        for (int i = 0; i < 200; i++) queries.add(randomEnvelope(random, 20000));
+        int nonEmpty = 0;
+        for (Envelope query : queries) {
+            TIntSet expected = unpacked.query(query);
+            assertEquals(expected, packed.query(query));
+            if (!expected.isEmpty()) nonEmpty++;
+        }
+        assertTrue("Queries should find some objects.", nonEmpty > 10);
+    }
+
+    @Test
+    public void testRemoveAfterPacking () {
+        IntHashGrid index = new IntHashGrid();
+        Envelope packedEnvelope = new Envelope(0, 1000, 0, 1000);
+        Envelope unpackedEnvelope = new Envelope(500, 1500, 500, 1500);
+        index.insert(packedEnvelope, 1);
+        index.pack();
+        index.insert(unpackedEnvelope, 2);
+        // Objects inserted after packing can be removed as usual.
+        assertTrue(index.remove(unpackedEnvelope, 2));
+        assertFalse(index.query(unpackedEnvelope).contains(2));
+        // Packed objects cannot be removed, and are left in the index.
+        try {
+            index.remove(packedEnvelope, 1);
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        assertTrue(index.query(packedEnvelope).contains(1));
+    }
+
+    /** @return an envelope in fixed-point degrees within about 0.01 degrees of (0, 0). */
+    private static Envelope randomEnvelope (Random random, int maxSize) {
+        int x = VertexStore.floatingDegreesToFixed((random.nextDouble() - 0.5) * 0.02);
+        int y = VertexStore.floatingDegreesToFixed((random.nextDouble() - 0.5) * 0.02);
+        return new Envelope(x, x + random.nextInt(maxSize), y, y + random.nextInt(maxSize));
+    }
+
+}
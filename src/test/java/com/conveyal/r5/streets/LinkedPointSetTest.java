@@ -0,0 +1,50 @@
+package com.conveyal.r5.streets;
+
+import com.conveyal.r5.analyst.WebMercatorGridPointSet;
+import com.conveyal.r5.analyst.scenario.FakeGraph;
+import com.conveyal.r5.profile.StreetMode;
+import com.conveyal.r5.transit.TransportNetwork;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Check that linking a grid one tile of cells at a time gives the same linkage as finding the split for each cell on
+ * its own. The segments of a tile are a superset of those near each of its cells, but those outside a cell's search
+ * envelope are skipped and equally near edges are resolved by edge ID in both cases, so the results are identical.
+ */
+public class LinkedPointSetTest {
+
+    private static final TransportNetwork NETWORK = FakeGraph.buildNetwork(FakeGraph.TransitNetwork.SINGLE_LINE);
+
+    @Test
+    public void testTiledGridLinkageMatchesPerCellLinkage () {
+        checkGridLinkage(StreetMode.WALK);
+        checkGridLinkage(StreetMode.CAR);
+    }
+
+    private static void checkGridLinkage (StreetMode streetMode) {
+        StreetLayer streetLayer = NETWORK.streetLayer;
+        WebMercatorGridPointSet grid = new WebMercatorGridPointSet(NETWORK);
+        LinkedPointSet linkage = new LinkedPointSet(grid, streetLayer, streetMode, null);
+        assertEquals(grid.featureCount(), linkage.size());
+        int linked = 0;
+        for (int p = 0; p < grid.featureCount(); p++) {
+            Split split = streetLayer.findSplit(grid.getLat(p), grid.getLon(p), StreetLayer.LINK_RADIUS_METERS,
+                    streetMode);
+            String message = streetMode + " linkage of cell " + p;
+            if (split == null) {
+                assertEquals(message, -1, linkage.edges[p]);
+                continue;
+            }
+            assertEquals(message, split.edge, linkage.edges[p]);
+            assertEquals(message, split.distanceToEdge_mm, linkage.distancesToEdge_mm[p]);
+            assertEquals(message, split.distance0_mm, linkage.distances0_mm[p]);
+            assertEquals(message, split.distance1_mm, linkage.distances1_mm[p]);
+            linked++;
+        }
+        assertTrue("Some cells should be linked to streets.", linked > 0);
+    }
+
+}
@@ -0,0 +1,33 @@
+package com.conveyal.r5.streets;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Check that street geometries survive packing, including empty geometries, large jumps between points and points
+ * on either side of the equator and prime meridian (where fixed-point coordinates change sign).
+ */
+public class PackedGeometryListTest {
+
+    @Test
+    public void testRoundTrip () {
+        List<int[]> geometries = Arrays.asList(
+                new int[0],
+                new int[] { 389012345, -770123456 },
+                new int[] { 389012345, -770123456, 389012399, -770123400, 389012301, -770123502 },
+                new int[0],
+                new int[] { -5, 3, 7, -2, Integer.MAX_VALUE, Integer.MIN_VALUE, 0, 0 }
+        );
+        PackedGeometryList packed = PackedGeometryList.pack(geometries);
+        assertEquals(geometries.size(), packed.size());
+        for (int i = 0; i < geometries.size(); i++) {
+            assertArrayEquals(geometries.get(i), packed.get(i));
+        }
+    }
+
+}
@@ -347,4 +347,96 @@ public class StreetLayerTest extends TestCase {
         assertEquals(238215856L, edge.getOSMID());
         assertFalse(restriction.only);
     }
+
+    /**
+     * Test that freezing the edge store into plain arrays does not change any edge characteristics, that changes made
+     * after freezing are seen when reading the edges back, and that scenario copies do not alter the frozen base.
+     */
+    @Test
+    public void testFrozenEdges () {
+        OSM osm = new OSM(null);
+        osm.intersectionDetection = true;
+        osm.readFromUrl(StreetLayerTest.class.getResource("subgraph.vex").toString());
+        StreetLayer sl = new StreetLayer(TNBuilderConfig.defaultConfig());
+        sl.loadFromOsm(osm, false, true);
+
+        int nEdges = sl.edgeStore.nEdges();
+        List<String> edgesBeforeFreezing = new ArrayList<>();
+        EdgeStore.Edge edge = sl.edgeStore.getCursor();
+        while (edge.advance()) {
+            edgesBeforeFreezing.add(describeEdge(edge));
+        }
+
+        sl.edgeStore.freeze();
+        assertEquals(nEdges, sl.edgeStore.nEdges());
+        edge = sl.edgeStore.getCursor();
+        for (int e = 0; e < nEdges; e++) {
+            edge.seek(e);
+            assertEquals(edgesBeforeFreezing.get(e), describeEdge(edge));
+        }
+
+        // Changes after freezing must be visible through the cursor and in the lists.
+        edge.seek(1);
+        edge.setFlag(EdgeStore.EdgeFlag.STAIRS);
+        edge.setSpeed((short) 1234);
+        assertTrue(sl.edgeStore.getCursor(1).getFlag(EdgeStore.EdgeFlag.STAIRS));
+        assertEquals(1234, sl.edgeStore.getCursor(1).getSpeed());
+        assertEquals(1234, sl.edgeStore.speeds.get(1));
+
+        // Changing speeds in a scenario copy must not affect the base edges.
+        EdgeStore copy = sl.edgeStore.extendOnlyCopy(sl);
+        copy.getCursor(1).setSpeed((short) 42);
+        assertEquals(42, copy.getCursor(1).getSpeed());
+        assertEquals(1234, sl.edgeStore.getCursor(1).getSpeed());
+        assertEquals(edgesBeforeFreezing.get(0), describeEdge(copy.getCursor(0)));
+    }
+
+    /** Edges must still be added to a frozen edge store and to scenario copies of it. */
+    @Test
+    public void testAddEdgesAfterFreezing () {
+        OSM osm = new OSM(null);
+        osm.intersectionDetection = true;
+        osm.readFromUrl(StreetLayerTest.class.getResource("subgraph.vex").toString());
+        StreetLayer sl = new StreetLayer(TNBuilderConfig.defaultConfig());
+        sl.loadFromOsm(osm, false, true);
+        sl.edgeStore.freeze();
+        int nEdges = sl.edgeStore.nEdges();
+        String firstEdge = describeEdge(sl.edgeStore.getCursor(0));
+
+        // Adding edges to a scenario copy keeps reading the base edges from the frozen arrays.
+        EdgeStore copy = sl.edgeStore.extendOnlyCopy(sl);
+        EdgeStore.Edge added = copy.addStreetPair(0, 1, 12345, -1);
+        added.setSpeed((short) 321);
+        assertEquals(nEdges + 2, copy.nEdges());
+        assertEquals(12345, copy.getCursor(nEdges).getLengthMm());
+        assertEquals(321, copy.getCursor(nEdges).getSpeed());
+        assertEquals(firstEdge, describeEdge(copy.getCursor(0)));
+        assertEquals(nEdges, sl.edgeStore.nEdges());
+        assertTrue(sl.edgeStore.isFrozen());
+
+        // The copy's speeds have grown into a larger array. Base edges changed afterward still read the same both ways.
+        copy.getCursor(1).setSpeed((short) 77);
+        assertEquals(77, copy.getCursor(1).getSpeed());
+        assertEquals(77, copy.speeds.get(1));
+
+        // Adding edges to the base edge store thaws it.
+        sl.edgeStore.addStreetPair(1, 0, 54321, -1);
+        assertFalse(sl.edgeStore.isFrozen());
+        assertEquals(nEdges + 2, sl.edgeStore.nEdges());
+        assertEquals(54321, sl.edgeStore.getCursor(nEdges + 1).getLengthMm());
+        assertEquals(firstEdge, describeEdge(sl.edgeStore.getCursor(0)));
+
+        // And it can be frozen again.
+        sl.edgeStore.freeze();
+        assertTrue(sl.edgeStore.isFrozen());
+        assertEquals(54321, sl.edgeStore.getCursor(nEdges + 1).getLengthMm());
+    }
+
+    private static String describeEdge (EdgeStore.Edge edge) {
+        return String.join(",", Integer.toString(edge.getFromVertex()), Integer.toString(edge.getToVertex()),
+                Integer.toString(edge.getLengthMm()), Short.toString(edge.getSpeed()),
+                Long.toString(edge.getOSMID()), Integer.toString(edge.getInAngle()),
+                Integer.toString(edge.getOutAngle()), edge.getFlags().toString());
+    }
+
 }
@@ -0,0 +1,127 @@
+package com.conveyal.r5.streets;
+
+import com.conveyal.r5.point_to_point.builder.TNBuilderConfig;
+import com.conveyal.r5.profile.StreetMode;
+import gnu.trove.map.TIntIntMap;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Check that StreetRouter searches performed on primitive labels give the same results as searches on State objects.
+ * Installing a RoutingVisitor makes the router fall back on State objects, so we can run the same search both ways.
+ */
+public class StreetRouterLabelsTest {
+
+    private static final int GRID_SIZE = 30;
+
+    @Test
+    public void testLabelsMatchStates () {
+        StreetLayer streetLayer = buildGrid();
+        int origin = (GRID_SIZE / 2) * GRID_SIZE + GRID_SIZE / 3;
+
+        // The distance-constrained walk search used to build distance tables for transit stops.
+        StreetRouter labelRouter = makeRouter(streetLayer, StreetMode.WALK, StreetRouter.State.RoutingVariable.DISTANCE_MILLIMETERS, false);
+        StreetRouter stateRouter = makeRouter(streetLayer, StreetMode.WALK, StreetRouter.State.RoutingVariable.DISTANCE_MILLIMETERS, true);
+        labelRouter.distanceLimitMeters = 2000;
+        stateRouter.distanceLimitMeters = 2000;
+        labelRouter.setOrigin(origin);
+        stateRouter.setOrigin(origin);
+        labelRouter.route();
+        stateRouter.route();
+        assertSameResults(streetLayer, labelRouter, stateRouter);
+
+        // Time-limited access searches, walking and driving.
+        for (StreetMode mode : new StreetMode[] { StreetMode.WALK, StreetMode.CAR }) {
+            labelRouter = makeRouter(streetLayer, mode, StreetRouter.State.RoutingVariable.DURATION_SECONDS, false);
+            stateRouter = makeRouter(streetLayer, mode, StreetRouter.State.RoutingVariable.DURATION_SECONDS, true);
+            labelRouter.timeLimitSeconds = 900;
+            stateRouter.timeLimitSeconds = 900;
+            labelRouter.setOrigin(origin);
+            stateRouter.setOrigin(origin);
+            labelRouter.route();
+            stateRouter.route();
+            assertSameResults(streetLayer, labelRouter, stateRouter);
+        }
+
+        // Continuing on foot after driving should also give the same results.
+        labelRouter.keepRoutingOnFoot();
+        stateRouter.keepRoutingOnFoot();
+        assertSameResults(streetLayer, labelRouter, stateRouter);
+    }
+
+    private static StreetRouter makeRouter (StreetLayer streetLayer, StreetMode mode,
+                                            StreetRouter.State.RoutingVariable variable, boolean useStates) {
+        StreetRouter router = new StreetRouter(streetLayer);
+        router.streetMode = mode;
+        router.quantityToMinimize = variable;
+        if (useStates) {
+            router.setRoutingVisitor(state -> { });
+        }
+        return router;
+    }
+
+    /**
+     * Compare the values of the routing variable at every vertex. Other characteristics of the paths may differ where
+     * several paths have the same value, as the two searches may break ties differently.
+     */
+    private static void assertSameResults (StreetLayer streetLayer, StreetRouter labelRouter, StreetRouter stateRouter) {
+        StreetRouter.State.RoutingVariable variable = stateRouter.quantityToMinimize;
+        TIntIntMap labelVertices = labelRouter.getReachedVertices();
+        TIntIntMap stateVertices = stateRouter.getReachedVertices();
+        assertEquals(stateVertices, labelVertices);
+        if (variable == StreetRouter.State.RoutingVariable.DURATION_SECONDS) {
+            for (int v = 0; v < streetLayer.vertexStore.getVertexCount(); v++) {
+                assertEquals(stateRouter.getTravelTimeToVertex(v), labelRouter.getTravelTimeToVertex(v));
+            }
+        }
+        // Reading State objects converts the labels, which should yield paths with the same values.
+        for (int v = 0; v < streetLayer.vertexStore.getVertexCount(); v++) {
+            StreetRouter.State labelState = labelRouter.getStateAtVertex(v);
+            StreetRouter.State stateState = stateRouter.getStateAtVertex(v);
+            if (stateState == null) {
+                assertNull(labelState);
+            } else {
+                assertEquals(stateState.getRoutingVariable(variable), labelState.getRoutingVariable(variable));
+            }
+        }
+    }
+
+    /** Make a grid of streets with varying lengths and permissions, some of them stairs. */
+    private static StreetLayer buildGrid () {
+        StreetLayer streetLayer = new StreetLayer(new TNBuilderConfig());
+        Random random = new Random(42);
+        for (int y = 0; y < GRID_SIZE; y++) {
+            for (int x = 0; x < GRID_SIZE; x++) {
+                streetLayer.vertexStore.addVertex(40 + y * 0.001, -83 + x * 0.001);
+            }
+        }
+        for (int y = 0; y < GRID_SIZE; y++) {
+            for (int x = 0; x < GRID_SIZE; x++) {
+                int vertex = y * GRID_SIZE + x;
+                if (x + 1 < GRID_SIZE) addStreet(streetLayer, random, vertex, vertex + 1);
+                if (y + 1 < GRID_SIZE) addStreet(streetLayer, random, vertex, vertex + GRID_SIZE);
+            }
+        }
+        streetLayer.indexStreets();
+        streetLayer.buildEdgeLists();
+        return streetLayer;
+    }
+
+    private static void addStreet (StreetLayer streetLayer, Random random, int from, int to) {
+        EdgeStore.Edge edge = streetLayer.edgeStore.addStreetPair(from, to, 50000 + random.nextInt(100000), 1);
+        int kind = random.nextInt(10);
+        short speed = (short) (500 + random.nextInt(2000));
+        for (int i = 0; i < 2; i++) {
+            if (kind != 0) edge.setFlag(EdgeStore.EdgeFlag.ALLOWS_PEDESTRIAN);
+            if (kind != 1) edge.setFlag(EdgeStore.EdgeFlag.ALLOWS_CAR);
+            if (kind == 2) edge.setFlag(EdgeStore.EdgeFlag.STAIRS);
+            edge.setSpeed(speed);
+            edge.advance();
+        }
+    }
+
+}
@@ -0,0 +1,70 @@
+package com.conveyal.r5.streets;
+
+import com.conveyal.r5.point_to_point.builder.TNBuilderConfig;
+import com.conveyal.r5.profile.StreetMode;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Check that WalkDistanceSearch finds the same distances as the StreetRouter searches it replaces when building
+ * distance tables, including when one search context is reused for many origins, and on networks containing link
+ * edges (which can't be traversed twice in a row) and zero-length edges.
+ */
+public class WalkDistanceSearchTest {
+
+    private static final int GRID_SIZE = 30;
+
+    @Test
+    public void testSameDistancesAsStreetRouter () {
+        StreetLayer streetLayer = buildGrid();
+        WalkDistanceSearch search = new WalkDistanceSearch(streetLayer);
+        Random random = new Random(7);
+        for (int i = 0; i < 20; i++) {
+            int origin = random.nextInt(GRID_SIZE * GRID_SIZE);
+            int distanceLimitMeters = i % 2 == 0 ? 1000 : 2000;
+            StreetRouter router = new StreetRouter(streetLayer);
+            router.streetMode = StreetMode.WALK;
+            router.quantityToMinimize = StreetRouter.State.RoutingVariable.DISTANCE_MILLIMETERS;
+            router.distanceLimitMeters = distanceLimitMeters;
+            router.setOrigin(origin);
+            router.route();
+            assertEquals(router.getReachedVertices(), search.search(origin, distanceLimitMeters * 1000));
+        }
+    }
+
+    /** Make a grid of streets with varying lengths and permissions, some of them link edges or zero-length. */
+    private static StreetLayer buildGrid () {
+        StreetLayer streetLayer = new StreetLayer(new TNBuilderConfig());
+        Random random = new Random(42);
+        for (int y = 0; y < GRID_SIZE; y++) {
+            for (int x = 0; x < GRID_SIZE; x++) {
+                streetLayer.vertexStore.addVertex(40 + y * 0.001, -83 + x * 0.001);
+            }
+        }
+        for (int y = 0; y < GRID_SIZE; y++) {
+            for (int x = 0; x < GRID_SIZE; x++) {
+                int vertex = y * GRID_SIZE + x;
+                if (x + 1 < GRID_SIZE) addStreet(streetLayer, random, vertex, vertex + 1);
+                if (y + 1 < GRID_SIZE) addStreet(streetLayer, random, vertex, vertex + GRID_SIZE);
+            }
+        }
+        streetLayer.indexStreets();
+        streetLayer.buildEdgeLists();
+        return streetLayer;
+    }
+
+    private static void addStreet (StreetLayer streetLayer, Random random, int from, int to) {
+        int kind = random.nextInt(10);
+        int lengthMm = kind == 3 ? 0 : 20000 + random.nextInt(100000);
+        EdgeStore.Edge edge = streetLayer.edgeStore.addStreetPair(from, to, lengthMm, 1);
+        for (int i = 0; i < 2; i++) {
+            if (kind != 0) edge.setFlag(EdgeStore.EdgeFlag.ALLOWS_PEDESTRIAN);
+            if (kind == 1 || kind == 2) edge.setFlag(EdgeStore.EdgeFlag.LINK);
+            edge.advance();
+        }
+    }
+
+}
@@ -0,0 +1,95 @@
+package com.conveyal.r5.transit;
+
+import com.conveyal.r5.analyst.scenario.AdjustDwellTime;
+import com.conveyal.r5.analyst.scenario.AdjustSpeed;
+import com.conveyal.r5.analyst.scenario.FakeGraph;
+import com.conveyal.r5.analyst.scenario.Scenario;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.conveyal.r5.analyst.scenario.FakeGraph.buildNetwork;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test reusing the networks produced by applying the leading modifications of a scenario.
+ */
+public class TransportNetworkCacheTest {
+
+    /**
+     * Two scenarios sharing their first modification should share the network with that modification applied, and
+     * give the same result as applying each scenario to the base network from scratch.
+     */
+    @Test
+    public void testReuseSharedModifications () {
+        TransportNetwork baseNetwork = buildNetwork(FakeGraph.TransitNetwork.SINGLE_LINE);
+        long bytesBefore = baseNetwork.estimateRetainedBytes();
+
+        Scenario first = scenario("first", 42);
+        List<String> firstHashes = first.modificationPrefixHashes();
+        TransportNetwork firstNetwork = TransportNetworkCache.applyScenario(baseNetwork, first);
+        TransportNetwork sharedNetwork = baseNetwork.appliedModifications.getIfPresent(firstHashes.get(0));
+        assertNotNull(sharedNetwork);
+        assertSame(firstNetwork, baseNetwork.appliedModifications.getIfPresent(firstHashes.get(1)));
+        assertTrue(baseNetwork.estimateRetainedBytes() > bytesBefore);
+
+        Scenario second = scenario("second", 10);
+        List<String> secondHashes = second.modificationPrefixHashes();
+        assertEquals(firstHashes.get(0), secondHashes.get(0));
+        TransportNetwork secondNetwork = TransportNetworkCache.applyScenario(baseNetwork, second);
+        assertSame(sharedNetwork, baseNetwork.appliedModifications.getIfPresent(secondHashes.get(0)));
+        assertSame(secondNetwork, baseNetwork.appliedModifications.getIfPresent(secondHashes.get(1)));
+
+        assertSameTimetables(scenario("first", 42).applyToTransportNetwork(baseNetwork), firstNetwork);
+        assertSameTimetables(scenario("second", 10).applyToTransportNetwork(baseNetwork), secondNetwork);
+        assertEquals("second", secondNetwork.scenarioId);
+    }
+
+    /** The networks kept for reuse are bounded, however many scenarios are applied. */
+    @Test
+    public void testAppliedModificationsAreBounded () {
+        TransportNetwork baseNetwork = buildNetwork(FakeGraph.TransitNetwork.SINGLE_LINE);
+        for (int dwell = 1; dwell <= 10; dwell++) {
+            TransportNetworkCache.applyScenario(baseNetwork, scenario("scenario" + dwell, dwell));
+        }
+        assertTrue(baseNetwork.appliedModifications.estimatedSize() <= TransportNetwork.MAX_APPLIED_MODIFICATIONS);
+    }
+
+    /** @return a scenario that speeds up all trips, then sets the dwell time at all stops. */
+    private static Scenario scenario (String id, int dwellSecs) {
+        AdjustSpeed adjustSpeed = new AdjustSpeed();
+        adjustSpeed.routes = Collections.singleton("SINGLE_LINE:route");
+        adjustSpeed.scale = 2;
+        AdjustDwellTime adjustDwellTime = new AdjustDwellTime();
+        adjustDwellTime.routes = Collections.singleton("SINGLE_LINE:route");
+        adjustDwellTime.dwellSecs = dwellSecs;
+        Scenario scenario = new Scenario();
+        scenario.id = id;
+        scenario.modifications = Arrays.asList(adjustSpeed, adjustDwellTime);
+        return scenario;
+    }
+
+    private static void assertSameTimetables (TransportNetwork expected, TransportNetwork actual) {
+        assertEquals(expected.transitLayer.tripPatterns.size(), actual.transitLayer.tripPatterns.size());
+        for (int p = 0; p < expected.transitLayer.tripPatterns.size(); p++) {
+            TripPattern expectedPattern = expected.transitLayer.tripPatterns.get(p);
+            TripPattern actualPattern = actual.transitLayer.tripPatterns.get(p);
+            assertArrayEquals(expectedPattern.stops, actualPattern.stops);
+            assertEquals(expectedPattern.tripSchedules.size(), actualPattern.tripSchedules.size());
+            for (int t = 0; t < expectedPattern.tripSchedules.size(); t++) {
+                TripSchedule expectedSchedule = expectedPattern.tripSchedules.get(t);
+                TripSchedule actualSchedule = actualPattern.tripSchedules.get(t);
+                assertEquals(expectedSchedule.tripId, actualSchedule.tripId);
+                assertArrayEquals(expectedSchedule.arrivals, actualSchedule.arrivals);
+                assertArrayEquals(expectedSchedule.departures, actualSchedule.departures);
+            }
+        }
+    }
+
+}
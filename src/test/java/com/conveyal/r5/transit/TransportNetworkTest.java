@@ -0,0 +1,46 @@
+package com.conveyal.r5.transit;
+
+import com.conveyal.r5.analyst.scenario.FakeGraph;
+import com.conveyal.r5.profile.StreetMode;
+import com.conveyal.r5.streets.LinkedPointSet;
+import org.junit.Test;
+
+import java.util.Collection;
+import java.util.List;
+
+import static com.conveyal.r5.analyst.scenario.FakeGraph.buildNetwork;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TransportNetworkTest {
+
+    /**
+     * The WALK egress cost tables are derived from the stop to vertex distance tables, so when those have to be built
+     * along with the linked grid they must be finished before the linkage is built. The result must be the same as
+     * linking a network whose distance tables were built beforehand.
+     */
+    @Test
+    public void testDistanceTablesBuiltBeforeLinkage () {
+        TransportNetwork expected = buildNetwork(FakeGraph.TransitNetwork.MULTIPLE_LINES);
+        expected.rebuildLinkedGridPointSet(StreetMode.WALK);
+
+        TransportNetwork network = buildNetwork(FakeGraph.TransitNetwork.MULTIPLE_LINES);
+        network.transitLayer.stopToVertexDistanceTables = null;
+        network.buildDistanceTablesAndLinkedGrid(StreetMode.WALK);
+
+        assertEquals(network.transitLayer.getStopCount(), network.transitLayer.stopToVertexDistanceTables.size());
+        List<int[]> expectedTables = getOnlyUnevictableLinkage(expected).getEgressCostTable().stopToPointLinkageCostTables;
+        List<int[]> tables = getOnlyUnevictableLinkage(network).getEgressCostTable().stopToPointLinkageCostTables;
+        assertEquals(expectedTables.size(), tables.size());
+        for (int stop = 0; stop < expectedTables.size(); stop++) {
+            assertArrayEquals(expectedTables.get(stop), tables.get(stop));
+        }
+    }
+
+    private static LinkedPointSet getOnlyUnevictableLinkage (TransportNetwork network) {
+        Collection<LinkedPointSet> linkages = network.linkageCache.getUnevictableLinkages();
+        assertEquals(1, linkages.size());
+        return linkages.iterator().next();
+    }
+
+}